@@ -59,7 +59,7 @@ public class AppletMain implements AppStopHook {
 
         for (int tmp_i = 0; tmp_i < glb_cfg.getDbCount(); tmp_i++)
             if (glb_cfg.getDbTcpEnabled(tmp_i))
-                new TumServTCP(new SessionProducerTcpStd(tmp_i)); // YYY
+                new TumServTCP(SessionProducerTcpStd.Create(tmp_i)); // YYY
 
         while (!TerminateRequested) {
             try {
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2db;
+
+
+import java.nio.ByteBuffer;
+
+
+public interface OutBuffBufferContinuator extends OutBuffContinuator {
+
+    // Returns a buffer (position 0) over the next _count bytes at most, which the caller must not modify,
+    //  or null whenever ReadTo() should be used instead (e.g. for the trailing status byte).
+    public ByteBuffer BodySlice(int _count);
+
+    // Tells how many bytes of the last BodySlice() were actually sent.
+    public void BodySent(int _count);
+
+}
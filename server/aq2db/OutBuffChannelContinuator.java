@@ -0,0 +1,24 @@
+/*
+ * Copyright 2011-2024 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost 
+ * level of the repository.
+ * 
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2db;
+
+
+import java.nio.channels.WritableByteChannel;
+
+
+public interface OutBuffChannelContinuator extends OutBuffContinuator {
+
+    // Reminder: returns 0 whenever ReadTo() should be used instead (e.g. for the trailing status byte).
+    public int TransferTo(WritableByteChannel target, int count) throws Exception;
+
+}
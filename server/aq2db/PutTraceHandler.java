@@ -0,0 +1,21 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2db;
+
+
+public interface PutTraceHandler {
+
+    // Note. Called from a write pipeline (or density editor) thread, _err_msg is empty on success.
+    public void PutTraceDone(String _shot_name, int _signal_id, String _err_msg);
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2db;
+
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.zip.*;
+
+
+final class Tum3ChunkedBody {
+// Chunked compressed signal body, stored in place of the raw body in files
+//  signed with const_tum3ng_sign_z (see Tum3Shot). The UnifiedTraceHeader is kept
+//  as is and still tells the raw HDataSize, so clients see no difference.
+// Layout right after the UnifiedTraceHeader (little endian):
+//  int CONST_CHUNK_SIGN, int codec, int chunk raw size, int chunk count, long raw size,
+//  then (chunk count + 1) longs: offsets of compressed chunks relative to the index start.
+// Reminder: each chunk is compressed independently, so any raw offset is reachable
+//  by inflating just one chunk.
+
+    final static int CODEC_DEFLATE = 1;
+    final static int CODEC_DELTA16_DEFLATE = 2; // Note. For HType 50, 16-bit samples are delta coded first.
+
+    private final static int CONST_CHUNK_SIGN = 0x4B4E4843; // "CHNK"
+    private final static int CONST_INDEX_FIXED = 24;
+    private final static int CONST_CHUNK_RAW_SIZE = 256*1024; // Reminder: must be even for CODEC_DELTA16_DEFLATE.
+    private final static int CONST_WORTH_PERCENT = 90; // Note. Stored raw unless at least 10% is saved.
+    private final static int CONST_MIN_RAW_SIZE = 4096; // Note. Smaller bodies are always stored raw, the index alone would eat the gain.
+
+
+    static int HTypeOf(ByteBuffer _header) {
+        // Same format detection as in Tum3Shot.putTrace().
+
+        ByteBuffer tmpBB = _header.duplicate();
+        tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+        int tmp_base = tmpBB.position();
+        if ((tmpBB.remaining() >= Tum3Shot.min_hlen_Fmt64Ver) && (0 == tmpBB.getInt(tmp_base + 12*4+256)))
+            return tmpBB.getInt(tmp_base + 320);
+        if (tmpBB.remaining() >= 8) return tmpBB.getInt(tmp_base + 4);
+        return 0;
+
+    }
+
+    private static void DeltaEncode16(byte[] _buff, int _len) {
+
+        int tmp_prev = 0;
+        for (int tmp_i = 0; tmp_i + 1 < _len; tmp_i += 2) {
+            int tmp_v = (_buff[tmp_i] & 0xFF) | (_buff[tmp_i+1] << 8);
+            int tmp_d = tmp_v - tmp_prev;
+            tmp_prev = tmp_v;
+            _buff[tmp_i] = (byte)tmp_d;
+            _buff[tmp_i+1] = (byte)(tmp_d >> 8);
+        }
+
+    }
+
+    private static void DeltaDecode16(byte[] _buff, int _len) {
+
+        int tmp_prev = 0;
+        for (int tmp_i = 0; tmp_i + 1 < _len; tmp_i += 2) {
+            int tmp_v = tmp_prev + ((_buff[tmp_i] & 0xFF) | (_buff[tmp_i+1] << 8));
+            tmp_prev = tmp_v;
+            _buff[tmp_i] = (byte)tmp_v;
+            _buff[tmp_i+1] = (byte)(tmp_v >> 8);
+        }
+
+    }
+
+    private static void WriteAt(FileChannel _fc, ByteBuffer _src, long _pos) throws Exception {
+
+        while (_src.hasRemaining()) _pos += _fc.write(_src, _pos);
+
+    }
+
+    static boolean Pack(FileChannel _fc, ByteBuffer _body, int _htype, int _level) throws Exception {
+        // Writes index followed by chunks at the current position of _fc, each chunk as soon as
+        //  it is compressed, and leaves _fc positioned after them.
+        // Returns false if compression is not worth it (or the body is too small), then the file
+        //  is truncated back to where it was, for the caller to write the body raw.
+        // Note. _body is not consumed.
+
+        long tmp_raw_size = _body.remaining();
+        if (tmp_raw_size < CONST_MIN_RAW_SIZE) return false;
+        int tmp_chunk_count = (int)((tmp_raw_size + CONST_CHUNK_RAW_SIZE - 1) / CONST_CHUNK_RAW_SIZE);
+        int tmp_codec = (Tum3TracePyramid.DTYPE_SmallInt == _htype) ? CODEC_DELTA16_DEFLATE : CODEC_DEFLATE;
+        int tmp_index_size = CONST_INDEX_FIXED + 8 * (tmp_chunk_count + 1);
+        long tmp_limit = tmp_raw_size * CONST_WORTH_PERCENT / 100;
+
+        long tmp_start = _fc.position();
+        long tmp_out_size = tmp_index_size; // Note. The index is written at the end, when the offsets are known.
+        long[] tmp_offsets = new long[tmp_chunk_count + 1];
+        byte[] tmp_raw = new byte[CONST_CHUNK_RAW_SIZE];
+        byte[] tmp_comp = new byte[CONST_CHUNK_RAW_SIZE];
+        ByteBuffer tmp_src = _body.duplicate();
+        boolean tmp_worth = true;
+        Deflater tmp_deflater = new Deflater(_level, true);
+        try {
+            for (int tmp_c = 0; tmp_worth && (tmp_c < tmp_chunk_count); tmp_c++) {
+                tmp_offsets[tmp_c] = tmp_out_size;
+                int tmp_len = Math.min(CONST_CHUNK_RAW_SIZE, tmp_src.remaining());
+                tmp_src.get(tmp_raw, 0, tmp_len);
+                if (CODEC_DELTA16_DEFLATE == tmp_codec) DeltaEncode16(tmp_raw, tmp_len);
+                tmp_deflater.reset();
+                tmp_deflater.setInput(tmp_raw, 0, tmp_len);
+                tmp_deflater.finish();
+                while (!tmp_deflater.finished()) {
+                    int tmp_n = tmp_deflater.deflate(tmp_comp);
+                    WriteAt(_fc, ByteBuffer.wrap(tmp_comp, 0, tmp_n), tmp_start + tmp_out_size);
+                    tmp_out_size += tmp_n;
+                }
+                if (tmp_out_size > tmp_limit) tmp_worth = false;
+            }
+        } finally {
+            tmp_deflater.end();
+        }
+        if (!tmp_worth) {
+            _fc.truncate(tmp_start);
+            _fc.position(tmp_start);
+            return false;
+        }
+        tmp_offsets[tmp_chunk_count] = tmp_out_size;
+
+        ByteBuffer tmpBB = ByteBuffer.allocate(tmp_index_size);
+        tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+        tmpBB.putInt(CONST_CHUNK_SIGN);
+        tmpBB.putInt(tmp_codec);
+        tmpBB.putInt(CONST_CHUNK_RAW_SIZE);
+        tmpBB.putInt(tmp_chunk_count);
+        tmpBB.putLong(tmp_raw_size);
+        for (long tmp_ofs: tmp_offsets) tmpBB.putLong(tmp_ofs);
+        tmpBB.flip();
+        WriteAt(_fc, tmpBB, tmp_start);
+        _fc.position(tmp_start + tmp_out_size);
+        return true;
+
+    }
+
+    static class Reader {
+        // Random access to the raw body. Keeps one inflated chunk.
+        // Reminder: shares the file with its owner, and possibly with other readers through
+        //  Tum3FileCache, so only positional reads are done. Still not thread safe itself.
+
+        private final FileChannel channel;
+        private final long index_ofs;
+        private final int codec, chunk_size, chunk_count;
+        final long raw_size;
+        private final long[] offsets;
+        private final Inflater inflater = new Inflater(true);
+        private final byte[] chunk;
+        private byte[] comp = new byte[0];
+        private int cached_chunk = -1, cached_len = 0;
+
+        Reader(RandomAccessFile _raf, long _index_ofs) throws Exception {
+
+            channel = _raf.getChannel();
+            index_ofs = _index_ofs;
+            byte[] tmp_buff = new byte[CONST_INDEX_FIXED];
+            Tum3FileCache.ReadFully(channel, index_ofs, tmp_buff, 0, tmp_buff.length);
+            ByteBuffer tmpBB = ByteBuffer.wrap(tmp_buff);
+            tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+            if (tmpBB.getInt() != CONST_CHUNK_SIGN) throw new Exception("Chunk index signature mismatch");
+            codec = tmpBB.getInt();
+            chunk_size = tmpBB.getInt();
+            chunk_count = tmpBB.getInt();
+            raw_size = tmpBB.getLong();
+            if (((CODEC_DEFLATE != codec) && (CODEC_DELTA16_DEFLATE != codec)) || (chunk_size <= 0) || ((chunk_size & 1) != 0)
+                || (chunk_count < 0) || (raw_size < 0) || (raw_size > (long)chunk_size * chunk_count))
+                throw new Exception("Chunk index is not acceptable (codec=" + codec + ", chunk_size=" + chunk_size + ", chunk_count=" + chunk_count + ")");
+            offsets = new long[chunk_count + 1];
+            tmp_buff = new byte[8 * (chunk_count + 1)];
+            Tum3FileCache.ReadFully(channel, index_ofs + CONST_INDEX_FIXED, tmp_buff, 0, tmp_buff.length);
+            tmpBB = ByteBuffer.wrap(tmp_buff);
+            tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+            for (int tmp_i = 0; tmp_i <= chunk_count; tmp_i++) offsets[tmp_i] = tmpBB.getLong();
+            chunk = new byte[chunk_size];
+
+        }
+
+        private void LoadChunk(int _c) throws Exception {
+
+            if (_c == cached_chunk) return;
+            cached_chunk = -1;
+            long tmp_comp_len = offsets[_c+1] - offsets[_c];
+            if ((tmp_comp_len <= 0) || (tmp_comp_len > 2L * chunk_size + 1024)) throw new Exception("Chunk " + _c + " has bad compressed size " + tmp_comp_len);
+            if (comp.length < tmp_comp_len) comp = new byte[(int)tmp_comp_len];
+            Tum3FileCache.ReadFully(channel, index_ofs + offsets[_c], comp, 0, (int)tmp_comp_len);
+            int tmp_expected = (int)Math.min(chunk_size, raw_size - (long)_c * chunk_size);
+            inflater.reset();
+            inflater.setInput(comp, 0, (int)tmp_comp_len);
+            int tmp_len = 0;
+            while ((tmp_len < tmp_expected) && !inflater.finished()) {
+                int tmp_n = inflater.inflate(chunk, tmp_len, tmp_expected - tmp_len);
+                if ((0 == tmp_n) && (inflater.needsInput() || inflater.needsDictionary())) break;
+                tmp_len += tmp_n;
+            }
+            if (tmp_len != tmp_expected) throw new Exception("Chunk " + _c + " inflated to " + tmp_len + " bytes instead of " + tmp_expected);
+            if (CODEC_DELTA16_DEFLATE == codec) DeltaDecode16(chunk, tmp_len);
+            cached_chunk = _c;
+            cached_len = tmp_len;
+
+        }
+
+        int Read(long _raw_pos, byte[] _buff, int _ofs, int _count) throws Exception {
+
+            int tmp_done = 0;
+            while ((tmp_done < _count) && (_raw_pos < raw_size)) {
+                int tmp_c = (int)(_raw_pos / chunk_size);
+                LoadChunk(tmp_c);
+                int tmp_in_chunk = (int)(_raw_pos - (long)tmp_c * chunk_size);
+                int tmp_n = Math.min(_count - tmp_done, cached_len - tmp_in_chunk);
+                System.arraycopy(chunk, tmp_in_chunk, _buff, _ofs + tmp_done, tmp_n);
+                tmp_done += tmp_n;
+                _raw_pos += tmp_n;
+            }
+            return tmp_done;
+
+        }
+
+        void close() {
+
+            inflater.end();
+
+        }
+
+    }
+
+}
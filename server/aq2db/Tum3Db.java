@@ -13,6 +13,8 @@
 package aq2db;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.io.*;
 import java.nio.*;
 import java.nio.file.*;
@@ -31,6 +33,7 @@ public class Tum3Db implements Runnable, AppStopHook {
     public  final static String CONST_MSG_INV_SHOT_NUMBER = "Raw data can be stored for current date only";
     public  final static String CONST_MSG_SRVLINK_ERR01 = "The specified shot name was not found";
     public  final static String CONST_MSG_SRVLINK_ERR02 = "Internal error locating shot name";
+    public  final static String CONST_MSG_WRITE_BUSY = "The server is busy writing, please try later";
     private volatile boolean TerminateRequested = false;
     private Thread db_thread;
 
@@ -63,9 +66,9 @@ public class Tum3Db implements Runnable, AppStopHook {
 
     private final static int CONST_SRVINFO_UPD_MINS = 15; // YYY
     private final static int CONST_SYNCINFO_PUSH_SEC = 15; // YYY
-    private final static int CONST_SHOTS_WAIT_PERIOD = 1;      // Seconds
     private int CONST_SHOTS_DISPOSE_AFTER = 30;   // Seconds
     private int CONST_SHOTS_MAX_OPEN = 100;
+    private final static int CONST_SHOTS_DETACH_TIMEOUT = 60; // Seconds
     private final static String TUM3_CFG_db_root_volatile = "db_root_volatile";
     private final static String TUM3_CFG_published_root = "published_root"; // YYY
     private final static String TUM3_CFG_published_root_volatile = "published_root_volatile"; // YYY
@@ -75,6 +78,22 @@ public class Tum3Db implements Runnable, AppStopHook {
     private final static String TUM3_CFG_master_db = "master_db";
     private final static String TUM3_CFG_writeprotect_storage = "writeprotect_storage"; // YYY
     private final static String TUM3_CFG_enable_sync_raw = "enable_sync_raw"; // YYY
+    private final static String TUM3_CFG_dir_index_enabled = "dir_index_enabled";
+    private final static String TUM3_CFG_dir_index_path = "dir_index_path";
+    private final static String TUM3_CFG_trace_pyramid_eager = "trace_pyramid_eager";
+    private final static String TUM3_CFG_trace_pyramid_min_points = "trace_pyramid_min_points";
+    private final static String TUM3_CFG_trace_store_compressed = "trace_store_compressed";
+    private final static String TUM3_CFG_trace_compress_level = "trace_compress_level";
+    private final static String TUM3_CFG_shot_manifest_enabled = "shot_manifest_enabled";
+    private final static String TUM3_CFG_hot_shot_cache_shots = "hot_shot_cache_shots";
+    private final static String TUM3_CFG_hot_shot_cache_mbytes = "hot_shot_cache_mbytes";
+    private final static String TUM3_CFG_hot_shot_cache_max_item_kbytes = "hot_shot_cache_max_item_kbytes";
+    private final static String TUM3_CFG_write_pipeline_threads = "write_pipeline_threads";
+    private final static String TUM3_CFG_write_pipeline_queue = "write_pipeline_queue";
+    private final static String TUM3_CFG_write_pipeline_batch = "write_pipeline_batch";
+    private final static String TUM3_CFG_density_edit_threads = "density_edit_threads";
+    private final static String TUM3_CFG_density_edit_queue = "density_edit_queue";
+    private final static String TUM3_CFG_partial_upload_keep_hours = "partial_upload_keep_hours";
 
     private static Tum3Db[] DbInstance = null;
     private static Object DbCreationLock = new Object();
@@ -89,7 +108,13 @@ public class Tum3Db implements Runnable, AppStopHook {
     private String FAutoCreatedMonthDir = ""; // YYY
     public final boolean downbulk_enabled, upbulk_enabled; // YYY
 
-    private HashMap<String, Tum3Shot> openShots, closingShots;
+    private final ConcurrentHashMap<String, Tum3Shot> openShots = new ConcurrentHashMap<String, Tum3Shot>();
+    private final AtomicBoolean DisposeInProgress = new AtomicBoolean(false);
+    private final HashSet<String> PartialUploads = new HashSet<String>(); // Protected by itself. Temporary files of suspended segmented uploads.
+    private final long partial_upload_keep_millis;
+    private final long[] density_stage_sum = new long[5], density_stage_cnt = new long[5]; // Protected by density_stage_sum. Nanoseconds per stage, see NoteDensityStages().
+    private long density_updates = 0, density_failed = 0; // Protected by density_stage_sum.
+    private Tum3DirIndex DirIndex[] = new Tum3DirIndex[2]; // Note: per filter mode, same as MasterList.
     private ArrayList<String> FGlobalShotList = new ArrayList<String>(); // YYY
 
     private int db_index;
@@ -115,6 +140,14 @@ public class Tum3Db implements Runnable, AppStopHook {
     private long diag_next_update; // YYY
     private int warn_free_space_gb = 0; // YYY
     public final boolean writeprotect_storage, enable_sync_raw; // YYY
+    public final boolean pyramid_eager;
+    public final int pyramid_min_points;
+    public final boolean store_compressed;
+    public final int compress_level;
+    public final boolean use_manifest;
+    final Tum3HotShotCache hot_cache; // Note. Null unless enabled.
+    final Tum3WritePipeline write_pipeline; // Note. Null unless enabled.
+    final Tum3DensityEditor density_editor; // Note. Null unless enabled.
 
     private volatile String bup_start_subdir = "", bup_start_day = ""; // YYY
     private volatile HashMap<String, StringList> bup_start_done_list = new HashMap<String, StringList>(); // YYY
@@ -332,19 +365,57 @@ public class Tum3Db implements Runnable, AppStopHook {
         uplink_enabled = Tum3cfg.getGlbInstance().getDbUplinkEnabled(db_index); // YYY
         masterdb_name = _masterdb_name;
 
-        openShots = new HashMap<String, Tum3Shot>();
-        closingShots = new HashMap<String, Tum3Shot>();
         DB_ROOT_PATH = Tum3cfg.getParValue(db_index, false, Tum3cfg.TUM3_CFG_db_root);
         DB_ROOT_PATH_VOL = Tum3cfg.getParValue(db_index, false, TUM3_CFG_db_root_volatile);
 
         SYNC_STATE_PATH = Tum3cfg.getParValue(db_index, false, TUM3_CFG_sync_state_root); // YYY
         writeprotect_storage = (0 != Tum3cfg.getIntValue(db_index, true, TUM3_CFG_writeprotect_storage, 0)); // YYY
         enable_sync_raw = (0 != Tum3cfg.getIntValue(db_index, false, TUM3_CFG_enable_sync_raw, 0)); // YYY
+        pyramid_eager = (0 != Tum3cfg.getIntValue(db_index, true, TUM3_CFG_trace_pyramid_eager, 0));
+        pyramid_min_points = Math.max(1, Tum3cfg.getIntValue(db_index, true, TUM3_CFG_trace_pyramid_min_points, 1000000));
+        store_compressed = (0 != Tum3cfg.getIntValue(db_index, true, TUM3_CFG_trace_store_compressed, 0));
+        compress_level = Math.max(1, Math.min(9, Tum3cfg.getIntValue(db_index, true, TUM3_CFG_trace_compress_level, 1)));
+        use_manifest = (0 != Tum3cfg.getIntValue(db_index, true, TUM3_CFG_shot_manifest_enabled, 1));
+        int tmp_hot_shots = Tum3cfg.getIntValue(db_index, true, TUM3_CFG_hot_shot_cache_shots, 0);
+        int tmp_hot_mbytes = Tum3cfg.getIntValue(db_index, true, TUM3_CFG_hot_shot_cache_mbytes, 256);
+        int tmp_hot_item_kbytes = Math.min(1024*1024, Tum3cfg.getIntValue(db_index, true, TUM3_CFG_hot_shot_cache_max_item_kbytes, 64*1024)); // Note. Must fit in a ByteBuffer.
+        if ((tmp_hot_shots > 0) && (tmp_hot_mbytes > 0) && (tmp_hot_item_kbytes > 0))
+            hot_cache = new Tum3HotShotCache(db_name, tmp_hot_shots, (long)tmp_hot_mbytes << 20, (long)tmp_hot_item_kbytes << 10);
+        else
+            hot_cache = null;
 
         CONST_SHOTS_MAX_OPEN = Tum3cfg.getIntValue(db_index, true, TUM3_CFG_max_shots_open, CONST_SHOTS_MAX_OPEN);
         CONST_SHOTS_DISPOSE_AFTER = Tum3cfg.getIntValue(db_index, true, TUM3_CFG_unused_shot_close_delay, CONST_SHOTS_DISPOSE_AFTER);
+        partial_upload_keep_millis = 3600L * 1000L * Math.max(1, Tum3cfg.getIntValue(db_index, true, TUM3_CFG_partial_upload_keep_hours, 24));
 
         withSyncState = isWriteable && (SYNC_STATE_PATH.length() > 0); // YYY
+
+        int tmp_wp_threads = Tum3cfg.getIntValue(db_index, true, TUM3_CFG_write_pipeline_threads, 0);
+        if (isWriteable && (tmp_wp_threads > 0))
+            write_pipeline = new Tum3WritePipeline(this, tmp_wp_threads,
+                Tum3cfg.getIntValue(db_index, true, TUM3_CFG_write_pipeline_queue, 64),
+                Tum3cfg.getIntValue(db_index, true, TUM3_CFG_write_pipeline_batch, 16));
+        else
+            write_pipeline = null;
+
+        int tmp_de_threads = Tum3cfg.getIntValue(db_index, true, TUM3_CFG_density_edit_threads, 0);
+        if (isWriteable && (tmp_de_threads > 0))
+            density_editor = new Tum3DensityEditor(db_name, tmp_de_threads,
+                Tum3cfg.getIntValue(db_index, true, TUM3_CFG_density_edit_queue, 256));
+        else
+            density_editor = null;
+    }
+
+    public boolean WritePipelineEnabled() {
+
+        return null != write_pipeline;
+
+    }
+
+    public boolean DensityEditorEnabled() {
+
+        return null != density_editor;
+
     }
 
     public Tum3Db GetMasterDb() {
@@ -445,6 +516,14 @@ public class Tum3Db implements Runnable, AppStopHook {
                     Tum3Logger.DoLog(db_name, true, "Volatile data path setting for main and published db looks inconsistent, disabling published mode.");
                 }
 
+                if (0 != Tum3cfg.getIntValue(db_index, true, TUM3_CFG_dir_index_enabled, 1)) {
+                    String tmp_index_path = Tum3cfg.getParValue(db_index, false, TUM3_CFG_dir_index_path);
+                    if (tmp_index_path.isEmpty())
+                        Tum3Logger.DoLog(db_name, false, "Note: no " + TUM3_CFG_dir_index_path + " defined, directory index will be rebuilt by scanning after each restart.");
+                    DirIndex[0] = new Tum3DirIndex(db_name, DB_ROOT_PATH, tmp_index_path, db_name + "_dir");
+                    DirIndex[1] = new Tum3DirIndex(db_name, PUBLISHED_ROOT_PATH, tmp_index_path, db_name + "_pub");
+                }
+
                 ugc_worker = Tum3UgcWorker.getUgcWorker(this); // YYY
                 Tum3Logger.DoLog(db_name, false, "Starting the database (data_path=" + DB_ROOT_PATH + ", data_path_volatile=" + DB_ROOT_PATH_VOL + ")" + (isWriteable? " as writable" : " as read-only"));
                 Tum3Logger.DoLog(db_name, false, "DEBUG: CONST_SHOTS_MAX_OPEN=" + CONST_SHOTS_MAX_OPEN);
@@ -521,6 +600,9 @@ public class Tum3Db implements Runnable, AppStopHook {
                 Thread.sleep(CONST_SHOTS_DISPOSE_AFTER * (long)1000);
             } catch (InterruptedException e) { }
             DisposeUnusedShots(false);
+            SweepPartialUploads();
+            Tum3FileCache.getInstance().Sweep();
+            for (Tum3DirIndex tmp_index: DirIndex) if (null != tmp_index) tmp_index.SaveCheckpoint();
             if (!TerminateRequested) {
                 if (DEBUG_MEM_USAGE) { // YYY
                     System.gc();
@@ -535,6 +617,7 @@ public class Tum3Db implements Runnable, AppStopHook {
         }
         Tum3Logger.DoLog(db_name, false, "DEBUG: Tum3db ver " + a.CurrentVerNum + " exiting normally.");
         DisposeUnusedShots(true);
+        for (Tum3DirIndex tmp_index: DirIndex) if (null != tmp_index) tmp_index.Stop();
 
         AppStopHooker.RemoveHook(this);
     }
@@ -758,37 +841,19 @@ public class Tum3Db implements Runnable, AppStopHook {
 
     }
 
-    private StringList GetRawSubdir(boolean published_only, String tmpSubdirName, boolean _days_only) {
+    private Collection<String> GetRawSubdir(boolean published_only, String tmpSubdirName) {
 
-        StringList tmp_list = new StringList();
-        String tmp_actual_root = published_only ? PUBLISHED_ROOT_PATH : DB_ROOT_PATH; // YYY
-        if (tmp_actual_root.length() > 0) {
-            File dir = new File(tmp_actual_root + tmpSubdirName + File.separator);
-            File tmp_files[] = dir.listFiles();
-//Tum3Util.SleepExactly(3000);
-            //System.out.println("[DEBUG] + tmpSubdirName=" + tmpSubdirName);
-            if (null == tmp_files) {
-                // Reminder: the directory is empty or non-existent at this time. Assume there are no files in it anyway.
-                //String tmp_emsg = "WARNING: index " + MasterIndex + " somehow contains unusable directory <" + tmpSubdirName + "> in GetRawSubdir()";
-                //Tum3Logger.DoLog(db_name, true, tmp_emsg);
-                //throw new Exception(tmp_emsg);
-            } else for (File file: tmp_files) {
-                if (file.isDirectory()) {
-                    String tmp_name = file.getName();
-                    //System.out.println("[aq2j] DEBUG: considering subdir '" + tmp_name + "'");
-                    if ((8 <= tmp_name.length()) && (9 >= tmp_name.length())) {
-                        if (tmp_name.substring(0, 4).equals(tmpSubdirName) && Tum3Util.StrNumeric(tmp_name.substring(4, 6))) {
-                            if (_days_only) { // YYY
-                                String tmp_st = tmp_name.substring(4, 6);
-                                if (!tmp_list.contains(tmp_st)) tmp_list.add(tmp_st);
-                            } else tmp_list.add(tmp_name.substring(4));
-                        }
-                    }
-                }
-            }
-        }
+        Tum3DirIndex tmp_index = DirIndex[Published2Filter(published_only)];
+        if (null != tmp_index) return tmp_index.GetShots(tmpSubdirName);
 
-        return tmp_list;
+        return Tum3DirIndex.ScanMonth(published_only ? PUBLISHED_ROOT_PATH : DB_ROOT_PATH, tmpSubdirName, false); // YYY
+    }
+
+    private StringList GetRawDays(String tmpSubdirName) {
+
+        if (null != DirIndex[0]) return DirIndex[0].GetDays(tmpSubdirName);
+
+        return Tum3DirIndex.ScanMonth(DB_ROOT_PATH, tmpSubdirName, true); // YYY
     }
 
     private StringList GetThisDir(boolean published_only, int MasterIndex) throws Exception {
@@ -801,23 +866,26 @@ public class Tum3Db implements Runnable, AppStopHook {
         }
 
         String tmpSubdirName = MasterList[tmp_filtermode].get(MasterIndex-1);
-        StringList tmp_list = GetRawSubdir(published_only, tmpSubdirName, false);
+        StringList tmp_list = new StringList();
+        tmp_list.addAll(GetRawSubdir(published_only, tmpSubdirName));
 
         if (null != master_db) {
-            StringList tmp_master_sublist = null;
+            Collection<String> tmp_master_sublist = null;
             synchronized (master_db.MasterListLock) {
                 int tmp_j = master_db.MasterList[0].indexOf(tmpSubdirName);
                 if (tmp_j >= 0)
-                    tmp_master_sublist = master_db.GetRawSubdir(false, tmpSubdirName, false);
+                    tmp_master_sublist = master_db.GetRawSubdir(false, tmpSubdirName);
             }
-            if (null != tmp_master_sublist)
-                for (int tmp_i = 0; tmp_i < tmp_master_sublist.size(); tmp_i++) {
-                    String tmp_st = tmp_master_sublist.get(tmp_i);
-                    if (tmp_list.indexOf(tmp_st) < 0)
+            if (null != tmp_master_sublist) if (tmp_master_sublist.size() > 0) {
+                HashSet<String> tmp_seen = new HashSet<String>(tmp_list);
+                for (String tmp_st: tmp_master_sublist) {
+                    if (tmp_seen.add(tmp_st))
                         tmp_list.add(tmp_st);
                 }
+                tmp_list.SortAsShots(); // YYY
+            }
         }
-        tmp_list.SortAsShots(); // Collections.sort(tmp_list); // YYY
+        if (null == DirIndex[tmp_filtermode]) tmp_list.SortAsShots(); // Note: the index already keeps shots sorted.
         //System.out.print("[DEBUG] "); for (int tmp_ii = 0; tmp_ii < tmp_list.size(); tmp_ii++) System.out.print(tmp_list.get(tmp_ii) + " "); System.out.println(" ");
         return tmp_list;
     }
@@ -825,7 +893,8 @@ public class Tum3Db implements Runnable, AppStopHook {
     private String getFilesForDay(String tmpSubdirName, String tmpDay) {
 
         StringList tmp_list = new StringList();
-        if (DB_ROOT_PATH.length() > 0) {
+        if (null != DirIndex[0]) tmp_list = DirIndex[0].GetDayShots(tmpSubdirName, tmpDay);
+        else if (DB_ROOT_PATH.length() > 0) {
             File dir = new File(DB_ROOT_PATH + tmpSubdirName + File.separator);
             File tmp_files[] = dir.listFiles();
 //Tum3Util.SleepExactly(3000);
@@ -991,7 +1060,7 @@ public class Tum3Db implements Runnable, AppStopHook {
     private String getLastDay(String tmpSubdirName) {
     // Note. This always operate unfiltered!
 
-        StringList tmp_list = GetRawSubdir(false, tmpSubdirName, true);
+        StringList tmp_list = GetRawDays(tmpSubdirName);
 
         if (tmp_list.size() <= 0) return "";
         Collections.sort(tmp_list);
@@ -1372,6 +1441,7 @@ public class Tum3Db implements Runnable, AppStopHook {
             bup_current_file_real = _is_volatile? bup_current_file + Tum3Shot.FSUFF_NORMAL : bup_current_file; // YYY
             String tmpActualPath = _is_volatile? DB_ROOT_PATH_VOL : DB_ROOT_PATH; // YYY
             String shotSubdir = bup_current_shot.substring(0, 4);
+            DropShotManifest(tmpActualPath + shotSubdir + File.separator + bup_current_shot, bup_current_shot, _is_volatile);
             if (0 == _full_size) {
                 if (!_is_volatile) throw new Exception("AcceptBupPortion: unexpected 0 size for filename <" + bup_current_file_real + ">");
                 File tmp_file_prev = new File(DB_ROOT_PATH_VOL + shotSubdir + File.separator + bup_current_shot + File.separator + bup_current_file + Tum3Shot.FSUFF_BUP_GENERAL); // YYY
@@ -1406,6 +1476,7 @@ public class Tum3Db implements Runnable, AppStopHook {
                 if (!tmp_shotdir.exists()) tmp_shotdir.mkdir();
                 if (!tmp_shotdir.exists())
                     throw new Exception("Failed to create <" + tmpActualPath + shotSubdir + File.separator + bup_current_shot + "> dir. Maybe access rights or paths are messed up?"); // YYY
+                if (!_is_volatile && (null != DirIndex[0])) DirIndex[0].AddShot(bup_current_shot);
 
                 if (!_is_volatile) if (new File(tmpActualPath + shotSubdir + File.separator + bup_current_shot + File.separator + bup_current_file_real).exists())
                     throw new Exception("Internal sync error: <" + bup_current_shot + File.separator + bup_current_file_real + "> already exists.");
@@ -1425,6 +1496,13 @@ public class Tum3Db implements Runnable, AppStopHook {
         return tmp_result;
     }
 
+    private static void InvalidateCachedFile(String _fname) {
+
+        Tum3FileCache.getInstance().Invalidate(_fname);
+        Tum3HeaderCache.getInstance().Invalidate(_fname);
+
+    }
+
     private void BupCloseCurrent(boolean _with_success) throws Exception {
 
         if (null != bup_raf) {
@@ -1435,6 +1513,11 @@ public class Tum3Db implements Runnable, AppStopHook {
                 String shotSubdir = bup_current_shot.substring(0, 4);
                 String tmpActualPath = bup_in_volatile ? DB_ROOT_PATH_VOL : DB_ROOT_PATH; // YYY
                 File tmp_dest_file = new File(tmpActualPath + shotSubdir + File.separator + bup_current_shot + File.separator + bup_current_file_real); // YYY
+                String tmp_prev_fname = tmpActualPath + shotSubdir + File.separator + bup_current_shot + File.separator + bup_current_file + Tum3Shot.FSUFF_BUP_GENERAL;
+                DropShotManifest(tmpActualPath + shotSubdir + File.separator + bup_current_shot, bup_current_shot, bup_in_volatile);
+                InvalidateCachedFile(tmp_dest_file.getPath());
+                if (bup_in_volatile) InvalidateCachedFile(tmp_prev_fname);
+                if (null != hot_cache) hot_cache.InvalidateShot(bup_current_shot);
                 if (bup_in_volatile) {
                     File tmp_file_prev = new File(tmpActualPath + shotSubdir + File.separator + bup_current_shot + File.separator + bup_current_file + Tum3Shot.FSUFF_BUP_GENERAL); // YYY
                     if (tmp_file_prev.exists() && tmp_dest_file.exists()) tmp_file_prev.delete();
@@ -1444,6 +1527,9 @@ public class Tum3Db implements Runnable, AppStopHook {
                 }
                 boolean tmp_ok = (new File(tmpActualPath + shotSubdir + File.separator + bup_current_shot + File.separator + bup_temp_fname))
                         .renameTo(tmp_dest_file);
+                InvalidateCachedFile(tmp_dest_file.getPath());
+                if (bup_in_volatile) InvalidateCachedFile(tmp_prev_fname);
+                if (null != hot_cache) hot_cache.InvalidateShot(bup_current_shot);
                 if (!tmp_ok) throw new Exception("BupCloseCurrent: renaming " + bup_temp_fname + " to " + bup_current_file_real + " failed.");
                 if (writeprotect_storage && !bup_in_volatile) if (!tmp_dest_file.setWritable(false)) throw new Exception("BupCloseCurrent: setting R/O " + bup_current_file_real + " failed.");
             }
@@ -1454,6 +1540,15 @@ public class Tum3Db implements Runnable, AppStopHook {
         bup_expected_ofs = 0;
     }
 
+    private void DropShotManifest(String _shot_dir, String _shot_name, boolean _is_volatile) {
+        // Note. Sync writes go around Tum3Shot, so both the stored and the in-memory manifest must go.
+
+        Tum3ShotManifest.Invalidate(_shot_dir);
+        Tum3Shot tmp_shot = openShots.get(_shot_name.toUpperCase());
+        if (null != tmp_shot) tmp_shot.ManifestDropped(_is_volatile);
+
+    }
+
     public void BupStop() {
 
         if (null != bup_raf)
@@ -1876,18 +1971,24 @@ public class Tum3Db implements Runnable, AppStopHook {
         if (DB_ROOT_PATH.length() <= 0) throw new Exception("The database path is not defined.");
 
         String tmp_name = _shot_name.toUpperCase();
-        Tum3Shot tmpShot = null;
-        synchronized (openShots) {
-            if (openShots.containsKey(tmp_name)) throw new Exception("Internal error: shot name is already in use.");
-            tmpShot = new Tum3Shot(this, DB_ROOT_PATH, DB_ROOT_PATH_VOL, tmp_name.substring(0, 4), tmp_name, true, _the_program, _expected_ids, _aq_profile_body);
-            tmpShot.ShotAddUser();
-            openShots.put(tmp_name, tmpShot);
+        Tum3Shot tmpShot = new Tum3Shot(this, DB_ROOT_PATH, DB_ROOT_PATH_VOL, tmp_name.substring(0, 4), tmp_name, true, _the_program, _expected_ids, _aq_profile_body);
+        tmpShot.ShotAddUser();
+        Tum3Shot tmp_prev_shot;
+        while (null != (tmp_prev_shot = openShots.putIfAbsent(tmp_name, tmpShot))) {
+            if (!tmp_prev_shot.ShotTryAcquire()) WaitRetiredShot(tmp_name, tmp_prev_shot, tmpShot);
+            else {
+                tmp_prev_shot.ShotRelease();
+                tmpShot.DetachUnpublished();
+                throw new Exception("Internal error: shot name is already in use.");
+            }
         }
         String tmp_master_name = tmp_name.substring(0, 4);
         if (Tum3Util.StrNumeric(tmp_master_name) && (4 == tmp_master_name.length()))
             AppendMonthToMasterList(0, tmp_master_name, true); // YYY
         tmpShot.CompleteCreation(); // Note. If already exists, it opens normally as old 
         // and then raises an exception that propagates out.
+        if (null != DirIndex[0]) DirIndex[0].AddShot(tmp_name);
+        if (null != hot_cache) hot_cache.AddHotShot(tmp_name);
 
         return tmpShot; // By this time, normally, 0000.000 has already been created.
 
@@ -1904,55 +2005,28 @@ public class Tum3Db implements Runnable, AppStopHook {
         //boolean tmp_need_to_complete = false;
 
         if (DB_ROOT_PATH.length() > 0) {
+            boolean tmp_checked_disk = false, tmp_exists_on_disk = false;
             boolean tmp_force_dispose_unused = false;
-            boolean tmp_need_add = true;
-            boolean tmp_try_again = false;
-            synchronized (openShots) {
-                do {
-                    tmp_try_again = false; // YYY
-                    if (openShots.containsKey(tmp_name)) {
-                        tmpShot = (Tum3Shot) openShots.get(tmp_name);
-                        if (null == tmpShot) {
-                            tmp_try_again = true;
-                            try {
-                                openShots.wait(CONST_SHOTS_WAIT_PERIOD * (long)1000);
-                            } catch (Exception e) { }
-                        } else {
-                            tmp_need_add = false;
-                            tmpShot.ShotAddUser();
-                        }
-                    }
-                } while (tmp_try_again && !TerminateRequested);
-            } // YYY
-             
-            if (tmp_need_add) {
-                String shotSubdir = tmp_name.substring(0, 4); // YYY
-                if ((new File(DB_ROOT_PATH + shotSubdir + File.separator + tmp_name + File.separator + "0000" + Tum3Shot.FSUFF_NORMAL)).isFile()) { // YYY
-                    synchronized (openShots) { // YYY
-                        do { // YYY
-                            tmp_try_again = false; // YYY
-                            if (openShots.containsKey(tmp_name)) {
-                                tmpShot = (Tum3Shot) openShots.get(tmp_name);
-                                if (null == tmpShot) {
-                                    tmp_try_again = true;
-                                    try {
-                                        openShots.wait(CONST_SHOTS_WAIT_PERIOD * (long)1000);
-                                    } catch (Exception e) { }
-                                } else {
-                                    tmp_need_add = false;
-                                    tmpShot.ShotAddUser();
-                                }
-                            }
-                        } while (tmp_try_again && !TerminateRequested);
-                        if (tmp_need_add) {
-                            tmpShot = new Tum3Shot(this, DB_ROOT_PATH, DB_ROOT_PATH_VOL, shotSubdir, tmp_name, false, "", null, null);
-                            //tmp_need_to_complete = true;
-                            tmpShot.ShotAddUser();
-                            openShots.put(tmp_name, tmpShot);
-                            tmp_force_dispose_unused = (openShots.size() > CONST_SHOTS_MAX_OPEN);
-                        }
-                    }
+            while ((null == tmpShot) && !TerminateRequested) {
+                Tum3Shot tmp_found = openShots.get(tmp_name);
+                if (null != tmp_found) {
+                    if (tmp_found.ShotTryAcquire()) tmpShot = tmp_found;
+                    else WaitRetiredShot(tmp_name, tmp_found, null);
+                    continue;
                 }
+                if (!tmp_checked_disk) {
+                    String shotSubdir = tmp_name.substring(0, 4); // YYY
+                    tmp_exists_on_disk = (new File(DB_ROOT_PATH + shotSubdir + File.separator + tmp_name + File.separator + "0000" + Tum3Shot.FSUFF_NORMAL)).isFile(); // YYY
+                    tmp_checked_disk = true;
+                }
+                if (!tmp_exists_on_disk) break;
+                Tum3Shot tmp_new_shot = new Tum3Shot(this, DB_ROOT_PATH, DB_ROOT_PATH_VOL, tmp_name.substring(0, 4), tmp_name, false, "", null, null);
+                tmp_new_shot.ShotAddUser();
+                if (null == openShots.putIfAbsent(tmp_name, tmp_new_shot)) {
+                    tmpShot = tmp_new_shot;
+                    tmp_force_dispose_unused = (openShots.size() > CONST_SHOTS_MAX_OPEN);
+                } else
+                    tmp_new_shot.DetachUnpublished(); // Note: somebody else was faster, so just go over again.
             }
             if (tmp_force_dispose_unused) DisposeUnusedShots(false);
         }
@@ -1978,57 +2052,152 @@ public class Tum3Db implements Runnable, AppStopHook {
         return tmpShot;
     }
 
-    private void DisposeUnusedShots(boolean for_shutdown) {
+    private void WaitRetiredShot(String _name, Tum3Shot _retired, Tum3Shot _unpublished) throws Exception {
+        // Note. A retired shot stays in openShots until its Detach() completes, so that
+        //  a new instance never works on the same files while the old one is still flushing.
 
-        //System.out.println("[aq2j] DEBUG: DisposeUnusedShots()");
+        if (!_retired.WaitDetached(CONST_SHOTS_DETACH_TIMEOUT * (long)1000)) {
+            if (null != _unpublished) _unpublished.DetachUnpublished();
+            throw new Exception("Timeout waiting for <" + _name + "> to close.");
+        }
+        openShots.remove(_name, _retired);
 
-        boolean tmp_need_to_notify = false;
-        int tmp_curr_shots = 0;
+    }
 
-        synchronized (openShots) {
-            int tmp_count_to_dispose = openShots.size() - CONST_SHOTS_MAX_OPEN;
-            if (tmp_count_to_dispose < 0) tmp_count_to_dispose = 0;
-            long tmp_max_millis = System.currentTimeMillis() - CONST_SHOTS_DISPOSE_AFTER*(long)1000;
-            for (Map.Entry<String, Tum3Shot> entry : openShots.entrySet()) {
-                Tum3Shot tmpShot = entry.getValue();
-                if (for_shutdown || (tmpShot.notUsed(tmp_max_millis, (tmp_count_to_dispose > 0)))) { // Reminder note: if UserCount == 0 then there is no way to obtain any new reference other than inside of openShots lock. Therefore, no additional atomicity is necessary here.
-                    String tmp_name = entry.getKey();
-                    //System.out.println("[aq2j] DEBUG: DisposeUnusedShots(): '" + tmp_name + "' will now be disposed.");
-                    closingShots.put(tmp_name, tmpShot);
-                    tmp_need_to_notify = true;
-                    entry.setValue(null);
-                    if (tmp_count_to_dispose > 0) tmp_count_to_dispose--;
-                }
+    private static class DisposeCandidate implements Comparable<DisposeCandidate> {
+
+        public final String name;
+        public final Tum3Shot shot;
+        public final long last_used; // Note: a snapshot, so that sorting is consistent.
+
+        public DisposeCandidate(String _name, Tum3Shot _shot) {
+            name = _name;
+            shot = _shot;
+            last_used = _shot.getLastUsedAt();
+        }
+
+        public int compareTo(DisposeCandidate other) {
+            return Long.compare(last_used, other.last_used);
+        }
+
+    }
+
+    void NoteDensityStages(boolean _ok, long[] _stamps) {
+        // _stamps: System.nanoTime() at start, check, backup, verify, write and finish, 0 for a stage not reached.
+
+        synchronized(density_stage_sum) {
+            density_updates++;
+            if (!_ok) density_failed++;
+            for (int tmp_i = 0; tmp_i < density_stage_sum.length; tmp_i++) {
+                if ((0 == _stamps[tmp_i]) || (0 == _stamps[tmp_i+1])) continue;
+                density_stage_sum[tmp_i] += _stamps[tmp_i+1] - _stamps[tmp_i];
+                density_stage_cnt[tmp_i]++;
             }
-            tmp_curr_shots = openShots.size();
         }
 
-        for (Tum3Shot tmpShot : closingShots.values()) {
-            tmpShot.Detach();
+    }
+
+    private String DensityStatsStr() {
+
+        final String[] tmp_names = { "check", "backup", "verify", "write", "finish" };
+        synchronized(density_stage_sum) {
+            if (0 == density_updates) return null;
+            StringBuilder tmp_str = new StringBuilder("updates=" + density_updates + ", failed=" + density_failed + ", avg ms:");
+            for (int tmp_i = 0; tmp_i < tmp_names.length; tmp_i++)
+                tmp_str.append(" " + tmp_names[tmp_i] + "=" + ((density_stage_cnt[tmp_i] > 0) ? (density_stage_sum[tmp_i] / density_stage_cnt[tmp_i]) / 1000000 : 0));
+            return tmp_str.toString();
+        }
+
+    }
+
+    void PartialUploadSuspended(String _fname) {
+        // Note. Also used for leftovers found while listing a shot directory, e.g. after a restart.
+
+        synchronized(PartialUploads) {
+            PartialUploads.add(_fname);
         }
 
-        if (tmp_need_to_notify) {
-            synchronized (openShots) {
-                for (String tmp_name : closingShots.keySet()) {
-                    openShots.remove(tmp_name);
-                    //System.out.println("[aq2j] DEBUG: closed shot '" + tmp_name + "'");
+    }
+
+    void PartialUploadTaken(String _fname) {
+        // Reminder: must be called before the file is opened for resuming, so that
+        //  SweepPartialUploads() can not delete it afterwards.
+
+        synchronized(PartialUploads) {
+            PartialUploads.remove(_fname);
+        }
+
+    }
+
+    private void SweepPartialUploads() {
+        // Deletes temporary files of segmented uploads nobody came back for.
+        // Note. Judged by the file mtime, so a file still being written is never touched.
+
+        long tmp_now = System.currentTimeMillis();
+        synchronized(PartialUploads) {
+            Iterator<String> tmp_it = PartialUploads.iterator();
+            while (tmp_it.hasNext()) {
+                String tmp_fname = tmp_it.next();
+                File tmp_file = new File(tmp_fname);
+                if (tmp_file.isFile() && ((tmp_now - tmp_file.lastModified()) < partial_upload_keep_millis)) continue;
+                tmp_it.remove();
+                if (tmp_file.isFile()) {
+                    Tum3Logger.DoLog(db_name, false, "Expired partial upload '" + tmp_fname + "' removed.");
+                    tmp_file.delete();
                 }
-                openShots.notifyAll();
-                tmp_curr_shots = openShots.size();
+                Tum3Shot.DeleteResumeOffset(tmp_fname);
             }
         }
 
-        //int tmp_client_count = GetClientCount();
-        if ((closingShots.size() != 0) || (tmp_curr_shots != 0) /* || (tmp_client_count != 0) */) {
-            //System.out.println("[aq2j] DEBUG: DisposeUnusedShots() closed " + closingShots.size() + " shots, remaining " + tmp_curr_shots + " shots" /* + "; clients=" + tmp_client_count */);
+    }
+
+    private void DisposeUnusedShots(boolean for_shutdown) {
+        // Reminder: evicts idle shots first, then least recently used ones while above CONST_SHOTS_MAX_OPEN.
+        // Only one disposer runs at a time, concurrent requests are just skipped (except for shutdown).
+
+        //System.out.println("[aq2j] DEBUG: DisposeUnusedShots()");
+
+        if (!DisposeInProgress.compareAndSet(false, true)) {
+            if (!for_shutdown) return;
+            while (!DisposeInProgress.compareAndSet(false, true)) Thread.yield();
+        }
+
+        try {
+            ArrayList<DisposeCandidate> tmp_closing = new ArrayList<DisposeCandidate>();
+            ArrayList<DisposeCandidate> tmp_candidates = new ArrayList<DisposeCandidate>();
+            long tmp_max_millis = System.currentTimeMillis() - CONST_SHOTS_DISPOSE_AFTER*(long)1000;
+
+            for (Map.Entry<String, Tum3Shot> entry : openShots.entrySet())
+                if (for_shutdown || entry.getValue().notUsed()) tmp_candidates.add(new DisposeCandidate(entry.getKey(), entry.getValue()));
+            if (!for_shutdown) Collections.sort(tmp_candidates);
+
+            int tmp_count_to_dispose = openShots.size() - CONST_SHOTS_MAX_OPEN;
+            for (DisposeCandidate tmp_cand : tmp_candidates) {
+                boolean tmp_retired = tmp_cand.shot.TryRetire(tmp_max_millis, (tmp_count_to_dispose > 0));
+                if (for_shutdown || tmp_retired) {
+                    //System.out.println("[aq2j] DEBUG: DisposeUnusedShots(): '" + tmp_cand.name + "' will now be disposed.");
+                    tmp_count_to_dispose--;
+                    tmp_closing.add(tmp_cand);
+                }
+            }
+
+            for (DisposeCandidate tmp_cand : tmp_closing) {
+                try {
+                    tmp_cand.shot.Detach();
+                } finally {
+                    openShots.remove(tmp_cand.name, tmp_cand.shot); // Note: only now, see WaitRetiredShot().
+                }
+            }
+
+            //if (tmp_closing.size() != 0)
+            //  System.out.println("[aq2j] DEBUG: DisposeUnusedShots() closed " + tmp_closing.size() + " shots, remaining " + openShots.size() + " shots");
+        } finally {
+            DisposeInProgress.set(false);
         }
-        closingShots.clear();
     }
 
     public int GetOpenShotsCount() {
-        synchronized (openShots) {
-            return openShots.size();
-        }
+        return openShots.size();
     }
 
     public String GetStatusInfo() {
@@ -2104,12 +2273,12 @@ public class Tum3Db implements Runnable, AppStopHook {
             throw new Exception("FATAL: Unknown request format in PackDirectory");
         }
 
-        {
+        {
             //System.out.println("[aq2j] DEBUG: dump in PackDirectory follows:");
             //for (int tmp_k=0; tmp_k<theList.size(); tmp_k++)
             //  System.out.print(" '" + theList.get(tmp_k) + "' ");
-            //System.out.println("");
-        }
+            //System.out.println("");
+        }
 
         thisName = (char)0 // = Full refresh.
                 +thisName+(char)0+RefName;
@@ -2144,6 +2313,8 @@ public class Tum3Db implements Runnable, AppStopHook {
                 Tum3Logger.DoLog(db_name, true, "Unhandled failure in ApplyAltShotNum: " + Tum3Util.getStackTrace(e));
             }
         synchronized(FGlobalShotList) { FGlobalShotList.add(_new_shot_num); }
+        if (null != DirIndex[0]) DirIndex[0].AddShot(_new_shot_num.toUpperCase());
+        if (null != hot_cache) hot_cache.AddHotShot(_new_shot_num.toUpperCase());
 
     }
 
@@ -2257,6 +2428,13 @@ public class Tum3Db implements Runnable, AppStopHook {
             diag_raid_detail = tmp_raid_detail_s;
             diag_time = tmp_time;
         }
+        if (Tum3HeaderCache.getInstance().Enabled()) Tum3Logger.DoLog(db_name, false, "DEBUG: header cache: " + Tum3HeaderCache.getInstance().StatusStr());
+        Tum3Logger.DoLog(db_name, false, "DEBUG: file cache: " + Tum3FileCache.getInstance().StatusStr());
+        if (null != hot_cache) Tum3Logger.DoLog(db_name, false, "DEBUG: hot shot cache: " + hot_cache.StatusStr());
+        if (null != write_pipeline) Tum3Logger.DoLog(db_name, false, "DEBUG: write pipeline: " + write_pipeline.StatusStr());
+        if (null != density_editor) Tum3Logger.DoLog(db_name, false, "DEBUG: density editor: " + density_editor.StatusStr());
+        String tmp_density_stats = DensityStatsStr();
+        if (null != tmp_density_stats) Tum3Logger.DoLog(db_name, false, "DEBUG: density updates: " + tmp_density_stats);
 
         diag_next_update = _curr_millis + 1000*60*(long)CONST_SRVINFO_UPD_MINS; // YYY
     }
@@ -2645,7 +2823,10 @@ public class Tum3Db implements Runnable, AppStopHook {
                         File tmp_target_shotdir = new File(tmpTargetPath + shotSubdir + File.separator + tmp_shot_name);
                         try { Files.createSymbolicLink(tmp_shotdir.toPath(), tmp_target_shotdir.toPath()); tmp_add_notify = true; } catch (Exception ignored) {}
                         if (DEBUG_ON_WIN) { if (tmp_shotdir.mkdir()) tmp_add_notify = true; }
-                        if (tmp_shotdir.exists()) tmp_done_shot = true;
+                        if (tmp_shotdir.exists()) {
+                            tmp_done_shot = true;
+                            if (!tmp_is_vol && (null != DirIndex[1])) DirIndex[1].AddShot(tmp_shot_name);
+                        }
                     } else tmp_failed_shot = true;
                 }
             }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2db;
+
+
+import java.util.*;
+import java.util.concurrent.*;
+
+
+final class Tum3DensityEditor {
+// Density updates of one db, done by a few worker threads instead of the client session
+//  thread, so that edits of different signals (of the same shot too) go in parallel.
+// Edits of the same signal are still done one after another in the order submitted,
+//  otherwise UpdateDensityData() would refuse the later one as "in use".
+// Both the pool queue and the backlog of each signal are bounded, beyond that Submit()
+//  refuses the edit and the client gets a "busy" reply instead of the server piling up memory.
+
+    private final static int CONST_MAX_KEY_BACKLOG = 16;
+
+    private final String db_name;
+    private final ThreadPoolExecutor pool;
+    private final HashMap<String, ArrayDeque<Runnable>> pending = new HashMap<String, ArrayDeque<Runnable>>(); // Protected by itself. Key: shot name + signal id.
+    private long cnt_done = 0, cnt_failed = 0, cnt_rejected = 0, sum_wait_millis = 0, sum_work_millis = 0, max_work_millis = 0; // Protected by pending.
+
+
+    Tum3DensityEditor(String _db_name, int _threads, int _queue_size) {
+
+        db_name = _db_name;
+        pool = new ThreadPoolExecutor(_threads, _threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, _queue_size)), new ThreadFactory() {
+            private int cnt_threads = 0;
+            public synchronized Thread newThread(Runnable _r) {
+                Thread tmp_thread = new Thread(_r, "Tum3DensityEditor-" + db_name + "-" + (cnt_threads++));
+                tmp_thread.setDaemon(true);
+                return tmp_thread;
+            }
+        }); // Note. The default AbortPolicy throws RejectedExecutionException when the queue is full.
+        Tum3Logger.DoLog(db_name, false, "DEBUG: density editor: threads=" + _threads + ", queue=" + Math.max(1, _queue_size) + ", backlog per signal=" + CONST_MAX_KEY_BACKLOG);
+
+    }
+
+    boolean Submit(final String _key, final Runnable _task) {
+        // Returns false if the edit was not accepted because too much is queued already.
+
+        synchronized(pending) {
+            ArrayDeque<Runnable> tmp_queue = pending.get(_key);
+            if (null != tmp_queue) {
+                if (tmp_queue.size() >= CONST_MAX_KEY_BACKLOG) {
+                    cnt_rejected++;
+                    return false;
+                }
+                tmp_queue.addLast(_task); // Note. Will be run by whoever is busy with this key now.
+                return true;
+            }
+            pending.put(_key, new ArrayDeque<Runnable>());
+        }
+        try {
+            pool.execute(new Runnable() {
+                public void run() {
+                    RunChain(_key, _task);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized(pending) {
+                pending.remove(_key);
+                cnt_rejected++;
+            }
+            return false;
+        }
+        return true;
+
+    }
+
+    private void RunChain(String _key, Runnable _task) {
+
+        while (null != _task) {
+            try {
+                _task.run();
+            } catch (Throwable e) {
+                Tum3Logger.DoLog(db_name, true, "IMPORTANT: density editor error: " + Tum3Util.getStackTrace(e));
+            }
+            synchronized(pending) {
+                _task = pending.get(_key).pollFirst();
+                if (null == _task) pending.remove(_key);
+            }
+        }
+
+    }
+
+    void NoteDone(long _wait_millis, long _work_millis, boolean _ok) {
+
+        synchronized(pending) {
+            cnt_done++;
+            if (!_ok) cnt_failed++;
+            sum_wait_millis += _wait_millis;
+            sum_work_millis += _work_millis;
+            if (_work_millis > max_work_millis) max_work_millis = _work_millis;
+        }
+
+    }
+
+    String StatusStr() {
+
+        synchronized(pending) {
+            return "busy signals=" + pending.size() + ", queued=" + pool.getQueue().size() + ", done=" + cnt_done + ", failed=" + cnt_failed + ", rejected=" + cnt_rejected
+                + ", avg wait ms=" + ((cnt_done > 0) ? sum_wait_millis / cnt_done : 0)
+                + ", avg work ms=" + ((cnt_done > 0) ? sum_work_millis / cnt_done : 0) + ", max work ms=" + max_work_millis;
+        }
+
+    }
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2db;
+
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.file.*;
+
+
+public class Tum3DirIndex implements Runnable {
+// Keeps month -> sorted shot list (day+suffix, as reported by DIRECTORYCALL) in memory.
+// Reminder: months are loaded lazily, either from the checkpoint (if month dir mtime still matches) or by scanning.
+// Note: the watcher only sees local changes (e.g. on NFS, other hosts go unnoticed), so the month dir mtime
+//  is still compared on every use. The stored mtime only ever comes from a scan, see EntryChanged().
+// Reminder: the checkpoint is only kept if checkpoint_path is set (dir_index_path, empty by default).
+
+    private final static String CONST_IDX_EXT = ".idx", CONST_IDX_BAK_EXT = ".ix0";
+    private final static int CONST_WATCH_POLL_MILLIS = 1000;
+
+    private final static Comparator<String> shotComp = new Comparator<String>() {
+        public int compare(String o1, String o2) {
+            return StringList.compareAsShots(o1, o2);
+        }
+    };
+
+    private static class MonthEntry {
+
+        public final ConcurrentSkipListSet<String> shots = new ConcurrentSkipListSet<String>(shotComp);
+        // Reminder: shotComp orders by length first, so one day is a contiguous range per name length only.
+        public volatile long dir_mtime;
+        public volatile boolean verified, watched = false;
+
+        public MonthEntry(long _dir_mtime, boolean _verified) {
+            dir_mtime = _dir_mtime;
+            verified = _verified;
+        }
+
+    }
+
+    private final String db_name, root_path, checkpoint_path, checkpoint_name;
+    private final ConcurrentHashMap<String, MonthEntry> months = new ConcurrentHashMap<String, MonthEntry>();
+    private final ConcurrentHashMap<WatchKey, String> watched_months = new ConcurrentHashMap<WatchKey, String>();
+    private WatchService watcher = null;
+    private volatile boolean dirty = false, terminating = false;
+
+
+    public Tum3DirIndex(String _db_name, String _root_path, String _checkpoint_path, String _checkpoint_name) {
+
+        db_name = _db_name;
+        root_path = _root_path;
+        checkpoint_path = _checkpoint_path;
+        checkpoint_name = _checkpoint_name;
+
+        if (root_path.isEmpty()) return;
+        if (!checkpoint_path.isEmpty()) LoadCheckpoint();
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            Thread tmp_thread = new Thread(this);
+            tmp_thread.setDaemon(true);
+            tmp_thread.start();
+        } catch (Exception e) {
+            watcher = null;
+            Tum3Logger.DoLog(db_name, true, "Note: directory index for " + root_path + " works without WatchService: " + e);
+        }
+
+    }
+
+    private static boolean NameFits(String _month, String _name) {
+
+        return (8 <= _name.length()) && (9 >= _name.length())
+                && _name.substring(0, 4).equals(_month) && Tum3Util.StrNumeric(_name.substring(4, 6));
+
+    }
+
+    public static StringList ScanMonth(String _root_path, String _month, boolean _days_only) {
+
+        StringList tmp_list = new StringList();
+        if (_root_path.length() > 0) {
+            File tmp_files[] = (new File(_root_path + _month + File.separator)).listFiles();
+            // Reminder: null means the directory is empty or non-existent at this time. Assume there are no files in it anyway.
+            if (null != tmp_files) for (File file: tmp_files) {
+                if (file.isDirectory()) {
+                    String tmp_name = file.getName();
+                    if (NameFits(_month, tmp_name)) {
+                        if (_days_only) {
+                            String tmp_st = tmp_name.substring(4, 6);
+                            if (!tmp_list.contains(tmp_st)) tmp_list.add(tmp_st);
+                        } else tmp_list.add(tmp_name.substring(4));
+                    }
+                }
+            }
+        }
+        return tmp_list;
+
+    }
+
+    private MonthEntry getMonth(String _month) {
+
+        MonthEntry tmp_entry = months.get(_month);
+        if ((null != tmp_entry) && tmp_entry.verified)
+            if (tmp_entry.dir_mtime == (new File(root_path + _month)).lastModified()) return tmp_entry;
+
+        boolean tmp_watched = (null != tmp_entry) && tmp_entry.watched;
+        if ((null != watcher) && !tmp_watched) try {
+            WatchKey tmp_key = Paths.get(root_path + _month).register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            watched_months.put(tmp_key, _month);
+            tmp_watched = true;
+        } catch (Exception ignored) { } // Probably does not exist yet.
+
+        long tmp_mtime = (new File(root_path + _month)).lastModified();
+        if ((null != tmp_entry) && !tmp_entry.verified && (tmp_entry.dir_mtime == tmp_mtime) && (0 != tmp_mtime)) {
+            tmp_entry.watched = tmp_watched;
+            tmp_entry.verified = true;
+            return tmp_entry;
+        }
+
+        MonthEntry tmp_new_entry = new MonthEntry(tmp_mtime, true);
+        tmp_new_entry.watched = tmp_watched;
+        tmp_new_entry.shots.addAll(ScanMonth(root_path, _month, false));
+        if (null == tmp_entry) {
+            tmp_entry = months.putIfAbsent(_month, tmp_new_entry);
+            if (null == tmp_entry) tmp_entry = tmp_new_entry;
+        } else {
+            months.put(_month, tmp_new_entry);
+            tmp_entry = tmp_new_entry;
+        }
+        dirty = true;
+        return tmp_entry;
+
+    }
+
+    private void EntryChanged(String _month, MonthEntry _entry) {
+    // Note. dir_mtime is deliberately left as scanned: the directory mtime after a local change
+    //  might as well include a concurrent change from another host, which only a rescan can see.
+
+        dirty = true;
+
+    }
+
+    private static String PadName(String _prefix, int _len, char _fill) {
+
+        StringBuilder tmp_st = new StringBuilder(_prefix);
+        while (tmp_st.length() < _len) tmp_st.append(_fill);
+        return tmp_st.toString();
+
+    }
+
+    public NavigableSet<String> GetShots(String _month) {
+    // Note. Returns a read-only live view, sorted as shots.
+
+        if (root_path.isEmpty()) return Collections.emptyNavigableSet();
+        return Collections.unmodifiableNavigableSet(getMonth(_month).shots);
+
+    }
+
+    public StringList GetDays(String _month) {
+    // Note. Jumps from one day to the next instead of walking all shots of the month.
+
+        StringList tmp_list = new StringList();
+        if (root_path.isEmpty()) return tmp_list;
+        NavigableSet<String> tmp_shots = getMonth(_month).shots;
+        TreeSet<String> tmp_days = new TreeSet<String>();
+        for (int tmp_len = 4; tmp_len <= 5; tmp_len++) {
+            String tmp_name = tmp_shots.ceiling(PadName("", tmp_len, (char)0));
+            while ((null != tmp_name) && (tmp_name.length() == tmp_len)) {
+                String tmp_day = tmp_name.substring(0, 2);
+                tmp_days.add(tmp_day);
+                tmp_name = tmp_shots.higher(PadName(tmp_day, tmp_len, Character.MAX_VALUE));
+            }
+        }
+        tmp_list.addAll(tmp_days);
+        return tmp_list;
+
+    }
+
+    public StringList GetDayShots(String _month, String _day) {
+    // Note. Returns shot names without month and day, as getFilesForDay() wants them.
+
+        StringList tmp_list = new StringList();
+        if (root_path.isEmpty()) return tmp_list;
+        NavigableSet<String> tmp_shots = getMonth(_month).shots;
+        for (int tmp_len = 4; tmp_len <= 5; tmp_len++)
+            for (String tmp_name: tmp_shots.subSet(PadName(_day, tmp_len, (char)0), true, PadName(_day, tmp_len, Character.MAX_VALUE), true))
+                tmp_list.add(tmp_name.substring(2));
+        return tmp_list;
+
+    }
+
+    public void AddShot(String _shot_name) {
+    // Note. Months not loaded yet are skipped, they will be scanned on first use anyway.
+
+        if (root_path.isEmpty() || (_shot_name.length() < 8)) return;
+        String tmp_month = _shot_name.substring(0, 4);
+        if (!NameFits(tmp_month, _shot_name)) return;
+        MonthEntry tmp_entry = months.get(tmp_month);
+        if (null != tmp_entry) if (tmp_entry.shots.add(_shot_name.substring(4))) EntryChanged(tmp_month, tmp_entry);
+
+    }
+
+    public void RemoveShot(String _shot_name) {
+
+        if (root_path.isEmpty() || (_shot_name.length() < 8)) return;
+        String tmp_month = _shot_name.substring(0, 4);
+        MonthEntry tmp_entry = months.get(tmp_month);
+        if (null != tmp_entry) if (tmp_entry.shots.remove(_shot_name.substring(4))) EntryChanged(tmp_month, tmp_entry);
+
+    }
+
+    public void run() {
+
+        while (!terminating) {
+            WatchKey tmp_key = null;
+            try {
+                tmp_key = watcher.poll(CONST_WATCH_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                break;
+            }
+            if (null == tmp_key) continue;
+            String tmp_month = watched_months.get(tmp_key);
+            if (null != tmp_month) {
+                for (WatchEvent<?> tmp_ev: tmp_key.pollEvents()) {
+                    if (StandardWatchEventKinds.OVERFLOW == tmp_ev.kind()) {
+                        MonthEntry tmp_entry = months.get(tmp_month);
+                        if (null != tmp_entry) tmp_entry.verified = false; // Rescan on next use.
+                        continue;
+                    }
+                    String tmp_name = tmp_ev.context().toString();
+                    if (StandardWatchEventKinds.ENTRY_CREATE == tmp_ev.kind()) {
+                        if ((new File(root_path + tmp_month + File.separator + tmp_name)).isDirectory()) AddShot(tmp_name);
+                    } else if (StandardWatchEventKinds.ENTRY_DELETE == tmp_ev.kind()) RemoveShot(tmp_name);
+                }
+            }
+            if (!tmp_key.reset()) {
+                watched_months.remove(tmp_key);
+                if (null != tmp_month) {
+                    MonthEntry tmp_entry = months.get(tmp_month);
+                    if (null != tmp_entry) {
+                        tmp_entry.watched = false;
+                        tmp_entry.verified = false;
+                    }
+                }
+            }
+        }
+        try { watcher.close(); } catch (Exception ignored) { }
+
+    }
+
+    public void Stop() {
+
+        terminating = true;
+        SaveCheckpoint();
+
+    }
+
+    private void LoadCheckpoint() {
+    // Format: one line per month, "MMMM mtime name,name,..."
+
+        File tmp_file = new File(checkpoint_path + checkpoint_name + CONST_IDX_EXT);
+        if (!tmp_file.isFile()) return;
+        StringList tmp_lines = StringList.readFromFile(tmp_file);
+        if (null == tmp_lines) return;
+        int tmp_count = 0;
+        for (String tmp_line: tmp_lines) {
+            String[] tmp_parts = tmp_line.trim().split(" ");
+            if (tmp_parts.length < 2) continue;
+            try {
+                MonthEntry tmp_entry = new MonthEntry(Long.parseLong(tmp_parts[1]), false);
+                if (tmp_parts.length > 2) for (String tmp_name: tmp_parts[2].split(","))
+                    if (!tmp_name.isEmpty()) tmp_entry.shots.add(tmp_name);
+                months.put(tmp_parts[0], tmp_entry);
+                tmp_count++;
+            } catch (Exception ignored) { }
+        }
+        Tum3Logger.DoLog(db_name, false, "Directory index for " + root_path + " restored " + tmp_count + " months from checkpoint.");
+
+    }
+
+    public void SaveCheckpoint() {
+
+        if (checkpoint_path.isEmpty() || !dirty) return;
+        dirty = false;
+        StringBuilder tmp_body = new StringBuilder();
+        for (Map.Entry<String, MonthEntry> tmp_pair: months.entrySet()) {
+            MonthEntry tmp_entry = tmp_pair.getValue();
+            if (!tmp_entry.verified) continue;
+            tmp_body.append(tmp_pair.getKey() + " " + tmp_entry.dir_mtime + " ");
+            boolean tmp_first = true;
+            for (String tmp_name: tmp_entry.shots) {
+                if (!tmp_first) tmp_body.append(',');
+                tmp_body.append(tmp_name);
+                tmp_first = false;
+            }
+            tmp_body.append("\n");
+        }
+        try {
+            Tum3Util.WriteIniWithBak(checkpoint_path, checkpoint_name, tmp_body.toString(), CONST_IDX_BAK_EXT, CONST_IDX_EXT);
+        } catch (Exception e) {
+            dirty = true;
+            Tum3Logger.DoLog(db_name, true, "WARNING: failed to save directory index checkpoint: " + e);
+        }
+
+    }
+
+}
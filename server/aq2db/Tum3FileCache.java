@@ -0,0 +1,247 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2db;
+
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+
+
+final class Tum3FileCache {
+// Read-only signal files opened for trace readers, shared by all sessions of all dbs,
+//  so that many viewers of the same fresh shot do not each open the same files.
+// A handle is reference counted. Once unused, it stays open for up to file_cache_idle_sec,
+//  and at most file_cache_max_open handles are kept by the cache (above that, handles
+//  are still given out but closed right after use).
+// Reminder: there is no per-user file pointer, so all reads through a shared handle
+//  must be positional (see ReadFully() and FileChannel.transferTo()).
+// Reminder: anybody renaming, deleting or rewriting signal files must call Invalidate()
+//  before and after doing so. Users of an invalidated handle keep reading what they opened,
+//  it is closed after the last of them is done, and new users get a freshly opened file.
+
+    private final static String TUM3_CFG_file_cache_max_open = "file_cache_max_open";
+    private final static String TUM3_CFG_file_cache_idle_sec = "file_cache_idle_sec";
+    private final static int CONST_MAX_OPEN_default = 256; // Note. 0 disables the cache.
+    private final static int CONST_IDLE_SEC_default = 30;
+
+    private static final Tum3FileCache glbInstance = new Tum3FileCache();
+
+    static final class Handle {
+
+        final String fname;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        private int users = 1; // Protected by Tum3FileCache.entries.
+        private boolean cached = false;
+        private long idle_since = 0;
+
+        private Handle(String _fname, RandomAccessFile _raf) {
+
+            fname = _fname;
+            raf = _raf;
+            channel = _raf.getChannel();
+
+        }
+
+        private void CloseNow() {
+
+            try {
+                raf.close();
+            } catch (Exception e) {
+                Tum3Logger.DoLogGlb(true, "IMPORTANT: close file error in '" + fname + "' with: " + e);
+            }
+
+        }
+
+    }
+
+    private final int max_open;
+    private final long idle_millis;
+    private final LinkedHashMap<String, Handle> entries = new LinkedHashMap<String, Handle>(16, 0.75f, true); // Protected by itself.
+    private long generation = 0; // Protected by entries.
+    private long cnt_hits = 0, cnt_opens = 0, cnt_uncached = 0; // Protected by entries.
+
+
+    private Tum3FileCache() {
+
+        max_open = Tum3cfg.getGlbInstance().getIntValue(TUM3_CFG_file_cache_max_open, CONST_MAX_OPEN_default);
+        idle_millis = 1000L * Tum3cfg.getGlbInstance().getIntValue(TUM3_CFG_file_cache_idle_sec, CONST_IDLE_SEC_default);
+        Tum3Logger.DoLogGlb(false, "DEBUG: file cache max open=" + max_open + ", idle sec=" + (idle_millis / 1000));
+
+    }
+
+    static Tum3FileCache getInstance() {
+
+        return glbInstance;
+
+    }
+
+    Handle Acquire(String _fname) throws Exception {
+        // Throws FileNotFoundException just as new RandomAccessFile() would.
+
+        ArrayList<Handle> tmp_to_close = null;
+        long tmp_generation;
+        synchronized(entries) {
+            Handle tmp_handle = entries.get(_fname);
+            if (null != tmp_handle) {
+                tmp_handle.users++;
+                cnt_hits++;
+                return tmp_handle;
+            }
+            tmp_generation = generation;
+        }
+
+        Handle tmp_new = new Handle(_fname, new RandomAccessFile(_fname, "r"));
+        Handle tmp_existing = null;
+        synchronized(entries) {
+            cnt_opens++;
+            if (max_open > 0) {
+                tmp_existing = entries.get(_fname);
+                if (null != tmp_existing) {
+                    tmp_existing.users++;
+                } else if (generation == tmp_generation) { // Note. Otherwise the file could have been replaced while opening.
+                    tmp_to_close = Evict_Intl(System.currentTimeMillis(), max_open - 1);
+                    if (entries.size() < max_open) {
+                        tmp_new.cached = true;
+                        entries.put(_fname, tmp_new);
+                    }
+                }
+            }
+            if ((null == tmp_existing) && !tmp_new.cached) cnt_uncached++;
+        }
+        CloseAll(tmp_to_close);
+        if (null != tmp_existing) {
+            tmp_new.CloseNow();
+            return tmp_existing;
+        }
+        return tmp_new;
+
+    }
+
+    void Release(Handle _handle) {
+
+        if (null == _handle) return;
+        boolean tmp_close_now = false;
+        synchronized(entries) {
+            _handle.users--;
+            if (_handle.users <= 0) {
+                _handle.idle_since = System.currentTimeMillis();
+                tmp_close_now = !_handle.cached;
+            }
+        }
+        if (tmp_close_now) _handle.CloseNow();
+
+    }
+
+    private ArrayList<Handle> Evict_Intl(long _now, int _keep_max) {
+        // Closes unused handles which are idle for too long, and then the least recently used
+        //  unused ones until at most _keep_max are left. Returns the handles to be closed outside the lock.
+
+        ArrayList<Handle> tmp_list = null;
+        int tmp_size = entries.size();
+        Iterator<Handle> tmp_it = entries.values().iterator();
+        while (tmp_it.hasNext()) {
+            Handle tmp_handle = tmp_it.next();
+            if (tmp_handle.users > 0) continue;
+            if ((tmp_size <= _keep_max) && ((_now - tmp_handle.idle_since) < idle_millis)) continue;
+            tmp_it.remove();
+            tmp_size--;
+            tmp_handle.cached = false;
+            if (null == tmp_list) tmp_list = new ArrayList<Handle>();
+            tmp_list.add(tmp_handle);
+        }
+        return tmp_list;
+
+    }
+
+    private static void CloseAll(ArrayList<Handle> _list) {
+
+        if (null != _list) for (Handle tmp_handle: _list) tmp_handle.CloseNow();
+
+    }
+
+    void Sweep() {
+
+        ArrayList<Handle> tmp_to_close;
+        synchronized(entries) {
+            tmp_to_close = Evict_Intl(System.currentTimeMillis(), max_open);
+        }
+        CloseAll(tmp_to_close);
+
+    }
+
+    void Invalidate(String _fname) {
+
+        Handle tmp_to_close = null;
+        synchronized(entries) {
+            generation++;
+            Handle tmp_handle = entries.remove(_fname);
+            if (null != tmp_handle) {
+                tmp_handle.cached = false;
+                if (tmp_handle.users <= 0) tmp_to_close = tmp_handle;
+            }
+        }
+        if (null != tmp_to_close) tmp_to_close.CloseNow();
+
+    }
+
+    void InvalidateDir(String _dir_path) {
+        // Drops all files of one shot directory, used when a shot is detached.
+
+        String tmp_prefix = _dir_path + File.separator;
+        ArrayList<Handle> tmp_to_close = null;
+        synchronized(entries) {
+            generation++;
+            Iterator<Handle> tmp_it = entries.values().iterator();
+            while (tmp_it.hasNext()) {
+                Handle tmp_handle = tmp_it.next();
+                if (!tmp_handle.fname.startsWith(tmp_prefix)) continue;
+                tmp_it.remove();
+                tmp_handle.cached = false;
+                if (tmp_handle.users <= 0) {
+                    if (null == tmp_to_close) tmp_to_close = new ArrayList<Handle>();
+                    tmp_to_close.add(tmp_handle);
+                }
+            }
+        }
+        CloseAll(tmp_to_close);
+
+    }
+
+    static void ReadFully(FileChannel _channel, long _pos, byte[] _buff, int _ofs, int _len) throws Exception {
+
+        ReadFully(_channel, _pos, ByteBuffer.wrap(_buff, _ofs, _len));
+
+    }
+
+    static void ReadFully(FileChannel _channel, long _pos, ByteBuffer _dest) throws Exception {
+
+        while (_dest.hasRemaining()) {
+            int tmp_n = _channel.read(_dest, _pos);
+            if (tmp_n < 0) throw new EOFException();
+            _pos += tmp_n;
+        }
+
+    }
+
+    String StatusStr() {
+
+        synchronized(entries) {
+            return "open=" + entries.size() + ", hits=" + cnt_hits + ", opens=" + cnt_opens + ", uncached=" + cnt_uncached;
+        }
+
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2db;
+
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+final class Tum3HeaderCache {
+// Parsed signal file header metadata, shared by all sessions of all dbs.
+// Keyed by the full file name (which tells db, area, shot and ID), and only
+//  valid while the file mtime and size are unchanged.
+// Reminder: write paths in Tum3Shot and Tum3Db call Invalidate() explicitly, because
+//  an in-place density update does not change the size and may not visibly change mtime.
+
+    private final static String TUM3_CFG_header_cache_entries = "header_cache_entries";
+    private final static int CONST_ENTRIES_default = 10000; // Note. 0 disables the cache.
+
+    private static final Tum3HeaderCache glbInstance = new Tum3HeaderCache();
+
+    private static class Entry {
+        long mtime, size;
+        int new_header_size, filed_hsize;
+        long buff_size;
+        boolean hdr_is_v1, is_chunked;
+        byte was_edited;
+    }
+
+    private final int max_entries;
+    private final LinkedHashMap<String, Entry> entries; // Protected by itself.
+    private final AtomicLong generation = new AtomicLong(0);
+    private final AtomicLong cnt_hits = new AtomicLong(0), cnt_misses = new AtomicLong(0);
+
+
+    private Tum3HeaderCache() {
+
+        max_entries = Tum3cfg.getGlbInstance().getIntValue(TUM3_CFG_header_cache_entries, CONST_ENTRIES_default);
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > max_entries;
+            }
+        };
+        Tum3Logger.DoLogGlb(false, "DEBUG: header cache max entries=" + max_entries);
+
+    }
+
+    static Tum3HeaderCache getInstance() {
+
+        return glbInstance;
+
+    }
+
+    boolean Enabled() {
+
+        return max_entries > 0;
+
+    }
+
+    long Generation() {
+        // Note. Taken before parsing, so that a result parsed across an invalidation is not stored.
+
+        return generation.get();
+
+    }
+
+    boolean Fill(Tum3Shot.UtilCreateFile1 _ff, long _mtime, long _size) {
+
+        Entry tmp_entry;
+        synchronized(entries) {
+            tmp_entry = entries.get(_ff.FileName());
+        }
+        if ((null == tmp_entry) || (tmp_entry.mtime != _mtime) || (tmp_entry.size != _size)) {
+            cnt_misses.incrementAndGet();
+            return false;
+        }
+        _ff.tmpNewHeaderSizeInFile = tmp_entry.new_header_size;
+        _ff.tmpFiledHSize = tmp_entry.filed_hsize;
+        _ff.tmpBuffSize = tmp_entry.buff_size;
+        _ff.hdr_is_v1 = tmp_entry.hdr_is_v1;
+        _ff.is_chunked = tmp_entry.is_chunked;
+        _ff.WasEdited = tmp_entry.was_edited;
+        cnt_hits.incrementAndGet();
+        return true;
+
+    }
+
+    void Put(Tum3Shot.UtilCreateFile1 _ff, long _mtime, long _size, long _generation) {
+
+        Entry tmp_entry = new Entry();
+        tmp_entry.mtime = _mtime;
+        tmp_entry.size = _size;
+        tmp_entry.new_header_size = _ff.tmpNewHeaderSizeInFile;
+        tmp_entry.filed_hsize = _ff.tmpFiledHSize;
+        tmp_entry.buff_size = _ff.tmpBuffSize;
+        tmp_entry.hdr_is_v1 = _ff.hdr_is_v1;
+        tmp_entry.is_chunked = _ff.is_chunked;
+        tmp_entry.was_edited = _ff.WasEdited;
+        synchronized(entries) {
+            if (generation.get() != _generation) return;
+            entries.put(_ff.FileName(), tmp_entry);
+        }
+
+    }
+
+    void Invalidate(String _fname) {
+
+        if (!Enabled()) return;
+        synchronized(entries) {
+            generation.incrementAndGet();
+            entries.remove(_fname);
+        }
+
+    }
+
+    String StatusStr() {
+
+        int tmp_size;
+        synchronized(entries) {
+            tmp_size = entries.size();
+        }
+        return "entries=" + tmp_size + ", hits=" + cnt_hits.get() + ", misses=" + cnt_misses.get();
+
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2db;
+
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+
+final class Tum3HotShotCache {
+// Whole signals of the few most recent shots of one db, kept off-heap, because
+//  right after acquisition nearly every client downloads the same signals of the newest shot.
+// Stored is exactly what TraceReaderContinuator would send: UnifiedTraceHeader followed by data.
+// Reminder: an evicted or invalidated buffer may still be in use by replies in progress,
+//  it is only dropped here and freed by GC later, so the budget is approximate in that sense.
+// Reminder: putTrace, UpdateDensityData and deleteTrace call Invalidate() before and after
+//  changing the files, and Put() is rejected if any invalidation happened since loading started.
+// Note. Only one reader loads a given signal at a time (see StartLoad), the others
+//  wait for its result, so that a burst of clients does not read the same file many times.
+
+    static final class Entry {
+        final ByteBuffer data; // Note. Read-only, always use duplicate().
+        final byte edited;
+
+        private Entry(ByteBuffer _data, byte _edited) {
+            data = _data;
+            edited = _edited;
+        }
+    }
+
+    static final class Load {
+        private final String key;
+        private final long generation;
+        private final boolean owner;
+        private final CompletableFuture<Entry> result;
+
+        private Load(String _key, long _generation, boolean _owner, CompletableFuture<Entry> _result) {
+            key = _key;
+            generation = _generation;
+            owner = _owner;
+            result = _result;
+        }
+
+        boolean IsOwner() {
+            return owner;
+        }
+
+        Entry Await() {
+            // Returns null if the loading failed or takes too long, the caller then reads the file itself.
+            try {
+                return result.get(CONST_LOAD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (Exception ignored) {
+                return null;
+            }
+        }
+    }
+
+    private final static long CONST_LOAD_WAIT_MILLIS = 5000;
+
+    private final String db_name;
+    private final int max_shots;
+    private final long budget_bytes, max_item_bytes;
+    private final ArrayDeque<String> hot_shots = new ArrayDeque<String>(); // Protected by entries. Newest last.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true); // Protected by itself.
+    private final HashMap<String, Load> loading = new HashMap<String, Load>(); // Protected by entries.
+    private long cached_bytes = 0; // Protected by entries.
+    private long generation = 0; // Protected by entries.
+    private long cnt_hits = 0, cnt_misses = 0, cnt_joined = 0, cnt_loaded_bytes = 0, cnt_served_bytes = 0, cnt_evicted = 0; // Protected by entries.
+
+
+    Tum3HotShotCache(String _db_name, int _max_shots, long _budget_bytes, long _max_item_bytes) {
+
+        db_name = _db_name;
+        max_shots = _max_shots;
+        budget_bytes = _budget_bytes;
+        max_item_bytes = Math.min(_max_item_bytes, _budget_bytes);
+        Tum3Logger.DoLog(db_name, false, "DEBUG: hot shot cache: shots=" + max_shots + ", budget=" + (budget_bytes >>> 20) + " MB, max item=" + (max_item_bytes >>> 10) + " kB");
+
+    }
+
+    private static String KeyOf(String _shot_name, boolean _vol, int _id) {
+
+        return _shot_name + (_vol ? "/v/" : "/m/") + _id;
+
+    }
+
+    private static boolean KeyIsOf(String _key, String _shot_name) {
+
+        return _key.startsWith(_shot_name) && (_key.length() > _shot_name.length()) && ('/' == _key.charAt(_shot_name.length()));
+
+    }
+
+    void AddHotShot(String _shot_name) {
+
+        synchronized(entries) {
+            if (hot_shots.contains(_shot_name)) return;
+            hot_shots.addLast(_shot_name);
+            while (hot_shots.size() > max_shots) {
+                String tmp_old = hot_shots.removeFirst();
+                Iterator<Map.Entry<String, Entry>> tmp_it = entries.entrySet().iterator();
+                while (tmp_it.hasNext()) {
+                    Map.Entry<String, Entry> tmp_item = tmp_it.next();
+                    if (!KeyIsOf(tmp_item.getKey(), tmp_old)) continue;
+                    cached_bytes -= tmp_item.getValue().data.capacity();
+                    tmp_it.remove();
+                }
+            }
+        }
+
+    }
+
+    boolean IsHot(String _shot_name) {
+
+        synchronized(entries) {
+            return hot_shots.contains(_shot_name);
+        }
+
+    }
+
+    boolean Fits(long _size) {
+
+        return (_size > 0) && (_size <= max_item_bytes);
+
+    }
+
+    Entry Get(String _shot_name, boolean _vol, int _id) {
+
+        synchronized(entries) {
+            Entry tmp_entry = entries.get(KeyOf(_shot_name, _vol, _id));
+            if (null == tmp_entry) {
+                cnt_misses++;
+                return null;
+            }
+            cnt_hits++;
+            cnt_served_bytes += tmp_entry.data.capacity();
+            return tmp_entry;
+        }
+
+    }
+
+    Load StartLoad(String _shot_name, boolean _vol, int _id) {
+        // Call after a miss in Get(). If the result IsOwner(), the caller must load the signal and
+        //  then call either Put() or LoadFailed() with it, otherwise it should Await() the owner.
+
+        String tmp_key = KeyOf(_shot_name, _vol, _id);
+        synchronized(entries) {
+            Entry tmp_entry = entries.get(tmp_key);
+            if (null != tmp_entry) return new Load(tmp_key, generation, false, CompletableFuture.completedFuture(tmp_entry));
+            Load tmp_load = loading.get(tmp_key);
+            if (null != tmp_load) {
+                cnt_joined++;
+                return new Load(tmp_key, tmp_load.generation, false, tmp_load.result);
+            }
+            tmp_load = new Load(tmp_key, generation, true, new CompletableFuture<Entry>());
+            loading.put(tmp_key, tmp_load);
+            return tmp_load;
+        }
+
+    }
+
+    void LoadFailed(Load _load) {
+
+        synchronized(entries) {
+            loading.remove(_load.key, _load);
+        }
+        _load.result.complete(null);
+
+    }
+
+    Entry Put(String _shot_name, Load _load, ByteBuffer _data, byte _edited) {
+        // Returns the entry to be served, which is also kept if the shot is still hot and nothing changed meanwhile.
+
+        Entry tmp_entry = new Entry(_data.asReadOnlyBuffer(), _edited);
+        long tmp_size = _data.capacity();
+        synchronized(entries) {
+            loading.remove(_load.key, _load);
+            cnt_loaded_bytes += tmp_size;
+            if ((generation != _load.generation) || !hot_shots.contains(_shot_name) || !Fits(tmp_size)) {
+                _load.result.complete(tmp_entry);
+                return tmp_entry;
+            }
+            Entry tmp_prev = entries.put(_load.key, tmp_entry);
+            if (null != tmp_prev) cached_bytes -= tmp_prev.data.capacity();
+            cached_bytes += tmp_size;
+            Iterator<Entry> tmp_it = entries.values().iterator();
+            while ((cached_bytes > budget_bytes) && tmp_it.hasNext()) {
+                Entry tmp_old = tmp_it.next();
+                if (tmp_old == tmp_entry) continue;
+                cached_bytes -= tmp_old.data.capacity();
+                tmp_it.remove();
+                cnt_evicted++;
+            }
+        }
+        _load.result.complete(tmp_entry);
+        return tmp_entry;
+
+    }
+
+    void Invalidate(String _shot_name, int _id) {
+
+        synchronized(entries) {
+            generation++;
+            for (int tmp_i = 0; tmp_i < 2; tmp_i++) {
+                loading.remove(KeyOf(_shot_name, 0 != tmp_i, _id)); // Note. Whoever comes next loads anew, those waiting get the older data.
+                Entry tmp_prev = entries.remove(KeyOf(_shot_name, 0 != tmp_i, _id));
+                if (null != tmp_prev) cached_bytes -= tmp_prev.data.capacity();
+            }
+        }
+
+    }
+
+    void InvalidateShot(String _shot_name) {
+        // Note. Used by sync, where any file of the shot may be replaced.
+
+        synchronized(entries) {
+            generation++;
+            Iterator<String> tmp_load_it = loading.keySet().iterator();
+            while (tmp_load_it.hasNext())
+                if (KeyIsOf(tmp_load_it.next(), _shot_name)) tmp_load_it.remove();
+            Iterator<Map.Entry<String, Entry>> tmp_it = entries.entrySet().iterator();
+            while (tmp_it.hasNext()) {
+                Map.Entry<String, Entry> tmp_item = tmp_it.next();
+                if (!KeyIsOf(tmp_item.getKey(), _shot_name)) continue;
+                cached_bytes -= tmp_item.getValue().data.capacity();
+                tmp_it.remove();
+            }
+        }
+
+    }
+
+    String StatusStr() {
+
+        synchronized(entries) {
+            return "shots=" + hot_shots.size() + ", items=" + entries.size() + ", bytes=" + cached_bytes
+                + ", hits=" + cnt_hits + ", misses=" + cnt_misses + ", joined=" + cnt_joined + ", evicted=" + cnt_evicted
+                + ", loaded bytes=" + cnt_loaded_bytes + ", served bytes=" + cnt_served_bytes;
+        }
+
+    }
+
+}
@@ -14,14 +14,19 @@ package aq2db;
 
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import aq2net.TumProtoConsts;
 
 
 class SomeHeader {
+// Reminder: buf is always little-endian (as are the files and the protocol), words are read and written as shorts.
 
     ByteBuffer buf = null;
 
@@ -30,35 +35,33 @@ class SomeHeader {
     }
 
     protected int getWord() {
-        int b0, b1;
-        b0 = buf.get();
-        b1 = buf.get();
-        return (0xFF & (int)b0) + (0xFF00 & (((int)b1)<<8));
+        return 0xFFFF & buf.getShort();
     }
 
     protected void putWord(int w) {
-        byte b0 = (byte)w;
-        byte b1 = (byte)(w >> 8);
-        buf.put(b0);
-        buf.put(b1);
+        buf.putShort((short)w);
     }
 
     protected String getStringPas(int len) {
         int tmp_len=buf.get();
-        StringBuffer tmp_st = new StringBuffer();
-        for (int tmp_i=0; tmp_i<len; tmp_i++)
-            if (tmp_i < tmp_len) tmp_st.append((char)buf.get());
-            else buf.get();
-        return tmp_st.toString();
+        if (tmp_len > len) tmp_len = len;
+        char[] tmp_st = new char[(tmp_len > 0) ? tmp_len : 0];
+        for (int tmp_i=0; tmp_i<tmp_st.length; tmp_i++)
+            tmp_st[tmp_i] = (char)buf.get(buf.position() + tmp_i);
+        buf.position(buf.position() + len);
+        return new String(tmp_st);
     }
 
     protected void putStringPas(String s, int len) {
 
         if (s.length() > len) s = s.substring(0, len);
         buf.put((byte)s.length());
-        for (int tmp_i=0; tmp_i<len; tmp_i++)
-            if (tmp_i < s.length()) buf.put((byte)s.charAt(tmp_i));
-            else buf.put((byte)0);
+        int tmp_pos = buf.position();
+        for (int tmp_i=0; tmp_i<s.length(); tmp_i++)
+            buf.put(tmp_pos + tmp_i, (byte)s.charAt(tmp_i));
+        for (int tmp_i=s.length(); tmp_i<len; tmp_i++)
+            buf.put(tmp_pos + tmp_i, (byte)0);
+        buf.position(tmp_pos + len);
     }
 }
 
@@ -261,9 +264,11 @@ abstract class BaseContinuator {
     }
 }
 
-class TraceReaderContinuator extends BaseContinuator implements OutBuffContinuator {
+class TraceReaderContinuator extends BaseContinuator implements OutBuffChannelContinuator {
+// Note. The file may be shared with other readers (see Tum3FileCache), so all reads are positional.
 
-    private volatile RandomAccessFile myFF;
+    private volatile Tum3FileCache.Handle myFF;
+    private long myDataStart;
     private Tum3Shot myShot;
     private String myFName;
     private boolean was_error = false;
@@ -272,8 +277,9 @@ class TraceReaderContinuator extends BaseContinuator implements OutBuffContinuat
     public final boolean with_warning;
 
 
-    public TraceReaderContinuator(Tum3Shot thisShot, String thisFName, RandomAccessFile thisFF, long thisLength, byte _edited, boolean _use_trailing_status, boolean _with_warning) {
+    public TraceReaderContinuator(Tum3Shot thisShot, String thisFName, Tum3FileCache.Handle thisFF, long thisDataStart, long thisLength, byte _edited, boolean _use_trailing_status, boolean _with_warning) {
         myFF = thisFF;
+        myDataStart = thisDataStart;
         myLength = thisLength;
         myShot = thisShot;
         myFName = thisFName;
@@ -319,7 +325,7 @@ class TraceReaderContinuator extends BaseContinuator implements OutBuffContinuat
                     was_error = true;
                 }
                 if (tmp_count > 0)
-                    myFF.readFully(buff, ofs, tmp_count);
+                    Tum3FileCache.ReadFully(myFF.channel, myDataStart + writtenCount, buff, ofs, tmp_count);
                 writtenCount += tmp_count;
                 if (use_trailing_status && (writtenCount == myLength) && (count > tmp_count)) {
                     buff[ofs+tmp_count] = getTrailingByte();
@@ -346,6 +352,23 @@ class TraceReaderContinuator extends BaseContinuator implements OutBuffContinuat
         return tmp_count;
     }
 
+    public int TransferTo(WritableByteChannel target, int count) {
+        if (was_error || (null == myFF)) return 0;
+        long tmp_count_l = myLength - writtenCount;
+        if (tmp_count_l > count) tmp_count_l = count;
+        if (tmp_count_l <= 0) return 0;
+        try {
+            long tmp_done = myFF.channel.transferTo(myDataStart + writtenCount, tmp_count_l, target);
+            if (tmp_done > 0) writtenCount += tmp_done;
+            return (int)tmp_done;
+        } catch (Exception e) {
+            // Reminder: socket errors will show up again in the regular path, file errors will be zero-filled by ReadTo().
+            was_error = true;
+            Tum3Logger.DoLog(myShot.DbName(), true, "DEBUG: file transfer error in '" + myFName + "' with: " + Tum3Util.getStackTrace(e));
+        }
+        return 0;
+    }
+
     public void close() {
         user_count--;
         //System.out.println("[debug] close() for '" + myFName + "': now " + user_count);
@@ -353,7 +376,7 @@ class TraceReaderContinuator extends BaseContinuator implements OutBuffContinuat
         Tum3Shot tmpShot = null;
         try {
             //System.out.println("[aq2j] DEBUG: <" + Thread.currentThread().getId() + "> TraceReaderContinuator.close(): myFF := null for '" + myFName + "'");
-            myFF.close();
+            Tum3FileCache.getInstance().Release(myFF);
             myFF = null;
         } catch (Exception e) {
             if (null != myFF)
@@ -383,7 +406,221 @@ class TraceReaderContinuator extends BaseContinuator implements OutBuffContinuat
 
 }
 
-class ImmediateArrayContinuator extends BaseContinuator implements OutBuffContinuator {
+class ChunkedTraceReaderContinuator extends BaseContinuator implements OutBuffContinuator {
+// Same as TraceReaderContinuator, but the body is inflated on the fly from Tum3ChunkedBody.
+// Note. No TransferTo() here, the bytes on file are not what the client expects.
+
+    private volatile Tum3FileCache.Handle myFF;
+    private long myDataStart;
+    private int myHeaderLen;
+    private Tum3ChunkedBody.Reader myBody;
+    private Tum3Shot myShot;
+    private String myFName;
+    private boolean was_error = false;
+    private byte WasEdited = 0;
+    private int user_count = 1;
+    public final boolean with_warning;
+
+
+    public ChunkedTraceReaderContinuator(Tum3Shot thisShot, String thisFName, Tum3FileCache.Handle thisFF, long thisDataStart, int thisHeaderLen, Tum3ChunkedBody.Reader thisBody, byte _edited, boolean _use_trailing_status, boolean _with_warning) {
+        myFF = thisFF;
+        myDataStart = thisDataStart;
+        myHeaderLen = thisHeaderLen;
+        myBody = thisBody;
+        myLength = thisHeaderLen + thisBody.raw_size;
+        myShot = thisShot;
+        myFName = thisFName;
+        WasEdited = _edited;
+        use_trailing_status = _use_trailing_status;
+        with_warning = _with_warning;
+    }
+
+    public boolean WithWarning() {
+
+        return with_warning;
+
+    }
+
+    public boolean PleaseWait() {
+
+        return false;
+
+    }
+
+    public byte getEditedByte() {
+
+        return WasEdited;
+
+    }
+
+    @Override
+    public void EnsureOfs(long _seg_ofs) throws Exception {
+        // Note. Any offset is reachable here, so just reposition.
+
+        if ((_seg_ofs < 0) || (_seg_ofs > myLength)) throw new Exception("Segment offset " + _seg_ofs + " is out of range in '" + myFName + "'");
+        writtenCount = _seg_ofs;
+
+    }
+
+    public int ReadTo(byte[] buff, int ofs, int count) {
+
+        if (!was_error) {
+            try {
+                long tmp_count_l = myLength - writtenCount;
+                if (tmp_count_l > count) tmp_count_l = count;
+                if (tmp_count_l < 0)     tmp_count_l = 0;
+                int tmp_count = (int)tmp_count_l;
+                int tmp_done = 0;
+                if ((tmp_count > 0) && (writtenCount < myHeaderLen)) {
+                    int tmp_hdr_part = (int)Math.min(tmp_count, myHeaderLen - writtenCount);
+                    Tum3FileCache.ReadFully(myFF.channel, myDataStart + writtenCount, buff, ofs, tmp_hdr_part);
+                    tmp_done = tmp_hdr_part;
+                }
+                if (tmp_done < tmp_count) {
+                    int tmp_n = myBody.Read(writtenCount + tmp_done - myHeaderLen, buff, ofs + tmp_done, tmp_count - tmp_done);
+                    if (tmp_n != (tmp_count - tmp_done)) throw new Exception("Chunked body ended unexpectedly");
+                }
+                writtenCount += tmp_count;
+                if (use_trailing_status && (writtenCount == myLength) && (count > tmp_count)) {
+                    buff[ofs+tmp_count] = 0;
+                    tmp_count++;
+                    writtenCount++;
+                }
+                return tmp_count;
+            } catch (Exception e) {
+                was_error = true;
+                Tum3Logger.DoLog(myShot.DbName(), true, "DEBUG: chunked file read error in '" + myFName + "' with: " + Tum3Util.getStackTrace(e));
+            }
+        }
+
+        long tmp_count_l = myLength - writtenCount;
+        if (use_trailing_status) tmp_count_l++;
+        if (tmp_count_l > count) tmp_count_l = count;
+        int tmp_count = (int)tmp_count_l;
+        Arrays.fill(buff, ofs, ofs+tmp_count, (byte)0);
+        writtenCount += tmp_count;
+
+        return tmp_count;
+    }
+
+    public void close() {
+        user_count--;
+        if (user_count > 0) return;
+        Tum3Shot tmpShot = null;
+        myBody.close();
+        try {
+            Tum3FileCache.getInstance().Release(myFF);
+            myFF = null;
+        } catch (Exception e) {
+            if (null != myFF)
+                Tum3Logger.DoLog(myShot.DbName(), true, "IMPORTANT: close file error in '" + myFName + "' with: " + Tum3Util.getStackTrace(e));
+        }
+        tmpShot = myShot;
+        myShot = null;
+        if (null != tmpShot) tmpShot.ShotRelease();
+    }
+
+    public void AddUser() {
+        user_count++;
+    }
+
+}
+
+class HotTraceContinuator extends BaseContinuator implements OutBuffChannelContinuator, OutBuffBufferContinuator {
+// Same as TraceReaderContinuator, but the whole signal is already in memory (see Tum3HotShotCache).
+
+    private final ByteBuffer myData;
+    private final byte WasEdited;
+    public final boolean with_warning;
+
+
+    public HotTraceContinuator(ByteBuffer thisData, byte _edited, boolean _use_trailing_status, boolean _with_warning) {
+        myData = thisData;
+        myLength = thisData.remaining();
+        WasEdited = _edited;
+        use_trailing_status = _use_trailing_status;
+        with_warning = _with_warning;
+    }
+
+    public boolean WithWarning() {
+
+        return with_warning;
+
+    }
+
+    public boolean PleaseWait() {
+
+        return false;
+
+    }
+
+    public byte getEditedByte() {
+
+        return WasEdited;
+
+    }
+
+    public int ReadTo(byte[] buff, int ofs, int count) {
+
+        long tmp_count_l = myLength - writtenCount;
+        if (tmp_count_l > count) tmp_count_l = count;
+        if (tmp_count_l < 0)     tmp_count_l = 0;
+        int tmp_count = (int)tmp_count_l;
+        myData.position((int)writtenCount);
+        myData.get(buff, ofs, tmp_count);
+        writtenCount += tmp_count;
+
+        if (use_trailing_status && (writtenCount == myLength) && (count > tmp_count)) {
+            buff[ofs+tmp_count] = 0;
+            tmp_count++;
+            writtenCount++;
+        }
+        return tmp_count;
+    }
+
+    public int TransferTo(WritableByteChannel target, int count) throws Exception {
+
+        long tmp_count_l = myLength - writtenCount;
+        if (tmp_count_l > count) tmp_count_l = count;
+        if (tmp_count_l <= 0) return 0;
+        myData.limit((int)(writtenCount + tmp_count_l));
+        myData.position((int)writtenCount);
+        int tmp_done;
+        try {
+            tmp_done = target.write(myData);
+        } finally {
+            myData.limit((int)myLength);
+        }
+        writtenCount += tmp_done;
+        return tmp_done;
+    }
+
+    public ByteBuffer BodySlice(int _count) {
+
+        long tmp_count_l = myLength - writtenCount;
+        if (tmp_count_l > _count) tmp_count_l = _count;
+        if (tmp_count_l <= 0) return null;
+        ByteBuffer tmp_slice = myData.duplicate();
+        tmp_slice.limit((int)(writtenCount + tmp_count_l));
+        tmp_slice.position((int)writtenCount);
+        return tmp_slice.slice();
+    }
+
+    public void BodySent(int _count) {
+
+        writtenCount += _count;
+    }
+
+    public void AddUser() {
+        // Note. This class does not need any reference management.
+    }
+
+    public void close() {
+        // Note. The buffer is just left to GC.
+    }
+}
+
+class ImmediateArrayContinuator extends BaseContinuator implements OutBuffBufferContinuator {
 
     private byte[] myBuff;
     private boolean please_wait = false;
@@ -433,6 +670,19 @@ class ImmediateArrayContinuator extends BaseContinuator implements OutBuffContin
         return tmp_count;
     }
 
+    public ByteBuffer BodySlice(int _count) {
+
+        int tmp_count = (int)(myLength - writtenCount);
+        if (tmp_count > _count) tmp_count = _count;
+        if (tmp_count <= 0) return null;
+        return ByteBuffer.wrap(myBuff, (int)writtenCount, tmp_count).slice();
+    }
+
+    public void BodySent(int _count) {
+
+        writtenCount += _count;
+    }
+
     public void AddUser() {
         // Note. This class does not need any reference management.
     }
@@ -447,32 +697,40 @@ public class Tum3Shot {
 
     private static final int const_tum3ng_sign_h = 0x484D5554;
     private static final int const_tum3ng_sign_s = 0x534D5554;
+    private static final int const_tum3ng_sign_z = 0x5A4D5554; // Note. Same as _s, but the body is a Tum3ChunkedBody.
 
     public static final String FSUFF_NORMAL = ".000";
     private static final String FSUFF_CFGZIP = ".010";
     private static final String FSUFF_BUP_DENSITY = ".001";
     public static final String FSUFF_BUP_GENERAL = ".002";
     public static final String FSUFF_BUP_ERASED = ".004"; // YYY
-    private static final String FSUFF_TMPFILE = ".900"; // ".003"; // YYY
+    static final String FSUFF_TMPFILE = ".900"; // ".003"; // YYY
+    private static final String FSUFF_TMPOFFSET = ".901"; // Note. Confirmed offset of a segmented upload in FSUFF_TMPFILE.
+    private static final String FSUFF_PYRAMID = ".005"; // Note. Not matched by Tum3Db.listShotFiles_Intl(), so never synced.
+    private static final String FSUFF_PYRAMID_TMP = ".905";
 
     private static final byte DATA_AREA_MAIN = 1; // YYY
     private static final byte DATA_AREA_VOLATILE = 2; // YYY
 
     private static final int CONST_MIN_SIGN_PACK_LEN = 100; // XXX TODO!!! Make it configurable.
     private static final int CONST_DENSITY_FSIZE_LIMIT = 200000;
+    private static final int CONST_USERS_RETIRED = Integer.MIN_VALUE; // Note: once retired, a shot can never be acquired again.
 
     private Tum3Db parent_db;
     public final boolean isWriteable; // YYY
     private String shotName, shotPathMain, shotPathVol, shotSubdir;
-    private volatile HashMap<Integer, Byte> CacheIds = new HashMap<Integer, Byte>();
+    private volatile Tum3SignalStates CacheIds = new Tum3SignalStates();
+    private Tum3ShotManifest ManifestMain = null, ManifestVol = null; // Protected by this.
     private volatile boolean creation_complete = false;
-    private volatile int UserCount = 0;
+    private final AtomicInteger UserCount = new AtomicInteger(0);
+    private final CountDownLatch DetachDone = new CountDownLatch(1);
     private volatile long LastUsedAt = 0;
     private volatile boolean NotStored, Valid = false;
     private final Object CreationLock = new Object(); // YYY
     private UtilCreateFile1 FF;
     private int DirOffset = 0;
     private NewHeaderClass NewHeader;
+    private volatile byte[] PackedShotHeader = null; // Note. Ready reply for CONST_ID_SHOT_HDR, NewHeader never changes once loaded.
     private volatile boolean is_new = false;
     private String new_puff_program;
     private ByteArrayOutputStream new_zip_configs;
@@ -521,10 +779,12 @@ public class Tum3Shot {
         public boolean NotStored;
         //public boolean ReadOnly;
         public RandomAccessFile raf = null;
+        private Tum3FileCache.Handle shared = null; // Note. If not null, raf belongs to it.
         private String Fname;
         int tmpNewHeaderSizeInFile, tmpFiledHSize;
         long tmpBuffSize; // YYY
         boolean hdr_is_v1 = false; // YYY
+        boolean is_chunked = false;
         SignalHeaderClass tmpFirstHeader;
         byte WasEdited;
         private final String db_name;
@@ -554,13 +814,26 @@ public class Tum3Shot {
 
         public UtilCreateFile1(String _DbName, String FNameBase, String FExt1, String FExt2) throws Exception {
 
+            this(_DbName, FNameBase, FExt1, FExt2, false);
+
+        }
+
+        public UtilCreateFile1(String _DbName, String FNameBase, String FExt1, String FExt2, boolean _shared) throws Exception {
+            // Note. FExt2 may be null for a single file. With _shared, the file comes from Tum3FileCache,
+            //  so only positional reads are allowed and it must be passed on with TakeShared() or close()d.
+
             db_name = _DbName;
             NotStored = true; // TODO. Ideally, it should somehow tell "Try later" if could not open.
             for (int tmp_attempt = 1; tmp_attempt <= 4; tmp_attempt++) { // YYY
                 if ((tmp_attempt & 1) == 1) Fname = FNameBase + FExt1;
+                else if (null == FExt2)     break;
                 else                        Fname = FNameBase + FExt2; // YYY
                 try {
-                    raf = new RandomAccessFile(Fname, "r");
+                    if (_shared) {
+                        shared = Tum3FileCache.getInstance().Acquire(Fname);
+                        raf = shared.raf;
+                    } else
+                        raf = new RandomAccessFile(Fname, "r");
                     //System.out.println("[aq2j] DEBUG: File '" + Fname + "' opened(r).");
                     NotStored = false;
                     break;
@@ -572,21 +845,27 @@ public class Tum3Shot {
         }
 
         public void readHeaders(String _shotName, int _SignalId) throws Exception {
+            // Note. The prefix holding all the fields needed is normally fetched with one read
+            //  into a per-thread scratch buffer (see HeaderPrefix), fields are then taken at fixed offsets.
 
+            ByteBuffer tmp_prefix = HeaderPrefix.Get();
+            int tmp_prefix_len = HeaderPrefix.Fill(raf.getChannel(), tmp_prefix);
             byte[] buff0 = new byte[SignalHeaderClass.StaticSize()];
             ByteBuffer tmpBB0 = ByteBuffer.wrap(buff0);
             tmpBB0.order(ByteOrder.LITTLE_ENDIAN);
-            raf.readFully(buff0, 0, 8);
+            HeaderPrefix.Copy(this, tmp_prefix, tmp_prefix_len, 0, buff0, 8);
             tmpBB0.limit(8);
-            if (tmpBB0.getInt() != const_tum3ng_sign_s)
+            int tmp_file_sign = tmpBB0.getInt();
+            if ((tmp_file_sign != const_tum3ng_sign_s) && (tmp_file_sign != const_tum3ng_sign_z))
                 throw new Exception("File '"+FileName()+"' is unknown format or corrupted (bad signature)");
+            is_chunked = (tmp_file_sign == const_tum3ng_sign_z);
             //System.out.println("[aq2j] DEBUG: signature OK in '" + Fname + "' ...");
             tmpNewHeaderSizeInFile = tmpBB0.getInt();
             tmpFirstHeader = new SignalHeaderClass();
             tmpFirstHeader.HSize = tmpNewHeaderSizeInFile;
             tmpFirstHeader.HSizeCorr = tmpNewHeaderSizeInFile; // YYY
             if (tmpFirstHeader.HSizeCorr > buff0.length) tmpFirstHeader.HSizeCorr = buff0.length; // YYY
-            raf.readFully(buff0, 0, tmpFirstHeader.HSizeCorr-4); // YYY
+            HeaderPrefix.Copy(this, tmp_prefix, tmp_prefix_len, 8, buff0, tmpFirstHeader.HSizeCorr-4); // YYY
             tmpBB0.clear();
             tmpBB0.limit(tmpFirstHeader.HSizeCorr-4); // YYY
             tmpFirstHeader.buf = tmpBB0;
@@ -626,36 +905,125 @@ public class Tum3Shot {
             else
                 WasEdited = (byte)tmpSigUpdateCounter;
 
-            raf.seek(4 + tmpNewHeaderSizeInFile);
-            raf.readFully(buff0, 0, 4);
-            tmpBB0.clear(); tmpBB0.limit(4);
-            tmpFiledHSize = tmpBB0.getInt();
+            long tmp_uth_ofs = 4 + (long)tmpNewHeaderSizeInFile; // Note. Where UnifiedTraceHeader starts.
+            tmpFiledHSize = HeaderPrefix.IntAt(this, tmp_prefix, tmp_prefix_len, tmp_uth_ofs);
             if (tmpFiledHSize < min_hlen_ever)
                 throw new Exception("UnifiedTraceHeader size is too small (" + tmpFiledHSize + ") in '" + FileName() + "'");
             if (tmpFiledHSize >= min_hlen_Fmt64Ver) { // YYY
-                raf.seek(4 + tmpNewHeaderSizeInFile + 12*4+256); // old HMetaDataSize
-                raf.readFully(buff0, 0, 4);
-                tmpBB0.clear(); tmpBB0.limit(4);
-                if (0 == tmpBB0.getInt()) { // YYY
+                if (0 == HeaderPrefix.IntAt(this, tmp_prefix, tmp_prefix_len, tmp_uth_ofs + ofs_HMetaDataSize_old)) { // YYY old HMetaDataSize
                     hdr_is_v1 = true; // YYY
-                    raf.seek(4 + tmpNewHeaderSizeInFile + ofs_HDataSize_new); // new HDataSize
-                    raf.readFully(buff0, 0, 8);
-                    tmpBB0.clear(); tmpBB0.limit(8);
-                    tmpBuffSize = tmpBB0.getLong(); // YYY
+                    tmpBuffSize = HeaderPrefix.LongAt(this, tmp_prefix, tmp_prefix_len, tmp_uth_ofs + ofs_HDataSize_new); // YYY new HDataSize
                 }
             }
             if (!hdr_is_v1) { // YYY
-                raf.seek(4 + tmpNewHeaderSizeInFile + ofs_HDataSize_old); // old HDataSize
-                raf.readFully(buff0, 0, 4);
-                tmpBB0.clear();
-                tmpBB0.limit(4);
-                tmpBuffSize = tmpBB0.getInt();
+                tmpBuffSize = HeaderPrefix.IntAt(this, tmp_prefix, tmp_prefix_len, tmp_uth_ofs + ofs_HDataSize_old); // old HDataSize
             }
             //System.out.println("[aq2j] DEBUG: <" + Thread.currentThread().getId() + "> UnifiedTraceHeader in '" + Fname + "': HSize=" + tmpFiledHSize + " HDataSize=" + tmpBuffSize);
 
         }
 
+        public void readHeadersCached(String _shotName, int _SignalId) throws Exception {
+            // Same as readHeaders(), but reuses what was parsed earlier from the same unchanged file.
+            // Reminder: tmpFirstHeader is not filled in on a cache hit, so only for readers.
+
+            Tum3HeaderCache tmp_cache = Tum3HeaderCache.getInstance();
+            if (!tmp_cache.Enabled()) {
+                readHeaders(_shotName, _SignalId);
+                return;
+            }
+            long tmp_generation = tmp_cache.Generation();
+            long tmp_size = raf.length();
+            long tmp_mtime = new File(Fname).lastModified();
+            if (tmp_cache.Fill(this, tmp_mtime, tmp_size)) return;
+            readHeaders(_shotName, _SignalId);
+            tmp_cache.Put(this, tmp_mtime, tmp_size, tmp_generation);
+        }
+
+        private void ReadAt(long _pos, byte[] _buff, int _ofs, int _len) throws Exception {
+            // Reminder: positional, so that the file pointer of a shared file is never touched.
+
+            Tum3FileCache.ReadFully(raf.getChannel(), _pos, _buff, _ofs, _len);
+
+        }
+
+        private static final class HeaderPrefix {
+            // Per-thread direct scratch buffer for the beginning of a signal file. With the usual
+            //  SignalHeader size, it covers all UnifiedTraceHeader fields readHeaders() needs,
+            //  in both the old and the new (64-bit) layout. Anything beyond is read separately.
+
+            private static final int CONST_PREFIX_SIZE = 4 + SignalHeaderClass.StaticSize() + ofs_HDataSize_new + 8;
+            private static final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+                protected ByteBuffer initialValue() {
+                    ByteBuffer tmp_buff = ByteBuffer.allocateDirect(CONST_PREFIX_SIZE);
+                    tmp_buff.order(ByteOrder.LITTLE_ENDIAN);
+                    return tmp_buff;
+                }
+            };
+
+            static ByteBuffer Get() {
+
+                return scratch.get();
+
+            }
+
+            static int Fill(FileChannel _channel, ByteBuffer _prefix) throws Exception {
+                // Returns the number of bytes available, which is less than the buffer size for a short file.
+
+                _prefix.clear();
+                while (_prefix.hasRemaining()) {
+                    int tmp_n = _channel.read(_prefix, _prefix.position());
+                    if (tmp_n < 0) break;
+                }
+                return _prefix.position();
+
+            }
+
+            static void Copy(UtilCreateFile1 _file, ByteBuffer _prefix, int _prefix_len, long _pos, byte[] _dest, int _len) throws Exception {
+
+                if ((_pos + _len) <= _prefix_len) {
+                    ByteBuffer tmp_view = _prefix.duplicate(); // Note. Leaves the shared position alone.
+                    tmp_view.position((int)_pos);
+                    tmp_view.get(_dest, 0, _len);
+                } else
+                    _file.ReadAt(_pos, _dest, 0, _len);
+
+            }
+
+            static int IntAt(UtilCreateFile1 _file, ByteBuffer _prefix, int _prefix_len, long _pos) throws Exception {
+
+                if ((_pos + 4) <= _prefix_len) return _prefix.getInt((int)_pos);
+                byte[] tmp_buff = new byte[4];
+                _file.ReadAt(_pos, tmp_buff, 0, 4);
+                return ByteBuffer.wrap(tmp_buff).order(ByteOrder.LITTLE_ENDIAN).getInt();
+
+            }
+
+            static long LongAt(UtilCreateFile1 _file, ByteBuffer _prefix, int _prefix_len, long _pos) throws Exception {
+
+                if ((_pos + 8) <= _prefix_len) return _prefix.getLong((int)_pos);
+                byte[] tmp_buff = new byte[8];
+                _file.ReadAt(_pos, tmp_buff, 0, 8);
+                return ByteBuffer.wrap(tmp_buff).order(ByteOrder.LITTLE_ENDIAN).getLong();
+
+            }
+
+        }
+
+        Tum3FileCache.Handle TakeShared() {
+
+            Tum3FileCache.Handle tmp_handle = shared;
+            shared = null;
+            raf = null;
+            return tmp_handle;
+
+        }
+
         public void close() {
+            if (shared != null) {
+                Tum3FileCache.getInstance().Release(shared);
+                shared = null;
+                raf = null;
+            }
             if (raf != null)
                 try {
                     raf.close();
@@ -716,6 +1084,7 @@ public class Tum3Shot {
 
         is_new = false;
         ClearExpectedIds();
+        ManifestStore();
         ShotRelease();
 
     }
@@ -957,64 +1326,136 @@ public class Tum3Shot {
 
     }
 
-    private void BuildCache_Internal(String thePath, byte theKind) {
+    private Tum3ShotManifest BuildCache_Internal(String thePath, byte theKind) {
+        // Note. A fresh manifest replaces the directory listing, otherwise it is rebuilt from the listing.
 
-        File dir = new File(thePath + shotSubdir + File.separator + shotName);
-        if (dir == null) return;
-        File[] tmpFiles = dir.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                if ((8 <= name.length()) && (name.endsWith(FSUFF_NORMAL) || ((DATA_AREA_VOLATILE == theKind) && name.endsWith(FSUFF_BUP_GENERAL)))) // YYY
-                    if (Tum3Util.StrNumeric(name.substring(0, name.length()-4))) 
-                        return true;
-                return false;
-            }
-        });
-        if (tmpFiles == null) return;
-        for (File file: tmpFiles) {
-            String tmp_name = file.getName();
-            tmp_name = tmp_name.substring(0, tmp_name.length()-4);
-            int tmp_id = Integer.parseInt(tmp_name);
-            //System.out.print("[aq2j] DEBUG: considering ID= '" + tmp_id + "'");
-            if (DATA_AREA_MAIN == theKind) CacheIds.put(tmp_id, theKind);
-            else {
-                if (CacheIds.containsKey(tmp_id)) {
-                    CacheIds.put(tmp_id, (byte)(CacheIds.get(tmp_id) | theKind));
-                } else CacheIds.put(tmp_id, theKind);
-            }
+        String tmp_dir = thePath + shotSubdir + File.separator + shotName;
+        Tum3ShotManifest tmp_manifest = null;
+        if (parent_db.use_manifest) tmp_manifest = Tum3ShotManifest.Load(DbName(), tmp_dir);
+        if (null == tmp_manifest) {
+            tmp_manifest = Tum3ShotManifest.Scan(tmp_dir, DATA_AREA_VOLATILE == theKind, parent_db.use_manifest && isWriteable);
+            if (parent_db.use_manifest && isWriteable) tmp_manifest.StoreIfDirty(DbName());
         }
+        if (isWriteable) for (String tmp_partial: tmp_manifest.Partials())
+            parent_db.PartialUploadSuspended(tmp_dir + File.separator + tmp_partial); // Note. Left over from some earlier run, expires unless resumed.
+        int tmp_skipped = tmp_manifest.FillStates(CacheIds, theKind);
+        if (tmp_skipped > 0)
+            Tum3Logger.DoLog(DbName(), true, "WARNING: " + tmp_skipped + " file(s) with signal id out of range ignored in '" + tmp_dir + "'");
+        return tmp_manifest;
 
     }
 
     private void BuildCache() {
 
+        Tum3ShotManifest tmp_main = null, tmp_vol = null;
         synchronized(CacheIds) {
-            if (shotPathMain.length() > 0) BuildCache_Internal(shotPathMain, DATA_AREA_MAIN);
-            if (shotPathVol.length() > 0)  BuildCache_Internal(shotPathVol, DATA_AREA_VOLATILE);
+            if (shotPathMain.length() > 0) tmp_main = BuildCache_Internal(shotPathMain, DATA_AREA_MAIN);
+            if (shotPathVol.length() > 0)  tmp_vol = BuildCache_Internal(shotPathVol, DATA_AREA_VOLATILE);
+        }
+        if (!parent_db.use_manifest) return;
+        synchronized(this) { // Reminder: lock order is this, then CacheIds (see ClearExpectedIds), so not nested here.
+            ManifestMain = tmp_main;
+            ManifestVol = tmp_vol;
         }
 
     }
 
-    public synchronized void ShotAddUser() {
+    private synchronized Tum3ShotManifest GetManifest(boolean _vol, boolean _create) {
+
+        if ((null == parent_db) || !parent_db.use_manifest) return null;
+        if (_vol) {
+            if ((null == ManifestVol) && _create && (shotPathVol.length() > 0))
+                ManifestVol = Tum3ShotManifest.Scan(shotPathVol + shotSubdir + File.separator + shotName, true, isWriteable);
+            return ManifestVol;
+        } else {
+            if ((null == ManifestMain) && _create && (shotPathMain.length() > 0))
+                ManifestMain = Tum3ShotManifest.Scan(shotPathMain + shotSubdir + File.separator + shotName, false, isWriteable);
+            return ManifestMain;
+        }
+
+    }
+
+    private void ManifestNoteFile(boolean _vol, int _id) {
+
+        Tum3ShotManifest tmp_manifest = GetManifest(_vol, true);
+        if (null != tmp_manifest) tmp_manifest.NoteFile(_id);
+
+    }
+
+    private void InvalidateCached(String _base_fname, int _id) {
+        // Reminder: call before touching the files too, so that no idle shared handle
+        //  is left open on them (which would prevent renaming on some platforms).
+
+        Tum3FileCache.getInstance().Invalidate(_base_fname + FSUFF_NORMAL);
+        Tum3FileCache.getInstance().Invalidate(_base_fname + FSUFF_BUP_GENERAL);
+        Tum3HeaderCache.getInstance().Invalidate(_base_fname + FSUFF_NORMAL);
+        Tum3HeaderCache.getInstance().Invalidate(_base_fname + FSUFF_BUP_GENERAL);
+        if (null != parent_db.hot_cache) parent_db.hot_cache.Invalidate(shotName, _id);
+
+    }
+
+    void ManifestDropped(boolean _vol) {
+
+        Tum3ShotManifest tmp_manifest = GetManifest(_vol, false);
+        if (null != tmp_manifest) tmp_manifest.Drop();
+
+    }
+
+    private void ManifestStore() {
+
+        if (!isWriteable) return;
+        Tum3ShotManifest tmp_main = GetManifest(false, false), tmp_vol = GetManifest(true, false);
+        if (null != tmp_main) tmp_main.StoreIfDirty(DbName());
+        if (null != tmp_vol) tmp_vol.StoreIfDirty(DbName());
+
+    }
+
+    public void ShotAddUser() {
+        // Reminder. Only allowed when the caller already holds a reference, otherwise use ShotTryAcquire().
 
-        UserCount++;
+        UserCount.incrementAndGet();
         //System.out.println("[aq2j] DEBUG: ShotAddUser(): new UserCount=" + UserCount + " in '" + DbName() + "." + shotName + "'");
 
     }
 
-    public synchronized boolean notUsed(long max_millis, boolean force) {
-        //System.out.println("[aq2j] DEBUG: notUsed(): UserCount=" + UserCount + " in '" + DbName() + "." + shotName + "'");
-        if (0 != UserCount) return false;
-        else return ((LastUsedAt < max_millis) || force);
+    public boolean ShotTryAcquire() {
+
+        int tmp_count;
+        do {
+            tmp_count = UserCount.get();
+            if (tmp_count < 0) return false;
+        } while (!UserCount.compareAndSet(tmp_count, tmp_count + 1));
+        return true;
+
+    }
+
+    public boolean TryRetire(long max_millis, boolean force) {
+        // Note. Succeeds only for a shot with no users, after that ShotTryAcquire() always fails.
+
+        if ((LastUsedAt >= max_millis) && !force) return false;
+        return UserCount.compareAndSet(0, CONST_USERS_RETIRED);
+
+    }
+
+    public boolean notUsed() {
+
+        return (0 == UserCount.get());
+
+    }
+
+    public long getLastUsedAt() {
+
+        return LastUsedAt;
+
     }
 
-    public synchronized void ShotRelease() {
+    public void ShotRelease() {
 
-        UserCount--;
-        //System.out.println("[aq2j] DEBUG: ShotRelease(): new UserCount=" + UserCount + " in '" + DbName() + "." + shotName + "'");
-        if (UserCount == 0) LastUsedAt = System.currentTimeMillis();
-        if (UserCount < 0)
-            Tum3Logger.DoLog(DbName(), true, "Warning: in ShotRelease() UserCount=" + UserCount + " in '" + shotName + "'");
+        int tmp_count = UserCount.decrementAndGet();
+        //System.out.println("[aq2j] DEBUG: ShotRelease(): new UserCount=" + tmp_count + " in '" + DbName() + "." + shotName + "'");
+        if (tmp_count == 0) LastUsedAt = System.currentTimeMillis();
+        if (tmp_count < 0)
+            Tum3Logger.DoLog(DbName(), true, "Warning: in ShotRelease() UserCount=" + tmp_count + " in '" + shotName + "'");
 
     }
 
@@ -1044,32 +1485,83 @@ public class Tum3Shot {
 
         UtilCreateFile1 tmpFF = null;
         try {
-            tmpFF = _as_volatile ?
-                new UtilCreateFile1(DbName(), tmpActualPath + shotSubdir + File.separator + tmpCommonName, FSUFF_NORMAL, FSUFF_BUP_GENERAL) // YYY
-              : new UtilCreateFile1(DbName(), tmpActualPath + shotSubdir + File.separator + tmpCommonName + FSUFF_NORMAL, false);
+            tmpFF = new UtilCreateFile1(DbName(), tmpActualPath + shotSubdir + File.separator + tmpCommonName, FSUFF_NORMAL, _as_volatile ? FSUFF_BUP_GENERAL : null, true); // YYY
         } catch (Exception e) {
             return null;
         }
         if (tmpFF.NotStored) return null;
 
         try {
-            tmpFF.readHeaders(shotName, thisSignalId);
-
-            tmpFF.raf.seek(4 + tmpFF.tmpNewHeaderSizeInFile);
+            tmpFF.readHeadersCached(shotName, thisSignalId);
+
+            long tmp_data_start = 4 + tmpFF.tmpNewHeaderSizeInFile;
+            if (tmpFF.is_chunked) {
+                Tum3ChunkedBody.Reader tmp_body = new Tum3ChunkedBody.Reader(tmpFF.raf, tmp_data_start + tmpFF.tmpFiledHSize);
+                if (tmp_body.raw_size != tmpFF.tmpBuffSize) {
+                    tmp_body.close();
+                    throw new Exception("Chunked body size " + tmp_body.raw_size + " does not match HDataSize " + tmpFF.tmpBuffSize + " in '" + tmpFF.FileName() + "'");
+                }
+                ShotAddUser();
+                return new ChunkedTraceReaderContinuator(this, tmpFF.FileName(), tmpFF.TakeShared(), tmp_data_start, tmpFF.tmpFiledHSize, tmp_body, tmpFF.WasEdited, _use_trailing_status, _with_warning);
+            }
             ShotAddUser(); // Reminder. There is no race here because dbLink.getShot has yet another AddUser().
             //System.out.println("[aq2j] DEBUG: <" + Thread.currentThread().getId() + "> new TraceReaderContinuator for '" + tmpFF.FileName() + "'");
-            return new TraceReaderContinuator(this, tmpFF.FileName(), tmpFF.raf, tmpFF.tmpFiledHSize + tmpFF.tmpBuffSize, tmpFF.WasEdited, _use_trailing_status, _with_warning);
+            return new TraceReaderContinuator(this, tmpFF.FileName(), tmpFF.TakeShared(), tmp_data_start, tmpFF.tmpFiledHSize + tmpFF.tmpBuffSize, tmpFF.WasEdited, _use_trailing_status, _with_warning);
 
         } catch (Exception e) {
 
             Tum3Logger.DoLog(DbName(), true, "WARNING: GetByPositionNew() exception: " + Tum3Util.getStackTrace(e));
+            tmpFF.close();
             return null;
         }
     }
 
-    private OutBuffContinuator PackAvailableSignalsList() {
+    private OutBuffContinuator GetFromHotCache(int thisSignalId, boolean _use_trailing_status, boolean _as_volatile, boolean _with_warning) {
+        // Returns null whenever GetByPositionNew() should be used instead.
 
-        /*
+        Tum3Db tmp_db = parent_db;
+        if (null == tmp_db) return null;
+        Tum3HotShotCache tmp_cache = tmp_db.hot_cache;
+        if ((null == tmp_cache) || !tmp_cache.IsHot(shotName)) return null;
+
+        Tum3HotShotCache.Entry tmp_entry = tmp_cache.Get(shotName, _as_volatile, thisSignalId);
+        if (null == tmp_entry) {
+            Tum3HotShotCache.Load tmp_load = tmp_cache.StartLoad(shotName, _as_volatile, thisSignalId);
+            if (!tmp_load.IsOwner()) {
+                tmp_entry = tmp_load.Await();
+                if (null == tmp_entry) return null;
+                return new HotTraceContinuator(tmp_entry.data.duplicate(), tmp_entry.edited, _use_trailing_status, _with_warning);
+            }
+            String tmpActualPath = _as_volatile ? shotPathVol : shotPathMain;
+            UtilCreateFile1 tmpFF = null;
+            try {
+                tmpFF = new UtilCreateFile1(DbName(), tmpActualPath + shotSubdir + File.separator + shotName + File.separator + Tum3Db.SignalFName(thisSignalId), FSUFF_NORMAL, _as_volatile ? FSUFF_BUP_GENERAL : null, true);
+                if (tmpFF.NotStored) return null;
+                tmpFF.readHeadersCached(shotName, thisSignalId);
+                long tmp_size = tmpFF.tmpFiledHSize + tmpFF.tmpBuffSize;
+                if (tmpFF.is_chunked || !tmp_cache.Fits(tmp_size)) return null;
+                ByteBuffer tmp_data = ByteBuffer.allocateDirect((int)tmp_size);
+                Tum3FileCache.ReadFully(tmpFF.raf.getChannel(), 4 + tmpFF.tmpNewHeaderSizeInFile, tmp_data);
+                tmp_data.flip();
+                tmp_entry = tmp_cache.Put(shotName, tmp_load, tmp_data, tmpFF.WasEdited);
+            } catch (OutOfMemoryError e) {
+                Tum3Logger.DoLog(DbName(), true, "WARNING: hot shot cache could not allocate memory for '" + shotName + "' id=" + thisSignalId);
+                return null;
+            } catch (Exception e) {
+                Tum3Logger.DoLog(DbName(), false, "DEBUG: hot shot cache load failed for '" + shotName + "' id=" + thisSignalId + ": " + e);
+                return null;
+            } finally {
+                if (null != tmpFF) tmpFF.close();
+                if (null == tmp_entry) tmp_cache.LoadFailed(tmp_load);
+            }
+        }
+        return new HotTraceContinuator(tmp_entry.data.duplicate(), tmp_entry.edited, _use_trailing_status, _with_warning);
+
+    }
+
+    private OutBuffContinuator PackAvailableSignalsList() {
+
+        /*
   new(PEntryHeader);
   FillChar(PEntryHeader^, SizeOf(TUnifiedTraceHeader), 0);
   PEntryHeader.HSize := SizeOf(TUnifiedTraceHeader);
@@ -1083,32 +1575,24 @@ public class Tum3Shot {
   for i := 1 to SignCacheCount do
     plongint(longint(tmpDataBuff)+i*4)^ := SignCacheId(i);
          */
-        int tmp_entry_count = 0, tmp_filled_count = 0, tmp_real_filled_count = 0;
+        int tmp_entry_count = 0, tmp_real_filled_count = 0;
         int tmp_buff_size;
         byte[] tmp_buff;
 
         ByteBuffer tmpBB0 = null;
-        synchronized(CacheIds) {
-            tmp_entry_count = CacheIds.size()+1;
-            if (tmp_entry_count < CONST_MIN_SIGN_PACK_LEN) tmp_entry_count = CONST_MIN_SIGN_PACK_LEN;
-            tmp_entry_count = tmp_entry_count*2;
-            tmp_buff_size = HeaderWriterTraceSignPack.StaticSize() + (tmp_entry_count)*4;
-            tmp_buff = new byte[tmp_buff_size];
-            tmpBB0 = ByteBuffer.wrap(tmp_buff);
-            tmpBB0.order(ByteOrder.LITTLE_ENDIAN);
-            tmpBB0.position(HeaderWriterTraceSignPack.StaticSize());
-            tmp_filled_count = CacheIds.size()+1;
-            if (tmp_filled_count > tmp_entry_count) tmp_filled_count = tmp_entry_count;
-            tmpBB0.putInt(0);
-            tmp_real_filled_count = 1;
-            for (Map.Entry<Integer, Byte> entry : CacheIds.entrySet())
-                if (((entry.getValue() & 0x0C) == 0) && (tmp_real_filled_count < tmp_filled_count)) {
-                    tmpBB0.putInt(entry.getKey());
-                    tmp_real_filled_count++;
-                }
-            tmpBB0.position(HeaderWriterTraceSignPack.StaticSize());
-            tmpBB0.putInt(tmp_real_filled_count - 1);
-        }
+        // Note. No locking here, a signal changing state right now may or may not be listed.
+        tmp_entry_count = CacheIds.size()+1;
+        if (tmp_entry_count < CONST_MIN_SIGN_PACK_LEN) tmp_entry_count = CONST_MIN_SIGN_PACK_LEN;
+        tmp_entry_count = tmp_entry_count*2;
+        tmp_buff_size = HeaderWriterTraceSignPack.StaticSize() + (tmp_entry_count)*4;
+        tmp_buff = new byte[tmp_buff_size];
+        tmpBB0 = ByteBuffer.wrap(tmp_buff);
+        tmpBB0.order(ByteOrder.LITTLE_ENDIAN);
+        tmpBB0.position(HeaderWriterTraceSignPack.StaticSize());
+        tmpBB0.putInt(0);
+        tmp_real_filled_count = 1 + CacheIds.PutIdsTo(tmpBB0, tmp_entry_count - 1, 0x0C);
+        tmpBB0.position(HeaderWriterTraceSignPack.StaticSize());
+        tmpBB0.putInt(tmp_real_filled_count - 1);
         tmpBB0.clear();
         tmpBB0.order(ByteOrder.LITTLE_ENDIAN);
         HeaderWriterTraceSignPack SignPack = new HeaderWriterTraceSignPack(tmpBB0);
@@ -1140,7 +1624,9 @@ public class Tum3Shot {
   end;
          */
         int tmp_buff_size;
-        byte[] tmp_buff;
+        byte[] tmp_buff = PackedShotHeader;
+
+        if (null != tmp_buff) return new ImmediateArrayContinuator(tmp_buff, tmp_buff.length, false);
 
         if (null == NewHeader.buf)
             tmp_buff_size = 0;
@@ -1162,6 +1648,7 @@ public class Tum3Shot {
         SignPack.HCount = 1;
         SignPack.HDataSize = tmp_buff_size;
         SignPack.writeAll();
+        if (tmp_buff_size > 0) PackedShotHeader = tmp_buff; // Note. ImmediateArrayContinuator only reads from it.
         return new ImmediateArrayContinuator(tmp_buff, HeaderWriterTraceSignPack.StaticSize()+tmp_buff_size, false);
     }
 
@@ -1211,9 +1698,107 @@ public class Tum3Shot {
         parent_db.SyncStatusVolOpEnd(shotSubdir, shotName, _ID, _op_type, _BeginOk, _DataLikelyModified);
     }
 
+    public static final class PutTraceJob {
+        // State of one putTrace() passing through its stages, see also Tum3WritePipeline.
+        // Also held by the network side while a streamed upload is arriving (putTraceStream*).
+
+        final int ThisID;
+        final ByteBuffer header, body;
+        final boolean as_volatile;
+        final byte ok_bit, in_progress;
+        final String actual_path, target_fname, new_fname;
+        final File final_file, monthdir, shotdir;
+        PutTraceHandler handler = null;
+        boolean durable = false;
+        RandomAccessFile raf = null;
+        FileChannel fc = null;
+        int datasize_actual = 0, body_written = 0;
+        SignalHeaderClass file_header = null;
+        byte[] file_header_buff = null;
+        int file_sign = 0;
+        boolean written = false;
+        String offset_fname = null; // Note. Only for segmented uploads, see putTraceStreamAppend().
+        boolean store_ok = false, data_likely_lost = false, SyncStatusVolOpBegin_ok = false, was_waiting = false;
+        String error = "";
+
+        private PutTraceJob(int _ThisID, ByteBuffer _header, ByteBuffer _body, boolean _as_volatile, String _actual_path, String _target_fname, String _new_fname, File _monthdir, File _shotdir) {
+
+            ThisID = _ThisID;
+            header = _header;
+            body = _body;
+            as_volatile = _as_volatile;
+            ok_bit = _as_volatile ? (byte)2 : (byte)1;
+            in_progress = _as_volatile ? (byte)8 : (byte)4;
+            actual_path = _actual_path;
+            target_fname = _target_fname;
+            new_fname = _new_fname;
+            final_file = new File(_target_fname);
+            monthdir = _monthdir;
+            shotdir = _shotdir;
+
+        }
+
+        String DirPath() {
+
+            return final_file.getParent();
+
+        }
+
+        public boolean ViaPipeline() {
+
+            return durable;
+
+        }
+
+    }
+
     public void putTrace(int _ThisID, ByteBuffer _header, ByteBuffer _body, ShotChangeMonitor chgMonitor, boolean DataIsVolatile) throws Exception {
 
-        if (_ThisID <= 0) throw new Exception("illegal signal id specified"); // YYY
+        PutTraceJob tmp_job = putTraceBegin(_ThisID, _header, _body, DataIsVolatile);
+        try {
+            putTraceWrite(tmp_job);
+            putTraceCommit(tmp_job);
+        } finally {
+            putTraceEnd(tmp_job);
+            chgMonitor.AddUpdatedId(_ThisID, false, tmp_job.was_waiting, false);
+        }
+
+    }
+
+    public String putTraceAsync(int _ThisID, ByteBuffer _header, ByteBuffer _body, boolean DataIsVolatile, PutTraceHandler _handler) throws Exception {
+        // Same as putTrace(), but the actual writing is done by Tum3WritePipeline, which calls _handler when done.
+        // Returns an error message if the request could not be accepted, then _handler is never called.
+        // Reminder: the caller must not reuse _header and _body afterwards.
+
+        if (null == parent_db.write_pipeline) return "Write pipeline is not enabled";
+        PutTraceJob tmp_job = putTraceBegin(_ThisID, _header, _body, DataIsVolatile);
+        tmp_job.durable = true;
+        return putTraceSubmit(tmp_job, _handler);
+
+    }
+
+    private String putTraceSubmit(PutTraceJob _job, PutTraceHandler _handler) {
+
+        _job.handler = _handler;
+        ShotAddUser(); // Note. Released by the pipeline after putTraceEnd().
+        String tmp_err = "";
+        try {
+            if (!parent_db.write_pipeline.Submit(this, _job)) tmp_err = Tum3Db.CONST_MSG_WRITE_BUSY;
+        } catch (Exception e) {
+            tmp_err = "Write queue failure: " + e;
+        }
+        if (!tmp_err.isEmpty()) {
+            _job.error = tmp_err;
+            putTraceEnd(_job);
+            ShotRelease();
+        }
+        return tmp_err;
+
+    }
+
+    private PutTraceJob putTraceBegin(int _ThisID, ByteBuffer _header, ByteBuffer _body, boolean DataIsVolatile) throws Exception {
+
+        if (!Tum3SignalStates.ValidId(_ThisID)) throw new Exception("illegal signal id specified"); // YYY
         if (!Valid) throw new Exception("data directory seems invalid");
         if (!isWriteable) throw new Exception(Tum3Db.CONST_MSG_READONLY_NOW); // YYY
 
@@ -1224,18 +1809,16 @@ public class Tum3Shot {
         boolean tmp_warning_msg = false;
         boolean tmp_with_rename = true; // YYY
         boolean tmp_already_stored = false; // YYY
-        boolean tmp_store_ok = false;
         //String tmp_target_fname = ""; // YYY
 
         synchronized(CacheIds) {
-            byte tmp_cache_val = 0;
-            if (CacheIds.containsKey(_ThisID)) tmp_cache_val = CacheIds.get(_ThisID);
+            byte tmp_cache_val = CacheIds.get(_ThisID);
             if ((tmp_cache_val & tmp_in_progress) != 0) throw new Exception("Data update can not be performed until another update completes, please try later.");
             if ((tmp_cache_val & tmp_ok_bit) != 0) { // Changed to use tmp_cache_val instead of real file probe.
                 if (tmp_as_volatile) { // Allow override for volatile signals.
 
                     // XXX TODO! Try to kickoff possible readers now or somehow prevent rename/delete blocking on windows?
-                    // Reminder: on unix, renaming and deletion of files works 
+                    // Reminder: on unix, renaming and deletion of files works
                     //  fine regardless of any other readers/writers. On windows most
                     //  usually renaming/deletion will not be possible if concurrenly
                     //  in use (at least through RandomAccessFile).
@@ -1269,170 +1852,454 @@ public class Tum3Shot {
         }
         final String tmp_target_fname = tmpActualPath + shotSubdir + File.separator + shotName + File.separator + Tum3Db.SignalFName(_ThisID) + FSUFF_NORMAL; // YYY
         String tmp_new_fname = tmp_target_fname;
-        File tmp_final_file = new File(tmp_new_fname); // YYY
         if (tmp_with_rename) {
             //tmp_target_fname = tmp_new_fname; // YYY
             tmp_new_fname = tmpActualPath + shotSubdir + File.separator + shotName + File.separator + Tum3Db.SignalFName(_ThisID) + FSUFF_TMPFILE;
         }
 
-        //UtilCreateFile1 tmp_FF = null;
-        RandomAccessFile tmp_raf = null; // YYY
-        FileChannel tmp_fc = null;
-        boolean tmp_data_likely_lost = false;
-        boolean SyncStatusVolOpBegin_ok = false; // YYY
+        return new PutTraceJob(_ThisID, _header, _body, tmp_as_volatile, tmpActualPath, tmp_target_fname, tmp_new_fname, tmp_monthdir, tmp_shotdir);
+
+    }
 
+    public PutTraceJob putTraceStreamBegin(int _ThisID, ByteBuffer _header, int _body_size, boolean DataIsVolatile) throws Exception {
+        // Streamed variant of putTrace(): the body is then passed in pieces to putTraceStreamAppend() as it arrives,
+        //  and finally either putTraceStreamCommit() or putTraceStreamSubmit() or putTraceStreamAbort() must follow.
+        // Note. Stored uncompressed, since Tum3ChunkedBody.Pack() needs the whole body.
+
+        PutTraceJob tmp_job = putTraceBegin(_ThisID, _header, null, DataIsVolatile);
+        tmp_job.durable = (null != parent_db.write_pipeline);
         try {
-            if (tmp_as_volatile) {
-                SyncStatusVolOpBegin(_ThisID, Tum3Db.SYNF_ADD); // YYY
-                SyncStatusVolOpBegin_ok = true; // YYY
-            }
+            putTraceOpen(tmp_job, false);
+            int tmp_datasize_hdr = HeaderDataSize(_header);
+            if (_body_size != tmp_datasize_hdr) throw new Exception("Signal body size mismatch (HDataSize=" + tmp_datasize_hdr + ", actual=" + _body_size + ")");
+            tmp_job.datasize_actual = _body_size;
+            putTraceWriteHeader(tmp_job, const_tum3ng_sign_s);
+        } catch (Exception e) {
+            tmp_job.error = "" + e;
+            putTraceEnd(tmp_job);
+            throw e;
+        }
+        return tmp_job;
 
-            if (tmp_with_rename) {
-                String tmp_backup_fname = shotPathVol + shotSubdir + File.separator + shotName + File.separator + Tum3Db.SignalFName(_ThisID) + FSUFF_BUP_GENERAL;
-                File tmp_backup_file = new File(tmp_backup_fname);
-                if (tmp_backup_file.exists() && tmp_final_file.isFile()) { // YYY
-                    tmp_backup_file.delete();
-                    if (tmp_backup_file.exists()) {
-                        String tmp_err_msg = "Backup file <" + tmp_backup_fname + "> could not be deleted";
-                        Tum3Logger.DoLog(DbName(), true, tmp_err_msg);
-                        throw new Exception(tmp_err_msg);
-                    }
-                }
-            }
+    }
 
-            //tmp_FF = new UtilCreateFile1(DbName(), tmp_new_fname, true);
-            //if (tmp_FF.raf == null) return;
-            tmp_raf = new RandomAccessFile(tmp_new_fname, "rw"); // YYY
-
-            int tmp_datasize_hdr = 0;
-            boolean tmp_size_done = false; // YYY
-            if (_header.remaining() >= min_hlen_Fmt64Ver) { // YYY
-                _header.position(12*4+256); // old HMetaDataSize
-                if (0 == _header.getInt()) {
-                    _header.position(ofs_HDataSize_new);
-                    tmp_datasize_hdr = _header.getInt(); // YYY
-                    tmp_size_done = true; // YYY
-                }
-                _header.position(0);
-            }
-            if (!tmp_size_done) if (_header.remaining() >= (ofs_HDataSize_old+4)) { // YYY
-                _header.position(ofs_HDataSize_old);
-                tmp_datasize_hdr = _header.getInt();
-                _header.position(0);
+    public PutTraceJob putTraceResumeBegin(int _ThisID, ByteBuffer _header, int _body_size, boolean DataIsVolatile, String _host_name) throws Exception {
+        // Segmented variant of putTraceStreamBegin(). If a temporary file kept by putTraceStreamSuspend()
+        //  starts with the same signal header, the body continues after what is already there (see StreamOffset()).
+
+        PutTraceJob tmp_job = putTraceBegin(_ThisID, _header, null, DataIsVolatile);
+        tmp_job.durable = (null != parent_db.write_pipeline);
+        tmp_job.offset_fname = ResumeOffsetFName(tmp_job.new_fname);
+        try {
+            int tmp_datasize_hdr = HeaderDataSize(_header);
+            if (_body_size != tmp_datasize_hdr) throw new Exception("Signal body size mismatch (HDataSize=" + tmp_datasize_hdr + ", actual=" + _body_size + ")");
+            tmp_job.datasize_actual = _body_size;
+            parent_db.PartialUploadTaken(tmp_job.new_fname);
+            putTraceOpen(tmp_job, true);
+            long tmp_prologue = 4 + SignalHeaderClass.StaticSize() + _header.remaining();
+            if ((tmp_job.raf.length() >= tmp_prologue) && SameHeaderOnFile(tmp_job.raf.getChannel(), 4 + SignalHeaderClass.StaticSize(), _header)) {
+                // Note. Only what was confirmed continues, the file might be longer (or damaged beyond) after a crash.
+                long tmp_confirmed = Math.min(ReadResumeOffset(tmp_job.offset_fname), tmp_job.raf.length() - tmp_prologue);
+                tmp_job.body_written = (int)Math.min(_body_size, tmp_confirmed);
+                putTraceFileHeader(tmp_job, const_tum3ng_sign_s);
+                tmp_job.raf.setLength(tmp_prologue + tmp_job.body_written);
+                tmp_job.fc = tmp_job.raf.getChannel();
+                tmp_job.fc.position(tmp_prologue + tmp_job.body_written);
+            } else {
+                WriteResumeOffset(tmp_job.offset_fname, 0, true); // Note. Whatever was confirmed before is for another file.
+                tmp_job.raf.setLength(0);
+                insertHostName(_header, _host_name);
+                putTraceWriteHeader(tmp_job, const_tum3ng_sign_s);
             }
-            int tmp_datasize_actual = 0;
-            if (_body != null) tmp_datasize_actual = _body.remaining();
-            //System.out.println("[DEBUG] tmp_datasize_hdr=" + tmp_datasize_hdr + ", tmp_datasize_actual=" + tmp_datasize_actual);
-            if (tmp_datasize_actual != tmp_datasize_hdr) throw new Exception("Signal body size mismatch (HDataSize=" + tmp_datasize_hdr + ", actual=" + tmp_datasize_actual + ")");
+        } catch (Exception e) {
+            tmp_job.error = "" + e;
+            putTraceEnd(tmp_job);
+            throw e;
+        }
+        return tmp_job;
 
-            SignalHeaderClass tmpHeader = new SignalHeaderClass();
-            byte[] buff0 = new byte[4 + tmpHeader.StaticSize()];
-            ByteBuffer tmpBB0 = ByteBuffer.wrap(buff0);
-            tmpBB0.order(ByteOrder.LITTLE_ENDIAN);
+    }
 
-            tmpBB0.putInt(const_tum3ng_sign_s);
+    private static String ResumeOffsetFName(String _tmp_fname) {
 
-            tmpHeader.HSize = tmpHeader.StaticSize();
-            tmpHeader.HID = _ThisID;
-            tmpHeader.HStatus = 1; // == not ready
-            tmpHeader.SigUpdateCounter = 0;
-            tmpHeader.ProgramSubversion = a.CurrentVerNum;
-            tmpHeader.hdrOriginalShotName = shotName;
+        return _tmp_fname.substring(0, _tmp_fname.length() - FSUFF_TMPFILE.length()) + FSUFF_TMPOFFSET;
 
-            Tum3Time t = new Tum3Time();
-            tmpHeader.wYear = t.year;
-            tmpHeader.wMonth = t.month;
-            tmpHeader.wDay = t.day;
-            tmpHeader.wHour = t.hour;
-            tmpHeader.wMinute = t.minute;
-            tmpHeader.wSecond = t.second;
+    }
 
-            tmpHeader.buf = tmpBB0;
-            tmpHeader.writeAll();
-            tmp_raf.write(buff0, 0, buff0.length);
+    private static long ReadResumeOffset(String _offset_fname) {
+        // Layout: long offset, long its complement. Returns 0 if missing or damaged.
 
-            tmp_fc = tmp_raf.getChannel();
+        try (RandomAccessFile tmp_raf = new RandomAccessFile(_offset_fname, "r")) {
+            long tmp_offset = tmp_raf.readLong();
+            if ((tmp_offset >= 0) && (tmp_raf.readLong() == ~tmp_offset)) return tmp_offset;
+        } catch (Exception ignored) { }
+        return 0;
 
-            while (_header.hasRemaining()) tmp_fc.write(_header);
-            if (tmp_datasize_actual > 0) 
-                while (_body.hasRemaining()) tmp_fc.write(_body);
+    }
 
-            tmpHeader.HStatus = 0; // == ready
-            tmpHeader.SigUpdateCounter++;
-            tmpBB0.clear();
-            tmpBB0.putInt(const_tum3ng_sign_s);
-            tmpHeader.writeAll();
-            tmp_raf.seek(0);
-            tmp_raf.write(buff0, 0, buff0.length);
+    private static void WriteResumeOffset(String _offset_fname, long _offset, boolean _force) throws Exception {
+        // Note. Normally not forced, a lost update just makes the client resend a little more.
 
-            tmp_fc.close(); tmp_fc = null;
-            //tmp_FF.close(); tmp_FF = null;
-            try {
-                tmp_raf.close(); // YYY
-                tmp_raf = null;
-            } catch (Exception e) {
-                Tum3Logger.DoLog(DbName(), true, "WARNING: close() error in '" + tmp_new_fname + "': " + Tum3Util.getStackTrace(e));
+        try (RandomAccessFile tmp_raf = new RandomAccessFile(_offset_fname, "rw")) {
+            tmp_raf.writeLong(_offset);
+            tmp_raf.writeLong(~_offset);
+            if (_force) tmp_raf.getFD().sync();
+        }
+
+    }
+
+    static void DeleteResumeOffset(String _tmp_fname) {
+
+        new File(ResumeOffsetFName(_tmp_fname)).delete();
+
+    }
+
+    private static boolean SameHeaderOnFile(FileChannel _fc, long _ofs, ByteBuffer _header) throws Exception {
+        // Note. HComment1 is skipped, because insertHostName() changed it when the file was started.
+
+        byte[] tmp_buff = new byte[_header.remaining()];
+        Tum3FileCache.ReadFully(_fc, _ofs, tmp_buff, 0, tmp_buff.length);
+        for (int tmp_i = 0; tmp_i < tmp_buff.length; tmp_i++) {
+            if ((tmp_i >= 9*4) && (tmp_i < (9*4+256))) continue;
+            if (tmp_buff[tmp_i] != _header.get(_header.position() + tmp_i)) return false;
+        }
+        return true;
+
+    }
+
+    public int StreamOffset(PutTraceJob _job) {
+
+        return _job.body_written;
+
+    }
+
+    public int StreamFullSize(PutTraceJob _job) {
+
+        return _job.datasize_actual;
+
+    }
+
+    public void putTraceStreamSuspend(PutTraceJob _job) {
+        // Like putTraceStreamAbort(), but the temporary file is kept for putTraceResumeBegin().
+        // Note. Forced to disk first, because the client might only come back after a server restart.
+
+        try {
+            if (null != _job.fc) _job.fc.force(true);
+        } catch (Exception ignored) { }
+        if (_job.error.isEmpty()) _job.error = "Upload suspended";
+        putTraceEnd(_job);
+        parent_db.PartialUploadSuspended(_job.new_fname);
+
+    }
+
+    public void putTraceStreamAppend(PutTraceJob _job, ByteBuffer _data) throws Exception {
+
+        if (((long)_job.body_written + _data.remaining()) > _job.datasize_actual) throw new Exception("Signal body exceeds HDataSize=" + _job.datasize_actual);
+        while (_data.hasRemaining()) _job.body_written += _job.fc.write(_data);
+        if (null != _job.offset_fname) {
+            // Reminder: the new offset is confirmed to the client right after this, so
+            //  the data must be on disk before the offset is recorded for resuming.
+            _job.fc.force(false);
+            WriteResumeOffset(_job.offset_fname, _job.body_written, false);
+        }
+
+    }
+
+    private void putTraceStreamFinish(PutTraceJob _job) throws Exception {
+
+        if (_job.body_written != _job.datasize_actual) throw new Exception("Signal body size mismatch (HDataSize=" + _job.datasize_actual + ", actual=" + _job.body_written + ")");
+        putTraceWriteTail(_job);
+
+    }
+
+    public void putTraceStreamCommit(PutTraceJob _job, ShotChangeMonitor chgMonitor) throws Exception {
+
+        try {
+            putTraceStreamFinish(_job);
+            putTraceCommit(_job);
+        } finally {
+            putTraceEnd(_job);
+            chgMonitor.AddUpdatedId(_job.ThisID, false, _job.was_waiting, false);
+        }
+
+    }
+
+    public String putTraceStreamSubmit(PutTraceJob _job, PutTraceHandler _handler) throws Exception {
+        // Same result convention as putTraceAsync().
+
+        try {
+            putTraceStreamFinish(_job);
+        } catch (Exception e) {
+            _job.error = "" + e;
+            putTraceEnd(_job);
+            throw e;
+        }
+        return putTraceSubmit(_job, _handler);
+
+    }
+
+    public void putTraceStreamAbort(PutTraceJob _job) {
+        // Note. For uploads cut short, the incomplete temporary file is not kept.
+
+        if (_job.error.isEmpty()) _job.error = "Upload aborted";
+        putTraceEnd(_job);
+        new File(_job.new_fname).delete();
+        if (null != _job.offset_fname) DeleteResumeOffset(_job.new_fname);
+
+    }
+
+    private static int HeaderDataSize(ByteBuffer _header) {
+
+        int tmp_datasize_hdr = 0;
+        boolean tmp_size_done = false; // YYY
+        if (_header.remaining() >= min_hlen_Fmt64Ver) { // YYY
+            _header.position(12*4+256); // old HMetaDataSize
+            if (0 == _header.getInt()) {
+                _header.position(ofs_HDataSize_new);
+                tmp_datasize_hdr = _header.getInt(); // YYY
+                tmp_size_done = true; // YYY
             }
+            _header.position(0);
+        }
+        if (!tmp_size_done) if (_header.remaining() >= (ofs_HDataSize_old+4)) { // YYY
+            _header.position(ofs_HDataSize_old);
+            tmp_datasize_hdr = _header.getInt();
+            _header.position(0);
+        }
+        return tmp_datasize_hdr;
+
+    }
 
-            if (tmp_with_rename) {
-                File tmp_orig_file = new File(tmp_target_fname);
-                String tmp_bup_fname = shotPathVol + shotSubdir + File.separator + shotName + File.separator + Tum3Db.SignalFName(_ThisID) + FSUFF_BUP_GENERAL;
-                File tmp_bup_file = new File(tmp_bup_fname);
-                boolean tmp_prev_file_exists = tmp_orig_file.exists(); // YYY
-                if (tmp_prev_file_exists) if (!tmp_orig_file.renameTo(tmp_bup_file)) throw new Exception("Previous file <" + tmp_target_fname + "> could not be renamed into <" + tmp_bup_fname + ">"); // YYY
-                File tmp_temp_file = new File(tmp_new_fname);
-                if (!tmp_temp_file.renameTo(tmp_final_file)) {
-                    String tmp_err_msg = "Temporary new file <" + tmp_new_fname + "> could not be renamed into <" + tmp_target_fname + ">";
+    void putTraceWrite(PutTraceJob _job) throws Exception {
+        // Note. With _job.durable, the new file is left open for putTraceForce().
+
+        final ByteBuffer _header = _job.header, _body = _job.body;
+
+        putTraceOpen(_job, false);
+
+        int tmp_datasize_hdr = HeaderDataSize(_header);
+        int tmp_datasize_actual = 0;
+        if (_body != null) tmp_datasize_actual = _body.remaining();
+        _job.datasize_actual = tmp_datasize_actual;
+        //System.out.println("[DEBUG] tmp_datasize_hdr=" + tmp_datasize_hdr + ", tmp_datasize_actual=" + tmp_datasize_actual);
+        if (tmp_datasize_actual != tmp_datasize_hdr) throw new Exception("Signal body size mismatch (HDataSize=" + tmp_datasize_hdr + ", actual=" + tmp_datasize_actual + ")");
+
+        boolean tmp_try_pack = parent_db.store_compressed && (tmp_datasize_actual >= CONST_DENSITY_FSIZE_LIMIT); // Note. Density files are updated in place, so never compressed.
+        int tmp_htype = tmp_try_pack ? Tum3ChunkedBody.HTypeOf(_header) : 0;
+
+        putTraceWriteHeader(_job, tmp_try_pack ? const_tum3ng_sign_z : const_tum3ng_sign_s);
+
+        FileChannel tmp_fc = _job.fc;
+        boolean tmp_packed = tmp_try_pack && Tum3ChunkedBody.Pack(tmp_fc, _body, tmp_htype, parent_db.compress_level);
+        if (tmp_try_pack && !tmp_packed)
+            _job.file_sign = const_tum3ng_sign_s; // Note. The file is still marked not ready, putTraceWriteTail() rewrites the sign.
+        if (!tmp_packed && (tmp_datasize_actual > 0))
+            while (_body.hasRemaining()) tmp_fc.write(_body);
+
+        putTraceWriteTail(_job);
+
+    }
+
+    private void putTraceOpen(PutTraceJob _job, boolean _keep_existing) throws Exception {
+
+        final int _ThisID = _job.ThisID;
+        final String tmpActualPath = _job.actual_path;
+        final String tmp_new_fname = _job.new_fname;
+        final File tmp_final_file = _job.final_file;
+        final boolean tmp_with_rename = true; // YYY
+
+        InvalidateCached(tmpActualPath + shotSubdir + File.separator + shotName + File.separator + Tum3Db.SignalFName(_ThisID), _ThisID);
+        if (_job.as_volatile) {
+            SyncStatusVolOpBegin(_ThisID, Tum3Db.SYNF_ADD); // YYY
+            _job.SyncStatusVolOpBegin_ok = true; // YYY
+        }
+
+        if (tmp_with_rename) {
+            String tmp_backup_fname = shotPathVol + shotSubdir + File.separator + shotName + File.separator + Tum3Db.SignalFName(_ThisID) + FSUFF_BUP_GENERAL;
+            File tmp_backup_file = new File(tmp_backup_fname);
+            if (tmp_backup_file.exists() && tmp_final_file.isFile()) { // YYY
+                tmp_backup_file.delete();
+                if (tmp_backup_file.exists()) {
+                    String tmp_err_msg = "Backup file <" + tmp_backup_fname + "> could not be deleted";
                     Tum3Logger.DoLog(DbName(), true, tmp_err_msg);
-                    if (tmp_prev_file_exists) { // YYY
-                        File tmp_orig_file2 = new File(tmp_target_fname);
-                        if (!tmp_bup_file.renameTo(tmp_orig_file2)) 
-                            if (!tmp_orig_file2.exists()) tmp_data_likely_lost = true;
-                    }
                     throw new Exception(tmp_err_msg);
                 }
             }
+        }
 
-            if (!tmp_as_volatile && parent_db.writeprotect_storage) if (!tmp_final_file.setWritable(false)) 
-                Tum3Logger.DoLog(DbName(), true, "putTrace: setting R/O " + tmp_target_fname + " failed."); // YYY
+        //tmp_FF = new UtilCreateFile1(DbName(), tmp_new_fname, true);
+        //if (tmp_FF.raf == null) return;
+        _job.raf = new RandomAccessFile(tmp_new_fname, "rw"); // YYY
+        if (!_keep_existing) _job.raf.setLength(0); // Note. A temporary file left over from some failed attempt might be longer.
 
-            tmp_store_ok = true;
+    }
 
-        } finally {
+    private void putTraceWriteHeader(PutTraceJob _job, int tmp_file_sign) throws Exception {
 
-            if (tmp_fc != null) tmp_fc.close();
-            tmp_fc = null;
-            //if (tmp_FF != null) tmp_FF.close();
-            //tmp_FF = null;
-            try {
-                if (null != tmp_raf) tmp_raf.close(); // YYY
-                tmp_raf = null;
-            } catch (Exception e) {
-                Tum3Logger.DoLog(DbName(), true, "WARNING: close() error in '" + tmp_new_fname + "': " + Tum3Util.getStackTrace(e));
-            }
+        putTraceFileHeader(_job, tmp_file_sign);
+        _job.raf.write(_job.file_header_buff, 0, _job.file_header_buff.length);
 
-            if (tmp_as_volatile) SyncStatusVolOpEnd(_ThisID, Tum3Db.SYNF_ADD, SyncStatusVolOpBegin_ok, tmp_store_ok); // YYY
+        _job.fc = _job.raf.getChannel();
+        FileChannel tmp_fc = _job.fc;
+        final ByteBuffer _header = _job.header;
 
-            boolean tmp_was_waiting = false;
-            synchronized(CacheIds) {
-                byte tmp_cache_val = 0;
-                if (CacheIds.containsKey(_ThisID)) tmp_cache_val = CacheIds.get(_ThisID);
-                if (tmp_store_ok) tmp_cache_val |= tmp_ok_bit;
-                tmp_cache_val &= ~tmp_in_progress;
-                if (tmp_data_likely_lost) tmp_cache_val &= ~tmp_ok_bit;
-                if (0 == tmp_cache_val) CacheIds.remove(_ThisID);
-                else CacheIds.put(_ThisID, tmp_cache_val);
-                tmp_was_waiting = RemoveFromExpected(_ThisID);
-            }
-            chgMonitor.AddUpdatedId(_ThisID, false, tmp_was_waiting, false);
-            if (tmp_store_ok) parent_db.CompatProcessData(shotName, _ThisID, tmp_as_volatile, false, tmp_target_fname); // YYY
+        while (_header.hasRemaining()) tmp_fc.write(_header);
+
+    }
+
+    private void putTraceFileHeader(PutTraceJob _job, int tmp_file_sign) {
+
+        final int _ThisID = _job.ThisID;
+
+        SignalHeaderClass tmpHeader = new SignalHeaderClass();
+        byte[] buff0 = new byte[4 + tmpHeader.StaticSize()];
+        ByteBuffer tmpBB0 = ByteBuffer.wrap(buff0);
+        tmpBB0.order(ByteOrder.LITTLE_ENDIAN);
+
+        tmpBB0.putInt(tmp_file_sign);
+
+        tmpHeader.HSize = tmpHeader.StaticSize();
+        tmpHeader.HID = _ThisID;
+        tmpHeader.HStatus = 1; // == not ready
+        tmpHeader.SigUpdateCounter = 0;
+        tmpHeader.ProgramSubversion = a.CurrentVerNum;
+        tmpHeader.hdrOriginalShotName = shotName;
+
+        Tum3Time t = new Tum3Time();
+        tmpHeader.wYear = t.year;
+        tmpHeader.wMonth = t.month;
+        tmpHeader.wDay = t.day;
+        tmpHeader.wHour = t.hour;
+        tmpHeader.wMinute = t.minute;
+        tmpHeader.wSecond = t.second;
+
+        tmpHeader.buf = tmpBB0;
+        tmpHeader.writeAll();
+
+        _job.file_header = tmpHeader;
+        _job.file_header_buff = buff0;
+        _job.file_sign = tmp_file_sign;
+
+    }
+
+    private void putTraceWriteTail(PutTraceJob _job) throws Exception {
+
+        SignalHeaderClass tmpHeader = _job.file_header;
+        byte[] buff0 = _job.file_header_buff;
+        ByteBuffer tmpBB0 = tmpHeader.buf;
+        RandomAccessFile tmp_raf = _job.raf;
+        int tmp_file_sign = _job.file_sign;
+
+        tmpHeader.HStatus = 0; // == ready
+        tmpHeader.SigUpdateCounter++;
+        tmpBB0.clear();
+        tmpBB0.putInt(tmp_file_sign);
+        tmpHeader.writeAll();
+        tmp_raf.seek(0);
+        tmp_raf.write(buff0, 0, buff0.length);
+        _job.written = true;
+
+        if (!_job.durable) putTraceClose(_job);
+
+    }
+
+    void putTraceForce(PutTraceJob _job) throws Exception {
 
-            if (!tmp_store_ok) {
-                if (null != tmp_shotdir) if (tmp_shotdir.isDirectory()) tmp_shotdir.delete(); // YYY
-                if (null != tmp_monthdir) if (tmp_monthdir.isDirectory()) tmp_monthdir.delete(); // YYY
+        _job.fc.force(true);
+        putTraceClose(_job);
+
+    }
+
+    private void putTraceClose(PutTraceJob _job) throws Exception {
+
+        _job.fc.close(); _job.fc = null;
+        //tmp_FF.close(); tmp_FF = null;
+        try {
+            _job.raf.close(); // YYY
+            _job.raf = null;
+        } catch (Exception e) {
+            Tum3Logger.DoLog(DbName(), true, "WARNING: close() error in '" + _job.new_fname + "': " + Tum3Util.getStackTrace(e));
+        }
+
+    }
+
+    void putTraceCommit(PutTraceJob _job) throws Exception {
+
+        final int _ThisID = _job.ThisID;
+        final String tmpActualPath = _job.actual_path;
+        final String tmp_target_fname = _job.target_fname, tmp_new_fname = _job.new_fname;
+        final File tmp_final_file = _job.final_file;
+        final boolean tmp_with_rename = true; // YYY
+
+        if (tmp_with_rename) {
+            File tmp_orig_file = new File(tmp_target_fname);
+            String tmp_bup_fname = shotPathVol + shotSubdir + File.separator + shotName + File.separator + Tum3Db.SignalFName(_ThisID) + FSUFF_BUP_GENERAL;
+            File tmp_bup_file = new File(tmp_bup_fname);
+            boolean tmp_prev_file_exists = tmp_orig_file.exists(); // YYY
+            if (tmp_prev_file_exists) if (!tmp_orig_file.renameTo(tmp_bup_file)) throw new Exception("Previous file <" + tmp_target_fname + "> could not be renamed into <" + tmp_bup_fname + ">"); // YYY
+            File tmp_temp_file = new File(tmp_new_fname);
+            if (!tmp_temp_file.renameTo(tmp_final_file)) {
+                String tmp_err_msg = "Temporary new file <" + tmp_new_fname + "> could not be renamed into <" + tmp_target_fname + ">";
+                Tum3Logger.DoLog(DbName(), true, tmp_err_msg);
+                if (tmp_prev_file_exists) { // YYY
+                    File tmp_orig_file2 = new File(tmp_target_fname);
+                    if (!tmp_bup_file.renameTo(tmp_orig_file2))
+                        if (!tmp_orig_file2.exists()) _job.data_likely_lost = true;
+                }
+                throw new Exception(tmp_err_msg);
             }
         }
 
+        if (!_job.as_volatile && parent_db.writeprotect_storage) if (!tmp_final_file.setWritable(false))
+            Tum3Logger.DoLog(DbName(), true, "putTrace: setting R/O " + tmp_target_fname + " failed."); // YYY
+
+        _job.store_ok = true;
+        ManifestNoteFile(_job.as_volatile, _ThisID);
+
+        String tmp_pyr_base = tmpActualPath + shotSubdir + File.separator + shotName + File.separator + Tum3Db.SignalFName(_ThisID);
+        Tum3TracePyramid.Invalidate(tmp_pyr_base + FSUFF_PYRAMID);
+        InvalidateCached(tmp_pyr_base, _ThisID);
+        if (parent_db.pyramid_eager && (_job.datasize_actual >= parent_db.pyramid_min_points)) // Note. Bytes, not points, just a quick filter.
+            Tum3TracePyramid.ScheduleBuild(DbName(), shotName, _ThisID, tmp_target_fname, tmp_pyr_base + FSUFF_PYRAMID, tmp_pyr_base + FSUFF_PYRAMID_TMP, parent_db.pyramid_min_points);
+
+    }
+
+    void putTraceEnd(PutTraceJob _job) {
+        // Reminder: must be called exactly once for each putTraceBegin(), whatever happened in between.
+
+        final int _ThisID = _job.ThisID;
+
+        try {
+            if (_job.fc != null) _job.fc.close();
+        } catch (Exception ignored) { }
+        _job.fc = null;
+        //if (tmp_FF != null) tmp_FF.close();
+        //tmp_FF = null;
+        try {
+            if (null != _job.raf) _job.raf.close(); // YYY
+            _job.raf = null;
+        } catch (Exception e) {
+            Tum3Logger.DoLog(DbName(), true, "WARNING: close() error in '" + _job.new_fname + "': " + Tum3Util.getStackTrace(e));
+        }
+
+        if (_job.as_volatile) SyncStatusVolOpEnd(_ThisID, Tum3Db.SYNF_ADD, _job.SyncStatusVolOpBegin_ok, _job.store_ok); // YYY
+
+        synchronized(CacheIds) {
+            byte tmp_cache_val = CacheIds.get(_ThisID);
+            if (_job.store_ok) tmp_cache_val |= _job.ok_bit;
+            tmp_cache_val &= ~_job.in_progress;
+            if (_job.data_likely_lost) tmp_cache_val &= ~_job.ok_bit;
+            CacheIds.put(_ThisID, tmp_cache_val);
+            _job.was_waiting = RemoveFromExpected(_ThisID);
+        }
+        if (_job.store_ok) parent_db.CompatProcessData(shotName, _ThisID, _job.as_volatile, false, _job.target_fname); // YYY
+        if (_job.store_ok && (null != _job.offset_fname)) DeleteResumeOffset(_job.new_fname);
+
+        if (!_job.store_ok) {
+            if (null != _job.shotdir) if (_job.shotdir.isDirectory()) _job.shotdir.delete(); // YYY
+            if (null != _job.monthdir) if (_job.monthdir.isDirectory()) _job.monthdir.delete(); // YYY
+        }
+
     }
 
     public void deleteTrace(int _ThisID, ShotChangeMonitor chgMonitor) throws Exception {
@@ -1448,8 +2315,7 @@ public class Tum3Shot {
         final String tmp_bup_fname    = shotPathVol + shotSubdir + File.separator + shotName + File.separator + Tum3Db.SignalFName(_ThisID); // YYY
 
         synchronized(CacheIds) {
-            byte tmp_cache_val = 0;
-            if (CacheIds.containsKey(_ThisID)) tmp_cache_val = CacheIds.get(_ThisID);
+            byte tmp_cache_val = CacheIds.get(_ThisID);
             if ((tmp_cache_val & tmp_in_progress) != 0) throw new Exception("Data update can not be performed until another update completes, please try later.");
             if ((tmp_cache_val & tmp_ok_bit) == 0) return;
             tmp_cache_val |= tmp_in_progress;
@@ -1459,6 +2325,7 @@ public class Tum3Shot {
         try {
             SyncStatusVolOpBegin(_ThisID, Tum3Db.SYNF_ERASE); // YYY
             SyncStatusVolOpBegin_ok = true; // YYY
+            InvalidateCached(tmp_bup_fname, _ThisID);
 
             File tmp_orig_file = new File(tmp_target_fname);
             File tmp_backup_file = new File(tmp_bup_fname + FSUFF_BUP_GENERAL);
@@ -1480,20 +2347,21 @@ public class Tum3Shot {
 
             File tmp_bup_file = new File(tmp_bup_fname + FSUFF_BUP_ERASED);
             if (!tmp_orig_file.renameTo(tmp_bup_file)) if (tmp_orig_file.isFile()) throw new Exception("Previous file <" + tmp_target_fname + "> could not be renamed into <" + tmp_bup_fname + FSUFF_BUP_ERASED + ">"); // YYY
+            Tum3TracePyramid.Invalidate(tmp_bup_fname + FSUFF_PYRAMID);
+            InvalidateCached(tmp_bup_fname, _ThisID);
 
             tmp_delete_ok = true;
+            ManifestNoteFile(true, _ThisID);
 
         } finally {
 
             SyncStatusVolOpEnd(_ThisID, Tum3Db.SYNF_ERASE, SyncStatusVolOpBegin_ok, tmp_delete_ok); // YYY
 
             synchronized(CacheIds) {
-                byte tmp_cache_val = 0;
-                if (CacheIds.containsKey(_ThisID)) tmp_cache_val = CacheIds.get(_ThisID);
+                byte tmp_cache_val = CacheIds.get(_ThisID);
                 if (tmp_delete_ok) tmp_cache_val &= ~tmp_ok_bit;
                 tmp_cache_val &= ~tmp_in_progress;
-                if (0 == tmp_cache_val) CacheIds.remove(_ThisID);
-                else CacheIds.put(_ThisID, tmp_cache_val);
+                CacheIds.put(_ThisID, tmp_cache_val);
             }
             chgMonitor.AddUpdatedId(_ThisID, false, false, true);
             if (tmp_delete_ok) parent_db.CompatProcessData(shotName, _ThisID, true, true, tmp_target_fname); // YYY
@@ -1503,6 +2371,53 @@ public class Tum3Shot {
 
     public String UpdateDensityData(int _ThisID, byte[] _upd_arr, ShotChangeMonitor chgMonitor) {
 
+        return UpdateDensityData_intl(_ThisID, _upd_arr, chgMonitor);
+
+    }
+
+    public String UpdateDensityDataAsync(final int _ThisID, final byte[] _upd_arr, final PutTraceHandler _handler) {
+        // Same as UpdateDensityData(), but done by Tum3DensityEditor, which calls _handler when done.
+        // Returns an error message if the request could not be accepted, then _handler is never called.
+        // Reminder: the caller must not reuse _upd_arr afterwards.
+
+        if (null == parent_db.density_editor) return "Density editor is not enabled";
+        final long tmp_queued_at = System.currentTimeMillis();
+        ShotAddUser(); // Note. Released after _handler is called.
+        boolean tmp_accepted;
+        try {
+            tmp_accepted = parent_db.density_editor.Submit(shotName + "." + _ThisID, new Runnable() {
+                public void run() {
+                    long tmp_started_at = System.currentTimeMillis();
+                    Tum3Db.SingleShotWriteHelper tmp_helper = new Tum3Db.SingleShotWriteHelper(shotName);
+                    String tmp_result = UpdateDensityData_intl(_ThisID, _upd_arr, tmp_helper);
+                    tmp_helper.PushModifiedIds(parent_db);
+                    parent_db.density_editor.NoteDone(tmp_started_at - tmp_queued_at, System.currentTimeMillis() - tmp_started_at, tmp_result.isEmpty());
+                    try {
+                        _handler.PutTraceDone(shotName, _ThisID, tmp_result);
+                    } catch (Exception e) {
+                        Tum3Logger.DoLog(DbName(), true, "IMPORTANT: density update handler error: " + Tum3Util.getStackTrace(e));
+                    }
+                    ShotRelease();
+                }
+            });
+        } catch (Exception e) {
+            ShotRelease();
+            return "Density edit queue failure: " + e;
+        }
+        if (!tmp_accepted) {
+            ShotRelease();
+            return Tum3Db.CONST_MSG_WRITE_BUSY;
+        }
+        return "";
+
+    }
+
+    private String UpdateDensityData_intl(int _ThisID, byte[] _upd_arr, ShotChangeMonitor chgMonitor) {
+    // Copy-on-write: the first edit of a signal keeps the original as .001 (copied with transferTo,
+    //  without going through the heap), then the data part is rewritten in place.
+    // The current file is first probed read-only (edit lock, backup check), and opened for writing
+    //  only once all the checks passed.
+
         if (_ThisID == 0) return "illegal signal id specified";
         if (!Valid) return "data directory seems invalid";
         if (!isWriteable) return Tum3Db.CONST_MSG_READONLY_NOW;
@@ -1514,7 +2429,7 @@ public class Tum3Shot {
         byte tmp_in_progress = 8;
         synchronized(CacheIds) {
             //if (2 == 2) return "Artifical error in density update.";
-            if (!CacheIds.containsKey(_ThisID))
+            if (!CacheIds.contains(_ThisID))
                 return "Cache record not found for the required density update.";
             byte tmp_cache_val = CacheIds.get(_ThisID);
             if ((tmp_cache_val & 3) == 0)
@@ -1529,8 +2444,10 @@ public class Tum3Shot {
             tmp_cache_val |= tmp_in_progress;
             CacheIds.put(_ThisID, tmp_cache_val);
         }
+        long tmp_t_start = System.nanoTime(), tmp_t_check = 0, tmp_t_backup = 0, tmp_t_verify = 0, tmp_t_write = 0;
         String tmp_result = "Unknown error";
-        UtilCreateFile1 tmpFF = null;
+        UtilCreateFile1 tmpFF = null; // Note. The current file, read-only while checking, then for writing.
+        UtilCreateFile1 tmpCheckBup = null;
         RandomAccessFile tmp_f_src = null, tmp_f_dst = null;
         boolean tmp_writing_started = false;
         boolean SyncStatusVolOpBegin_ok = false;
@@ -1552,42 +2469,38 @@ public class Tum3Shot {
             boolean tmp_bup_ok = false;
 
             // Check for editlocked tag.
-            UtilCreateFile1 tmpCheckLocked = null;
             TraceMetaData tmpMeta = null;
 
-            if (tmp_vol_present || (new File(tmp_std_fname).exists())) // YYY
-                try {
-                    tmpCheckLocked = new UtilCreateFile1(DbName(), tmp_std_fname, false);
-                    tmpCheckLocked.readHeaders(shotName, _ThisID);
-                    if ((!tmpCheckLocked.hdr_is_v1 && (tmpCheckLocked.tmpFiledHSize > (ofs_HMetaDataSize_old+4)))
-                     ||  (tmpCheckLocked.hdr_is_v1 && (tmpCheckLocked.tmpFiledHSize > (ofs_HMetaDataSize_new+8)))
-                    ) {
-                        int tmp_metasz_ofs = ofs_HMetaDataSize_old; // old .HMetaDataSize
-                        if (tmpCheckLocked.hdr_is_v1) tmp_metasz_ofs = ofs_HMetaDataSize_new; // new .HMetaDataSize
-                        tmpCheckLocked.raf.seek(4 + tmpCheckLocked.tmpNewHeaderSizeInFile + tmp_metasz_ofs);
-                        int tmpHMetaDataSize = tmpCheckLocked.raf.readInt();
-                        if (tmpCheckLocked.hdr_is_v1) tmpCheckLocked.raf.readInt();
-                        int tmpMetaLimit;
-                        if (!tmpCheckLocked.hdr_is_v1)
-                            tmpMetaLimit = tmpCheckLocked.tmpFiledHSize - ofs_HMetaDataSize_old - 4;
-                        else
-                            tmpMetaLimit = tmpCheckLocked.tmpFiledHSize - ofs_HMetaDataSize_new - 8;
-                        if (tmpHMetaDataSize > tmpMetaLimit) tmpHMetaDataSize = tmpMetaLimit;
-                        byte[] tmpMetaAsBytes = new byte[tmpHMetaDataSize];
-                        tmpCheckLocked.raf.readFully(tmpMetaAsBytes);
-                        tmpMeta = new TraceMetaData(tmpMetaAsBytes);
-                    }
-                } finally {
-                    if (tmpCheckLocked != null) {
-                        tmpCheckLocked.close();
-                    }
+            if (tmp_vol_present || (new File(tmp_std_fname).exists())) { // YYY
+                if (!new File(tmp_std_fname).exists()) throw new Exception("File '" + tmp_std_fname + "' not found");
+                tmpFF = new UtilCreateFile1(DbName(), tmp_std_fname, false);
+                tmpFF.readHeaders(shotName, _ThisID);
+                if ((!tmpFF.hdr_is_v1 && (tmpFF.tmpFiledHSize > (ofs_HMetaDataSize_old+4)))
+                 ||  (tmpFF.hdr_is_v1 && (tmpFF.tmpFiledHSize > (ofs_HMetaDataSize_new+8)))
+                ) {
+                    int tmp_metasz_ofs = ofs_HMetaDataSize_old; // old .HMetaDataSize
+                    if (tmpFF.hdr_is_v1) tmp_metasz_ofs = ofs_HMetaDataSize_new; // new .HMetaDataSize
+                    tmpFF.raf.seek(4 + tmpFF.tmpNewHeaderSizeInFile + tmp_metasz_ofs);
+                    int tmpHMetaDataSize = tmpFF.raf.readInt();
+                    if (tmpFF.hdr_is_v1) tmpFF.raf.readInt();
+                    int tmpMetaLimit;
+                    if (!tmpFF.hdr_is_v1)
+                        tmpMetaLimit = tmpFF.tmpFiledHSize - ofs_HMetaDataSize_old - 4;
+                    else
+                        tmpMetaLimit = tmpFF.tmpFiledHSize - ofs_HMetaDataSize_new - 8;
+                    if (tmpHMetaDataSize > tmpMetaLimit) tmpHMetaDataSize = tmpMetaLimit;
+                    byte[] tmpMetaAsBytes = new byte[tmpHMetaDataSize];
+                    tmpFF.raf.readFully(tmpMetaAsBytes);
+                    tmpMeta = new TraceMetaData(tmpMetaAsBytes);
                 }
+            }
 
             if (tmpMeta != null) if (tmpMeta.containsKey(TumProtoConsts.tag_editlocked)) {
                 String tmp_editlocked = tmpMeta.get(TumProtoConsts.tag_editlocked);
                 //System.out.println("[DEBUG] editlocked=" + tmp_editlocked);
                 if (!tmp_editlocked.isEmpty()) throw new Exception("Editing was locked (" + tmp_editlocked + ")");
             }
+            tmp_t_check = System.nanoTime();
 
             if (tmp_as_volatile) {
                 tmp_need_sync_end = true;
@@ -1595,6 +2508,8 @@ public class Tum3Shot {
                 SyncStatusVolOpBegin_ok = true;
             }
 
+            InvalidateCached(tmpActualPath + tmp_cmn_part, _ThisID);
+            long tmp_copied_from_std = -1; // Note. Size of the backup just made from the current file, if so.
             if (
                  ((!tmp_nonvol_present || !tmp_as_volatile) && !(new File(tmp_bup_fname).exists())) // YYY
                    ||
@@ -1605,6 +2520,11 @@ public class Tum3Shot {
                 if (tmp_as_volatile && !tmp_vol_present) {
                     tmp_fname_from = tmp_nonvol_fname;  // YYY
                     tmp_fname_to = tmp_std_fname; // YYY
+                    if (tmpFF != null) {
+                        // Note. A stale file is about to be replaced, so it must be reopened afterwards.
+                        tmpFF.close();
+                        tmpFF = null;
+                    }
 
                     File tmp_monthdir = new File(shotPathVol + shotSubdir);
                     File tmp_shotdir = new File(shotPathVol + shotSubdir + File.separator + shotName);
@@ -1612,16 +2532,21 @@ public class Tum3Shot {
                     if (!tmp_shotdir.exists()) try { tmp_shotdir.mkdir(); } catch (Exception ignored) {} else tmp_shotdir = null; // YYY
                 }
                 tmp_f_src = new RandomAccessFile(tmp_fname_from, "r");
-                long tmp_fsize_l = tmp_f_src.length();
-                if (tmp_fsize_l > CONST_DENSITY_FSIZE_LIMIT) throw new Exception("Original file size is too big for backup.");
-                int tmp_fsize = (int)tmp_fsize_l;
-                byte[] tmp_copy_buff = new byte[tmp_fsize];
-                tmp_f_src.readFully(tmp_copy_buff);
-                tmp_f_src.close();
-                tmp_f_src = null;
+                long tmp_fsize = tmp_f_src.length();
+                if (tmp_fsize > CONST_DENSITY_FSIZE_LIMIT) throw new Exception("Original file size is too big for backup.");
                 tmp_f_dst = new RandomAccessFile(tmp_tmp_fname, "rw");
-                tmp_f_dst.write(tmp_copy_buff);
+                FileChannel tmp_ch_src = tmp_f_src.getChannel(), tmp_ch_dst = tmp_f_dst.getChannel();
+                long tmp_copied = 0;
+                while (tmp_copied < tmp_fsize) {
+                    long tmp_n = tmp_ch_src.transferTo(tmp_copied, tmp_fsize - tmp_copied, tmp_ch_dst);
+                    if (tmp_n <= 0) throw new Exception("Could not copy <" + tmp_fname_from + "> into <" + tmp_tmp_fname + ">");
+                    tmp_copied += tmp_n;
+                }
                 tmp_f_dst.setLength(tmp_fsize);
+                if ((tmp_copied != tmp_fsize) || (tmp_f_dst.length() != tmp_fsize) || (tmp_f_src.length() != tmp_fsize))
+                    throw new Exception("Copy of <" + tmp_fname_from + "> into <" + tmp_tmp_fname + "> is incomplete");
+                tmp_f_src.close();
+                tmp_f_src = null;
                 tmp_f_dst.close();
                 tmp_f_dst = null;
 
@@ -1630,31 +2555,47 @@ public class Tum3Shot {
                     //Tum3Logger.DoLog(DbName(), true, tmp_err_msg);
                 }
                 if (tmp_as_volatile && !tmp_vol_present) tmp_vol_present = true; // YYY
+                else tmp_copied_from_std = tmp_copied;
             }
+            tmp_t_backup = System.nanoTime();
 
             String tmp_read_check_name = tmp_bup_fname;
-            if (tmp_as_volatile && tmp_nonvol_present) tmp_read_check_name = tmp_nonvol_fname; // YYY
-            if (new File(tmp_read_check_name).exists()) {
-
-                tmpFF = new UtilCreateFile1(DbName(), tmp_read_check_name, false);
-                tmpFF.readHeaders(shotName, _ThisID);
-                if ((tmpFF.tmpFiledHSize > 0) && (tmpFF.tmpBuffSize > 0) && (tmpFF.tmpBuffSize < CONST_DENSITY_FSIZE_LIMIT)) {
-                    tmpFF.raf.seek(4 + tmpFF.tmpNewHeaderSizeInFile);
-                    int tmp_full_size = tmpFF.tmpFiledHSize + (int)tmpFF.tmpBuffSize;
-                    tmp_bup_ok = (tmpFF.raf.skipBytes(tmp_full_size) == tmp_full_size);
+            boolean tmp_check_nonvol = tmp_as_volatile && tmp_nonvol_present;
+            if (tmp_check_nonvol) tmp_read_check_name = tmp_nonvol_fname; // YYY
+            if ((tmp_copied_from_std >= 0) && !tmp_check_nonvol && (tmpFF != null)) {
+
+                // Note. The backup was just copied from the current file in full, so the headers already parsed apply.
+                if ((tmpFF.tmpFiledHSize > 0) && (tmpFF.tmpBuffSize > 0) && (tmpFF.tmpBuffSize < CONST_DENSITY_FSIZE_LIMIT))
+                    tmp_bup_ok = (tmp_copied_from_std == tmpFF.raf.length())
+                              && (tmp_copied_from_std >= (4 + tmpFF.tmpNewHeaderSizeInFile + tmpFF.tmpFiledHSize + tmpFF.tmpBuffSize));
+
+            } else if (new File(tmp_read_check_name).exists()) {
+
+                tmpCheckBup = new UtilCreateFile1(DbName(), tmp_read_check_name, false);
+                tmpCheckBup.readHeaders(shotName, _ThisID);
+                if (tmpFF == null) {
+                    tmpFF = new UtilCreateFile1(DbName(), tmp_std_fname, false);
+                    tmpFF.readHeaders(shotName, _ThisID);
                 }
-                tmpFF.close();
-                tmpFF = null;
+                if ((tmpCheckBup.tmpFiledHSize > 0) && (tmpCheckBup.tmpBuffSize > 0) && (tmpCheckBup.tmpBuffSize < CONST_DENSITY_FSIZE_LIMIT))
+                    tmp_bup_ok = SameTraceLayout(tmpCheckBup, tmpFF);
+                tmpCheckBup.close();
+                tmpCheckBup = null;
 
             }
+            tmp_t_verify = System.nanoTime();
 
             if (tmp_bup_ok) {
 
                 //System.out.println("[DEBUG] Backup density found OK in '" + shotName + "' id=" + _ThisID);
 
+                if (tmpFF != null) tmpFF.close(); // Note. Was only opened for reading.
                 tmpFF = new UtilCreateFile1(DbName(), tmp_std_fname, true);
                 tmpFF.readHeaders(shotName, _ThisID);
-                if (tmpFF.tmpBuffSize != _upd_arr.length) {
+                if (tmpFF.is_chunked) {
+                    tmp_result = "Compressed data file can not be updated in place";
+                }
+                else if (tmpFF.tmpBuffSize != _upd_arr.length) {
                     tmp_result = "New data size is inappropriate for applying update";
                 }
                 else if ((tmpFF.tmpFiledHSize > 0) && (tmpFF.tmpBuffSize > 0) && (tmpFF.tmpBuffSize < CONST_DENSITY_FSIZE_LIMIT)) {
@@ -1676,6 +2617,7 @@ public class Tum3Shot {
                     tmpFF.raf.write(tmpFF.tmpFirstHeader.buf.array(), 0, tmpFF.tmpFirstHeader.HSizeCorr);
 
                     tmp_result = "";
+                    ManifestNoteFile(tmp_as_volatile, _ThisID);
 
                 } else {
                     tmp_result = "Current data file looks inappropriate for applying update"; // XXX TODO. Make the message more specific.
@@ -1688,11 +2630,13 @@ public class Tum3Shot {
                 tmp_result = "There is some problem with backup/original file"; // XXX TODO. Make the message more specific.
 
             }
+            tmp_t_write = System.nanoTime();
 
         } catch (Exception e) {
             tmp_result = "Internal exception " + Tum3Util.getStackTrace(e);
         }
         if (tmpFF != null) tmpFF.close();
+        if (tmpCheckBup != null) tmpCheckBup.close();
         if (tmp_f_dst != null) try {
             tmp_f_dst.close();
         } catch (Exception e) {
@@ -1707,14 +2651,12 @@ public class Tum3Shot {
         if (tmp_as_volatile && tmp_need_sync_end) SyncStatusVolOpEnd(_ThisID, Tum3Db.SYNF_ADD, SyncStatusVolOpBegin_ok, tmp_writing_started); // YYY
 
         synchronized(CacheIds) {
-            byte tmp_cache_val = 0;
-            if (CacheIds.containsKey(_ThisID)) tmp_cache_val = CacheIds.get(_ThisID);
+            byte tmp_cache_val = CacheIds.get(_ThisID);
             tmp_cache_val &= ~tmp_in_progress;
             if (tmp_vol_present) tmp_cache_val |= 2; // YYY
-            if (0 == tmp_cache_val) CacheIds.remove(_ThisID);
-            else CacheIds.put(_ThisID, tmp_cache_val);
             CacheIds.put(_ThisID, tmp_cache_val);
         }
+        if (tmp_writing_started) InvalidateCached(tmpActualPath + tmp_cmn_part, _ThisID);
 
         if (tmp_writing_started) try {
             chgMonitor.AddUpdatedId(_ThisID, true, false, false);
@@ -1724,10 +2666,30 @@ public class Tum3Shot {
             if (tmp_result.isEmpty()) tmp_result = "Internal error: " + Tum3Util.getStackTrace(e);
         }
 
+        Tum3Db tmp_db = parent_db;
+        if (null != tmp_db) tmp_db.NoteDensityStages(tmp_result.isEmpty(), new long[] { tmp_t_start, tmp_t_check, tmp_t_backup, tmp_t_verify, tmp_t_write, System.nanoTime() });
+
         return tmp_result;
 
     }
 
+    private static boolean SameTraceLayout(UtilCreateFile1 _bup, UtilCreateFile1 _curr) throws Exception {
+        // Tells if _bup can be the original of _curr: density updates are done in place, so the
+        //  size and everything between the first header and the data part must be the same.
+        // Reminder: a truncated, padded or stale (from an earlier upload) backup must not pass.
+
+        if ((_bup.raf.length() != _curr.raf.length()) || (_bup.tmpNewHeaderSizeInFile != _curr.tmpNewHeaderSizeInFile)
+         || (_bup.tmpFiledHSize != _curr.tmpFiledHSize) || (_bup.tmpBuffSize != _curr.tmpBuffSize)) return false;
+        if (_bup.raf.length() < (4 + _bup.tmpNewHeaderSizeInFile + _bup.tmpFiledHSize + _bup.tmpBuffSize)) return false;
+        byte[] tmp_a = new byte[_bup.tmpFiledHSize], tmp_b = new byte[_curr.tmpFiledHSize];
+        _bup.raf.seek(4 + _bup.tmpNewHeaderSizeInFile);
+        _bup.raf.readFully(tmp_a);
+        _curr.raf.seek(4 + _curr.tmpNewHeaderSizeInFile);
+        _curr.raf.readFully(tmp_b);
+        return Arrays.equals(tmp_a, tmp_b);
+
+    }
+
     public OutBuffContinuator getTraceReader(int thisSignalId, boolean _use_trailing_status) {
 
         //System.out.println("[aq2j] DEBUG: searching signal in '" + shotName + "' id=" + thisSignalId + " Valid=" + Valid + " NotStored=" + NotStored + " is_new=" + is_new);
@@ -1737,18 +2699,18 @@ public class Tum3Shot {
         if (TumProtoConsts.CONST_ID_SHOT_HDR /* -2 */ == thisSignalId) return PackShotHeader();
 
         boolean tmp_is_saving = false, tmp_as_volatile = false, tmp_with_warning = false;
-        synchronized(CacheIds) {
-            if (!CacheIds.containsKey(thisSignalId)) {
-                //System.out.println("[aq2j] DEBUG: signal not found in '" + shotName + "' id=" + thisSignalId);
-                if (!is_new) return null;
-            } else {
-                byte tmp_cache_val = CacheIds.get(thisSignalId);
-                tmp_as_volatile = (tmp_cache_val & 2) != 0;
-                if (tmp_as_volatile) tmp_is_saving = (tmp_cache_val & 0x08) != 0;
-                else                 tmp_is_saving = (tmp_cache_val & 0x04) != 0;
-                tmp_with_warning = ((tmp_cache_val & 5) != 0) && ((tmp_cache_val & 10) != 0);
-            }
-            if (is_new && !tmp_is_saving) {
+        byte tmp_cache_val = CacheIds.get(thisSignalId);
+        if (0 == tmp_cache_val) {
+            //System.out.println("[aq2j] DEBUG: signal not found in '" + shotName + "' id=" + thisSignalId);
+            if (!is_new) return null;
+        } else {
+            tmp_as_volatile = (tmp_cache_val & 2) != 0;
+            if (tmp_as_volatile) tmp_is_saving = (tmp_cache_val & 0x08) != 0;
+            else                 tmp_is_saving = (tmp_cache_val & 0x04) != 0;
+            tmp_with_warning = ((tmp_cache_val & 5) != 0) && ((tmp_cache_val & 10) != 0);
+        }
+        if (is_new && !tmp_is_saving) {
+            synchronized(CacheIds) { // Note. Only needed for expected_ids, which are modified under this lock.
                 if (expected_ids != null) {
                     for (int tmp_i = 0; tmp_i < expected_ids.length; tmp_i++)
                         if (expected_ids[tmp_i] == thisSignalId) {
@@ -1773,36 +2735,99 @@ public class Tum3Shot {
                 }
             } catch (Exception ignored) {}
         }
+        OutBuffContinuator tmp_hot = GetFromHotCache(thisSignalId, _use_trailing_status, tmp_as_volatile, tmp_with_warning);
+        if (null != tmp_hot) return tmp_hot;
         return GetByPositionNew(thisSignalId, _use_trailing_status, tmp_as_volatile, tmp_with_warning);
     }
 
+    public byte[] getDecimatedView(int thisSignalId, double _t_from, double _t_to, int _pixels) {
+        // Returns null if the signal is not available (yet) or is not a regular oscillogram.
+        // Returns an empty array if its overview pyramid is being built in background, ask again later.
+
+        if (!Valid || NotStored || (thisSignalId <= 0)) return null;
+
+        byte tmp_cache_val = CacheIds.get(thisSignalId);
+        if (0 == tmp_cache_val) return null;
+        boolean tmp_as_volatile = (tmp_cache_val & 2) != 0;
+        if ((tmp_cache_val & (tmp_as_volatile ? 0x08 : 0x04)) != 0) return null; // Note. Being saved right now.
+
+        String tmp_base = (tmp_as_volatile ? shotPathVol : shotPathMain) + shotSubdir + File.separator + shotName + File.separator + Tum3Db.SignalFName(thisSignalId);
+        UtilCreateFile1 tmpFF = null;
+        try {
+            tmpFF = tmp_as_volatile ?
+                new UtilCreateFile1(DbName(), tmp_base, FSUFF_NORMAL, FSUFF_BUP_GENERAL) // YYY
+              : new UtilCreateFile1(DbName(), tmp_base + FSUFF_NORMAL, false);
+            if (tmpFF.NotStored) return null;
+            tmpFF.readHeadersCached(shotName, thisSignalId);
+            return Tum3TracePyramid.Decimate(DbName(), shotName, thisSignalId, tmpFF, tmp_base + FSUFF_PYRAMID, tmp_base + FSUFF_PYRAMID_TMP, parent_db.pyramid_min_points, _t_from, _t_to, _pixels);
+        } catch (Exception e) {
+            Tum3Logger.DoLog(DbName(), true, "WARNING: getDecimatedView() exception: " + Tum3Util.getStackTrace(e));
+            return null;
+        } finally {
+            if (null != tmpFF) tmpFF.close();
+        }
+
+    }
+
     private synchronized int Detach_helper() {
 
         parent_db = null;
         CacheIds = null;
-        return UserCount;
+        int tmp_count = UserCount.get();
+        if (CONST_USERS_RETIRED == tmp_count) tmp_count = 0;
+        return tmp_count;
+
+    }
+
+    public boolean WaitDetached(long _millis) throws InterruptedException {
+
+        return DetachDone.await(_millis, TimeUnit.MILLISECONDS);
+
+    }
+
+    void DetachUnpublished() {
+        // Note. For an instance that lost the race into openShots. It never opened anything,
+        //  and the directory caches belong to the winner, so they must be left alone.
+
+        ShotRelease();
+        Detach(false);
 
     }
 
     public void Detach() {
 
-        Tum3Db tmp_parent_db = parent_db;
-        int tmp_user_count = Detach_helper();
-        if (0 != tmp_user_count) {
-            if (null != tmp_parent_db)
-                Tum3Logger.DoLog(tmp_parent_db.DbName(), true, "Warning: <" + shotName + "> was detached with UserCount=" + tmp_user_count);
-            else
-                Tum3Logger.DoLogGlb(true, "Warning: <" + shotName + "> was detached with UserCount=" + tmp_user_count);
-        }
+        Detach(true);
 
-        //CreationLock = null; // YYY
-        synchronized(CreationLock) { // YYY
-            if (!creation_complete) creation_complete = true; // YYY
-        }
-        NewHeader = null;
-        if (null != FF) {
-            FF.close();
-            FF = null;
+    }
+
+    private void Detach(boolean _published) {
+
+        try {
+            if (_published) {
+                ManifestStore();
+                if (shotPathMain.length() > 0) Tum3FileCache.getInstance().InvalidateDir(shotPathMain + shotSubdir + File.separator + shotName);
+                if (shotPathVol.length() > 0) Tum3FileCache.getInstance().InvalidateDir(shotPathVol + shotSubdir + File.separator + shotName);
+            }
+            Tum3Db tmp_parent_db = parent_db;
+            int tmp_user_count = Detach_helper();
+            if (0 != tmp_user_count) {
+                if (null != tmp_parent_db)
+                    Tum3Logger.DoLog(tmp_parent_db.DbName(), true, "Warning: <" + shotName + "> was detached with UserCount=" + tmp_user_count);
+                else
+                    Tum3Logger.DoLogGlb(true, "Warning: <" + shotName + "> was detached with UserCount=" + tmp_user_count);
+            }
+
+            //CreationLock = null; // YYY
+            synchronized(CreationLock) { // YYY
+                if (!creation_complete) creation_complete = true; // YYY
+            }
+            NewHeader = null;
+            if (null != FF) {
+                FF.close();
+                FF = null;
+            }
+        } finally {
+            DetachDone.countDown();
         }
     }
 
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2db;
+
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.zip.CRC32;
+
+
+final class Tum3ShotManifest {
+// List of signal files in one shot directory (main or volatile), so that opening
+//  a cold shot does not need a directory listing.
+// Layout (little endian): int CONST_SIGN, int CONST_VERSION, long directory mtime, long time
+//  of capture, int count, then count records of int id, byte flags, 3 bytes reserved,
+//  and finally int CRC32 of everything before it.
+// Reminder: the manifest records the directory mtime it was built against, so any later
+//  create/rename/delete in the directory (by sync, by hand, by a crashed update) makes it
+//  stale. It is rewritten in place (never created or renamed while storing), so storing
+//  itself does not touch the directory mtime. A stale or missing manifest just means a rescan.
+// Note. Some filesystems only keep the mtime in 1 or 2 second units, so a change right
+//  after the listing could leave the directory mtime as it was. Therefore the listing
+//  is only trusted if it was taken at least CONST_MTIME_MARGIN_MILLIS after the
+//  directory mtime, otherwise the next open rescans.
+
+    final static String FNAME = "0000.007"; // Note. Not matched by Tum3Db.listShotFiles_Intl(), so never synced.
+
+    final static byte FLAG_BUP_ONLY = 1; // Note. Only the FSUFF_BUP_GENERAL file is there (volatile storage only).
+
+    private final static int CONST_SIGN = 0x544E4D53; // "SMNT"
+    private final static int CONST_VERSION = 2;
+    private final static int CONST_FIXED_SIZE = 28;
+    private final static int CONST_RECORD_SIZE = 8;
+    private final static int CONST_MAX_RECORDS = 1000000;
+    private final static long CONST_MTIME_MARGIN_MILLIS = 3000;
+
+    private final String dir_path;
+    private final TreeMap<Integer, Byte> entries = new TreeMap<Integer, Byte>();
+    private final ArrayList<String> partials = new ArrayList<String>(); // Note. Only filled by Scan(), never stored.
+    private FileTime dir_mtime_known = null;
+    private long captured_at = 0;
+    private boolean dirty = false, dropped = false;
+
+
+    private Tum3ShotManifest(String _dir_path) {
+
+        dir_path = _dir_path;
+
+    }
+
+    private static FileTime DirMTime(String _dir_path) {
+
+        try {
+            return Files.getLastModifiedTime(Paths.get(_dir_path));
+        } catch (Exception ignored) {
+            return null;
+        }
+
+    }
+
+    static Tum3ShotManifest Load(String _db_name, String _dir_path) {
+        // Returns null if there is no usable manifest.
+
+        File tmp_file = new File(_dir_path + File.separator + FNAME);
+        if (!tmp_file.isFile() || (tmp_file.length() == 0)) return null; // Note. Empty is a placeholder, see PreparePlaceholder().
+        try {
+            FileTime tmp_dir_mtime = DirMTime(_dir_path);
+            if (null == tmp_dir_mtime) return null;
+            byte[] tmp_buff = Files.readAllBytes(tmp_file.toPath());
+            ByteBuffer tmpBB = ByteBuffer.wrap(tmp_buff);
+            tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+            if ((tmp_buff.length < (CONST_FIXED_SIZE + 4)) || (tmpBB.getInt() != CONST_SIGN) || (tmpBB.getInt() != CONST_VERSION))
+                throw new Exception("bad signature or version");
+            long tmp_stored_mtime = tmpBB.getLong();
+            long tmp_captured_at = tmpBB.getLong();
+            if (tmp_stored_mtime != tmp_dir_mtime.toMillis()) return null; // Note. Stale, quietly rescan.
+            if ((tmp_captured_at - tmp_stored_mtime) < CONST_MTIME_MARGIN_MILLIS) return null;
+            int tmp_count = tmpBB.getInt();
+            if ((tmp_count < 0) || (tmp_count > CONST_MAX_RECORDS) || (tmp_buff.length != (CONST_FIXED_SIZE + tmp_count * CONST_RECORD_SIZE + 4)))
+                throw new Exception("bad record count " + tmp_count);
+            CRC32 tmp_crc = new CRC32();
+            tmp_crc.update(tmp_buff, 0, tmp_buff.length - 4);
+            if (tmpBB.getInt(tmp_buff.length - 4) != (int)tmp_crc.getValue()) throw new Exception("bad checksum");
+            Tum3ShotManifest tmp_manifest = new Tum3ShotManifest(_dir_path);
+            for (int tmp_i = 0; tmp_i < tmp_count; tmp_i++) {
+                int tmp_id = tmpBB.getInt();
+                byte tmp_flags = tmpBB.get();
+                tmpBB.get(); tmpBB.get(); tmpBB.get();
+                if (tmp_id <= 0) throw new Exception("bad signal id " + tmp_id);
+                tmp_manifest.entries.put(tmp_id, tmp_flags);
+            }
+            tmp_manifest.dir_mtime_known = tmp_dir_mtime;
+            tmp_manifest.captured_at = tmp_captured_at;
+            return tmp_manifest;
+        } catch (Exception e) {
+            Tum3Logger.DoLog(_db_name, false, "DEBUG: manifest in '" + _dir_path + "' ignored: " + e);
+            return null;
+        }
+
+    }
+
+    private static int IdOf(String _name, boolean _with_bup) {
+        // Same selection as Tum3Shot always used for its directory scan.
+
+        if ((8 <= _name.length()) && (_name.endsWith(Tum3Shot.FSUFF_NORMAL) || (_with_bup && _name.endsWith(Tum3Shot.FSUFF_BUP_GENERAL))))
+            if (Tum3Util.StrNumeric(_name.substring(0, _name.length()-4)))
+                return Integer.parseInt(_name.substring(0, _name.length()-4));
+        return 0;
+
+    }
+
+    private static void PreparePlaceholder(String _dir_path) {
+        // Reminder: creating the manifest file changes the directory mtime, so it must be
+        //  done before the directory mtime is taken, never at store time.
+
+        File tmp_file = new File(_dir_path + File.separator + FNAME);
+        try {
+            if (!tmp_file.exists() && new File(_dir_path).isDirectory()) tmp_file.createNewFile();
+        } catch (Exception ignored) { }
+
+    }
+
+    private void Captured(FileTime _dir_mtime) {
+
+        dir_mtime_known = _dir_mtime;
+        captured_at = System.currentTimeMillis();
+
+    }
+
+    private static int IdOfTmp(String _name) {
+
+        if ((8 <= _name.length()) && Tum3Util.StrNumeric(_name.substring(0, _name.length()-4)))
+            return Integer.parseInt(_name.substring(0, _name.length()-4));
+        return 0;
+
+    }
+
+    static Tum3ShotManifest Scan(String _dir_path, boolean _with_bup, boolean _will_store) {
+
+        Tum3ShotManifest tmp_manifest = new Tum3ShotManifest(_dir_path);
+        if (_will_store) PreparePlaceholder(_dir_path);
+        FileTime tmp_dir_mtime = DirMTime(_dir_path); // Note. Taken before listing, so that concurrent changes make it stale.
+        File[] tmpFiles = new File(_dir_path).listFiles();
+        if (null == tmpFiles) return tmp_manifest;
+        for (File file: tmpFiles) {
+            String tmp_name = file.getName();
+            if (tmp_name.endsWith(Tum3Shot.FSUFF_TMPFILE) && (IdOfTmp(tmp_name) > 0)) tmp_manifest.partials.add(tmp_name);
+            int tmp_id = IdOf(tmp_name, _with_bup);
+            if (tmp_id <= 0) continue;
+            boolean tmp_is_bup = !tmp_name.endsWith(Tum3Shot.FSUFF_NORMAL);
+            if (tmp_is_bup && tmp_manifest.entries.containsKey(tmp_id)) continue;
+            tmp_manifest.entries.put(tmp_id, tmp_is_bup ? FLAG_BUP_ONLY : 0);
+        }
+        tmp_manifest.Captured(tmp_dir_mtime);
+        tmp_manifest.dirty = true;
+        return tmp_manifest;
+
+    }
+
+    static void Invalidate(String _dir_path) {
+
+        new File(_dir_path + File.separator + FNAME).delete();
+
+    }
+
+    synchronized List<String> Partials() {
+        // Temporary upload files (Tum3Shot.FSUFF_TMPFILE) seen by Scan().
+
+        return new ArrayList<String>(partials);
+
+    }
+
+    synchronized int FillStates(Tum3SignalStates _states, byte _kind) {
+        // Returns the number of entries skipped for an out of range ID.
+
+        int tmp_skipped = 0;
+        for (Integer tmp_id: entries.keySet()) {
+            if (Tum3SignalStates.ValidId(tmp_id)) _states.merge(tmp_id, _kind);
+            else tmp_skipped++;
+        }
+        return tmp_skipped;
+
+    }
+
+    synchronized void NoteFile(int _id) {
+        // Called after a successful change of the signal files, picks up whatever is there now.
+
+        if (dropped) return;
+        PreparePlaceholder(dir_path); // Note. The directory might have just been created.
+        String tmp_base = dir_path + File.separator + Tum3Db.SignalFName(_id);
+        if (new File(tmp_base + Tum3Shot.FSUFF_NORMAL).isFile())
+            entries.put(_id, (byte)0);
+        else if (new File(tmp_base + Tum3Shot.FSUFF_BUP_GENERAL).isFile())
+            entries.put(_id, FLAG_BUP_ONLY);
+        else
+            entries.remove(_id);
+        Captured(DirMTime(dir_path));
+        dirty = true;
+
+    }
+
+    synchronized void Drop() {
+        // Reminder: somebody else changed the directory, so this one must never be stored.
+
+        dropped = true;
+
+    }
+
+    synchronized void StoreIfDirty(String _db_name) {
+
+        if (!dirty || dropped || (null == dir_mtime_known)) return;
+        if ((captured_at - dir_mtime_known.toMillis()) < CONST_MTIME_MARGIN_MILLIS) return; // Note. Would not be trusted by Load() anyway.
+        Path tmp_path = Paths.get(dir_path, FNAME);
+        if (!dir_mtime_known.equals(DirMTime(dir_path)) || !Files.isRegularFile(tmp_path)) {
+            dropped = true; // Note. Changed behind us, the next open will rescan.
+            return;
+        }
+        try {
+            ByteBuffer tmpBB = ByteBuffer.allocate(CONST_FIXED_SIZE + entries.size() * CONST_RECORD_SIZE + 4);
+            tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+            tmpBB.putInt(CONST_SIGN);
+            tmpBB.putInt(CONST_VERSION);
+            tmpBB.putLong(dir_mtime_known.toMillis());
+            tmpBB.putLong(captured_at);
+            tmpBB.putInt(entries.size());
+            for (Map.Entry<Integer, Byte> tmp_item: entries.entrySet()) {
+                tmpBB.putInt(tmp_item.getKey());
+                tmpBB.put(tmp_item.getValue());
+                tmpBB.put((byte)0); tmpBB.put((byte)0); tmpBB.put((byte)0);
+            }
+            CRC32 tmp_crc = new CRC32();
+            tmp_crc.update(tmpBB.array(), 0, tmpBB.position());
+            tmpBB.putInt((int)tmp_crc.getValue());
+            Files.write(tmp_path, tmpBB.array(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            if (!dir_mtime_known.equals(DirMTime(dir_path))) throw new Exception("directory changed while storing");
+            dirty = false;
+        } catch (Exception e) {
+            Tum3Logger.DoLog(_db_name, false, "DEBUG: failed to store manifest in '" + dir_path + "': " + e);
+            Invalidate(dir_path);
+            dropped = true;
+        }
+
+    }
+
+}
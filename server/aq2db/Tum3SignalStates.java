@@ -0,0 +1,158 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2db;
+
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+final class Tum3SignalStates {
+// Per-shot signal state bits (see DATA_AREA_xxx and in-progress bits in Tum3Shot),
+//  packed 4 bits per signal ID, 8 IDs per word. Zero state means no such signal.
+// Reminder: reads are lock-free, while all modifications must be done with
+//  this object locked, as Tum3Shot does for its read-modify-write sequences.
+//  The array only grows, and only under the lock, so a reader holding
+//  the previous array at worst sees a slightly outdated state.
+// Note: the array only covers IDs up to CONST_DENSE_MAX_ID (well above what signal lists use),
+//  rare bigger ones go to a sorted map, so one odd file name can not blow up memory.
+
+    final static int CONST_MAX_SIGNAL_ID = 99999999; // Note. Callers refuse anything above, see ValidId().
+    private final static int CONST_DENSE_MAX_ID = (1 << 16) - 1;
+    private final static int CONST_INITIAL_WORDS = 64; // 512 IDs.
+
+    private volatile AtomicIntegerArray words = new AtomicIntegerArray(CONST_INITIAL_WORDS);
+    private volatile ConcurrentSkipListMap<Integer, Byte> sparse = null; // Note. Created on first use.
+    private volatile int present_count = 0;
+
+
+    static boolean ValidId(int _id) {
+
+        return (_id > 0) && (_id <= CONST_MAX_SIGNAL_ID);
+
+    }
+
+
+    byte get(int _id) {
+
+        if (_id <= 0) return 0;
+        if (_id > CONST_DENSE_MAX_ID) {
+            ConcurrentSkipListMap<Integer, Byte> tmp_sparse = sparse;
+            if (null == tmp_sparse) return 0;
+            Byte tmp_val = tmp_sparse.get(_id);
+            return (null == tmp_val) ? 0 : tmp_val.byteValue();
+        }
+        AtomicIntegerArray tmp_words = words;
+        int tmp_word = _id >>> 3;
+        if (tmp_word >= tmp_words.length()) return 0;
+        return (byte)((tmp_words.get(tmp_word) >>> ((_id & 7) << 2)) & 0x0F);
+
+    }
+
+    boolean contains(int _id) {
+
+        return get(_id) != 0;
+
+    }
+
+    int size() {
+
+        return present_count;
+
+    }
+
+    synchronized void put(int _id, byte _state) {
+        // Note. Zero _state removes the ID. Non-positive IDs are never kept.
+
+        if (_id <= 0) return;
+        if (_id > CONST_DENSE_MAX_ID) {
+            PutSparse(_id, (byte)(_state & 0x0F));
+            return;
+        }
+        int tmp_word = _id >>> 3;
+        if (tmp_word >= words.length()) {
+            if (0 == (_state & 0x0F)) return;
+            Grow(tmp_word + 1);
+        }
+        int tmp_shift = (_id & 7) << 2;
+        int tmp_old = words.get(tmp_word);
+        int tmp_new = (tmp_old & ~(0x0F << tmp_shift)) | ((_state & 0x0F) << tmp_shift);
+        words.set(tmp_word, tmp_new);
+        boolean tmp_was = ((tmp_old >>> tmp_shift) & 0x0F) != 0;
+        boolean tmp_is = (_state & 0x0F) != 0;
+        if (tmp_is && !tmp_was) present_count++;
+        if (!tmp_is && tmp_was) present_count--;
+
+    }
+
+    synchronized void merge(int _id, byte _bits) {
+
+        put(_id, (byte)(get(_id) | _bits));
+
+    }
+
+    private void PutSparse(int _id, byte _state) {
+
+        if (null == sparse) {
+            if (0 == _state) return;
+            sparse = new ConcurrentSkipListMap<Integer, Byte>();
+        }
+        Byte tmp_old = (0 == _state) ? sparse.remove(_id) : sparse.put(_id, _state);
+        if ((0 != _state) && (null == tmp_old)) present_count++;
+        if ((0 == _state) && (null != tmp_old)) present_count--;
+
+    }
+
+    private void Grow(int _min_words) {
+
+        AtomicIntegerArray tmp_old = words;
+        int tmp_len = tmp_old.length();
+        while (tmp_len < _min_words) tmp_len <<= 1;
+        AtomicIntegerArray tmp_new = new AtomicIntegerArray(tmp_len);
+        for (int tmp_i = 0; tmp_i < tmp_old.length(); tmp_i++) tmp_new.set(tmp_i, tmp_old.get(tmp_i));
+        words = tmp_new;
+
+    }
+
+    int PutIdsTo(ByteBuffer _dest, int _max_count, int _skip_mask) {
+        // Writes IDs in ascending order, as ints, skipping those with any of _skip_mask bits.
+        // Returns the number of IDs written.
+
+        AtomicIntegerArray tmp_words = words;
+        int tmp_count = 0;
+        for (int tmp_w = 0; (tmp_w < tmp_words.length()) && (tmp_count < _max_count); tmp_w++) {
+            int tmp_val = tmp_words.get(tmp_w);
+            if (0 == tmp_val) continue;
+            for (int tmp_j = 0; (tmp_j < 8) && (tmp_count < _max_count); tmp_j++) {
+                int tmp_state = (tmp_val >>> (tmp_j << 2)) & 0x0F;
+                if ((0 != tmp_state) && (0 == (tmp_state & _skip_mask))) {
+                    _dest.putInt((tmp_w << 3) | tmp_j);
+                    tmp_count++;
+                }
+            }
+        }
+        ConcurrentSkipListMap<Integer, Byte> tmp_sparse = sparse;
+        if (null != tmp_sparse) for (Map.Entry<Integer, Byte> tmp_entry: tmp_sparse.entrySet()) {
+            if (tmp_count >= _max_count) break;
+            if (0 == (tmp_entry.getValue() & _skip_mask)) {
+                _dest.putInt(tmp_entry.getKey());
+                tmp_count++;
+            }
+        }
+        return tmp_count;
+
+    }
+
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2db;
+
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+final class Tum3TracePyramid {
+// Min/max overview pyramid for regular oscillograms (HType 50/51/52/55), kept next to the .000 file.
+// Layout (little endian): fixed header, then level item counts, then levels from finest
+//  to coarsest, each item being a (min, max) pair of raw (uncalibrated) values as floats.
+// Reminder: level 0 item covers CONST_BASE_BUCKET samples, each next level is CONST_LEVEL_FACTOR
+//  times coarser. Staleness is detected by length and mtime of the source file kept in the header.
+// Note. Floats are exact for all types except LongInt beyond +-2^24, there min is rounded down and
+//  max up to the next float, so the view is approximate (relative 1.2e-7) but never narrower than the data.
+
+    final static int DTYPE_SmallInt = 50, DTYPE_Single = 51, DTYPE_LongInt = 52, DTYPE_Byte = 55;
+
+    private final static int CONST_PYR_SIGN = 0x52595054; // "TPYR"
+    private final static int CONST_PYR_VERSION = 2; // Note. 2: LongInt min/max rounded outward.
+    private final static int CONST_PYR_FIXED_HDR = 80;
+    private final static int CONST_BASE_BUCKET = 64;
+    private final static int CONST_LEVEL_FACTOR = 8;
+    private final static int CONST_TOP_ITEMS = 1024;
+    private final static int CONST_MAX_LEVELS = 16;
+    private final static int CONST_READ_CHUNK = 1 << 20;
+    public  final static int CONST_MAX_PIXELS = 65536;
+
+    static final byte[] NOT_READY = new byte[0]; // Note. Returned by Decimate() while the pyramid is being built.
+
+    private final static ConcurrentHashMap<String, Object> BuildLocks = new ConcurrentHashMap<String, Object>();
+    private final static Set<String> BuildsQueued = ConcurrentHashMap.newKeySet();
+
+    private static class BuilderLazyHolder {
+        public static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread tmp_thread = new Thread(r, "Tum3TracePyramid");
+                tmp_thread.setDaemon(true);
+                return tmp_thread;
+            }
+        });
+    }
+
+    static class TraceInfo {
+
+        int htype;
+        long count, body_ofs;
+        double tact, data_start, calibr, zeroline;
+        long src_len, src_mtime;
+        Tum3ChunkedBody.Reader chunked = null;
+
+        int PointSize() {
+            return PointSizeOf(htype);
+        }
+
+        void close() {
+            if (null != chunked) chunked.close();
+            chunked = null;
+        }
+
+    }
+
+    static int PointSizeOf(int _htype) {
+
+        if (DTYPE_Byte == _htype) return 1;
+        if (DTYPE_SmallInt == _htype) return 2;
+        if ((DTYPE_Single == _htype) || (DTYPE_LongInt == _htype)) return 4;
+        return 0;
+
+    }
+
+    static TraceInfo ReadInfo(Tum3Shot.UtilCreateFile1 _ff) throws Exception {
+        // Reminder: _ff.readHeaders() must have been called already.
+
+        TraceInfo tmp_info = new TraceInfo();
+        File tmp_src = new File(_ff.FileName());
+        tmp_info.src_len = tmp_src.length();
+        tmp_info.src_mtime = tmp_src.lastModified();
+
+        long tmp_hdr_ofs = 4 + _ff.tmpNewHeaderSizeInFile;
+        int tmp_len = Math.min(_ff.tmpFiledHSize, 400);
+        byte[] tmp_buff = new byte[tmp_len];
+        _ff.raf.seek(tmp_hdr_ofs);
+        _ff.raf.readFully(tmp_buff);
+        ByteBuffer tmpBB = ByteBuffer.wrap(tmp_buff);
+        tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+        if (_ff.hdr_is_v1) {
+            if (tmp_len < 376) throw new Exception("UnifiedTraceHeader size is too small (" + tmp_len + ") in '" + _ff.FileName() + "'");
+            tmp_info.htype = tmpBB.getInt(320);
+            tmp_info.count = tmpBB.getLong(336);
+            tmp_info.tact = tmpBB.getDouble(344);
+            tmp_info.data_start = tmpBB.getDouble(352);
+            tmp_info.calibr = tmpBB.getDouble(360);
+            tmp_info.zeroline = tmpBB.getDouble(368);
+        } else {
+            tmp_info.htype = tmpBB.getInt(4);
+            tmp_info.count = tmpBB.getInt(8);
+            tmp_info.tact = tmpBB.getFloat(12);
+            tmp_info.data_start = tmpBB.getFloat(16);
+            tmp_info.calibr = tmpBB.getFloat(20);
+            tmp_info.zeroline = tmpBB.getFloat(24);
+        }
+        tmp_info.body_ofs = tmp_hdr_ofs + _ff.tmpFiledHSize;
+        int tmp_point_size = tmp_info.PointSize();
+        if (tmp_point_size > 0) tmp_info.count = Math.max(0, Math.min(tmp_info.count, _ff.tmpBuffSize / tmp_point_size));
+        if ((tmp_point_size > 0) && _ff.is_chunked) tmp_info.chunked = new Tum3ChunkedBody.Reader(_ff.raf, tmp_info.body_ofs);
+        return tmp_info;
+
+    }
+
+    private static class Levels {
+
+        long[] counts;
+        float[][] mins, maxs;
+
+        int LevelCount() {
+            return counts.length;
+        }
+
+    }
+
+    private static class ChunkReader {
+        // Sequential sample reader over the body, converts everything to double (exact for all types).
+
+        private final RandomAccessFile raf;
+        private final TraceInfo info;
+        private final byte[] buff;
+        private final ByteBuffer bb;
+        private long next_pos, left;
+
+        ChunkReader(RandomAccessFile _raf, TraceInfo _info, long _first, long _count) throws Exception {
+
+            raf = _raf;
+            info = _info;
+            int tmp_point_size = info.PointSize();
+            buff = new byte[(int)Math.min(CONST_READ_CHUNK, Math.max(tmp_point_size, _count * tmp_point_size))];
+            bb = ByteBuffer.wrap(buff);
+            bb.order(ByteOrder.LITTLE_ENDIAN);
+            bb.limit(0);
+            next_pos = info.body_ofs + _first * tmp_point_size;
+            left = _count;
+
+        }
+
+        double Next() throws Exception {
+
+            if (!bb.hasRemaining()) {
+                int tmp_point_size = info.PointSize();
+                int tmp_len = (int)Math.min(buff.length / tmp_point_size, left) * tmp_point_size;
+                if (tmp_len <= 0) throw new Exception("Unexpected end of samples");
+                if (null != info.chunked) {
+                    if (info.chunked.Read(next_pos - info.body_ofs, buff, 0, tmp_len) != tmp_len) throw new Exception("Unexpected end of chunked body");
+                } else {
+                    raf.seek(next_pos);
+                    raf.readFully(buff, 0, tmp_len);
+                }
+                next_pos += tmp_len;
+                bb.clear();
+                bb.limit(tmp_len);
+            }
+            left--;
+            if (DTYPE_SmallInt == info.htype) return bb.getShort();
+            if (DTYPE_Single == info.htype) return bb.getFloat();
+            if (DTYPE_LongInt == info.htype) return bb.getInt();
+            return bb.get() & 0xFF;
+
+        }
+
+    }
+
+    private static float FloatBelow(double _v) {
+
+        float tmp_f = (float)_v;
+        return (tmp_f > _v) ? Math.nextDown(tmp_f) : tmp_f;
+
+    }
+
+    private static float FloatAbove(double _v) {
+
+        float tmp_f = (float)_v;
+        return (tmp_f < _v) ? Math.nextUp(tmp_f) : tmp_f;
+
+    }
+
+    private static Levels Build(Tum3Shot.UtilCreateFile1 _ff, TraceInfo _info) throws Exception {
+
+        int tmp_level_count = 1;
+        long tmp_items = (_info.count + CONST_BASE_BUCKET - 1) / CONST_BASE_BUCKET;
+        while ((tmp_items > CONST_TOP_ITEMS) && (tmp_level_count < CONST_MAX_LEVELS)) {
+            tmp_items = (tmp_items + CONST_LEVEL_FACTOR - 1) / CONST_LEVEL_FACTOR;
+            tmp_level_count++;
+        }
+        Levels tmp_lv = new Levels();
+        tmp_lv.counts = new long[tmp_level_count];
+        tmp_lv.mins = new float[tmp_level_count][];
+        tmp_lv.maxs = new float[tmp_level_count][];
+
+        long tmp_count0 = (_info.count + CONST_BASE_BUCKET - 1) / CONST_BASE_BUCKET;
+        if (tmp_count0 > Integer.MAX_VALUE) throw new Exception("Too many samples for the overview pyramid");
+        float[] tmp_min = new float[(int)tmp_count0], tmp_max = new float[(int)tmp_count0];
+        ChunkReader tmp_rd = new ChunkReader(_ff.raf, _info, 0, _info.count);
+        long tmp_left = _info.count;
+        for (int tmp_i = 0; tmp_i < tmp_count0; tmp_i++) {
+            double tmp_v = tmp_rd.Next();
+            double tmp_lo = tmp_v, tmp_hi = tmp_v;
+            long tmp_n = Math.min(CONST_BASE_BUCKET, tmp_left);
+            for (long tmp_j = 1; tmp_j < tmp_n; tmp_j++) {
+                tmp_v = tmp_rd.Next();
+                if (tmp_v < tmp_lo) tmp_lo = tmp_v;
+                if (tmp_v > tmp_hi) tmp_hi = tmp_v;
+            }
+            tmp_left -= tmp_n;
+            tmp_min[tmp_i] = FloatBelow(tmp_lo);
+            tmp_max[tmp_i] = FloatAbove(tmp_hi);
+        }
+        tmp_lv.counts[0] = tmp_count0;
+        tmp_lv.mins[0] = tmp_min;
+        tmp_lv.maxs[0] = tmp_max;
+
+        for (int tmp_l = 1; tmp_l < tmp_level_count; tmp_l++) {
+            float[] tmp_pmin = tmp_lv.mins[tmp_l-1], tmp_pmax = tmp_lv.maxs[tmp_l-1];
+            int tmp_cnt = (tmp_pmin.length + CONST_LEVEL_FACTOR - 1) / CONST_LEVEL_FACTOR;
+            tmp_min = new float[tmp_cnt];
+            tmp_max = new float[tmp_cnt];
+            for (int tmp_i = 0; tmp_i < tmp_cnt; tmp_i++) {
+                int tmp_from = tmp_i * CONST_LEVEL_FACTOR, tmp_to = Math.min(tmp_from + CONST_LEVEL_FACTOR, tmp_pmin.length);
+                float tmp_lo = tmp_pmin[tmp_from], tmp_hi = tmp_pmax[tmp_from];
+                for (int tmp_j = tmp_from + 1; tmp_j < tmp_to; tmp_j++) {
+                    if (tmp_pmin[tmp_j] < tmp_lo) tmp_lo = tmp_pmin[tmp_j];
+                    if (tmp_pmax[tmp_j] > tmp_hi) tmp_hi = tmp_pmax[tmp_j];
+                }
+                tmp_min[tmp_i] = tmp_lo;
+                tmp_max[tmp_i] = tmp_hi;
+            }
+            tmp_lv.counts[tmp_l] = tmp_cnt;
+            tmp_lv.mins[tmp_l] = tmp_min;
+            tmp_lv.maxs[tmp_l] = tmp_max;
+        }
+        return tmp_lv;
+
+    }
+
+    private static void Store(Levels _lv, TraceInfo _info, String _pyr_fname, String _tmp_fname) throws Exception {
+
+        File tmp_file = new File(_tmp_fname);
+        DataOutputStream tmp_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp_file), CONST_READ_CHUNK));
+        boolean tmp_ok = false;
+        try {
+            ByteBuffer tmpBB = ByteBuffer.allocate(CONST_PYR_FIXED_HDR + 8 * _lv.LevelCount());
+            tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+            tmpBB.putInt(CONST_PYR_SIGN);
+            tmpBB.putInt(CONST_PYR_VERSION);
+            tmpBB.putLong(_info.src_len);
+            tmpBB.putLong(_info.src_mtime);
+            tmpBB.putInt(_info.htype);
+            tmpBB.putInt(_lv.LevelCount());
+            tmpBB.putLong(_info.count);
+            tmpBB.putDouble(_info.tact);
+            tmpBB.putDouble(_info.data_start);
+            tmpBB.putDouble(_info.calibr);
+            tmpBB.putDouble(_info.zeroline);
+            tmpBB.putInt(CONST_BASE_BUCKET);
+            tmpBB.putInt(CONST_LEVEL_FACTOR);
+            tmpBB.position(CONST_PYR_FIXED_HDR);
+            for (long tmp_cnt: _lv.counts) tmpBB.putLong(tmp_cnt);
+            tmp_out.write(tmpBB.array());
+
+            ByteBuffer tmp_item = ByteBuffer.allocate(8);
+            tmp_item.order(ByteOrder.LITTLE_ENDIAN);
+            for (int tmp_l = 0; tmp_l < _lv.LevelCount(); tmp_l++)
+                for (int tmp_i = 0; tmp_i < _lv.counts[tmp_l]; tmp_i++) {
+                    tmp_item.clear();
+                    tmp_item.putFloat(_lv.mins[tmp_l][tmp_i]);
+                    tmp_item.putFloat(_lv.maxs[tmp_l][tmp_i]);
+                    tmp_out.write(tmp_item.array());
+                }
+            tmp_out.close();
+            tmp_out = null;
+
+            File tmp_dest = new File(_pyr_fname);
+            if (tmp_dest.exists()) tmp_dest.delete();
+            if (!tmp_file.renameTo(tmp_dest)) throw new Exception("Temporary file <" + _tmp_fname + "> could not be renamed into <" + _pyr_fname + ">");
+            tmp_ok = true;
+        } finally {
+            if (null != tmp_out) try { tmp_out.close(); } catch (Exception ignored) { }
+            if (!tmp_ok) tmp_file.delete();
+        }
+
+    }
+
+    private static class StoredPyramid {
+
+        RandomAccessFile raf;
+        int level_count;
+        long[] counts, level_ofs;
+
+        void close() {
+            try { raf.close(); } catch (Exception ignored) { }
+        }
+
+    }
+
+    private static StoredPyramid OpenStored(String _pyr_fname, TraceInfo _info) {
+        // Returns null if the file is missing, unreadable or stale.
+
+        RandomAccessFile tmp_raf = null;
+        try {
+            if (!new File(_pyr_fname).isFile()) return null;
+            tmp_raf = new RandomAccessFile(_pyr_fname, "r");
+            byte[] tmp_buff = new byte[CONST_PYR_FIXED_HDR];
+            tmp_raf.readFully(tmp_buff);
+            ByteBuffer tmpBB = ByteBuffer.wrap(tmp_buff);
+            tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+            boolean tmp_ok = (tmpBB.getInt() == CONST_PYR_SIGN) && (tmpBB.getInt() == CONST_PYR_VERSION)
+                             && (tmpBB.getLong() == _info.src_len) && (tmpBB.getLong() == _info.src_mtime)
+                             && (tmpBB.getInt() == _info.htype);
+            int tmp_level_count = tmpBB.getInt();
+            tmp_ok = tmp_ok && (tmp_level_count >= 1) && (tmp_level_count <= CONST_MAX_LEVELS)
+                     && (tmpBB.getInt(72) == CONST_BASE_BUCKET) && (tmpBB.getInt(76) == CONST_LEVEL_FACTOR);
+            if (!tmp_ok) {
+                tmp_raf.close();
+                return null;
+            }
+            StoredPyramid tmp_p = new StoredPyramid();
+            tmp_p.raf = tmp_raf;
+            tmp_p.level_count = tmp_level_count;
+            tmp_p.counts = new long[tmp_level_count];
+            tmp_p.level_ofs = new long[tmp_level_count];
+            tmp_buff = new byte[8 * tmp_level_count];
+            tmp_raf.readFully(tmp_buff);
+            tmpBB = ByteBuffer.wrap(tmp_buff);
+            tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+            long tmp_ofs = CONST_PYR_FIXED_HDR + 8 * tmp_level_count;
+            for (int tmp_l = 0; tmp_l < tmp_level_count; tmp_l++) {
+                tmp_p.counts[tmp_l] = tmpBB.getLong();
+                tmp_p.level_ofs[tmp_l] = tmp_ofs;
+                tmp_ofs += 8 * tmp_p.counts[tmp_l];
+            }
+            if (tmp_ofs != tmp_raf.length()) {
+                tmp_raf.close();
+                return null;
+            }
+            return tmp_p;
+        } catch (Exception e) {
+            if (null != tmp_raf) try { tmp_raf.close(); } catch (Exception ignored) { }
+            return null;
+        }
+
+    }
+
+    private static StoredPyramid ObtainStored(String _db_name, Tum3Shot.UtilCreateFile1 _ff, TraceInfo _info, String _pyr_fname, String _tmp_fname) throws Exception {
+
+        StoredPyramid tmp_p = OpenStored(_pyr_fname, _info);
+        if (null != tmp_p) return tmp_p;
+
+        Object tmp_lock = new Object();
+        Object tmp_prev = BuildLocks.putIfAbsent(_pyr_fname, tmp_lock);
+        if (null != tmp_prev) tmp_lock = tmp_prev;
+        synchronized(tmp_lock) {
+            try {
+                tmp_p = OpenStored(_pyr_fname, _info); // Note. Could have been built by someone else meanwhile.
+                if (null != tmp_p) return tmp_p;
+                long tmp_begin_millis = System.currentTimeMillis();
+                Levels tmp_lv = Build(_ff, _info);
+                Store(tmp_lv, _info, _pyr_fname, _tmp_fname);
+                Tum3Logger.DoLog(_db_name, false, "DEBUG: overview pyramid built for " + _ff.FileName() + " (" + _info.count + " points, "
+                                 + tmp_lv.LevelCount() + " levels) in " + (System.currentTimeMillis() - tmp_begin_millis) + " ms");
+            } finally {
+                BuildLocks.remove(_pyr_fname, tmp_lock);
+            }
+        }
+        return OpenStored(_pyr_fname, _info);
+
+    }
+
+    static void Invalidate(String _pyr_fname) {
+
+        File tmp_file = new File(_pyr_fname);
+        if (tmp_file.exists()) tmp_file.delete();
+
+    }
+
+    static void ScheduleBuild(final String _db_name, final String _shot_name, final int _signal_id, final String _src_fname, final String _pyr_fname, final String _tmp_fname, final int _min_points) {
+
+        if (!BuildsQueued.add(_pyr_fname)) return; // Note. Already waiting for the builder.
+        BuilderLazyHolder.executor.submit(new Runnable() {
+            public void run() {
+                BuildsQueued.remove(_pyr_fname);
+                Tum3Shot.UtilCreateFile1 tmpFF = null;
+                try {
+                    tmpFF = new Tum3Shot.UtilCreateFile1(_db_name, _src_fname, false);
+                    if (tmpFF.NotStored) return;
+                    tmpFF.readHeadersCached(_shot_name, _signal_id);
+                    TraceInfo tmp_info = ReadInfo(tmpFF);
+                    try {
+                        if ((tmp_info.PointSize() > 0) && (tmp_info.count >= _min_points)) {
+                            StoredPyramid tmp_p = ObtainStored(_db_name, tmpFF, tmp_info, _pyr_fname, _tmp_fname);
+                            if (null != tmp_p) tmp_p.close();
+                        }
+                    } finally {
+                        tmp_info.close();
+                    }
+                } catch (Exception e) {
+                    Tum3Logger.DoLog(_db_name, true, "WARNING: overview pyramid build failed for " + _src_fname + ": " + Tum3Util.getStackTrace(e));
+                } finally {
+                    if (null != tmpFF) tmpFF.close();
+                }
+            }
+        });
+
+    }
+
+    static byte[] Decimate(String _db_name, String _shot_name, int _signal_id, Tum3Shot.UtilCreateFile1 _ff, String _pyr_fname, String _tmp_fname, int _min_points, double _t_from, double _t_to, int _pixels) throws Exception {
+        // Returns null if the signal is not a regular oscillogram, NOT_READY if the pyramid is needed but not built yet.
+        // Reply layout: int HType, long HCount, double HTact, HDataStart, HCalibr, HZeroline,
+        //  long first sample, long samples per pixel, int pixel count, then (float min, float max) per pixel.
+        // Note. NaN for _t_from or _t_to means from the start or up to the end respectively.
+
+        TraceInfo tmp_info = ReadInfo(_ff);
+        try {
+            if (tmp_info.PointSize() <= 0) return null;
+            return DecimateIntl(_db_name, _shot_name, _signal_id, _ff, tmp_info, _pyr_fname, _tmp_fname, _min_points, _t_from, _t_to, _pixels);
+        } finally {
+            tmp_info.close();
+        }
+
+    }
+
+    private static byte[] DecimateIntl(String _db_name, String _shot_name, int _signal_id, Tum3Shot.UtilCreateFile1 _ff, TraceInfo tmp_info, String _pyr_fname, String _tmp_fname, int _min_points, double _t_from, double _t_to, int _pixels) throws Exception {
+
+        long tmp_first = 0, tmp_last = tmp_info.count; // Note. Sample range is [tmp_first, tmp_last).
+        if (tmp_info.tact > 0) {
+            if (!Double.isNaN(_t_from) && (_t_from > tmp_info.data_start))
+                tmp_first = (long)Math.floor((_t_from - tmp_info.data_start) / tmp_info.tact);
+            if (!Double.isNaN(_t_to) && (Double.isNaN(_t_from) || (_t_to > _t_from)))
+                tmp_last = (long)Math.ceil((_t_to - tmp_info.data_start) / tmp_info.tact) + 1;
+        }
+        tmp_first = Math.max(0, Math.min(tmp_first, tmp_info.count));
+        tmp_last = Math.max(tmp_first, Math.min(tmp_last, tmp_info.count));
+        long tmp_span = tmp_last - tmp_first;
+        int tmp_pixels = Math.max(1, Math.min(_pixels, CONST_MAX_PIXELS));
+        long tmp_per_pixel = Math.max(1, (tmp_span + tmp_pixels - 1) / tmp_pixels);
+        int tmp_out_count = (int)((tmp_span + tmp_per_pixel - 1) / tmp_per_pixel);
+
+        float[] tmp_min = new float[tmp_out_count], tmp_max = new float[tmp_out_count];
+        StoredPyramid tmp_p = null;
+        if ((tmp_per_pixel >= CONST_BASE_BUCKET) && (tmp_info.count >= _min_points)) {
+            tmp_p = OpenStored(_pyr_fname, tmp_info);
+            if (null == tmp_p) {
+                // Note. Never built right here, for a big trace it takes long and this is a session thread.
+                ScheduleBuild(_db_name, _shot_name, _signal_id, _ff.FileName(), _pyr_fname, _tmp_fname, _min_points);
+                return NOT_READY;
+            }
+        }
+        try {
+            if (null == tmp_p) FillFromRaw(_ff.raf, tmp_info, tmp_first, tmp_per_pixel, tmp_out_count, tmp_last, tmp_min, tmp_max);
+            else FillFromStored(tmp_p, tmp_first, tmp_per_pixel, tmp_out_count, tmp_last, tmp_min, tmp_max);
+        } finally {
+            if (null != tmp_p) tmp_p.close();
+        }
+
+        ByteBuffer tmpBB = ByteBuffer.allocate(4 + 8 + 4*8 + 8 + 8 + 4 + 8 * tmp_out_count);
+        tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+        tmpBB.putInt(tmp_info.htype);
+        tmpBB.putLong(tmp_info.count);
+        tmpBB.putDouble(tmp_info.tact);
+        tmpBB.putDouble(tmp_info.data_start);
+        tmpBB.putDouble(tmp_info.calibr);
+        tmpBB.putDouble(tmp_info.zeroline);
+        tmpBB.putLong(tmp_first);
+        tmpBB.putLong(tmp_per_pixel);
+        tmpBB.putInt(tmp_out_count);
+        for (int tmp_i = 0; tmp_i < tmp_out_count; tmp_i++) {
+            tmpBB.putFloat(tmp_min[tmp_i]);
+            tmpBB.putFloat(tmp_max[tmp_i]);
+        }
+        return tmpBB.array();
+
+    }
+
+    private static void FillFromRaw(RandomAccessFile _raf, TraceInfo _info, long _first, long _per_pixel, int _out_count, long _last, float[] _min, float[] _max) throws Exception {
+        // Note. Only used for short spans (less than CONST_BASE_BUCKET per pixel) or small signals.
+
+        ChunkReader tmp_rd = new ChunkReader(_raf, _info, _first, _last - _first);
+        long tmp_left = _last - _first;
+        for (int tmp_i = 0; tmp_i < _out_count; tmp_i++) {
+            double tmp_v = tmp_rd.Next();
+            double tmp_lo = tmp_v, tmp_hi = tmp_v;
+            long tmp_n = Math.min(_per_pixel, tmp_left);
+            for (long tmp_j = 1; tmp_j < tmp_n; tmp_j++) {
+                tmp_v = tmp_rd.Next();
+                if (tmp_v < tmp_lo) tmp_lo = tmp_v;
+                if (tmp_v > tmp_hi) tmp_hi = tmp_v;
+            }
+            tmp_left -= tmp_n;
+            _min[tmp_i] = FloatBelow(tmp_lo);
+            _max[tmp_i] = FloatAbove(tmp_hi);
+        }
+
+    }
+
+    private static void FillFromStored(StoredPyramid _p, long _first, long _per_pixel, int _out_count, long _last, float[] _min, float[] _max) throws Exception {
+        // Note. Uses the coarsest level still fine enough for the requested pixel width,
+        //  so pixel edges may be widened by at most one item of that level.
+
+        int tmp_level = 0;
+        long tmp_bucket = CONST_BASE_BUCKET;
+        while ((tmp_level + 1 < _p.level_count) && ((tmp_bucket * CONST_LEVEL_FACTOR) <= _per_pixel)) {
+            tmp_level++;
+            tmp_bucket *= CONST_LEVEL_FACTOR;
+        }
+        long tmp_item_from = _first / tmp_bucket;
+        long tmp_item_to = Math.min((_last + tmp_bucket - 1) / tmp_bucket, _p.counts[tmp_level]);
+        int tmp_items = (int)(tmp_item_to - tmp_item_from);
+        byte[] tmp_buff = new byte[8 * tmp_items];
+        _p.raf.seek(_p.level_ofs[tmp_level] + 8 * tmp_item_from);
+        _p.raf.readFully(tmp_buff);
+        ByteBuffer tmpBB = ByteBuffer.wrap(tmp_buff);
+        tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int tmp_i = 0; tmp_i < _out_count; tmp_i++) {
+            long tmp_s_from = _first + tmp_i * _per_pixel;
+            long tmp_s_to = Math.min(tmp_s_from + _per_pixel, _last);
+            int tmp_k_from = (int)(tmp_s_from / tmp_bucket - tmp_item_from);
+            int tmp_k_to = (int)Math.min((tmp_s_to + tmp_bucket - 1) / tmp_bucket - tmp_item_from, tmp_items);
+            float tmp_lo = tmpBB.getFloat(8 * tmp_k_from), tmp_hi = tmpBB.getFloat(8 * tmp_k_from + 4);
+            for (int tmp_k = tmp_k_from + 1; tmp_k < tmp_k_to; tmp_k++) {
+                float tmp_a = tmpBB.getFloat(8 * tmp_k), tmp_b = tmpBB.getFloat(8 * tmp_k + 4);
+                if (tmp_a < tmp_lo) tmp_lo = tmp_a;
+                if (tmp_b > tmp_hi) tmp_hi = tmp_b;
+            }
+            _min[tmp_i] = tmp_lo;
+            _max[tmp_i] = tmp_hi;
+        }
+
+    }
+
+}
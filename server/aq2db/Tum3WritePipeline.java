@@ -0,0 +1,179 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2db;
+
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+final class Tum3WritePipeline {
+// Write-behind of uploaded signals for one db, so that the network thread does not
+//  wait for file creation, renames and fsync. Uploads are queued (bounded), and the
+//  worker takes whatever has accumulated, up to write_pipeline_batch jobs, and then:
+//  writes all temporary files, fsyncs them, renames them into place, and fsyncs each
+//  involved shot directory once. Only then is the result reported through PutTraceHandler,
+//  so a positive TRACEUPLOADACK means the data is really on disk.
+// Reminder: the CacheIds in-progress bit is set by putTraceBegin() before queueing and
+//  cleared by putTraceEnd() here, so readers and repeated uploads see exactly what they
+//  saw with the synchronous putTrace().
+
+    private static final class QueuedJob {
+        final Tum3Shot shot;
+        final Tum3Shot.PutTraceJob job;
+
+        QueuedJob(Tum3Shot _shot, Tum3Shot.PutTraceJob _job) {
+            shot = _shot;
+            job = _job;
+        }
+    }
+
+    private final Tum3Db db;
+    private final int max_batch;
+    private final ArrayBlockingQueue<QueuedJob> queue;
+    private long cnt_jobs = 0, cnt_batches = 0, cnt_fsyncs = 0, cnt_dir_fsyncs = 0, cnt_failed = 0, cnt_rejected = 0; // Protected by this.
+    private int max_batch_seen = 0; // Protected by this.
+
+
+    Tum3WritePipeline(Tum3Db _db, int _threads, int _queue_size, int _max_batch) {
+
+        db = _db;
+        max_batch = Math.max(1, _max_batch);
+        queue = new ArrayBlockingQueue<QueuedJob>(Math.max(1, _queue_size));
+        for (int tmp_i = 0; tmp_i < _threads; tmp_i++) {
+            Thread tmp_thread = new Thread(new Runnable() {
+                public void run() {
+                    WorkerLoop();
+                }
+            }, "Tum3WritePipeline-" + db.DbName() + "-" + tmp_i);
+            tmp_thread.setDaemon(true);
+            tmp_thread.start();
+        }
+        Tum3Logger.DoLog(db.DbName(), false, "DEBUG: write pipeline: threads=" + _threads + ", queue=" + queue.remainingCapacity() + ", batch=" + max_batch);
+
+    }
+
+    boolean Submit(Tum3Shot _shot, Tum3Shot.PutTraceJob _job) {
+        // Note. Never waits, it is called from the session thread. If the queue is full,
+        //  the upload is refused with a "busy" reply and the client retries later.
+
+        if (queue.offer(new QueuedJob(_shot, _job))) return true;
+        synchronized(this) {
+            cnt_rejected++;
+        }
+        return false;
+
+    }
+
+    private void WorkerLoop() {
+
+        ArrayList<QueuedJob> tmp_batch = new ArrayList<QueuedJob>();
+        while (true) {
+            try {
+                tmp_batch.add(queue.take());
+                queue.drainTo(tmp_batch, max_batch - 1);
+                ProcessBatch(tmp_batch);
+            } catch (Throwable e) {
+                Tum3Logger.DoLog(db.DbName(), true, "IMPORTANT: write pipeline error: " + Tum3Util.getStackTrace(e));
+            }
+            tmp_batch.clear();
+        }
+
+    }
+
+    private static void Fail(Tum3Shot.PutTraceJob _job, Exception e) {
+
+        if (_job.error.isEmpty()) _job.error = "Exception " + Tum3Util.getStackTrace(e);
+
+    }
+
+    private void ProcessBatch(ArrayList<QueuedJob> _batch) {
+
+        int tmp_fsyncs = 0, tmp_dir_fsyncs = 0, tmp_failed = 0;
+
+        for (QueuedJob tmp_q: _batch) if (!tmp_q.job.written) try { // Note. Streamed uploads are already written.
+            tmp_q.shot.putTraceWrite(tmp_q.job);
+        } catch (Exception e) {
+            Fail(tmp_q.job, e);
+        }
+
+        for (QueuedJob tmp_q: _batch) if (tmp_q.job.error.isEmpty()) try {
+            tmp_q.shot.putTraceForce(tmp_q.job);
+            tmp_fsyncs++;
+        } catch (Exception e) {
+            Fail(tmp_q.job, e);
+        }
+
+        LinkedHashSet<String> tmp_dirs = new LinkedHashSet<String>();
+        for (QueuedJob tmp_q: _batch) if (tmp_q.job.error.isEmpty()) try {
+            tmp_q.shot.putTraceCommit(tmp_q.job);
+            tmp_dirs.add(tmp_q.job.DirPath());
+        } catch (Exception e) {
+            Fail(tmp_q.job, e);
+        }
+
+        for (String tmp_dir: tmp_dirs) {
+            // Note. Makes the renames durable. Not supported on some platforms (windows), where it is just skipped.
+            try (FileChannel tmp_fc = FileChannel.open(new File(tmp_dir).toPath(), StandardOpenOption.READ)) {
+                tmp_fc.force(true);
+                tmp_dir_fsyncs++;
+            } catch (Exception ignored) { }
+        }
+
+        LinkedHashMap<Tum3Shot, Tum3Db.SingleShotWriteHelper> tmp_helpers = new LinkedHashMap<Tum3Shot, Tum3Db.SingleShotWriteHelper>();
+        for (QueuedJob tmp_q: _batch) {
+            tmp_q.shot.putTraceEnd(tmp_q.job);
+            if (!tmp_q.job.error.isEmpty()) tmp_failed++;
+            Tum3Db.SingleShotWriteHelper tmp_helper = tmp_helpers.get(tmp_q.shot);
+            if (null == tmp_helper) {
+                tmp_helper = new Tum3Db.SingleShotWriteHelper(tmp_q.shot.getName());
+                tmp_helpers.put(tmp_q.shot, tmp_helper);
+            }
+            try {
+                tmp_helper.AddUpdatedId(tmp_q.job.ThisID, false, tmp_q.job.was_waiting, false);
+            } catch (Exception ignored) { }
+        }
+        for (Map.Entry<Tum3Shot, Tum3Db.SingleShotWriteHelper> tmp_item: tmp_helpers.entrySet())
+            tmp_item.getValue().PushModifiedIds(tmp_item.getKey().GetDb());
+
+        for (QueuedJob tmp_q: _batch) {
+            try {
+                if (null != tmp_q.job.handler) tmp_q.job.handler.PutTraceDone(tmp_q.shot.getName(), tmp_q.job.ThisID, tmp_q.job.error);
+            } catch (Exception e) {
+                Tum3Logger.DoLog(db.DbName(), true, "IMPORTANT: write pipeline handler error: " + Tum3Util.getStackTrace(e));
+            }
+            tmp_q.shot.ShotRelease();
+        }
+
+        synchronized(this) {
+            cnt_jobs += _batch.size();
+            cnt_batches++;
+            cnt_fsyncs += tmp_fsyncs;
+            cnt_dir_fsyncs += tmp_dir_fsyncs;
+            cnt_failed += tmp_failed;
+            if (_batch.size() > max_batch_seen) max_batch_seen = _batch.size();
+        }
+
+    }
+
+    synchronized String StatusStr() {
+
+        return "queued=" + queue.size() + ", jobs=" + cnt_jobs + ", batches=" + cnt_batches + ", max batch=" + max_batch_seen
+            + ", fsyncs=" + cnt_fsyncs + ", dir fsyncs=" + cnt_dir_fsyncs + ", failed=" + cnt_failed + ", rejected=" + cnt_rejected;
+
+    }
+
+}
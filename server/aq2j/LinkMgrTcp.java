@@ -31,6 +31,8 @@ public final class LinkMgrTcp extends Thread implements SrvLinkOwner, ClientWrit
     private byte[] tmpOutputBuff;
     private int dbg_count = 0;
     private boolean tmp_recheck_sock = false;
+    private boolean use_zero_copy = false;
+    private boolean direct_sock_full = false;
 
     public boolean ready_local = false;
     private volatile boolean is_terminating = false;
@@ -56,6 +58,7 @@ public final class LinkMgrTcp extends Thread implements SrvLinkOwner, ClientWrit
     {
         session_producer = _session_producer;
         CONST_TCP_BUFF_SIZE = session_producer.get_CONST_TCP_BUFF_SIZE(); // _tcp_buff_size;
+        use_zero_copy = session_producer.UseZeroCopy();
         String tmp_ip = this_sc.socket().getInetAddress().getHostAddress().toString();
         String tmp_port = this_sc.socket().getPort() + "";
         if (!tmp_ip.isEmpty() && !tmp_port.isEmpty()) transp_caller = tmp_ip + ":" + tmp_port;
@@ -200,6 +203,16 @@ public final class LinkMgrTcp extends Thread implements SrvLinkOwner, ClientWrit
 
     public int AcceptFrom(OutBuffData src) throws Exception {
 
+        if (use_zero_copy) {
+            // Reminder: trace body goes from file to socket directly, headers and trailing bytes still via outBB.
+            int tmp_direct_count = OutBuffData.SendDirect(src, sc, CONST_TCP_BUFF_SIZE);
+            if (tmp_direct_count >= 0) { // Note. Zero means the socket is full already.
+                direct_sock_full = (tmp_direct_count < CONST_TCP_BUFF_SIZE) && !src.SentAll();
+                if (direct_sock_full) key.interestOps(key_base | SelectionKey.OP_WRITE);
+                tmp_recheck_sock = true;
+                return tmp_direct_count;
+            }
+        }
         int tmp_filled_count = src.SendToByteArray(GetBuff()); // XXX TODO!!! Optimize away GetBuff().
         SendToClient(tmp_filled_count); // Moved here from below.
         tmp_recheck_sock = true;
@@ -372,9 +385,15 @@ public final class LinkMgrTcp extends Thread implements SrvLinkOwner, ClientWrit
                     return tmp_result;
                 }
             } else {
-                // Reminder: ReadFromServer2()->AcceptFrom()->SendToByteArray(outBB)
+                // Reminder: ReadFromServer2()->AcceptFrom()->SendToByteArray(outBB) or SendToChannel(sc)
                 tmp_recheck_data = false;
                 tmp_data_done = sLink.ReadFromServer2(SrvLink.THRD_INTERNAL, this, hurry);
+                if (direct_sock_full) {
+                    // Note. Short transferTo() means the socket is full, OP_WRITE was already requested.
+                    direct_sock_full = false;
+                    tmp_result = INTRL_SOCK_FULL;
+                    return tmp_result;
+                }
                 //if (tmp_out_wait) System.out.print("R");
                 //else              System.out.print("r");
                 //if (hurry) System.out.println("[aq2j] ReadFromServer2 returned " + tmp_out_wait);
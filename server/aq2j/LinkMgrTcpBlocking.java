@@ -0,0 +1,391 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2j;
+
+
+import aq2db.*;
+
+
+import java.io.*;
+import java.nio.*;
+import java.lang.reflect.Method;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+
+
+public final class LinkMgrTcpBlocking implements SrvLinkOwner, ClientWriter, AppStopHook, Runnable {
+// Session over a blocking SocketChannel, without any Selector.
+// Reminder: there are 2 threads per session. The main one is THRD_INTERNAL and
+//  does all the SrvLink work, the reader thread only reads the socket and passes
+//  the bytes over. Both are virtual threads, so this is only used where the runtime
+//  has them (see SessionProducerTcpStd.Create()), otherwise LinkMgrTcp is used instead.
+// Reminder: a blocking write has no timeout of its own, so a peer that stops reading
+//  is caught by the shared WriteWatchdog, which closes the channel under the writer.
+
+    private SrvLinkBase sLink = null;
+    private volatile SocketChannel sc;
+    private byte[] tmpOutputBuff;
+    private boolean use_zero_copy = false;
+
+    private final ReentrantLock StateLock = new ReentrantLock();
+    private final Condition StateChanged = StateLock.newCondition();
+    private boolean inp_full = false, wake_pending = false; // Protected by StateLock.
+
+    private volatile boolean is_terminating = false;
+    private String terminating_reason = "";
+
+    private ByteBuffer inpBB, outBB;
+
+    private int CONST_TCP_BUFF_SIZE = 1;
+    private final static int CONST_TCP_CLIENT_WAKEINTERVAL = 1000;
+    private final static int CONST_TCP_CLIENT_WAKEINTERVAL_MIN = 100;
+    private final static int CONST_SEND_LOOP_LIMIT_MILLIS = 1000;
+    private final static int CONST_WATCHDOG_PERIOD_MILLIS = 1000;
+
+    private static final Method VirtualThreadBuilder = FindVirtualThreadBuilder();
+    private static final Set<LinkMgrTcpBlocking> ActiveLinks = ConcurrentHashMap.newKeySet();
+
+    private final long write_timeout_millis;
+    private volatile long write_started_at = 0; // Note. Non-zero while in AcceptFrom(), see WriteWatchdog.
+
+    private volatile String transp_caller = "", transp_user = "", transp_agent = ""; // YYY
+    SessionProducerTcp session_producer;
+
+
+    private static Method FindVirtualThreadBuilder() {
+
+        try {
+            return Thread.class.getMethod("ofVirtual");
+        } catch (Exception ignored) {
+            return null; // Note. Older runtime, see VirtualThreadsAvailable().
+        }
+
+    }
+
+    public static boolean VirtualThreadsAvailable() {
+
+        return (null != VirtualThreadBuilder);
+
+    }
+
+    private static void StartThread(Runnable _r, String _name) throws Exception {
+
+        if (null == VirtualThreadBuilder) throw new Exception("Virtual threads are not available in this runtime");
+        Object tmp_builder = VirtualThreadBuilder.invoke(null);
+        Method tmp_unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        Thread tmp_thread = (Thread)tmp_unstarted.invoke(tmp_builder, _r);
+        tmp_thread.setName(_name);
+        tmp_thread.start();
+
+    }
+
+    private static class WriteWatchdog implements Runnable {
+        // Note. One platform thread for all blocking sessions, only started with the first one.
+
+        public static final Thread thread = Start();
+
+        private static Thread Start() {
+
+            Thread tmp_thread = new Thread(new WriteWatchdog(), "LinkMgrTcpBlocking-watchdog");
+            tmp_thread.setDaemon(true);
+            tmp_thread.start();
+            return tmp_thread;
+
+        }
+
+        public void run() {
+
+            while (true) {
+                Tum3Util.SleepExactly(CONST_WATCHDOG_PERIOD_MILLIS);
+                long tmp_now = System.currentTimeMillis();
+                for (LinkMgrTcpBlocking tmp_link: ActiveLinks) {
+                    long tmp_started_at = tmp_link.write_started_at;
+                    if ((0 != tmp_started_at) && ((tmp_now - tmp_started_at) > tmp_link.write_timeout_millis))
+                        tmp_link.WriteTimedOut(tmp_now - tmp_started_at);
+                }
+            }
+
+        }
+
+    }
+
+    public static void Start(SessionProducerTcp _session_producer, SocketChannel _sc) throws Exception {
+
+        LinkMgrTcpBlocking tmp_link = new LinkMgrTcpBlocking(_session_producer, _sc);
+        StartThread(tmp_link, "LinkMgrTcpBlocking");
+
+    }
+
+    private LinkMgrTcpBlocking(SessionProducerTcp _session_producer, SocketChannel this_sc) throws Exception
+    {
+        session_producer = _session_producer;
+        CONST_TCP_BUFF_SIZE = session_producer.get_CONST_TCP_BUFF_SIZE();
+        use_zero_copy = session_producer.UseZeroCopy();
+        write_timeout_millis = 1000 * (long)session_producer.WriteTimeoutSec();
+        String tmp_ip = this_sc.socket().getInetAddress().getHostAddress().toString();
+        String tmp_port = this_sc.socket().getPort() + "";
+        if (!tmp_ip.isEmpty() && !tmp_port.isEmpty()) transp_caller = tmp_ip + ":" + tmp_port;
+
+        sLink = session_producer.newSrvLink(this);
+
+        sc = this_sc;
+
+    }
+
+    public String get_transp_caller() { return transp_caller; }
+
+    public void set_transp_caller(String new_caller) { transp_caller = new_caller; } // YYY
+
+    public String get_transp_user() { return transp_user; }
+
+    public void set_transp_user(String new_user) { transp_user = new_user; } // YYY
+
+    public String get_transp_agent() { return transp_agent; }
+
+    public String get_transp_title() { return "tcp"; }
+
+    private void SetTerminate(String reason) {
+
+        synchronized(terminating_reason) {
+            is_terminating = true;
+            if (terminating_reason.isEmpty()) terminating_reason = reason;
+        }
+        WakeupMain();
+
+    }
+
+    public void ShutdownSrvLink(String reason) {
+
+        if (null == reason) reason = ""; // YYY
+        if (reason.isEmpty()) reason = "Empty disconnect reason: " + Tum3Util.getStackTraceAuto(); // YYY
+        SetTerminate(reason);
+
+    }
+
+    public void WakeupMain() {
+
+        StateLock.lock();
+        try {
+            wake_pending = true;
+            StateChanged.signalAll();
+        } finally {
+            StateLock.unlock();
+        }
+
+    }
+
+    public void AppStopped() {
+
+        SetTerminate("Application is shutting down.");
+
+    }
+
+    private void WriteTimedOut(long _millis) {
+        // Reminder. Called by the watchdog thread. Closing the channel makes the blocked write fail.
+
+        ActiveLinks.remove(this);
+        SetTerminate("Socket write did not complete in " + _millis + " ms");
+        try {
+            sc.close();
+        } catch (Exception ignored) { }
+
+    }
+
+    public boolean isOpen() {
+        if (is_terminating || (null == sc)) return false;
+        return sc.isConnected();
+    }
+
+    private class InputReader implements Runnable {
+
+        public void run() {
+
+            try {
+                while (!is_terminating) {
+                    StateLock.lock();
+                    try {
+                        while (inp_full && !is_terminating) StateChanged.await();
+                    } finally {
+                        StateLock.unlock();
+                    }
+                    if (is_terminating) break;
+                    // Reminder: inpBB belongs to this thread while inp_full is false.
+                    inpBB.clear();
+                    int tmpBytesCount = sc.read(inpBB);
+                    if (tmpBytesCount < 0) throw new IOException("EOF indicated");
+                    if (0 == tmpBytesCount) continue;
+                    inpBB.flip();
+                    StateLock.lock();
+                    try {
+                        inp_full = true;
+                        StateChanged.signalAll();
+                    } finally {
+                        StateLock.unlock();
+                    }
+                }
+            } catch (Exception e) {
+                SetTerminate("Error reading from client: " + e);
+            }
+
+        }
+
+    }
+
+    public int AcceptFrom(OutBuffData src) throws Exception {
+        // Note. Blocking channel, so everything handed over here is written out before returning.
+
+        write_started_at = System.currentTimeMillis();
+        try {
+            return AcceptFrom_Intrnl(src);
+        } finally {
+            write_started_at = 0;
+        }
+
+    }
+
+    private int AcceptFrom_Intrnl(OutBuffData src) throws Exception {
+
+        if (use_zero_copy) {
+            int tmp_direct_count = OutBuffData.SendDirect(src, sc, CONST_TCP_BUFF_SIZE);
+            if (tmp_direct_count >= 0) return tmp_direct_count; // Note. Blocking, so zero is unlikely, it is just retried then.
+        }
+        int tmp_filled_count = src.SendToByteArray(tmpOutputBuff);
+        if (tmp_filled_count > 0) {
+            outBB.clear();
+            outBB.limit(tmp_filled_count);
+            while (outBB.remaining() > 0) sc.write(outBB);
+        }
+        return tmp_filled_count;
+
+    }
+
+    public boolean SupportOOB() {
+        return false;
+    }
+
+    public void SendToClientAsOOB(String oobMsg) throws Exception {
+        Tum3Logger.DoLog(session_producer.getLogPrefixName(), true, "FATAL: internal error: SendToClientAsOOB() is not supported here.");
+        throw new Exception("[aq2j] FATAL: internal error: SendToClientAsOOB() is not supported here.");
+    }
+
+    public void close() throws Exception {
+        ShutdownSrvLink("Closed");
+    }
+
+    public boolean WaitForOutputDone(int timeout) throws Exception {
+        // Reminder. This is only called from the main thread (THRD_INTERNAL).
+        // Note. Writes are blocking, so once TrySendOut() returns the socket has taken everything it was given.
+
+        TrySendOut(true);
+        return true;
+
+    }
+
+    private boolean TrySendOut(boolean hurry) throws Exception {
+        // Returns true if there is more data pending.
+
+        long tmp_begin_millis = System.currentTimeMillis();
+        boolean tmp_data_done = false;
+        do {
+            tmp_data_done = sLink.ReadFromServer2(SrvLink.THRD_INTERNAL, this, hurry);
+        } while (!tmp_data_done && !is_terminating && ((System.currentTimeMillis() - tmp_begin_millis) < CONST_SEND_LOOP_LIMIT_MILLIS));
+        return !tmp_data_done;
+
+    }
+
+    public void run()
+    {
+        AppStopHooker.AddHook(this);
+
+        String tmp_new_reason = "";
+        try {
+
+            inpBB = ByteBuffer.allocate(session_producer.CONST_MAX_INP_BUFF_BYTES());
+            tmpOutputBuff = new byte[CONST_TCP_BUFF_SIZE];
+            outBB = ByteBuffer.wrap(tmpOutputBuff);
+
+            sc.configureBlocking(true);
+            sc.setOption(StandardSocketOptions.SO_SNDBUF, CONST_TCP_BUFF_SIZE);
+            sc.setOption(StandardSocketOptions.SO_RCVBUF, session_producer.CONST_MAX_INP_BUFF_BYTES());
+
+            if (write_timeout_millis > 0) {
+                ActiveLinks.add(this);
+                WriteWatchdog.thread.getName(); // Note. Makes sure it is running.
+            }
+            sLink.DoLink();
+            StartThread(new InputReader(), "LinkMgrTcpBlocking-reader");
+
+            boolean tmp_data_pending = false;
+            while (!is_terminating) {
+                boolean tmp_have_input = false;
+                long tmp_wait_nanos = TimeUnit.MILLISECONDS.toNanos(tmp_data_pending ? CONST_TCP_CLIENT_WAKEINTERVAL_MIN : CONST_TCP_CLIENT_WAKEINTERVAL);
+                StateLock.lock();
+                try {
+                    while (!inp_full && !wake_pending && !is_terminating && (tmp_wait_nanos > 0))
+                        tmp_wait_nanos = StateChanged.awaitNanos(tmp_wait_nanos);
+                    wake_pending = false;
+                    tmp_have_input = inp_full;
+                } finally {
+                    StateLock.unlock();
+                }
+
+                if (tmp_have_input) {
+                    try {
+                        sLink.SendToServer(SrvLink.THRD_INTERNAL, inpBB);
+                    } catch(Exception e) {
+                        ShutdownSrvLink("Exception in LinkMgrTcpBlocking: " + e);
+                    }
+                    StateLock.lock();
+                    try {
+                        inp_full = false;
+                        StateChanged.signalAll();
+                    } finally {
+                        StateLock.unlock();
+                    }
+                }
+                if (is_terminating) break;
+
+                sLink.ClientReaderTick(SrvLink.THRD_INTERNAL, this);
+
+                tmp_data_pending = TrySendOut(false);
+            }
+
+        } catch (Exception e) {
+            tmp_new_reason = "Exception in LinkMgrTcpBlocking: " + Tum3Util.getStackTrace(e);
+        }
+
+        String tmp_prev_reason = "";
+        synchronized(terminating_reason) {
+            is_terminating = true;
+            tmp_prev_reason = terminating_reason;
+        }
+        if (tmp_prev_reason.isEmpty() && !tmp_new_reason.isEmpty())
+            tmp_prev_reason = tmp_new_reason;
+
+        ActiveLinks.remove(this);
+        Tum3Logger.DoLog(session_producer.getLogPrefixName(), false, "Closing communication with tcp*" + transp_caller + " (" + tmp_prev_reason + ")");
+        sLink.CancelLink();
+
+        WakeupMain(); // Release the reader if it is waiting for inpBB.
+        try {
+            sc.close(); // Reminder: this also unblocks the reader if it is in read().
+        } catch (Exception ignored) { }
+
+        AppStopHooker.RemoveHook(this);
+    }
+
+}
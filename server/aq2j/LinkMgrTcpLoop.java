@@ -0,0 +1,275 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2j;
+
+
+import aq2db.*;
+
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.nio.channels.*;
+
+
+public final class LinkMgrTcpLoop extends Thread implements AppStopHook {
+// One selector thread serving many LinkMgrTcpMux sessions.
+// Reminder: periodic ticks (ClientReaderTick, keepalive) are driven by a simple
+//  timer wheel, so that idle sessions cost nothing between their ticks.
+// Note. The loop thread itself only selects and dispatches. Session work (request handlers,
+//  disk reads, waiting for free output buffers) runs on a worker pool shared by all loops,
+//  never more than one worker per session at a time, so one stuck session can not hold up the rest.
+
+    private final static int CONST_WHEEL_SLOT_MILLIS = 100;
+    private final static int CONST_WHEEL_SLOTS = 32;
+    private final static int CONST_TICK_SLOTS_IDLE = 10; // Same as CONST_TCP_CLIENT_WAKEINTERVAL in LinkMgrTcp.
+    private final static int CONST_TICK_SLOTS_BUSY = 1; // Same as CONST_TCP_CLIENT_WAKEINTERVAL_MIN in LinkMgrTcp.
+    private final static int CONST_SHUTDOWN_WAIT_MILLIS = 2000;
+
+    private final SessionProducerTcp session_producer;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final ConcurrentLinkedQueue<LinkMgrTcpMux> pending_new = new ConcurrentLinkedQueue<LinkMgrTcpMux>();
+    private final ConcurrentLinkedQueue<LinkMgrTcpMux> pending_wake = new ConcurrentLinkedQueue<LinkMgrTcpMux>();
+    private final ConcurrentLinkedQueue<LinkMgrTcpMux> pending_done = new ConcurrentLinkedQueue<LinkMgrTcpMux>();
+    private final HashSet<LinkMgrTcpMux> sessions = new HashSet<LinkMgrTcpMux>();
+    private final ArrayList<ArrayList<LinkMgrTcpMux>> wheel = new ArrayList<ArrayList<LinkMgrTcpMux>>();
+    private long wheel_started_at, wheel_pos = 0;
+    private volatile int session_count = 0;
+    private volatile boolean TerminateRequested = false;
+
+
+    private LinkMgrTcpLoop(SessionProducerTcp _session_producer, int _loop_index, ExecutorService _workers) throws Exception {
+
+        super("LinkMgrTcpLoop-" + _loop_index);
+        session_producer = _session_producer;
+        workers = _workers;
+        selector = Selector.open();
+        for (int tmp_i = 0; tmp_i < CONST_WHEEL_SLOTS; tmp_i++) wheel.add(new ArrayList<LinkMgrTcpMux>());
+        setDaemon(true);
+
+    }
+
+    public static LinkMgrTcpLoop[] StartPool(SessionProducerTcp _session_producer, int _count) throws Exception {
+
+        int tmp_worker_count = Math.max(1, _session_producer.EventLoopWorkers());
+        // Reminder: the queue is bounded by the number of sessions anyway, see LinkMgrTcpMux.in_service.
+        ExecutorService tmp_workers = Executors.newFixedThreadPool(tmp_worker_count,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "LinkMgrTcpWorker");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        LinkMgrTcpLoop[] tmp_loops = new LinkMgrTcpLoop[_count];
+        for (int tmp_i = 0; tmp_i < _count; tmp_i++) {
+            tmp_loops[tmp_i] = new LinkMgrTcpLoop(_session_producer, tmp_i, tmp_workers);
+            tmp_loops[tmp_i].start();
+        }
+        Tum3Logger.DoLog(_session_producer.getLogPrefixName(), false, "tcp event loop started with " + _count + " thread(s) and " + tmp_worker_count + " worker(s)");
+        return tmp_loops;
+
+    }
+
+    public static LinkMgrTcpLoop PickLeastLoaded(LinkMgrTcpLoop[] _loops) {
+
+        LinkMgrTcpLoop tmp_best = _loops[0];
+        for (LinkMgrTcpLoop tmp_loop: _loops)
+            if (tmp_loop.session_count < tmp_best.session_count) tmp_best = tmp_loop;
+        return tmp_best;
+
+    }
+
+    public void Attach(SocketChannel _sc) throws Exception {
+
+        if (TerminateRequested) throw new Exception("Event loop is terminating");
+        LinkMgrTcpMux tmp_mux = new LinkMgrTcpMux(session_producer, _sc, this);
+        session_count++;
+        pending_new.add(tmp_mux);
+        selector.wakeup();
+
+    }
+
+    void Wakeup(LinkMgrTcpMux _mux) {
+
+        if (_mux.wake_queued.compareAndSet(false, true)) {
+            pending_wake.add(_mux);
+            selector.wakeup();
+        }
+
+    }
+
+    private void Schedule(LinkMgrTcpMux _mux, int _slots) {
+
+        long tmp_slot = wheel_pos + _slots;
+        // Note. Never postpone an already scheduled earlier tick. Stale wheel entries are skipped later.
+        if ((_mux.next_tick_slot > wheel_pos) && (_mux.next_tick_slot <= tmp_slot)) return;
+        _mux.next_tick_slot = tmp_slot;
+        wheel.get((int)(tmp_slot % CONST_WHEEL_SLOTS)).add(_mux);
+
+    }
+
+    void ServiceDone(LinkMgrTcpMux _mux) {
+        // Reminder. Called by a worker at the end of LinkMgrTcpMux.run().
+
+        pending_done.add(_mux);
+        selector.wakeup(); // Note. Also makes interest ops changed by the worker take effect.
+
+    }
+
+    private void CloseSession(LinkMgrTcpMux _mux) {
+
+        sessions.remove(_mux);
+        session_count--;
+        _mux.Close();
+
+    }
+
+    private void Serve(LinkMgrTcpMux _mux, boolean _readable) {
+
+        if (!sessions.contains(_mux)) return;
+        if (_mux.MustShutdownSrvLink()) {
+            // Note. If a worker is still on it, its ServiceDone() will come back here.
+            if (!_mux.in_service.get()) CloseSession(_mux);
+            return;
+        }
+        if (_readable) {
+            _mux.read_pending.set(true);
+            _mux.SuspendReading(); // Note. Otherwise the selector keeps reporting it until the worker reads.
+        }
+        _mux.service_again = true;
+        if (_mux.in_service.compareAndSet(false, true)) {
+            try {
+                workers.execute(_mux);
+            } catch (RejectedExecutionException e) {
+                _mux.in_service.set(false);
+                _mux.ShutdownSrvLink("Event loop workers are not available: " + e);
+            }
+        }
+
+    }
+
+    private void Done(LinkMgrTcpMux _mux) {
+
+        if (!sessions.contains(_mux)) return;
+        if (_mux.MustShutdownSrvLink()) {
+            if (!_mux.in_service.get()) CloseSession(_mux);
+            return;
+        }
+        Schedule(_mux, _mux.service_busy ? CONST_TICK_SLOTS_BUSY : CONST_TICK_SLOTS_IDLE);
+
+    }
+
+    private long NextWakeupMillis() {
+
+        for (int tmp_i = 1; tmp_i < CONST_WHEEL_SLOTS; tmp_i++)
+            if (!wheel.get((int)((wheel_pos + tmp_i) % CONST_WHEEL_SLOTS)).isEmpty())
+                return wheel_started_at + (wheel_pos + tmp_i) * CONST_WHEEL_SLOT_MILLIS;
+        return wheel_started_at + (wheel_pos + CONST_WHEEL_SLOTS) * CONST_WHEEL_SLOT_MILLIS;
+
+    }
+
+    private void AdvanceWheel() {
+
+        long tmp_now = System.currentTimeMillis();
+        while (tmp_now >= (wheel_started_at + (wheel_pos + 1) * CONST_WHEEL_SLOT_MILLIS)) {
+            wheel_pos++;
+            ArrayList<LinkMgrTcpMux> tmp_slot = wheel.get((int)(wheel_pos % CONST_WHEEL_SLOTS));
+            if (tmp_slot.isEmpty()) continue;
+            ArrayList<LinkMgrTcpMux> tmp_due = new ArrayList<LinkMgrTcpMux>(tmp_slot);
+            tmp_slot.clear();
+            for (LinkMgrTcpMux tmp_mux: tmp_due)
+                if (tmp_mux.next_tick_slot == wheel_pos) Serve(tmp_mux, false);
+        }
+
+    }
+
+    public void run() {
+
+        AppStopHooker.AddHook(this);
+
+        wheel_started_at = System.currentTimeMillis();
+        try {
+            while (!TerminateRequested) {
+                long tmp_wait = NextWakeupMillis() - System.currentTimeMillis();
+                if (tmp_wait > 0) selector.select(tmp_wait);
+                else selector.selectNow();
+
+                Set<SelectionKey> tmp_keys = selector.selectedKeys();
+                if (!tmp_keys.isEmpty()) {
+                    for (SelectionKey tmp_key: tmp_keys) {
+                        LinkMgrTcpMux tmp_mux = (LinkMgrTcpMux)tmp_key.attachment();
+                        boolean tmp_readable = false;
+                        try {
+                            tmp_readable = tmp_key.isReadable();
+                        } catch (CancelledKeyException ignored) { }
+                        Serve(tmp_mux, tmp_readable);
+                    }
+                    tmp_keys.clear();
+                }
+
+                LinkMgrTcpMux tmp_mux;
+                while (null != (tmp_mux = pending_new.poll())) {
+                    try {
+                        tmp_mux.Register(selector);
+                        sessions.add(tmp_mux);
+                        Schedule(tmp_mux, CONST_TICK_SLOTS_IDLE);
+                    } catch (Exception e) {
+                        session_count--;
+                        tmp_mux.ShutdownSrvLink("Failed to register in event loop: " + e);
+                        tmp_mux.Close();
+                    }
+                }
+
+                while (null != (tmp_mux = pending_wake.poll())) {
+                    tmp_mux.wake_queued.set(false);
+                    Serve(tmp_mux, false);
+                }
+
+                while (null != (tmp_mux = pending_done.poll())) Done(tmp_mux);
+
+                AdvanceWheel();
+            }
+        } catch (Exception e) {
+            Tum3Logger.DoLog(session_producer.getLogPrefixName(), true, "tcp event loop failed with: " + Tum3Util.getStackTrace(e));
+        }
+
+        TerminateRequested = true;
+        LinkMgrTcpMux tmp_mux;
+        while (null != (tmp_mux = pending_new.poll())) sessions.add(tmp_mux);
+        for (LinkMgrTcpMux tmp_session: sessions)
+            tmp_session.ShutdownSrvLink("Application is shutting down.");
+        long tmp_wait_until = System.currentTimeMillis() + CONST_SHUTDOWN_WAIT_MILLIS;
+        for (LinkMgrTcpMux tmp_session: sessions) {
+            while (tmp_session.in_service.get() && (System.currentTimeMillis() < tmp_wait_until)) Tum3Util.SleepExactly(10);
+            tmp_session.Close();
+        }
+        sessions.clear();
+        session_count = 0;
+
+        try {
+            selector.close();
+        } catch (Exception ignored) { }
+
+        AppStopHooker.RemoveHook(this);
+
+    }
+
+    public void AppStopped() {
+
+        TerminateRequested = true;
+        selector.wakeup();
+
+    }
+
+}
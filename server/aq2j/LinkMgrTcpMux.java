@@ -0,0 +1,356 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2j;
+
+
+import aq2db.*;
+
+
+import java.io.*;
+import java.nio.*;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+public final class LinkMgrTcpMux implements SrvLinkOwner, ClientWriter, Runnable {
+// Same as LinkMgrTcp, but without own thread and selector. All THRD_INTERNAL
+//  work is done by a worker of the LinkMgrTcpLoop this session is pinned to,
+//  one worker at a time, see run().
+
+    private SrvLinkBase sLink = null;
+    private volatile SocketChannel sc;
+    private final LinkMgrTcpLoop loop;
+    private SelectionKey key;
+    private Selector stall_selector = null;
+    private int key_base = SelectionKey.OP_READ;
+    private byte[] tmpOutputBuff;
+    private boolean tmp_recheck_sock = false;
+    private boolean use_zero_copy = false;
+    private boolean direct_sock_full = false;
+    private boolean closed = false;
+
+    private volatile boolean is_terminating = false;
+    private String terminating_reason = "";
+
+    private byte[] inpWebBuff;
+    private ByteBuffer inpBB, outBB;
+
+    private int CONST_TCP_BUFF_SIZE = 1;
+    private final static int CONST_SEND_LOOP_LIMIT_MILLIS = 50; // Note. Much less than in LinkMgrTcp to stay fair to other sessions sharing the workers.
+    private final static int INTRL_SOCK_FULL = 1;
+    private final static int INTRL_DATA_FULL = 2;
+
+    // Used by LinkMgrTcpLoop only.
+    final AtomicBoolean wake_queued = new AtomicBoolean(false);
+    long next_tick_slot = -1;
+    // Shared between LinkMgrTcpLoop and the worker.
+    final AtomicBoolean in_service = new AtomicBoolean(false);
+    final AtomicBoolean read_pending = new AtomicBoolean(false);
+    volatile boolean service_again = false, service_busy = false;
+
+    private volatile String transp_caller = "", transp_user = "", transp_agent = ""; // YYY
+    SessionProducerTcp session_producer;
+
+
+    public LinkMgrTcpMux(SessionProducerTcp _session_producer, SocketChannel this_sc, LinkMgrTcpLoop _loop) throws Exception
+    {
+        session_producer = _session_producer;
+        loop = _loop;
+        CONST_TCP_BUFF_SIZE = session_producer.get_CONST_TCP_BUFF_SIZE();
+        use_zero_copy = session_producer.UseZeroCopy();
+        String tmp_ip = this_sc.socket().getInetAddress().getHostAddress().toString();
+        String tmp_port = this_sc.socket().getPort() + "";
+        if (!tmp_ip.isEmpty() && !tmp_port.isEmpty()) transp_caller = tmp_ip + ":" + tmp_port;
+
+        sLink = session_producer.newSrvLink(this);
+
+        sc = this_sc;
+
+    }
+
+    public String get_transp_caller() { return transp_caller; }
+
+    public void set_transp_caller(String new_caller) { transp_caller = new_caller; } // YYY
+
+    public String get_transp_user() { return transp_user; }
+
+    public void set_transp_user(String new_user) { transp_user = new_user; } // YYY
+
+    public String get_transp_agent() { return transp_agent; }
+
+    public String get_transp_title() { return "tcp"; }
+
+    private void SetTerminate(String reason) {
+
+        synchronized(terminating_reason) {
+            is_terminating = true;
+            if (terminating_reason.isEmpty()) terminating_reason = reason;
+        }
+
+    }
+
+    boolean MustShutdownSrvLink() {
+
+        return is_terminating;
+
+    }
+
+    public void ShutdownSrvLink(String reason) {
+
+        if (null == reason) reason = ""; // YYY
+        if (reason.isEmpty()) reason = "Empty disconnect reason: " + Tum3Util.getStackTraceAuto(); // YYY
+        SetTerminate(reason);
+        loop.Wakeup(this);
+
+    }
+
+    public void WakeupMain() {
+
+        if (!is_terminating) loop.Wakeup(this);
+
+    }
+
+    public boolean isOpen() {
+        if (is_terminating || (null == sc)) return false;
+        return sc.isConnected();
+    }
+
+    void Register(Selector _selector) throws Exception {
+        // Reminder. This is called by the loop thread.
+
+        inpWebBuff = new byte[session_producer.CONST_MAX_INP_BUFF_BYTES()];
+        inpBB = ByteBuffer.wrap(inpWebBuff);
+        tmpOutputBuff = new byte[CONST_TCP_BUFF_SIZE];
+        outBB = ByteBuffer.wrap(tmpOutputBuff);
+        outBB.limit(0);
+
+        sc.configureBlocking(false);
+        sc.setOption(StandardSocketOptions.SO_SNDBUF, CONST_TCP_BUFF_SIZE);
+        sc.setOption(StandardSocketOptions.SO_RCVBUF, session_producer.CONST_MAX_INP_BUFF_BYTES());
+        key = sc.register(_selector, SelectionKey.OP_READ, this);
+
+        sLink.DoLink();
+
+    }
+
+    public void run() {
+        // Reminder. Started by the loop only after it won in_service, so there is never more than one
+        //  worker here for this session, and it is THRD_INTERNAL. Any requests to serve again
+        //  that came meanwhile are picked up before leaving.
+
+        boolean tmp_busy = false;
+        do {
+            service_again = false;
+            tmp_busy = Service(read_pending.getAndSet(false));
+            in_service.set(false);
+        } while (service_again && !MustShutdownSrvLink() && in_service.compareAndSet(false, true));
+        service_busy = tmp_busy;
+        loop.ServiceDone(this);
+
+    }
+
+    void SuspendReading() {
+        // Reminder. This is called by the loop thread, TrySendOut() restores it.
+
+        try {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        } catch (CancelledKeyException ignored) { }
+
+    }
+
+    private boolean Service(boolean _readable) {
+        // Reminder. This is called by the worker only, so it is THRD_INTERNAL here.
+        // Returns true if there is more output data pending and the next tick should come soon.
+
+        try {
+            if (_readable) ReadFromClient();
+            if (!MustShutdownSrvLink()) sLink.ClientReaderTick(SrvLink.THRD_INTERNAL, this);
+            if (!MustShutdownSrvLink()) return (TrySendOut(SelectionKey.OP_READ, false) & INTRL_DATA_FULL) != 0;
+        } catch (Exception e) {
+            SetTerminate("Exception in LinkMgrTcpMux: " + Tum3Util.getStackTrace(e));
+        }
+        return false;
+
+    }
+
+    void Close() {
+        // Reminder. This is called by the loop thread only, with no worker in service.
+
+        if (closed) return;
+        closed = true;
+
+        String tmp_reason = "";
+        synchronized(terminating_reason) {
+            is_terminating = true;
+            tmp_reason = terminating_reason;
+        }
+
+        Tum3Logger.DoLog(session_producer.getLogPrefixName(), false, "Closing communication with tcp*" + transp_caller + " (" + tmp_reason + ")");
+        sLink.CancelLink();
+
+        if (null != key) key.cancel();
+        if (null != stall_selector) try {
+            stall_selector.close();
+        } catch (Exception ignored) { }
+        stall_selector = null;
+
+        try {
+            sc.close();
+        } catch (Exception ignored) { }
+
+    }
+
+    private int ReadFromClient() throws IOException {
+        int tmpBytesCount = 0;
+        int tmp_last_count = 0;
+        do {
+            try {
+                inpBB.clear();
+                tmpBytesCount = sc.read(inpBB);
+                if (tmpBytesCount < 0) { // End-of-file sign.
+                    tmpBytesCount = 0;
+                    inpBB.limit(0);
+                    tmp_last_count = 0;
+                    throw new IOException("EOF indicated");
+                }
+                inpBB.position(0);
+                inpBB.limit(tmpBytesCount);
+                tmp_last_count = tmpBytesCount;
+            } catch (IOException e) {
+                SetTerminate("Error reading from client: " + e);
+                throw e;
+            }
+
+            if (tmpBytesCount > 0) {
+                try {
+                    sLink.SendToServer(SrvLink.THRD_INTERNAL, inpBB);
+                } catch(Exception e) {
+                    ShutdownSrvLink("Exception in LinkMgrTcpMux: " + e);
+                }
+            }
+        } while ((tmpBytesCount > 0) && !MustShutdownSrvLink());
+        return tmp_last_count;
+    }
+
+    private byte[] GetBuff() throws Exception {
+        if (outBB.remaining() > 0)
+            throw new Exception("[aq2j] FATAL: internal error: GetBuff() while not empty yet.");
+        return tmpOutputBuff;
+    }
+
+    private void SendToClient(int byteCount) throws Exception {
+
+        if (byteCount <= 0) return;
+        outBB.clear();
+        outBB.limit(byteCount);
+        sc.write(outBB);
+        if (outBB.remaining() <= 0) {
+            key.interestOps(key_base);
+        } else {
+            key.interestOps(key_base | SelectionKey.OP_WRITE);
+        }
+    }
+
+    public int AcceptFrom(OutBuffData src) throws Exception {
+
+        if (use_zero_copy) {
+            int tmp_direct_count = OutBuffData.SendDirect(src, sc, CONST_TCP_BUFF_SIZE);
+            if (tmp_direct_count >= 0) { // Note. Zero means the socket is full already.
+                direct_sock_full = (tmp_direct_count < CONST_TCP_BUFF_SIZE) && !src.SentAll();
+                if (direct_sock_full) key.interestOps(key_base | SelectionKey.OP_WRITE);
+                tmp_recheck_sock = true;
+                return tmp_direct_count;
+            }
+        }
+        int tmp_filled_count = src.SendToByteArray(GetBuff());
+        SendToClient(tmp_filled_count);
+        tmp_recheck_sock = true;
+        return tmp_filled_count;
+
+    }
+
+    public boolean SupportOOB() {
+        return false;
+    }
+
+    public void SendToClientAsOOB(String oobMsg) throws Exception {
+        Tum3Logger.DoLog(session_producer.getLogPrefixName(), true, "FATAL: internal error: SendToClientAsOOB() is not supported here.");
+        throw new Exception("[aq2j] FATAL: internal error: SendToClientAsOOB() is not supported here.");
+    }
+
+    public void close() throws Exception {
+        ShutdownSrvLink("Closed");
+    }
+
+    public boolean WaitForOutputDone(int timeout) throws Exception {
+        // Reminder. This is only called from the worker (THRD_INTERNAL).
+        // Note. The shared selector can not be waited on from here, so a private
+        //  one is opened for this socket, but only if it ever happens to get stuck.
+        //  Only this session's worker waits here, the loop and other sessions go on.
+
+        boolean tmp_socket_busy = (TrySendOut(0, true) & INTRL_SOCK_FULL) != 0;
+
+        if (tmp_socket_busy) {
+            if (null == stall_selector) {
+                stall_selector = Selector.open();
+                sc.register(stall_selector, SelectionKey.OP_WRITE);
+            }
+            if (stall_selector.select(timeout) > 0)
+                stall_selector.selectedKeys().clear();
+        }
+
+        return !tmp_socket_busy;
+
+    }
+
+    private int TrySendOut(int _key_base, boolean hurry) throws Exception {
+        // Reminder. This is only called from the worker (THRD_INTERNAL).
+        // See LinkMgrTcp.TrySendOut() for result values.
+
+        key_base = _key_base;
+        key.interestOps(key_base);
+        boolean tmp_data_done = false, tmp_sock_done = true;
+        boolean tmp_recheck_data = false;
+        long tmp_begin_millis = System.currentTimeMillis();
+        boolean tmp_timeout = false;
+        do {
+            tmp_recheck_sock = false;
+            if (outBB.remaining() > 0) {
+                sc.write(outBB);
+                if (outBB.remaining() <= 0) {
+                    key.interestOps(key_base);
+                    tmp_sock_done = true;
+                    tmp_recheck_data = true;
+                } else {
+                    key.interestOps(key_base | SelectionKey.OP_WRITE);
+                    return INTRL_SOCK_FULL;
+                }
+            } else {
+                tmp_recheck_data = false;
+                tmp_data_done = sLink.ReadFromServer2(SrvLink.THRD_INTERNAL, this, hurry);
+                if (direct_sock_full) {
+                    direct_sock_full = false;
+                    return INTRL_SOCK_FULL;
+                }
+            }
+            tmp_timeout = ((System.currentTimeMillis() - tmp_begin_millis) >= CONST_SEND_LOOP_LIMIT_MILLIS);
+        } while (((!tmp_data_done || tmp_recheck_data) || (!tmp_sock_done || tmp_recheck_sock)) && !tmp_timeout && !MustShutdownSrvLink());
+
+        if (!tmp_sock_done) return INTRL_SOCK_FULL;
+        else if (!tmp_data_done) return INTRL_DATA_FULL;
+        else return 0;
+
+    }
+
+}
@@ -13,7 +13,22 @@
 package aq2j;
 
 
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+
 public interface OutBuffData
 {
     public int SendToByteArray(byte[] buff) throws Exception;
+    public int SendToChannel(WritableByteChannel target, int max_count) throws Exception;
+    public int SendToGathering(GatheringByteChannel target, int max_count) throws Exception;
+    public boolean SentAll();
+
+    public static int SendDirect(OutBuffData src, GatheringByteChannel target, int max_count) throws Exception {
+        // Zero-copy attempt shared by the tcp link managers: header plus in-memory body, or file body.
+        // Returns -1 if not applicable (then SendToByteArray() must be used), 0 if the socket is full.
+        int tmp_count = src.SendToGathering(target, max_count);
+        if (tmp_count < 0) tmp_count = src.SendToChannel(target, max_count);
+        return tmp_count;
+    }
 }
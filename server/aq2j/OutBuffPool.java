@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2j;
+
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import aq2db.*;
+
+
+public final class OutBuffPool {
+// Global pool of OutgoingBuff arrays, shared by all sessions of all dbs.
+// Reminder: sizes are rounded up to power of 2 classes, arrays of the same class are interchangeable.
+//  Above the largest class nothing is pooled, so such arrays are allocated at the exact size.
+
+    private final static String TUM3_CFG_out_buff_pool_mbytes = "out_buff_pool_mbytes";
+    private final static String TUM3_CFG_out_buff_pool_idle_mbytes = "out_buff_pool_idle_mbytes";
+    private final static int CONST_POOL_MBYTES_default = 0; // Means no ceiling.
+    private final static int CONST_POOL_IDLE_MBYTES_default = 64;
+    private final static int CONST_MIN_CLASS_SHIFT = 12; // 4 kbytes.
+    private final static int CONST_MAX_CLASS_SHIFT = 24; // 16 mbytes, larger arrays are never kept. Note: rounding up wastes up to half, so not too high.
+
+    private static final OutBuffPool glbInstance = new OutBuffPool();
+
+    private final List<ConcurrentLinkedDeque<byte[]>> idle = new ArrayList<ConcurrentLinkedDeque<byte[]>>(); // Note: indexed by class shift.
+    private final AtomicLong total_bytes = new AtomicLong(0), idle_bytes = new AtomicLong(0);
+    private final AtomicLong cnt_borrowed = new AtomicLong(0), cnt_reused = new AtomicLong(0), cnt_over_ceiling = new AtomicLong(0);
+    private final long ceiling_bytes, idle_limit_bytes;
+
+
+    private OutBuffPool() {
+
+        Tum3cfg cfg = Tum3cfg.getGlbInstance();
+        ceiling_bytes = 1024L * 1024L * cfg.getIntValue(TUM3_CFG_out_buff_pool_mbytes, CONST_POOL_MBYTES_default);
+        idle_limit_bytes = 1024L * 1024L * cfg.getIntValue(TUM3_CFG_out_buff_pool_idle_mbytes, CONST_POOL_IDLE_MBYTES_default);
+        for (int tmp_i = 0; tmp_i <= CONST_MAX_CLASS_SHIFT; tmp_i++) idle.add((tmp_i < CONST_MIN_CLASS_SHIFT) ? null : new ConcurrentLinkedDeque<byte[]>());
+        Tum3Logger.DoLogGlb(false, "DEBUG: out buff pool ceiling=" + ceiling_bytes + ", idle limit=" + idle_limit_bytes);
+
+    }
+
+    public static OutBuffPool getInstance() {
+
+        return glbInstance;
+
+    }
+
+    private static int ClassOf(int _size) {
+
+        int tmp_shift = CONST_MIN_CLASS_SHIFT;
+        while ((tmp_shift < 31) && ((1 << tmp_shift) < _size)) tmp_shift++;
+        return tmp_shift;
+
+    }
+
+    public byte[] Borrow(int _size) {
+        // Reminder: never fails, the ceiling is enforced by Exhausted() in GetBuff() instead.
+
+        int tmp_class = ClassOf(_size);
+        cnt_borrowed.incrementAndGet();
+        if (tmp_class <= CONST_MAX_CLASS_SHIFT) {
+            byte[] tmp_arr = idle.get(tmp_class).pollFirst();
+            if (null != tmp_arr) {
+                idle_bytes.addAndGet(-tmp_arr.length);
+                cnt_reused.incrementAndGet();
+                return tmp_arr;
+            }
+        }
+        int tmp_len = (tmp_class <= CONST_MAX_CLASS_SHIFT) ? (1 << tmp_class) : _size;
+        if ((ceiling_bytes > 0) && ((total_bytes.get() + tmp_len) > ceiling_bytes)) {
+            TrimIdle(total_bytes.get() + tmp_len - ceiling_bytes);
+            if ((total_bytes.get() + tmp_len) > ceiling_bytes) cnt_over_ceiling.incrementAndGet();
+        }
+        total_bytes.addAndGet(tmp_len);
+        return new byte[tmp_len];
+
+    }
+
+    public void Release(byte[] _arr) {
+
+        if (null == _arr) return;
+        int tmp_class = ClassOf(_arr.length);
+        boolean tmp_keep = (tmp_class <= CONST_MAX_CLASS_SHIFT) && ((1 << tmp_class) == _arr.length)
+                            && ((idle_bytes.get() + _arr.length) <= idle_limit_bytes)
+                            && ((ceiling_bytes <= 0) || (total_bytes.get() <= ceiling_bytes));
+        if (tmp_keep) {
+            idle_bytes.addAndGet(_arr.length);
+            idle.get(tmp_class).offerFirst(_arr);
+        } else
+            total_bytes.addAndGet(-_arr.length);
+
+    }
+
+    public void Disown(byte[] _arr) {
+        // Note. For a borrowed array which will never be given back (e.g. kept by some request handler).
+
+        if (null != _arr) total_bytes.addAndGet(-_arr.length);
+
+    }
+
+    private void TrimIdle(long _need_bytes) {
+        // Note. Largest classes go first, they are the least likely to be reused soon.
+
+        long tmp_freed = 0;
+        for (int tmp_i = CONST_MAX_CLASS_SHIFT; (tmp_i >= CONST_MIN_CLASS_SHIFT) && (tmp_freed < _need_bytes); tmp_i--) {
+            byte[] tmp_arr;
+            while ((tmp_freed < _need_bytes) && (null != (tmp_arr = idle.get(tmp_i).pollLast()))) {
+                idle_bytes.addAndGet(-tmp_arr.length);
+                total_bytes.addAndGet(-tmp_arr.length);
+                tmp_freed += tmp_arr.length;
+            }
+        }
+
+    }
+
+    public boolean Exhausted() {
+
+        return (ceiling_bytes > 0) && ((total_bytes.get() - idle_bytes.get()) >= ceiling_bytes);
+
+    }
+
+    public String StatusStr() {
+
+        return "total=" + total_bytes.get() + ", idle=" + idle_bytes.get() + ", borrowed=" + cnt_borrowed.get()
+                + ", reused=" + cnt_reused.get() + ", over_ceiling=" + cnt_over_ceiling.get();
+
+    }
+
+}
@@ -14,6 +14,9 @@ package aq2j;
 
 
 import java.nio.*;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
 import java.io.*;
 
 import aq2db.*;
@@ -22,6 +25,10 @@ import aq2net.*;
 
 public class OutgoingBuff implements TumProtoConsts, OutBuffData {
 
+    public final static byte OUT_PRIO_CONTROL = 0;     // Keepalives and talk messages.
+    public final static byte OUT_PRIO_INTERACTIVE = 1; // Replies and notices somebody is looking at the screen for.
+    public final static byte OUT_PRIO_BULK = 2;        // Trace data and whatever must stay in order with it.
+
     private byte[] real_buff;
     private ByteBuffer byte_buff;
     private int curr_size_total = 0;
@@ -35,6 +42,8 @@ public class OutgoingBuff implements TumProtoConsts, OutBuffData {
     private int seg_size = 0;
     private boolean is_last_seg = true;    
     private int const_min_out_buff; //private int db_index; // YYY
+    private byte out_prio = OUT_PRIO_INTERACTIVE;
+    private String out_shot = null;
 
 
     public OutgoingBuff(int _min_out_buff) { // YYY
@@ -50,6 +59,8 @@ public class OutgoingBuff implements TumProtoConsts, OutBuffData {
 
     public void InitSrvReply(byte rep_code, int realSize, int trailingSize, OutBuffContinuator thisContinuator) {
 
+        out_prio = OutPrioOf(rep_code);
+        out_shot = null;
         curr_size_total = trailingSize;
         curr_sent_count = 0;
         in_continuator = false;
@@ -66,11 +77,11 @@ public class OutgoingBuff implements TumProtoConsts, OutBuffData {
                 curr_trace_number = 1;
             }
         }
-        if (real_buff != null) if (real_buff.length < (8+realSize)) real_buff = null;
+        if (real_buff != null) if (real_buff.length < (8+realSize)) ReleaseBuff();
         if (real_buff == null) {
             int tmp_size = 8+realSize;
             if (tmp_size < const_min_out_buff) tmp_size = const_min_out_buff;
-            real_buff = new byte[tmp_size];
+            real_buff = OutBuffPool.getInstance().Borrow(tmp_size);
             byte_buff = ByteBuffer.wrap(real_buff);
             byte_buff.order(ByteOrder.LITTLE_ENDIAN);
         } else {
@@ -86,6 +97,8 @@ public class OutgoingBuff implements TumProtoConsts, OutBuffData {
 
     public void InitSrvReply(int fullSize) {
 
+        out_prio = OUT_PRIO_INTERACTIVE;
+        out_shot = null;
         curr_size_total = fullSize - 8;
         curr_sent_count = 0;
         in_continuator = false;
@@ -94,11 +107,11 @@ public class OutgoingBuff implements TumProtoConsts, OutBuffData {
         curr_trace_size = 0;
         curr_trace_number = 0;
 
-        if (real_buff != null) if (real_buff.length < fullSize) real_buff = null;
+        if (real_buff != null) if (real_buff.length < fullSize) ReleaseBuff();
         if (real_buff == null) {
             int tmp_size = fullSize;
             if (tmp_size < const_min_out_buff) tmp_size = const_min_out_buff;
-            real_buff = new byte[tmp_size];
+            real_buff = OutBuffPool.getInstance().Borrow(tmp_size);
             byte_buff = ByteBuffer.wrap(real_buff);
             byte_buff.order(ByteOrder.LITTLE_ENDIAN);
         } else {
@@ -106,6 +119,43 @@ public class OutgoingBuff implements TumProtoConsts, OutBuffData {
         }
     }
 
+    private static byte OutPrioOf(byte rep_code) {
+
+        switch (rep_code) {
+            case REQUEST_TYPE_ANYBODYTHERE:
+            case REQUEST_TYPE_KEEPCONNECTED:
+            case REQUEST_TYPE_TALKMSG_IN:
+                return OUT_PRIO_CONTROL;
+            case REQUEST_TYPE_TRACECOME:
+            case REQUEST_TYPE_TRACECOME_X:
+            case REQUEST_TYPE_TRACECOME_S:
+            case REQUEST_TYPE_TRACENOTAVAIL:
+            case REQUEST_TYPE_DECIMATEDCOME:
+            case REQUEST_TYPE_DOWNLOAD_PAUSED: // Note. Must not get ahead of the data it is about.
+            case REQUEST_TYPE_INVALIDATEMANY:  // Note. Refers to many shots, so just keep it in order.
+            case REQUEST_TYPE_PROGRAMFILECOMING:
+                return OUT_PRIO_BULK;
+        }
+        return OUT_PRIO_INTERACTIVE;
+
+    }
+
+    public void SetOutShot(String _shot_name) {
+        // Note. Trace data of a shot and notices about the same shot are never reordered, see SrvLinkBase.PickNextOut().
+        //  Reset by InitSrvReply().
+
+        out_shot = _shot_name;
+
+    }
+
+    public byte GetOutPrio() {
+        return out_prio;
+    }
+
+    public String GetOutShot() {
+        return out_shot;
+    }
+
     public void SetSegment(long _seg_ofs, int _seg_size, boolean _is_last_seg) {
 
         seg_ofs = _seg_ofs;
@@ -143,6 +193,92 @@ public class OutgoingBuff implements TumProtoConsts, OutBuffData {
         return curr_sent_count;
     }
 
+    public byte GetReplyCode() {
+        return real_buff[0];
+    }
+
+    public int GetTrailingSize() {
+        return byte_buff.position() - 8 + curr_continuator_len;
+    }
+
+    public int CompressReply(Deflater _deflater, byte _wrap_code) throws Exception {
+        // Replaces the whole reply, including the continuator part if any, with _wrap_code reply:
+        //  byte original code, int original trailing size, then zlib stream of the original trailing bytes.
+        // Returns the number of bytes saved, 0 if the reply was left as is.
+        // Note. The continuator is drained and closed here, so if compression does not pay off,
+        //  the original reply is still sent, just from memory.
+        // Reminder: everything is read and deflated synchronously, so the caller must keep
+        //  continuator-backed replies small (see SrvLink.WireCompress()).
+        // Reminder: GetTraceSize()/GetTraceNumber() keep the original values for the queue accounting.
+
+        if ((curr_sent_count != 0) || in_continuator) return 0;
+        int tmp_hdr_fill = byte_buff.position();
+        int tmp_raw_trailing = tmp_hdr_fill - 8 + curr_continuator_len;
+        byte[] tmp_raw = OutBuffPool.getInstance().Borrow(8 + tmp_raw_trailing);
+        byte[] tmp_comp = null;
+        try {
+            System.arraycopy(real_buff, 0, tmp_raw, 0, tmp_hdr_fill);
+            int tmp_filled = tmp_hdr_fill;
+            if (null != curr_continuator) {
+                curr_continuator.EnsureOfs(seg_ofs);
+                while (tmp_filled < (8 + tmp_raw_trailing)) {
+                    int tmp_n = curr_continuator.ReadTo(tmp_raw, tmp_filled, 8 + tmp_raw_trailing - tmp_filled);
+                    if (tmp_n <= 0) throw new Exception("Internal error: continuator ended at " + (tmp_filled - tmp_hdr_fill) + " of " + curr_continuator_len + " in CompressReply()");
+                    tmp_filled += tmp_n;
+                }
+                OutBuffContinuator tmp_continuator = curr_continuator;
+                curr_continuator = null;
+                curr_continuator_len = 0;
+                tmp_continuator.close();
+            }
+
+            int tmp_limit = tmp_raw_trailing - (tmp_raw_trailing >> 3) - 5; // Note. Must save at least 1/8.
+            int tmp_comp_len = 0;
+            if (tmp_limit > 0) {
+                tmp_comp = OutBuffPool.getInstance().Borrow(8 + 5 + tmp_limit);
+                _deflater.reset();
+                _deflater.setInput(tmp_raw, 8, tmp_raw_trailing);
+                _deflater.finish();
+                int tmp_n;
+                do {
+                    tmp_n = _deflater.deflate(tmp_comp, 8 + 5 + tmp_comp_len, tmp_limit - tmp_comp_len);
+                    tmp_comp_len += tmp_n;
+                } while (!_deflater.finished() && (tmp_n > 0) && (tmp_comp_len < tmp_limit));
+                if (!_deflater.finished()) tmp_comp_len = 0;
+            }
+
+            int tmp_saved = 0;
+            byte[] tmp_old = real_buff;
+            if (tmp_comp_len > 0) {
+                real_buff = tmp_comp;
+                tmp_comp = null;
+                byte_buff = ByteBuffer.wrap(real_buff);
+                byte_buff.order(ByteOrder.LITTLE_ENDIAN);
+                byte_buff.put(_wrap_code);
+                byte_buff.put(REQUEST_SIGN3);
+                byte_buff.put(REQUEST_SIGN2);
+                byte_buff.put(REQUEST_SIGN1);
+                byte_buff.putInt(5 + tmp_comp_len);
+                byte_buff.put(tmp_raw[0]);
+                byte_buff.putInt(tmp_raw_trailing);
+                byte_buff.position(8 + 5 + tmp_comp_len);
+                tmp_saved = tmp_raw_trailing - 5 - tmp_comp_len;
+            } else {
+                real_buff = tmp_raw;
+                tmp_raw = null;
+                byte_buff = ByteBuffer.wrap(real_buff);
+                byte_buff.order(ByteOrder.LITTLE_ENDIAN);
+                byte_buff.position(8 + tmp_raw_trailing);
+            }
+            curr_size_total = byte_buff.position() - 8;
+            OutBuffPool.getInstance().Release(tmp_old);
+            return tmp_saved;
+        } finally {
+            OutBuffPool.getInstance().Release(tmp_raw);
+            OutBuffPool.getInstance().Release(tmp_comp);
+        }
+    }
+
     public void putInt(int i) {
         byte_buff.putInt(i);
     }
@@ -213,8 +349,46 @@ public class OutgoingBuff implements TumProtoConsts, OutBuffData {
         return tmp_count;
     }
 
+    public int SendToChannel(WritableByteChannel target, int max_count) throws Exception {
+        // Zero-copy path for the continuator part only, the header always goes through SendToByteArray().
+        // Reminder: result -1 means the caller should fall back to SendToByteArray(), 0 means the socket is full.
+        if (!in_continuator) return -1;
+        if (!(curr_continuator instanceof OutBuffChannelContinuator)) return -1;
+        int tmp_count = byte_buff.position() + curr_continuator_len - curr_sent_count;
+        if (tmp_count > max_count) tmp_count = max_count;
+        if (tmp_count <= 0) return -1;
+        curr_continuator.EnsureOfs(seg_ofs + curr_sent_count - byte_buff.position());
+        tmp_count = ((OutBuffChannelContinuator)curr_continuator).TransferTo(target, tmp_count);
+        curr_sent_count += tmp_count;
+        return tmp_count;
+    }
+
+    public int SendToGathering(GatheringByteChannel target, int max_count) throws Exception {
+        // Sends what is left of the header together with the in-memory continuator body
+        //  in one gathering write, so that the body is not copied into the caller's array.
+        // Reminder: result -1 means the caller should fall back to SendToChannel() or SendToByteArray(), 0 means the socket is full.
+        if (!(curr_continuator instanceof OutBuffBufferContinuator)) return -1;
+        int tmp_hdr_end = byte_buff.position();
+        int tmp_hdr_count = in_continuator ? 0 : (tmp_hdr_end - curr_sent_count);
+        if (tmp_hdr_count >= max_count) return -1; // Note. Unlikely, just not worth it.
+        int tmp_body_count = tmp_hdr_end + curr_continuator_len - curr_sent_count - tmp_hdr_count;
+        if (tmp_body_count > (max_count - tmp_hdr_count)) tmp_body_count = max_count - tmp_hdr_count;
+        if (tmp_body_count <= 0) return -1;
+        OutBuffBufferContinuator tmp_continuator = (OutBuffBufferContinuator)curr_continuator;
+        tmp_continuator.EnsureOfs(seg_ofs + curr_sent_count + tmp_hdr_count - tmp_hdr_end);
+        ByteBuffer tmp_body = tmp_continuator.BodySlice(tmp_body_count);
+        if (null == tmp_body) return -1;
+        ByteBuffer tmp_head = ByteBuffer.wrap(real_buff, curr_sent_count, tmp_hdr_count);
+        int tmp_count = (int)target.write(new ByteBuffer[] { tmp_head, tmp_body });
+        tmp_continuator.BodySent(tmp_body.position());
+        curr_sent_count += tmp_count;
+        if (curr_sent_count >= tmp_hdr_end) in_continuator = true;
+        return tmp_count;
+    }
+
     public boolean SentAll() {
         //Tum3Logger.DoLog("OutgoingBuff", true, "[debug] SentAll(): " + curr_sent_count + "," + byte_buff.position() + ", " + curr_continuator_len);
+        if (null == byte_buff) return true; // Already given back to the pool.
         return curr_sent_count >= (byte_buff.position() + curr_continuator_len);
     }
 
@@ -229,6 +403,16 @@ public class OutgoingBuff implements TumProtoConsts, OutBuffData {
         if (null != tmp_continuator) {
             tmp_continuator.close();
         }
+        ReleaseBuff();
+    }
+
+    public void ReleaseBuff() {
+        // Note. Gives the array back to OutBuffPool, next InitSrvReply() will borrow again.
+        if (null != real_buff) {
+            OutBuffPool.getInstance().Release(real_buff);
+            real_buff = null;
+            byte_buff = null;
+        }
     }
 
     //public void ReleaseContinuator() {
@@ -23,6 +23,11 @@ public abstract class SessionProducerTcp {
     protected final static String TUM3_CFG_tcp_listen_port = "tcp_listen_port";
     protected final static String TUM3_CFG_tcp_listen_ip = "tcp_listen_ip";
     protected final static String TUM3_CFG_tcp_raw_out_buff_kbytes = "tcp_raw_out_buff_kbytes";
+    protected final static String TUM3_CFG_tcp_zero_copy = "tcp_zero_copy";
+    protected final static String TUM3_CFG_tcp_event_loop_threads = "tcp_event_loop_threads";
+    protected final static String TUM3_CFG_tcp_event_loop_workers = "tcp_event_loop_workers";
+    protected final static String TUM3_CFG_tcp_blocking_sessions = "tcp_blocking_sessions";
+    protected final static String TUM3_CFG_tcp_write_timeout_sec = "tcp_write_timeout_sec";
 
     public abstract int get_CONST_TCP_BUFF_SIZE();
 
@@ -38,6 +43,28 @@ public abstract class SessionProducerTcp {
 
     public abstract SrvLinkBase newSrvLink(SrvLinkOwner thisOwner);
 
+    public boolean UseZeroCopy() {
+        return false;
+    }
+
+    public int EventLoopThreads() {
+        // Note. Zero means classic thread-per-connection LinkMgrTcp.
+        return 0;
+    }
+
+    public int EventLoopWorkers() {
+        return 1;
+    }
+
+    public boolean UseBlockingSessions() {
+        return false;
+    }
+
+    public int WriteTimeoutSec() {
+        // Note. Only used by LinkMgrTcpBlocking, zero means no limit.
+        return 0;
+    }
+
     public static class ParseListenAddr { // YYY
 
         public final String listen_ip;
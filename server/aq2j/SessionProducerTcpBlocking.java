@@ -0,0 +1,42 @@
+/*
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
+ *
+ * This file is provided under the terms of the GNU General Public
+ * License version 2. Please see LICENSE file at the uppermost
+ * level of the repository.
+ *
+ * Unless required by applicable law or agreed to in writing, this
+ * software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OF ANY KIND.
+ *
+ */
+package aq2j;
+
+
+import aq2db.*;
+
+
+public class SessionProducerTcpBlocking extends SessionProducerTcpStd {
+// Same as SessionProducerTcpStd, but sessions run as LinkMgrTcpBlocking
+//  (virtual threads) instead of LinkMgrTcp.
+
+    private final static int CONST_WRITE_TIMEOUT_SEC_default = 60;
+
+    private final int write_timeout_sec;
+
+    public SessionProducerTcpBlocking(int _db_idx) {
+
+        super(_db_idx);
+        write_timeout_sec = Tum3cfg.getIntValue(_db_idx, true, TUM3_CFG_tcp_write_timeout_sec, CONST_WRITE_TIMEOUT_SEC_default);
+
+    }
+
+    public int WriteTimeoutSec() {
+        return write_timeout_sec;
+    }
+
+    public boolean UseBlockingSessions() {
+        return true;
+    }
+
+}
@@ -22,6 +22,9 @@ public class SessionProducerTcpStd extends SessionProducerTcp {
     private static int CONST_MAX_INP_BUFF_BYTES_all[] = InitMaxInpBuffConst(); // should be per-db now.
     private int db_index;
     private String db_name;
+    private boolean use_zero_copy;
+    private int event_loop_threads, event_loop_workers;
+    private final static int CONST_EVENT_LOOP_WORKERS_default = 16;
 
 
     private static final int[] InitMaxInpBuffConst() {
@@ -40,6 +43,21 @@ public class SessionProducerTcpStd extends SessionProducerTcp {
 
         db_index = _db_idx;
         db_name = Tum3cfg.getGlbInstance().getDbName(db_index);
+        use_zero_copy = "1".equals(Tum3cfg.getParValue(db_index, true, TUM3_CFG_tcp_zero_copy, "1").trim());
+        event_loop_threads = Tum3cfg.getIntValue(db_index, true, TUM3_CFG_tcp_event_loop_threads, 0);
+        if (event_loop_threads < 0) event_loop_threads = Runtime.getRuntime().availableProcessors(); // YYY
+        event_loop_workers = Math.max(1, Tum3cfg.getIntValue(db_index, true, TUM3_CFG_tcp_event_loop_workers, CONST_EVENT_LOOP_WORKERS_default));
+
+    }
+
+    public static SessionProducerTcpStd Create(int _db_idx) {
+
+        if ("1".equals(Tum3cfg.getParValue(_db_idx, true, TUM3_CFG_tcp_blocking_sessions, "0").trim())) {
+            if (LinkMgrTcpBlocking.VirtualThreadsAvailable())
+                return new SessionProducerTcpBlocking(_db_idx);
+            Tum3Logger.DoLog(Tum3cfg.getGlbInstance().getDbName(_db_idx), true, "Note: " + TUM3_CFG_tcp_blocking_sessions + " needs a runtime with virtual threads, using regular tcp sessions instead.");
+        }
+        return new SessionProducerTcpStd(_db_idx);
 
     }
 
@@ -55,6 +73,18 @@ public class SessionProducerTcpStd extends SessionProducerTcp {
 
     }
 
+    public boolean UseZeroCopy() {
+        return use_zero_copy;
+    }
+
+    public int EventLoopThreads() {
+        return event_loop_threads;
+    }
+
+    public int EventLoopWorkers() {
+        return event_loop_workers;
+    }
+
     public int get_CONST_TCP_BUFF_SIZE() {
         return CONST_TCP_BUFF_SIZE_bytes;
     }
@@ -16,6 +16,8 @@ package aq2j;
 import java.io.*;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
 
 import aq2db.*;
 import aq2net.*;
@@ -26,12 +28,115 @@ class TraceRequest {
     public String ShotName;
     public int SignalId;
 
+    // Read-ahead state, see SrvLink.PrefetchAhead(). Protected by synchronized(this).
+    private Future<?> prefetch_task = null;
+    private OutBuffContinuator prefetched = null;
+    private Exception prefetch_error = null;
+    private boolean prefetch_discarded = false, prefetch_trailing = false;
+
     public TraceRequest(String thisName, int thisId) {
         ShotName = thisName;
         SignalId = thisId;
         //System.out.println("[aq2j] DEBUG: <" + Thread.currentThread().getId() + "> TraceRequest(" + thisName + ", " + thisId + ")");
     }
 
+    private static OutBuffContinuator OpenNow(Tum3Db _db, String _shot_name, int _signal_id, boolean _use_trailing) throws Exception {
+
+        OutBuffContinuator tmp_trace_data = null;
+        Tum3Shot tmp_shot = _db.getShot(_shot_name, true);
+        if (tmp_shot != null) {
+            tmp_trace_data = tmp_shot.getTraceReader(_signal_id, _use_trailing);
+            tmp_shot.ShotRelease();
+        }
+        return tmp_trace_data;
+
+    }
+
+    public synchronized boolean PrefetchStarted() {
+
+        return (null != prefetch_task);
+
+    }
+
+    public synchronized void StartPrefetch(ExecutorService _executor, final Tum3Db _db, final boolean _use_trailing) {
+
+        prefetch_trailing = _use_trailing;
+        prefetch_discarded = false;
+        prefetch_task = _executor.submit(new Runnable() {
+            public void run() {
+                OutBuffContinuator tmp_data = null;
+                Exception tmp_error = null;
+                try {
+                    tmp_data = OpenNow(_db, ShotName, SignalId, _use_trailing);
+                } catch (Exception e) {
+                    tmp_error = e;
+                }
+                boolean tmp_unwanted;
+                synchronized(TraceRequest.this) {
+                    tmp_unwanted = prefetch_discarded;
+                    if (!tmp_unwanted) {
+                        prefetched = tmp_data;
+                        prefetch_error = tmp_error;
+                    }
+                }
+                if (tmp_unwanted && (null != tmp_data)) try { tmp_data.close(); } catch (Exception ignored) { }
+            }
+        });
+
+    }
+
+    public OutBuffContinuator OpenReader(Tum3Db _db, boolean _use_trailing) throws Exception {
+        // Note. Falls back to opening right here if there was no read-ahead or it can not be used.
+
+        Future<?> tmp_task;
+        synchronized(this) { tmp_task = prefetch_task; }
+        if ((null != tmp_task) && tmp_task.cancel(false)) {
+            // Note. Still queued behind other sessions' read-ahead, so it is faster to just open it here.
+            synchronized(this) { prefetch_task = null; }
+            tmp_task = null;
+        }
+        if (null != tmp_task) {
+            try {
+                tmp_task.get(); // Note. Already running or done, so this waits for the same work at most.
+            } catch (Exception ignored) { } // Cancelled, nothing to take then.
+            OutBuffContinuator tmp_data;
+            Exception tmp_error;
+            boolean tmp_trailing;
+            synchronized(this) {
+                tmp_data = prefetched;
+                tmp_error = prefetch_error;
+                tmp_trailing = prefetch_trailing;
+                prefetched = null;
+                prefetch_error = null;
+                prefetch_task = null;
+            }
+            if (null != tmp_error) throw tmp_error;
+            // Reminder: "please wait" or "not available" state might be over by now, so these are rechecked at the time of sending.
+            if (null != tmp_data) {
+                if ((tmp_trailing == _use_trailing) && !tmp_data.PleaseWait()) return tmp_data;
+                tmp_data.close();
+            }
+        }
+        return OpenNow(_db, ShotName, SignalId, _use_trailing);
+
+    }
+
+    public void DiscardPrefetch() {
+
+        OutBuffContinuator tmp_data;
+        synchronized(this) {
+            if (null == prefetch_task) return;
+            prefetch_task.cancel(false);
+            prefetch_discarded = true;
+            tmp_data = prefetched;
+            prefetched = null;
+            prefetch_error = null;
+            prefetch_task = null;
+        }
+        if (null != tmp_data) try { tmp_data.close(); } catch (Exception ignored) { }
+
+    }
+
     public boolean equals(String thisName, int thisId) {
 
         return thisName.equals(ShotName) && (thisId == SignalId);
@@ -102,6 +207,55 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
 
     private static final int CONST_MAX_TRACE_OUT_QUEUE_BYTES[];
     private static final int CONST_MAX_TRACE_OUT_QUEUE_LEN[];
+    private static final int CONST_TRACE_PREFETCH_DEPTH[];
+
+    private final static String TUM3_CFG_trace_prefetch_depth = "trace_prefetch_depth";
+    private final static String TUM3_CFG_trace_prefetch_threads = "trace_prefetch_threads";
+    private final static int CONST_TRACE_PREFETCH_DEPTH_default = 4;
+    private final static int CONST_TRACE_PREFETCH_THREADS_default = 4;
+
+    private static final int CONST_WIRE_COMPRESS_LEVEL[];
+    private static final int CONST_WIRE_COMPRESS_MIN_BYTES[];
+    private static final int CONST_WIRE_COMPRESS_MAX_BYTES[];
+    private static final int CONST_WIRE_COMPRESS_FILE_MAX_BYTES[];
+    private static final int CONST_WIRE_COMPRESS_CPU_PERCENT[];
+
+    private final static String TUM3_CFG_wire_compress_level = "wire_compress_level";
+    private final static String TUM3_CFG_wire_compress_min_bytes = "wire_compress_min_bytes";
+    private final static String TUM3_CFG_wire_compress_max_kbytes = "wire_compress_max_kbytes";
+    private final static String TUM3_CFG_wire_compress_file_kbytes = "wire_compress_file_kbytes";
+    private final static String TUM3_CFG_wire_compress_cpu_percent = "wire_compress_cpu_percent";
+    private final static int CONST_WIRE_COMPRESS_LEVEL_default = 1;
+    private final static int CONST_WIRE_COMPRESS_MIN_BYTES_default = 4096;
+    private final static int CONST_WIRE_COMPRESS_MAX_KBYTES_default = 16384;
+    private final static int CONST_WIRE_COMPRESS_FILE_KBYTES_default = 256; // Note. Replies streamed from a file (continuator) above this are sent plain.
+    private final static int CONST_WIRE_COMPRESS_CPU_PERCENT_default = 25; // Note. 0 disables wire compression regardless of clients.
+    private final static long CONST_WIRE_BUDGET_CAP_NANOS = 1000000000L;
+
+    private static final int CONST_UPLOAD_STREAM_MIN_BYTES[];
+    private final static String TUM3_CFG_upload_stream_min_kbytes = "upload_stream_min_kbytes";
+    private final static int CONST_UPLOAD_STREAM_MIN_KBYTES_default = 1024; // Note. 0 disables, then uploads are always collected in memory first.
+
+    private static final int CONST_OUT_BULK_SEGMENT_BYTES[];
+    private final static String TUM3_CFG_out_bulk_segment_kbytes = "out_bulk_segment_kbytes";
+    private final static int CONST_OUT_BULK_SEGMENT_KBYTES_default = 1024; // Note. Smaller segments let other replies in sooner. 0 means only FModeratedDownloadBytes applies.
+
+    private static final int CONST_DOWNLOAD_WINDOW_MAX_BYTES[];
+    private final static String TUM3_CFG_download_window_max_kbytes = "download_window_max_kbytes";
+    private final static int CONST_DOWNLOAD_WINDOW_MAX_KBYTES_default = 65536; // Note. 0 disables FEATURE_DOWNLOAD_CREDIT, then the old pause/resume is used.
+    private final static int CONST_DOWNLOAD_WINDOW_MIN_BYTES = 256*1024;
+    private final static int CONST_CREDIT_MARKS_PER_WINDOW = 4;
+    private final static int CONST_DL_IDLE_GAP_MILLIS = 1000;
+
+    private final static String TUM3_CFG_req_offload_threads = "req_offload_threads";
+    private final static String TUM3_CFG_req_offload_queue = "req_offload_queue";
+    private final static int CONST_REQ_OFFLOAD_THREADS_default = 4; // Note. 0 disables, then all requests are handled by the session thread as before.
+    private final static int CONST_REQ_OFFLOAD_QUEUE_default = 64;
+    private final static int CONST_MAX_DEFERRED_REQS = 1000;
+
+    private final static byte REQ_CLASS_ORDERED = 0; // Handled by the session thread, after any offloaded request before it.
+    private final static byte REQ_CLASS_FREE = 1;    // Handled by the session thread right away, even if an offloaded request is still in progress.
+    private final static byte REQ_CLASS_OFFLOAD = 2; // Slow part handled by a request offload thread, see OffloadedReq.
 
     private boolean WasAuthorized = false;
     private volatile int FFeatureSelectWord = 0; // Moved from local.
@@ -114,6 +268,15 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
     private volatile byte[] bin_username = null;
     private Tum3Db dbLink = null;
     private ShotWriteHelper currWritingShotHelper = null;
+    private final ArrayDeque<String[]> DoneUploadsQueue = new ArrayDeque<String[]>(); // Filled by write pipeline threads: {shot name, signal id, error}.
+    private final ArrayDeque<String[]> DoneDensityQueue = new ArrayDeque<String[]>(); // Filled by density editor threads: {shot name, signal id, error}.
+    private final HashMap<String, SegUpload> SegUploads = new HashMap<String, SegUpload>(); // Protected by itself.
+    private final ArrayDeque<OffloadedReq> DoneOffloadQueue = new ArrayDeque<OffloadedReq>(); // Filled by request offload threads.
+    private OffloadedReq OffloadPending = null; // Note. At most one per session, the next one waits in DeferredReqs.
+    private final ArrayDeque<DeferredReq> DeferredReqs = new ArrayDeque<DeferredReq>();
+    private boolean req_body_deferred = false; // Note. Set while executing a request from DeferredReqs, which already owns its body.
+    private final static int CONST_MAX_SEG_UPLOADS = 16;
+    private final static int CONST_SEG_UPLOAD_IDLE_SEC = 600;
     private ReqTraceListClass PausedTraceList = new ReqTraceListClass();
     private ReqTraceListClass PendingTraceList = new ReqTraceListClass();
 
@@ -130,8 +293,24 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
     private volatile int FReplyQueue_size;
     private boolean FDoModerateDownloadRate;
     private volatile boolean FModerateNeedSendRequest, FModerateRequestWasSent;
+
+    // Credit based download flow control (FEATURE_DOWNLOAD_CREDIT), see CreditFlow(). Session thread only.
+    private final ArrayDeque<long[]> FCreditMarks = new ArrayDeque<long[]>(); // {checkpoint, sent at millis}, not yet echoed.
+    private long FCreditQueued = 0, FCreditAcked = 0, FCreditNextMark = 0, FCreditLastAckAt = 0;
+    private long FCreditSrttMillis = 0, FCreditMinRttMillis = 0, FCreditRate = 0; // Note. Rate in bytes per second.
+    private int FCreditWindow = 0;
+    private boolean FCreditWasLimited = false;
+
+    // Download stats of this session, logged at the end. Session thread only.
+    private long FDlBytes = 0, FDlBusyMillis = 0, FDlPeriodStart = 0, FDlLastAt = 0, FDlPausedMillis = 0, FDlPausedAt = 0;
+    private int FDlPauses = 0, FCreditMaxWindow = 0;
     private boolean use_tracecome_x = false;
 
+    private final Object WireCompressLock = new Object();
+    private Deflater wire_deflater = null; // Protected by WireCompressLock.
+    private long wire_budget_nanos = CONST_WIRE_BUDGET_CAP_NANOS, wire_budget_stamp = System.nanoTime();
+    private long wire_raw_bytes = 0, wire_saved_bytes = 0, wire_skipped_count = 0;
+
     private int found_look4ver = 0;
     private Tum3AppUpdateHelper app_helper = null;
 
@@ -144,17 +323,118 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
 
         CONST_MAX_TRACE_OUT_QUEUE_BYTES = new int[tmp_db_count];
         CONST_MAX_TRACE_OUT_QUEUE_LEN = new int[tmp_db_count];
+        CONST_TRACE_PREFETCH_DEPTH = new int[tmp_db_count];
+        CONST_WIRE_COMPRESS_LEVEL = new int[tmp_db_count];
+        CONST_WIRE_COMPRESS_MIN_BYTES = new int[tmp_db_count];
+        CONST_WIRE_COMPRESS_MAX_BYTES = new int[tmp_db_count];
+        CONST_WIRE_COMPRESS_FILE_MAX_BYTES = new int[tmp_db_count];
+        CONST_WIRE_COMPRESS_CPU_PERCENT = new int[tmp_db_count];
+        CONST_UPLOAD_STREAM_MIN_BYTES = new int[tmp_db_count];
+        CONST_OUT_BULK_SEGMENT_BYTES = new int[tmp_db_count];
+        CONST_DOWNLOAD_WINDOW_MAX_BYTES = new int[tmp_db_count];
 
         for (int tmp_i = 0; tmp_i < tmp_db_count; tmp_i++) {
             String db_name = cfg.getDbName(tmp_i);
             CONST_MAX_TRACE_OUT_QUEUE_BYTES[tmp_i] = 1024 * Tum3cfg.getIntValue(tmp_i, true, TUM3_CFG_max_out_queue_kbytes, CONST_MAX_TRACE_OUT_QUEUE_KBYTES_default);
             CONST_MAX_TRACE_OUT_QUEUE_LEN[tmp_i] = Tum3cfg.getIntValue(tmp_i, true, TUM3_CFG_max_out_queue_len, CONST_MAX_TRACE_OUT_QUEUE_LEN_default);
+            CONST_TRACE_PREFETCH_DEPTH[tmp_i] = Tum3cfg.getIntValue(tmp_i, true, TUM3_CFG_trace_prefetch_depth, CONST_TRACE_PREFETCH_DEPTH_default);
+            CONST_WIRE_COMPRESS_LEVEL[tmp_i] = Math.max(1, Math.min(9, Tum3cfg.getIntValue(tmp_i, true, TUM3_CFG_wire_compress_level, CONST_WIRE_COMPRESS_LEVEL_default)));
+            CONST_WIRE_COMPRESS_MIN_BYTES[tmp_i] = Tum3cfg.getIntValue(tmp_i, true, TUM3_CFG_wire_compress_min_bytes, CONST_WIRE_COMPRESS_MIN_BYTES_default);
+            CONST_WIRE_COMPRESS_MAX_BYTES[tmp_i] = 1024 * Tum3cfg.getIntValue(tmp_i, true, TUM3_CFG_wire_compress_max_kbytes, CONST_WIRE_COMPRESS_MAX_KBYTES_default);
+            CONST_WIRE_COMPRESS_FILE_MAX_BYTES[tmp_i] = 1024 * Tum3cfg.getIntValue(tmp_i, true, TUM3_CFG_wire_compress_file_kbytes, CONST_WIRE_COMPRESS_FILE_KBYTES_default);
+            CONST_WIRE_COMPRESS_CPU_PERCENT[tmp_i] = Tum3cfg.getIntValue(tmp_i, true, TUM3_CFG_wire_compress_cpu_percent, CONST_WIRE_COMPRESS_CPU_PERCENT_default);
+            CONST_UPLOAD_STREAM_MIN_BYTES[tmp_i] = 1024 * Tum3cfg.getIntValue(tmp_i, true, TUM3_CFG_upload_stream_min_kbytes, CONST_UPLOAD_STREAM_MIN_KBYTES_default);
+            CONST_OUT_BULK_SEGMENT_BYTES[tmp_i] = 1024 * Tum3cfg.getIntValue(tmp_i, true, TUM3_CFG_out_bulk_segment_kbytes, CONST_OUT_BULK_SEGMENT_KBYTES_default);
+            CONST_DOWNLOAD_WINDOW_MAX_BYTES[tmp_i] = 1024 * Tum3cfg.getIntValue(tmp_i, true, TUM3_CFG_download_window_max_kbytes, CONST_DOWNLOAD_WINDOW_MAX_KBYTES_default);
 
             Tum3Logger.DoLog(db_name, false, "DEBUG: CONST_MAX_TRACE_OUT_QUEUE_BYTES=" + CONST_MAX_TRACE_OUT_QUEUE_BYTES[tmp_i]);
             Tum3Logger.DoLog(db_name, false, "DEBUG: CONST_MAX_TRACE_OUT_QUEUE_LEN=" + CONST_MAX_TRACE_OUT_QUEUE_LEN[tmp_i]);
         }
     }
 
+    private static class TracePrefetchLazyHolder {
+        // Note. Shared by all sessions of all dbs, only created if read-ahead is actually used.
+
+        public static final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Tum3cfg.getGlbInstance().getIntValue(TUM3_CFG_trace_prefetch_threads, CONST_TRACE_PREFETCH_THREADS_default)),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "TracePrefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    private static class ReqOffloadLazyHolder {
+        // Note. Shared by all sessions of all dbs. Null if disabled.
+
+        public static final ThreadPoolExecutor executor = CreateExecutor();
+
+        private static ThreadPoolExecutor CreateExecutor() {
+
+            int tmp_threads = Tum3cfg.getGlbInstance().getIntValue(TUM3_CFG_req_offload_threads, CONST_REQ_OFFLOAD_THREADS_default);
+            int tmp_queue = Math.max(1, Tum3cfg.getGlbInstance().getIntValue(TUM3_CFG_req_offload_queue, CONST_REQ_OFFLOAD_QUEUE_default));
+            Tum3Logger.DoLogGlb(false, "DEBUG: request offload threads=" + tmp_threads + ", queue=" + tmp_queue);
+            if (tmp_threads <= 0) return null;
+            return new ThreadPoolExecutor(tmp_threads, tmp_threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(tmp_queue),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ReqOffload");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        }
+    }
+
+    private static class DeferredReq {
+
+        final byte code;
+        final byte[] body;
+        final int len;
+
+        DeferredReq(byte _code, byte[] _body, int _len) {
+            code = _code;
+            body = _body;
+            len = _len;
+        }
+    }
+
+    private abstract class OffloadedReq implements Runnable {
+        // A request with a slow part which does not touch the session state. Work() is done
+        //  by a request offload thread, then Finish() by the session thread, which also replies.
+
+        final boolean barrier; // Note. If set, even REQ_CLASS_FREE requests wait for Finish().
+        private Exception error = null;
+
+        OffloadedReq(boolean _barrier) {
+
+            barrier = _barrier;
+
+        }
+
+        abstract void Work() throws Exception;
+
+        abstract void Finish(byte thrd_ctx) throws Exception;
+
+        public void run() {
+            // REMINDER!!! This is running in a request offload thread.
+
+            try {
+                Work();
+            } catch (Exception e) {
+                error = e;
+            }
+            synchronized(DoneOffloadQueue) {
+                DoneOffloadQueue.addLast(this);
+            }
+            WakeupMain();
+
+        }
+    }
+
     private static class TunedSrvLinkParsMain extends SrvLinkBase.TunedSrvLinkPars {
 
         public void AssignStaticValues() { // YYY
@@ -216,6 +496,19 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
 
         if (aq3hInstance != null) aq3hInstance.DeregisterLink(this); // YYY Moved here from above "return true"
         flushWritingShot(); // YYY Moved here from above "return true"
+        SuspendSegUploads(false);
+
+        for (TraceRequest tmp_req: PendingTraceList) tmp_req.DiscardPrefetch();
+
+        synchronized(WireCompressLock) {
+            if (null != wire_deflater) {
+                wire_deflater.end();
+                wire_deflater = null;
+            }
+            if ((wire_raw_bytes > 0) || (wire_skipped_count > 0))
+                Tum3Logger.DoLog(db_name, false, "DEBUG: wire compression: raw=" + wire_raw_bytes + ", saved=" + wire_saved_bytes + ", skipped by budget=" + wire_skipped_count + "; Session: " + DebugTitle());
+        }
+        if (FDlBytes > 0) Tum3Logger.DoLog(db_name, false, "DEBUG: download: " + DownloadStatsStr() + "; Session: " + DebugTitle());
 
         if (null != segmented_data) 
             try {
@@ -233,6 +526,48 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
 
     }
 
+    @Override
+    protected void PutBuff(byte thrd_ctx, OutgoingBuff buff, RecycledBuffContext ctx) throws Exception {
+
+        if ((FFeatureSelectWord & FEATURE_WIRE_COMPRESS) != 0) WireCompress(buff);
+        super.PutBuff(thrd_ctx, buff, ctx);
+
+    }
+
+    private void WireCompress(OutgoingBuff buff) throws Exception {
+        // Only bulk replies are considered, everything else goes as is.
+        // Note. The budget refills at CONST_WIRE_COMPRESS_CPU_PERCENT of wall time, so a fast
+        //  sequence of large replies falls back to plain ones instead of stalling the session.
+        // Reminder: CompressReply() reads a continuator in full on this thread, so only small
+        //  continuator-backed replies are compressed; large ones keep streaming from the file.
+
+        int tmp_cpu_percent = CONST_WIRE_COMPRESS_CPU_PERCENT[db_index];
+        if (tmp_cpu_percent <= 0) return;
+        byte tmp_code = buff.GetReplyCode();
+        if ((REQUEST_TYPE_TRACECOME != tmp_code) && (REQUEST_TYPE_TRACECOME_X != tmp_code) && (REQUEST_TYPE_TRACECOME_S != tmp_code)
+            && (REQUEST_TYPE_DIRECTORYCOME != tmp_code) && (REQUEST_TYPE_MISC_FETCH != tmp_code)) return;
+        int tmp_size = buff.GetTrailingSize();
+        if ((tmp_size < CONST_WIRE_COMPRESS_MIN_BYTES[db_index]) || (tmp_size > CONST_WIRE_COMPRESS_MAX_BYTES[db_index])) return;
+        if ((null != buff.GetContinuator()) && (tmp_size > CONST_WIRE_COMPRESS_FILE_MAX_BYTES[db_index])) return;
+
+        synchronized(WireCompressLock) {
+            long tmp_now = System.nanoTime();
+            wire_budget_nanos = Math.min(CONST_WIRE_BUDGET_CAP_NANOS, wire_budget_nanos + (tmp_now - wire_budget_stamp) * tmp_cpu_percent / 100);
+            wire_budget_stamp = tmp_now;
+            if (wire_budget_nanos <= 0) {
+                wire_skipped_count++;
+                return;
+            }
+            if (null == wire_deflater) wire_deflater = new Deflater(CONST_WIRE_COMPRESS_LEVEL[db_index]);
+            buff.CheckBuffFill();
+            int tmp_saved = buff.CompressReply(wire_deflater, REQUEST_TYPE_COMPRESSEDCOME);
+            wire_budget_nanos -= System.nanoTime() - tmp_now;
+            wire_raw_bytes += tmp_size;
+            wire_saved_bytes += tmp_saved;
+        }
+
+    }
+
     private void Process_ReportAvailVer(byte thrd_ctx, RecycledBuffContext ctx, byte req_code) throws Exception {
 
         //System.out.println("[aq2j] DEBUG: Process_ReportAvailVer()");
@@ -247,11 +582,12 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
         PutBuff(thrd_ctx, tmpBuff, ctx);
     }
 
-    private boolean CheckValidLogin(String thisUser, String thisPassword) {
+    private boolean CheckValidLogin(String thisUser, String thisPassword, Tum3Perms thisPerms) {
+        // Note. thisPerms is what Tum3Perms.CheckUserPwdAndPerms() returned, see Process_UserLogin().
 
         boolean tmp_success = false;
 
-        UserPermissions = Tum3Perms.CheckUserPwdAndPerms(db_index, db_name, thisUser, thisPassword);
+        UserPermissions = thisPerms;
         if (UserPermissions.isPwdOk()) {
             tmp_success = true;
             AuthorizedLogin = thisUser;
@@ -273,12 +609,6 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
         return tmp_success;
     }
 
-    private void PrepareSecondaryLogin(int _for_db_idx, String _for_db_name, String thisUser, String thisPassword) {
-
-        MasterdbUserPermissions = Tum3Perms.CheckUserPwdAndPerms(_for_db_idx, _for_db_name, thisUser, thisPassword);
-
-    }
-
     private String AuthorizedLoginPlus() {
 
         return AuthorizedLogin + "." + db_name;
@@ -406,13 +736,90 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
 
     protected boolean NoPauseOut() {
 
+        boolean tmp_flow_ok;
+        if (CreditFlow()) {
+            tmp_flow_ok = (FCreditQueued - FCreditAcked) < FCreditWindow;
+            if (!tmp_flow_ok) FCreditWasLimited = true;
+        } else
+            tmp_flow_ok = !(FModerateNeedSendRequest || FModerateRequestWasSent) || !FDoModerateDownloadRate;
         return 
-                (!(FModerateNeedSendRequest || FModerateRequestWasSent) || !FDoModerateDownloadRate)
+                tmp_flow_ok
                 &&
                 ((hanging_out_trace_bytes < CONST_MAX_TRACE_OUT_QUEUE_BYTES[db_index]) && (hanging_out_trace_number < CONST_MAX_TRACE_OUT_QUEUE_LEN[db_index]));
 
     }
 
+    private boolean CreditFlow() {
+        // Note. Instead of stopping at every FModeratedDownloadBytes and waiting a whole round trip
+        //  for DOWNLOAD_RESUME, checkpoints are sent a few times per window without stopping,
+        //  and the window follows the measured rate and round trip time (see CreditAck()).
+
+        return FDoModerateDownloadRate && ((FFeatureSelectWord & FEATURE_DOWNLOAD_CREDIT) != 0) && (CONST_DOWNLOAD_WINDOW_MAX_BYTES[db_index] > 0);
+
+    }
+
+    private void CreditAck(byte[] req_body, int req_trailing_len) {
+
+        long[] tmp_oldest = FCreditMarks.peekFirst();
+        if (null == tmp_oldest) return; // Note. Nothing outstanding, just ignore.
+        long tmp_echoed = tmp_oldest[0]; // Note. An echo without the checkpoint value stands for the oldest one.
+        if (req_trailing_len >= 8) {
+            ByteBuffer tmpBB = ByteBuffer.wrap(req_body, 0, req_trailing_len);
+            tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+            tmp_echoed = tmpBB.getLong();
+        }
+        if (tmp_echoed < tmp_oldest[0]) return; // Note. Stale or duplicate echo, already accounted for.
+        long[] tmp_mark = null;
+        while (!FCreditMarks.isEmpty() && (FCreditMarks.peekFirst()[0] <= tmp_echoed)) tmp_mark = FCreditMarks.pollFirst();
+
+        long tmp_now = System.currentTimeMillis();
+        long tmp_rtt = Math.max(1, tmp_now - tmp_mark[1]);
+        FCreditSrttMillis = (0 == FCreditSrttMillis) ? tmp_rtt : (7*FCreditSrttMillis + tmp_rtt) / 8;
+        if ((0 == FCreditMinRttMillis) || (tmp_rtt < FCreditMinRttMillis)) FCreditMinRttMillis = tmp_rtt;
+        if ((FCreditLastAckAt > 0) && (tmp_now > FCreditLastAckAt) && (tmp_mark[0] > FCreditAcked)) {
+            long tmp_rate = 1000L * (tmp_mark[0] - FCreditAcked) / (tmp_now - FCreditLastAckAt);
+            FCreditRate = (0 == FCreditRate) ? tmp_rate : (3*FCreditRate + tmp_rate) / 4;
+        }
+        if (tmp_mark[0] > FCreditAcked) FCreditAcked = tmp_mark[0];
+        FCreditLastAckAt = tmp_now;
+
+        // Note. Twice the bandwidth-delay product, so the window can double per round trip while
+        //  the link keeps up. It is not reduced unless the window was actually the limit, since
+        //  otherwise the rate just shows that there was not much to send.
+        if (FCreditRate > 0) {
+            long tmp_window = Math.max(CONST_DOWNLOAD_WINDOW_MIN_BYTES, Math.min(CONST_DOWNLOAD_WINDOW_MAX_BYTES[db_index], 2 * FCreditRate * FCreditSrttMillis / 1000));
+            if ((tmp_window > FCreditWindow) || FCreditWasLimited) FCreditWindow = (int)tmp_window;
+            if (FCreditWindow > FCreditMaxWindow) FCreditMaxWindow = FCreditWindow;
+        }
+        FCreditWasLimited = false;
+
+    }
+
+    private void NoteDownloadBytes(int _len) {
+
+        long tmp_now = System.currentTimeMillis();
+        if ((0 == FDlPeriodStart) || ((tmp_now - FDlLastAt) > CONST_DL_IDLE_GAP_MILLIS)) {
+            if (FDlPeriodStart > 0) FDlBusyMillis += FDlLastAt - FDlPeriodStart;
+            FDlPeriodStart = tmp_now;
+        }
+        FDlLastAt = tmp_now;
+        FDlBytes += _len;
+
+    }
+
+    private String DownloadStatsStr() {
+
+        long tmp_busy_millis = FDlBusyMillis + (FDlLastAt - FDlPeriodStart);
+        String tmp_st = "bytes=" + FDlBytes + ", busy ms=" + tmp_busy_millis + ", kB/s=" + ((tmp_busy_millis > 0) ? FDlBytes / tmp_busy_millis : 0);
+        if (CreditFlow())
+            tmp_st = tmp_st + ", credit: window kB=" + (FCreditWindow >> 10) + ", max window kB=" + (FCreditMaxWindow >> 10) + ", srtt ms=" + FCreditSrttMillis
+                            + ", min rtt ms=" + FCreditMinRttMillis + ", rate kB/s=" + (FCreditRate >> 10);
+        else
+            tmp_st = tmp_st + ", pauses=" + FDlPauses + ", paused ms=" + FDlPausedMillis;
+        return tmp_st;
+
+    }
+
     protected boolean GetTracesContinue(byte thrd_ctx, RecycledBuffContext ctx) throws Exception {
 
         boolean tmp_buff_used = false;
@@ -450,6 +857,7 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
                     //System.out.println("[aq2j] DEBUG: <" + Thread.currentThread().getId() + "> in GetTracesContinue(): pausing. FModerateNeedSendRequest=" + FModerateNeedSendRequest + " FModerateRequestWasSent=" + FModerateRequestWasSent);
                 }
             }
+            PrefetchAhead();
             if (tmp_trace_request != null) {
                 //System.out.print("(A)");
                 //System.out.println("[aq2j] DEBUG: <" + Thread.currentThread().getId() + "> in GetTracesContinue(): getting buf for "+tmp_trace_request.ShotName+"."+tmp_trace_request.SignalId+" ...");
@@ -473,21 +881,16 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
 
                 //System.out.print("(B)");
                 if (tmp_trace_request != segmented_TraceReq) {
-                    Tum3Shot tmp_shot = dbLink.getShot(tmp_trace_request.ShotName, true);
-                    if (tmp_shot != null) {
-                        tmp_trace_data = tmp_shot.getTraceReader(tmp_trace_request.SignalId, use_tracecome_x);
-                        tmp_shot.ShotRelease(); // Moved here from below
-                        tmp_shot = null;
-                        if (tmp_trace_data != null) {
-                            if (tmp_trace_data.WithWarning()) tmp_warn_txt += tmp_trace_request.ShotName + ":" + tmp_trace_request.SignalId + ", ";
-                            if (tmp_trace_data.PleaseWait()) {
-                                { // synchronized (PendingTraceList)
-                                    PausedTraceList.add(tmp_trace_request);
-                                }
-                                RefuseBuff(thrd_ctx, ctx, tmpBuff);
-                                tmp_buff_used = false;
-                                continue;
+                    tmp_trace_data = tmp_trace_request.OpenReader(dbLink, use_tracecome_x); // Note. Usually already opened by PrefetchAhead().
+                    if (tmp_trace_data != null) {
+                        if (tmp_trace_data.WithWarning()) tmp_warn_txt += tmp_trace_request.ShotName + ":" + tmp_trace_request.SignalId + ", ";
+                        if (tmp_trace_data.PleaseWait()) {
+                            { // synchronized (PendingTraceList)
+                                PausedTraceList.add(tmp_trace_request);
                             }
+                            RefuseBuff(thrd_ctx, ctx, tmpBuff);
+                            tmp_buff_used = false;
+                            continue;
                         }
                     }
                 }
@@ -502,6 +905,8 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
                     tmpBuff.InitSrvReply(REQUEST_TYPE_TRACENOTAVAIL, 24, 24);
                 else {
                     int seg_limit = FModeratedDownloadBytes;
+                    int tmp_bulk_seg = CONST_OUT_BULK_SEGMENT_BYTES[db_index];
+                    if ((tmp_bulk_seg > 0) && (tmp_bulk_seg < seg_limit)) seg_limit = tmp_bulk_seg;
                     //seg_limit = 50000; // debug only!
                     tmp_this_trace_num = 1;
                     if (segmented_data_allowed && (segmented_data == null) && (tmp_trace_data.getFullSizeX() > seg_limit)) {
@@ -562,7 +967,14 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
                         tmp_dbg_hanging_out_trace_bytes = hanging_out_trace_bytes;
                         tmp_dbg_hanging_out_trace_number = hanging_out_trace_number;
 
-                        if (FDoModerateDownloadRate) {
+                        NoteDownloadBytes(tmp_this_trace_len);
+                        if (CreditFlow()) {
+                            FCreditQueued += tmp_this_trace_len;
+                            if ((FCreditQueued >= FCreditNextMark) && !FModerateNeedSendRequest) {
+                                FModerateNeedSendRequest = true;
+                                tmpModerateNeedSendRequest = true;
+                            }
+                        } else if (FDoModerateDownloadRate) {
                             FReplyQueue_size += tmp_this_trace_len;
                             if ((FReplyQueue_size >= FModeratedDownloadBytes) && !FModerateRequestWasSent && !FModerateNeedSendRequest) {
                                 //System.out.println("[aq2j] DEBUG: FModerateNeedSendRequest := true");
@@ -581,6 +993,7 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
                         tmpBuff.InitSrvReply(tmp_opcode, 24, 24, tmp_trace_data);
                     }
                 }
+                tmpBuff.SetOutShot(tmp_trace_request.ShotName);
                 tmpBuff.putString(Tum3Util.StringToPasString(tmp_trace_request.ShotName, 15));
                 tmpBuff.putInt(tmp_trace_request.SignalId);
                 int HAccessOptions = 0;
@@ -612,7 +1025,7 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
 
         if (tmpModerateNeedSendRequest) {
             { // synchronized (PendingTraceList)
-                FModerateRequestWasSent = true;
+                if (!CreditFlow()) FModerateRequestWasSent = true; // Note. A credit checkpoint does not pause anything.
                 FModerateNeedSendRequest = false;
             }
             //System.out.println("[aq2j] DEBUG: DoSendDownloadPaused()");
@@ -632,6 +1045,20 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
     }
 
 
+    private void PrefetchAhead() {
+        // Open the next few pending traces in background while the current one is being sent.
+        // Reminder: wire order is not affected, requests are still taken strictly from the list head.
+
+        int tmp_depth = CONST_TRACE_PREFETCH_DEPTH[db_index];
+        if ((tmp_depth <= 0) || (null == dbLink)) return;
+        if (tmp_depth > PendingTraceList.size()) tmp_depth = PendingTraceList.size();
+        for (int tmp_i = 0; tmp_i < tmp_depth; tmp_i++) {
+            TraceRequest tmp_req = PendingTraceList.get(tmp_i);
+            if (!tmp_req.PrefetchStarted()) tmp_req.StartPrefetch(TracePrefetchLazyHolder.executor, dbLink, use_tracecome_x);
+        }
+
+    }
+
     private void Segmented_data_cancel() throws Exception {
 
         segmented_TraceReq = null;
@@ -649,7 +1076,7 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
         { // synchronized (PendingTraceList)
             tmpModerateNeedSendRequest = FModerateNeedSendRequest;
             if (tmpModerateNeedSendRequest) {
-                FModerateRequestWasSent = true;
+                if (!CreditFlow()) FModerateRequestWasSent = true;
                 FModerateNeedSendRequest = false;
             }
         }
@@ -700,6 +1127,7 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
                             int tmp_idx = PendingTraceList.indexOf(tmp_shot, tmp_sign); // PendingTraceNames.indexOf(tmp_key);
                             if (tmp_idx >= 0) {
                                 //System.out.println("[aq2j] DEBUG: refused " + tmp_shot + "." + tmp_sign);
+                                PendingTraceList.get(tmp_idx).DiscardPrefetch();
                                 PendingTraceList.remove(tmp_idx);
                             }
                             tmp_idx = PausedTraceList.indexOf(tmp_shot, tmp_sign);
@@ -726,6 +1154,63 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
     }
 
 
+    private void Process_GetDecimated(byte thrd_ctx, byte[] req_body, int req_trailing_len) throws Exception {
+    // Request: shot name (pascal string), int signal id, double time from, double time to, int pixel width.
+    // Reply: shot name, int signal id, byte 1 followed by Tum3TracePyramid view, or byte 0 if not available.
+
+        if (dbLink == null) {
+            Tum3Logger.DoLog(db_name, false, "Internal error: no dbLink in Process_GetDecimated");
+            throw new Exception("no dbLink in Process_GetDecimated");
+        }
+
+        ByteBuffer tmpBB = ByteBuffer.wrap(req_body);
+        tmpBB.limit(req_trailing_len);
+        tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+
+        String tmp_shot_name = "";
+        int tmp_signal_id = 0;
+        byte[] tmp_view = null;
+        try {
+            int tmp_str_len = tmpBB.get();
+            if ((tmp_str_len < 8) || (tmp_str_len > 10) || ((tmpBB.position()+tmp_str_len+24) > req_trailing_len)) throw new Exception("[aq2j] WARNING: invalid name length");
+            tmp_shot_name = GetBodyString(tmpBB, tmp_str_len);
+            tmp_signal_id = tmpBB.getInt();
+            double tmp_t_from = tmpBB.getDouble();
+            double tmp_t_to = tmpBB.getDouble();
+            int tmp_pixels = tmpBB.getInt();
+
+            Tum3Shot tmp_shot = dbLink.getShot(tmp_shot_name, true);
+            if (tmp_shot != null) {
+                tmp_view = tmp_shot.getDecimatedView(tmp_signal_id, tmp_t_from, tmp_t_to, tmp_pixels);
+                tmp_shot.ShotRelease();
+            }
+        } catch (Exception e) {
+            Tum3Logger.DoLog(db_name, true, "WARNING: unexpected format request in Process_GetDecimated() ignored." + " Session: " + DebugTitle());
+            return;
+        }
+
+        // Note. Status byte: 0 = not available, 1 = view follows, 2 = overview is being built, ask again later.
+        int tmp_size = 1 + tmp_shot_name.length() + 4 + 1 + ((null == tmp_view) ? 0 : tmp_view.length);
+        OutgoingBuff tmpBuff = GetBuff(thrd_ctx, null);
+        tmpBuff.InitSrvReply(REQUEST_TYPE_DECIMATEDCOME, tmp_size, tmp_size);
+        tmpBuff.putPasString(tmp_shot_name);
+        tmpBuff.putInt(tmp_signal_id);
+        if (null == tmp_view) tmpBuff.putByte((byte)0);
+        else if (0 == tmp_view.length) tmpBuff.putByte((byte)2);
+        else {
+            tmpBuff.putByte((byte)1);
+            tmpBuff.putBytes(tmp_view);
+        }
+        try {
+            PutBuff(thrd_ctx, tmpBuff, null);
+        } catch (Exception e) {
+            tmpBuff.CancelData();
+            throw e;
+        }
+
+    }
+
+
     private void Process_GetConfigs(byte thrd_ctx, byte[] req_body, int req_trailing_len) throws Exception {
 
         if (dbLink == null) {
@@ -739,9 +1224,7 @@ public class SrvLink extends SrvLinkBase implements UgcReplyHandlerExt, aq3sende
 
         String tmp_conf_names = "";
         try {
-            StringBuffer tmp_buff = new StringBuffer();
-            while (tmpBB.position() < req_trailing_len) tmp_buff.append((char)tmpBB.get());
-            tmp_conf_names = tmp_buff.toString();
+            tmp_conf_names = GetBodyString(tmpBB, req_trailing_len - tmpBB.position());
         } catch (Exception e) {
             Tum3Logger.DoLog(db_name, true, "WARNING: unexpected format request in Process_GetConfigs() ignored." + " Session: " + DebugTitle());
         }
@@ -817,30 +1300,52 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
 
         String tmp_file_names = "";
         try {
-            StringBuffer tmp_buff = new StringBuffer();
-            while (tmpBB.position() < req_trailing_len) tmp_buff.append((char)tmpBB.get());
-            tmp_file_names = tmp_buff.toString();
+            tmp_file_names = GetBodyString(tmpBB, req_trailing_len - tmpBB.position());
         } catch (Exception e) {
             Tum3Logger.DoLog(db_name, true, "WARNING: unexpected format request in Process_ReqFiles() ignored." + " Session: " + DebugTitle());
         }
 
         //System.out.println("[aq2j] DEBUG: Process_ReqFiles(): <" + tmp_file_names +">");
-        StringList tmp_req_file_names = new StringList(tmp_file_names.split("\r\n"));
-        if (tmp_req_file_names.size() > 0) {
+        final StringList tmp_req_file_names = new StringList(tmp_file_names.split("\r\n"));
+        if (tmp_req_file_names.size() > 0) Offload(thrd_ctx, new OffloadedReq(false) {
 
-            int tmp_size = 0;
-            ByteArrayOutputStreamX temp_storage = new ByteArrayOutputStreamX();
-            Tum3CollateralUpdateHelper.LoadPerRequestTo(db_name, temp_storage, tmp_req_file_names);
+            private final ByteArrayOutputStreamX temp_storage = new ByteArrayOutputStreamX();
 
-            OutgoingBuff tmpBuff = GetBuff(thrd_ctx, null);
-            tmpBuff.InitSrvReply(REQUEST_TYPE_MISC_FETCH, temp_storage.size(), temp_storage.size());
-            tmpBuff.putStream(temp_storage);
-            try {
-                PutBuff(thrd_ctx, tmpBuff, null);
-            } catch (Exception e) {
-                tmpBuff.CancelData();
-                throw e;
+            void Work() throws Exception {
+                Tum3CollateralUpdateHelper.LoadPerRequestTo(db_name, temp_storage, tmp_req_file_names);
+            }
+
+            void Finish(byte thrd_ctx) throws Exception {
+                SendMiscFetch(thrd_ctx, temp_storage);
             }
+        });
+
+    }
+
+    private void SendMiscFetch(byte thrd_ctx, ByteArrayOutputStreamX _storage) throws Exception {
+
+        OutgoingBuff tmpBuff = GetBuff(thrd_ctx, null);
+        tmpBuff.InitSrvReply(REQUEST_TYPE_MISC_FETCH, _storage.size(), _storage.size());
+        tmpBuff.putStream(_storage);
+        try {
+            PutBuff(thrd_ctx, tmpBuff, null);
+        } catch (Exception e) {
+            tmpBuff.CancelData();
+            throw e;
+        }
+
+    }
+
+    private void SendStringReply(byte thrd_ctx, byte _req_code, String _str) throws Exception {
+
+        OutgoingBuff tmpBuff = GetBuff(thrd_ctx, null);
+        tmpBuff.InitSrvReply(_req_code, _str.length(), _str.length());
+        tmpBuff.putString(_str);
+        try {
+            PutBuff(thrd_ctx, tmpBuff, null);
+        } catch (Exception e) {
+            tmpBuff.CancelData();
+            throw e;
         }
 
     }
@@ -853,44 +1358,41 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
             throw new Exception("no dbLink in Process_PublishShots");
         }
 
-        String tmp_final_str = "*" + Tum3Db.CONST_MSG_ACCESS_DENIED;
-
-        if (UserPermissions.isPublishingAllowed()) {
+        if (!UserPermissions.isPublishingAllowed()) {
+            SendStringReply(thrd_ctx, REQUEST_TYPE_PUBLISH_RSLT, "*" + Tum3Db.CONST_MSG_ACCESS_DENIED);
+            return;
+        }
 
-            ByteBuffer tmpBB = ByteBuffer.wrap(req_body);
-            tmpBB.limit(req_trailing_len);
-            tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer tmpBB = ByteBuffer.wrap(req_body);
+        tmpBB.limit(req_trailing_len);
+        tmpBB.order(ByteOrder.LITTLE_ENDIAN);
 
-            String tmp_shot_names = "";
-            try {
-                StringBuffer tmp_buff = new StringBuffer();
-                while (tmpBB.position() < req_trailing_len) tmp_buff.append((char)tmpBB.get());
-                tmp_shot_names = tmp_buff.toString();
-            } catch (Exception e) {
-                Tum3Logger.DoLog(db_name, true, "WARNING: unexpected format request in Process_PublishShots() ignored." + " Session: " + DebugTitle());
-            }
+        String tmp_shot_names = "";
+        try {
+            tmp_shot_names = GetBodyString(tmpBB, req_trailing_len - tmpBB.position());
+        } catch (Exception e) {
+            Tum3Logger.DoLog(db_name, true, "WARNING: unexpected format request in Process_PublishShots() ignored." + " Session: " + DebugTitle());
+        }
 
-            //System.out.println("[aq2j] DEBUG: Process_PublishShots(): <" + tmp_shot_names +">");
-            StringList tmp_req_shot_names = new StringList(tmp_shot_names.split("\r\n"));
+        //System.out.println("[aq2j] DEBUG: Process_PublishShots(): <" + tmp_shot_names +">");
+        final StringList tmp_req_shot_names = new StringList(tmp_shot_names.split("\r\n"));
+        final Tum3Db tmp_db = dbLink;
 
-            String tmp_error_msg = dbLink.PublishShots(tmp_req_shot_names);
-            StringBuffer tmp_out_str = new StringBuffer();
+        Offload(thrd_ctx, new OffloadedReq(false) {
 
-            if (tmp_error_msg.length() > 0) tmp_out_str.append("*" + tmp_error_msg);
-            else for (String tmp_published: tmp_req_shot_names) tmp_out_str.append(tmp_published + HandyMisc.crlf);
+            private String tmp_error_msg = "";
 
-            tmp_final_str = tmp_out_str.toString();
-        }
+            void Work() throws Exception {
+                tmp_error_msg = tmp_db.PublishShots(tmp_req_shot_names);
+            }
 
-        OutgoingBuff tmpBuff = GetBuff(thrd_ctx, null);
-        tmpBuff.InitSrvReply(REQUEST_TYPE_PUBLISH_RSLT, tmp_final_str.length(), tmp_final_str.length());
-        tmpBuff.putString(tmp_final_str);
-        try {
-            PutBuff(thrd_ctx, tmpBuff, null);
-        } catch (Exception e) {
-            tmpBuff.CancelData();
-            throw e;
-        }
+            void Finish(byte thrd_ctx) throws Exception {
+                StringBuffer tmp_out_str = new StringBuffer();
+                if (tmp_error_msg.length() > 0) tmp_out_str.append("*" + tmp_error_msg);
+                else for (String tmp_published: tmp_req_shot_names) tmp_out_str.append(tmp_published + HandyMisc.crlf);
+                SendStringReply(thrd_ctx, REQUEST_TYPE_PUBLISH_RSLT, tmp_out_str.toString());
+            }
+        });
     }
 
 
@@ -907,38 +1409,39 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
         String tmp_dbg_str = "";
         String[] tmp_info_names = null;
         try {
-            StringBuffer tmp_buff = new StringBuffer();
-            while (tmpBB.position() < req_trailing_len) tmp_buff.append((char)tmpBB.get());
-            tmp_dbg_str = tmp_buff.toString();
+            tmp_dbg_str = GetBodyString(tmpBB, req_trailing_len - tmpBB.position());
             tmp_info_names = tmp_dbg_str.split(",");
         } catch (Exception e) {
             Tum3Logger.DoLog(db_name, true, "WARNING: unexpected format request in Process_GetMiscInfos() ignored." + " Session: " + DebugTitle());
         }
 
         //System.out.println("[aq2j] DEBUG: Process_GetMiscInfos(): <" + tmp_dbg_str +">");
-        ByteArrayOutputStreamX temp_storage = new ByteArrayOutputStreamX();
-        for (int tmp_i = 0; tmp_i < tmp_info_names.length; tmp_i++) {
-            String tmp_keyword = tmp_info_names[tmp_i];
-            if (TUM3_KEYWORD_files.equals(tmp_keyword))
-                Tum3CollateralUpdateHelper.LoadAllTo(db_name, temp_storage);
-            else if (TUM3_KEYWORD_users.equals(tmp_keyword)) {
-                ByteBuffer tmp_bb2 = Tum3Broadcaster.GetUserList(dbLink, true);
-                int tmp_list_len = 0;
-                if (null != tmp_bb2) tmp_list_len = tmp_bb2.position(); // YYY
-                ByteBuffer tmp_bb1 = CreateUsrListHeadBB(tmp_keyword, tmp_list_len);
-                temp_storage.write(tmp_bb1.array());
-                if (tmp_bb2 != null) if (tmp_bb2.position() > 0) temp_storage.write(tmp_bb2.array(), 0, tmp_bb2.position());
-            } else ;
-        }
-        OutgoingBuff tmpBuff = GetBuff(thrd_ctx, null);
-        tmpBuff.InitSrvReply(REQUEST_TYPE_MISC_FETCH, temp_storage.size(), temp_storage.size());
-        tmpBuff.putStream(temp_storage);
-        try {
-            PutBuff(thrd_ctx, tmpBuff, null);
-        } catch (Exception e) {
-            tmpBuff.CancelData();
-            throw e;
-        }
+        final String[] tmp_final_names = tmp_info_names;
+        final Tum3Db tmp_db = dbLink;
+        Offload(thrd_ctx, new OffloadedReq(false) {
+
+            private final ByteArrayOutputStreamX temp_storage = new ByteArrayOutputStreamX();
+
+            void Work() throws Exception {
+                for (int tmp_i = 0; tmp_i < tmp_final_names.length; tmp_i++) {
+                    String tmp_keyword = tmp_final_names[tmp_i];
+                    if (TUM3_KEYWORD_files.equals(tmp_keyword))
+                        Tum3CollateralUpdateHelper.LoadAllTo(db_name, temp_storage);
+                    else if (TUM3_KEYWORD_users.equals(tmp_keyword)) {
+                        ByteBuffer tmp_bb2 = Tum3Broadcaster.GetUserList(tmp_db, true);
+                        int tmp_list_len = 0;
+                        if (null != tmp_bb2) tmp_list_len = tmp_bb2.position(); // YYY
+                        ByteBuffer tmp_bb1 = CreateUsrListHeadBB(tmp_keyword, tmp_list_len);
+                        temp_storage.write(tmp_bb1.array());
+                        if (tmp_bb2 != null) if (tmp_bb2.position() > 0) temp_storage.write(tmp_bb2.array(), 0, tmp_bb2.position());
+                    } else ;
+                }
+            }
+
+            void Finish(byte thrd_ctx) throws Exception {
+                SendMiscFetch(thrd_ctx, temp_storage);
+            }
+        });
 
     }
 
@@ -971,7 +1474,7 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
         }
 
         String tmp_result = Tum3Db.CONST_MSG_ACCESS_DENIED;
-        StringBuffer tmp_ext_result = new StringBuffer();
+        NameValueList tmp_parsed_list = null;
 
         if (UserPermissions.isSignListEditingAllowed()) {
 
@@ -986,8 +1489,7 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
                 while ((tmpBB.position()+10) < req_trailing_len) {
                     int tmp_str_len = tmpBB.getInt();
                     if ((tmp_str_len < 2) || (tmp_str_len > 40) || ((tmpBB.position()+tmp_str_len+4) > req_trailing_len)) throw new Exception("[aq2j] WARNING: invalid conf name length in Process_ConfigsSave()");
-                    StringBuffer tmp_conf_name = new StringBuffer();
-                    for (int tmp_i=0; tmp_i < tmp_str_len; tmp_i++) tmp_conf_name.append((char)tmpBB.get()); // XXX FIXME! Simplify this.
+                    String tmp_conf_name = GetBodyString(tmpBB, tmp_str_len);
                     if ((tmpBB.position()+4) > req_trailing_len) throw new Exception("[aq2j] WARNING: invalid request found in Process_ConfigsSave()");
                     tmp_str_len = tmpBB.getInt();
                     //System.out.println("[DEBUG] tmp_str_len=" + tmp_str_len + ", position=" + tmpBB.position() + ", req_trailing_len=" + req_trailing_len);
@@ -995,13 +1497,13 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
                     byte[] tmp_arr = new byte[tmp_str_len];
                     tmpBB.get(tmp_arr);
                     String tmp_conf_body = Tum3Util.BytesToStringRaw(tmp_arr);
-                    tmp_list.AddNameVal(tmp_conf_name.toString(), tmp_conf_body);
+                    tmp_list.AddNameVal(tmp_conf_name, tmp_conf_body);
                 }
                 //System.out.println("[aq2j] DEBUG: Process_ConfigsSave():");
                 //for (int tmp_k = 0; tmp_k < tmp_list.Count(); tmp_k++) 
                 //System.out.println("[aq2j] DEBUG: <" + tmp_list.GetName(tmp_k) + ">:" + tmp_list.GetBody(tmp_k));
 
-                tmp_result = Tum3SignalList.PutSignalList(db_index, tmp_list, tmp_ext_result);
+                tmp_parsed_list = tmp_list;
 
             } catch (Exception e) {
 
@@ -1010,22 +1512,32 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
             }
         }
 
-        String tmp_final_output = "";
-        if (RCompatVersion < 354) {
-            tmp_final_output = tmp_result;
-        } else {
-            tmp_final_output = Tum3SignalList.ConfigUploadResult(tmp_result, tmp_ext_result);
-        }
+        final NameValueList tmp_final_list = tmp_parsed_list;
+        final String tmp_parse_result = tmp_result;
+        Offload(thrd_ctx, new OffloadedReq(false) {
 
-        OutgoingBuff tmpBuff = GetBuff(thrd_ctx, null);
-        tmpBuff.InitSrvReply(REQUEST_TYPE_CONFIGSUPLRES, tmp_final_output.length(), tmp_final_output.length());
-        tmpBuff.putString(tmp_final_output);
-        try {
-            PutBuff(thrd_ctx, tmpBuff, null);
-        } catch (Exception e) {
-            tmpBuff.CancelData();
-            throw e;
-        }
+            private String tmp_result = tmp_parse_result;
+            private final StringBuffer tmp_ext_result = new StringBuffer();
+
+            void Work() throws Exception {
+                if (null == tmp_final_list) return;
+                try {
+                    tmp_result = Tum3SignalList.PutSignalList(db_index, tmp_final_list, tmp_ext_result);
+                } catch (Exception e) {
+                    tmp_result = "Error processing new configuration: " + Tum3Util.getStackTrace(e);
+                }
+            }
+
+            void Finish(byte thrd_ctx) throws Exception {
+                String tmp_final_output = "";
+                if (RCompatVersion < 354) {
+                    tmp_final_output = tmp_result;
+                } else {
+                    tmp_final_output = Tum3SignalList.ConfigUploadResult(tmp_result, tmp_ext_result);
+                }
+                SendStringReply(thrd_ctx, REQUEST_TYPE_CONFIGSUPLRES, tmp_final_output);
+            }
+        });
 
     }
 
@@ -1048,8 +1560,7 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
         try {
             int tmp_str_len = tmpBB.get();
             if ((tmp_str_len < 7) || (tmp_str_len > 20) || ((tmpBB.position()+tmp_str_len+4) > req_trailing_len)) throw new Exception("[aq2j] WARNING: invalid name length in Process_DensitySave()");
-            StringBuffer tmp_shot_name = new StringBuffer();
-            for (int tmp_i=0; tmp_i < tmp_str_len; tmp_i++) tmp_shot_name.append((char)tmpBB.get()); // XXX FIXME! Simplify this.
+            String tmp_shot_name = GetBodyString(tmpBB, tmp_str_len);
             if ((tmpBB.position()+4) > req_trailing_len) throw new Exception("[aq2j] WARNING: invalid request found in Process_DensitySave()");
             tmp_str_len = tmpBB.getInt();
             //System.out.println("[DEBUG] tmp_str_len=" + tmp_str_len + ", position=" + tmpBB.position() + ", req_trailing_len=" + req_trailing_len);
@@ -1057,7 +1568,7 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
             int tmp_body_size = req_trailing_len - tmpBB.position();
             byte[] tmp_upd_arr = new byte[tmp_body_size];
             tmpBB.get(tmp_upd_arr);
-            tmp_attempted_shot = tmp_shot_name.toString();
+            tmp_attempted_shot = tmp_shot_name;
             tmp_attempted_id = tmp_str_len;
             tmp_result = UpdateDensityData(tmp_attempted_shot, tmp_attempted_id, tmp_upd_arr); // YYY
 
@@ -1065,6 +1576,7 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
             Tum3Logger.DoLog(db_name, true, "WARNING: unexpected format request in Process_DensitySave() ignored. " + " Session: " + DebugTitle() + " (" + Tum3Util.getStackTrace(e) + ")");
             tmp_result = "Density save failed with: " + e;
         }
+        if (null == tmp_result) return; // Note. Queued to the density editor, see SendDoneDensity().
 
         String tmp_comment_txt = tmp_result;
         boolean tmp_save_ok = tmp_result.isEmpty(); // YYY
@@ -1093,9 +1605,8 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
 
         try {
             int tmp_str_len = tmpBB.get();
-            if ((tmp_str_len > 20) || ((tmpBB.position()+tmp_str_len+4) > req_trailing_len)) throw new Exception("[aq2j] WARNING: invalid name length in Process_Ugc()");
-            StringBuffer tmp_shot_name = new StringBuffer();
-            for (int tmp_i=0; tmp_i < tmp_str_len; tmp_i++) tmp_shot_name.append((char)tmpBB.get()); // XXX FIXME! Simplify this.
+            if ((tmp_str_len < 0) || (tmp_str_len > 20) || ((tmpBB.position()+tmp_str_len+4) > req_trailing_len)) throw new Exception("[aq2j] WARNING: invalid name length in Process_Ugc()");
+            String tmp_shot_name = GetBodyString(tmpBB, tmp_str_len);
             if ((tmpBB.position()+4) > req_trailing_len) throw new Exception("[aq2j] WARNING: invalid request found in Process_Ugc()");
             int tmp_req_id = tmpBB.getInt();
             //System.out.println("[DEBUG] tmp_req_id=" + tmp_req_id + ", position=" + tmpBB.position() + ", req_trailing_len=" + req_trailing_len);
@@ -1104,7 +1615,7 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
             int tmp_body_size = req_trailing_len - tmpBB.position();
             byte[] tmp_upd_arr = new byte[tmp_body_size];
             tmpBB.get(tmp_upd_arr);
-            tmp_attempted_shot = tmp_shot_name.toString();
+            tmp_attempted_shot = tmp_shot_name;
             tmp_attempted_id = tmp_req_id;
             tmp_result = ExecuteUgc(thrd_ctx, tmp_attempted_shot, tmp_attempted_id, tmp_upd_arr);
 
@@ -1161,6 +1672,10 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
         if (RLinkKilobits < 500) RLinkKilobits = 500;
         if (RLinkKilobits > 2*1024*1024) RLinkKilobits = 2*1024*1024;
         FModeratedDownloadBytes = RLinkKilobits << 6; // Reminder: this sets approx 6 Mbytes for 100Mbit link.
+        if (0 == FCreditWindow) {
+            FCreditWindow = Math.max(CONST_DOWNLOAD_WINDOW_MIN_BYTES, Math.min(CONST_DOWNLOAD_WINDOW_MAX_BYTES[db_index], FModeratedDownloadBytes));
+            FCreditMaxWindow = FCreditWindow;
+        }
 
         String tmp_critical_msg = ""; // YYY
         if ((RCompatVersion > 0) && (RCompatVersion < min_supported_app_ver))
@@ -1224,8 +1739,7 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
             for (int tmp_i = 0; tmp_i < tmp_src_len; tmp_i++) req_body[tmp_i+5] = (byte)(((short)decrypt_arr[((short)req_body[tmp_i+5] & (short)0xFF)] - (short)tmpRandSalt) & 0xFF);
         }
 
-        String[] tmp_strings = Tum3Util.FetchAsStrings(req_body, tmp_src_len, 3, 0, tmp_src_ofs);
-        OutgoingBuff tmpBuff = null;
+        final String[] tmp_strings = Tum3Util.FetchAsStrings(req_body, tmp_src_len, 3, 0, tmp_src_ofs);
 
         if (tmp_strings.length < 2) { // YYY
             Tum3Logger.DoLog(db_name, false, "Internal error: invalid login request format." + " Session: " + DebugTitle());
@@ -1233,7 +1747,30 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
         }
         //System.out.println("[DEBUG] tmp_strings.length=" + tmp_strings.length);
 
-        boolean tmp_ok = CheckValidLogin(tmp_strings[0], tmp_strings[1]);
+        // Note. Checking the password files may take a while, so it is offloaded. Nothing else
+        //  of this session is done meanwhile, because everything else depends on the login result.
+        Offload(thrd_ctx, new OffloadedReq(true) {
+
+            private Tum3Perms tmp_perms, tmp_master_perms = null;
+
+            void Work() throws Exception {
+                tmp_perms = Tum3Perms.CheckUserPwdAndPerms(db_index, db_name, tmp_strings[0], tmp_strings[1]);
+                if (tmp_perms.isPwdOk() || tmp_perms.isGuestAllowed()) {
+                    Tum3Db tmp_mdb = Tum3Db.getDbInstance(db_index).GetMasterDb();
+                    if (null != tmp_mdb) tmp_master_perms = Tum3Perms.CheckUserPwdAndPerms(tmp_mdb.getIndex(), tmp_mdb.DbName(), tmp_strings[0], tmp_strings[1]);
+                }
+            }
+
+            void Finish(byte thrd_ctx) throws Exception {
+                FinishUserLogin(thrd_ctx, tmp_strings, tmp_perms, tmp_master_perms);
+            }
+        });
+    }
+
+    private void FinishUserLogin(byte thrd_ctx, String[] tmp_strings, Tum3Perms _perms, Tum3Perms _master_perms) throws Exception {
+
+        OutgoingBuff tmpBuff = null;
+        boolean tmp_ok = CheckValidLogin(tmp_strings[0], tmp_strings[1], _perms);
 
         if (tmp_ok && (tmp_strings.length >= 3)) ParseLoginOptions(tmp_strings[2]); // YYY
         tmpBuff = GetBuff(thrd_ctx, null);
@@ -1250,10 +1787,8 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
             InitDbAccess();
 //System.out.println("[DEBUG] InitDbAccess done.");
             ConsiderPushServerInfo(thrd_ctx);
-            if (null != dbLink) if (null != dbLink.GetMasterDb()) {
-                Tum3Db tmp_mdb = dbLink.GetMasterDb();
-                PrepareSecondaryLogin(tmp_mdb.getIndex(), tmp_mdb.DbName(), tmp_strings[0], tmp_strings[1]);
-            }
+            if (null != dbLink) if (null != dbLink.GetMasterDb())
+                MasterdbUserPermissions = _master_perms;
         } else {
             LoginFailedAt = System.currentTimeMillis();
             LoginFailedState = true;
@@ -1270,6 +1805,474 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
         }
     }
 
+    protected ReqBodySink BeginReqBodySink(byte thrd_ctx, byte req_code, int req_trailing_len) throws Exception {
+
+        if ((REQUEST_TYPE_UPLOAD_ONE != req_code) && (REQUEST_TYPE_UPLOAD_ONE_VAR != req_code)) return null;
+        if (MustDefer(req_code)) return null; // Note. Then it is collected in memory and deferred by ExecuteReq().
+        int tmp_min_bytes = CONST_UPLOAD_STREAM_MIN_BYTES[db_index];
+        if ((tmp_min_bytes <= 0) || (req_trailing_len < tmp_min_bytes)) return null;
+        return new UploadStreamSink(REQUEST_TYPE_UPLOAD_ONE_VAR == req_code, req_trailing_len);
+
+    }
+
+    private interface UploadTarget {
+
+        public String Start(Tum3Shot _shot, String _err_prefix); // Note. Takes over the reference to _shot.
+
+    }
+
+    private class UploadStreamSink implements ReqBodySink, UploadTarget {
+        // UPLOAD_ONE or UPLOAD_ONE_VAR written into the temporary file as the body arrives, so that
+        //  memory used per upload does not grow with the signal size. Replies just as Process_UploadOne().
+        // Reminder: Consume() and Finish() run in the session thread, Abort() might come from elsewhere.
+
+        private final boolean DataIsVolatile;
+        private final int trailing_len;
+        private byte[] prologue = new byte[32+4]; // TUploadHeader and HSize first, then the whole signal header.
+        private int prologue_fill = 0;
+        private String shot_name = "", err_prefix = "", errstr = "";
+        private int signal_id = 0;
+        private ByteBuffer header = null;
+        private Tum3Shot shot = null;
+        private Tum3Shot.PutTraceJob job = null;
+        private byte[] whole_body = null; // Note. Only used if the db stores compressed (see Start()).
+        private int whole_fill = 0;
+        private boolean aborted = false;
+
+        UploadStreamSink(boolean _DataIsVolatile, int _trailing_len) {
+
+            DataIsVolatile = _DataIsVolatile;
+            trailing_len = _trailing_len;
+
+        }
+
+        private void ParsePrologue() throws Exception {
+
+            ByteBuffer tmpBB = ByteBuffer.wrap(prologue);
+            tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+            if (prologue.length == (32+4)) {
+                shot_name = GetPasString(tmpBB, 15);
+                signal_id = tmpBB.getInt();
+                tmpBB.getInt(); // reserved
+                tmpBB.getInt(); // reserved
+                tmpBB.getInt(); // reserved
+                int tmp_hsize = tmpBB.getInt();
+                if ((tmp_hsize < 12) || (tmp_hsize > (trailing_len - 32 - 4))) errstr = "HSize value is invalid";
+                else prologue = Arrays.copyOf(prologue, 32 + tmp_hsize);
+                return;
+            }
+            tmpBB.position(32);
+            header = tmpBB.slice();
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            errstr = UploadOne(shot_name, signal_id, header, null, DataIsVolatile, this);
+
+        }
+
+        public String Start(Tum3Shot _shot, String _err_prefix) {
+
+            err_prefix = _err_prefix;
+            int tmp_body_size = trailing_len - prologue.length;
+            if (_shot.GetDb().store_compressed) { // Note. Tum3ChunkedBody needs the whole body anyway, so collected in memory as before.
+                whole_body = new byte[tmp_body_size];
+                shot = _shot;
+                return "";
+            }
+            try {
+                Tum3Shot.insertHostName(header, "[" + DebugTitle() + "]");
+                job = _shot.putTraceStreamBegin(signal_id, header, tmp_body_size, DataIsVolatile);
+                shot = _shot;
+                return "";
+            } catch (Exception e) {
+                _shot.ShotRelease();
+                return err_prefix + "Exception " + Tum3Util.getStackTrace(e);
+            }
+
+        }
+
+        private void Drop() {
+
+            if (null != job) shot.putTraceStreamAbort(job);
+            job = null;
+            if (null != shot) shot.ShotRelease();
+            shot = null;
+            whole_body = null;
+
+        }
+
+        public synchronized void Consume(byte thrd_ctx, ByteBuffer _data) throws Exception {
+
+            while (_data.hasRemaining()) {
+                if (aborted || !errstr.isEmpty()) {
+                    _data.position(_data.limit()); // Note. Rest of the request is just skipped.
+                } else if (null == header) {
+                    int tmp_count = Math.min(_data.remaining(), prologue.length - prologue_fill);
+                    _data.get(prologue, prologue_fill, tmp_count);
+                    prologue_fill += tmp_count;
+                    if (prologue_fill == prologue.length) try {
+                        ParsePrologue();
+                    } catch (Exception e) {
+                        errstr = "Exception: " + Tum3Util.getStackTrace(e);
+                    }
+                } else if (null != whole_body) {
+                    int tmp_count = _data.remaining();
+                    _data.get(whole_body, whole_fill, tmp_count);
+                    whole_fill += tmp_count;
+                } else try {
+                    shot.putTraceStreamAppend(job, _data);
+                } catch (Exception e) {
+                    errstr = err_prefix + "Exception " + Tum3Util.getStackTrace(e);
+                    Drop();
+                }
+            }
+
+        }
+
+        private String Complete() {
+            // Returns null if queued to the write pipeline.
+
+            if ((null == header) && errstr.isEmpty()) errstr = "Request size was considered too small to be valid";
+            if (!errstr.isEmpty()) return errstr;
+
+            Tum3Shot tmp_shot = shot;
+            shot = null;
+            if (null != whole_body) {
+                ByteBuffer tmp_body = ByteBuffer.wrap(whole_body);
+                tmp_body.order(ByteOrder.LITTLE_ENDIAN);
+                whole_body = null;
+                return UploadOneStore(tmp_shot, err_prefix, shot_name, signal_id, header, tmp_body, DataIsVolatile);
+            }
+
+            Tum3Shot.PutTraceJob tmp_job = job;
+            job = null;
+            return UploadStreamDone(tmp_shot, tmp_job, shot_name, err_prefix);
+
+        }
+
+        public void Finish(byte thrd_ctx) throws Exception {
+
+            String tmp_errstr;
+            synchronized(this) {
+                if (aborted) return;
+                tmp_errstr = Complete();
+            }
+            if (null == tmp_errstr) return;
+            if (tmp_errstr.isEmpty())
+                Tum3Logger.DoLog(db_name, false, "Successfully stored " + shot_name + "." + signal_id + " from " + DebugTitle() + " (streamed)");
+            else
+                Tum3Logger.DoLog(db_name, false, "Failed storing " + shot_name + "." + signal_id + " from " + DebugTitle() + ": " + tmp_errstr);
+            SendUploadAck(thrd_ctx, shot_name, signal_id, tmp_errstr, null);
+
+        }
+
+        public synchronized void Abort() {
+
+            aborted = true;
+            Drop();
+
+        }
+
+    }
+
+    private String UploadStreamDone(Tum3Shot tmp_shot, Tum3Shot.PutTraceJob tmp_job, String _shot_name, String _err_prefix) {
+        // Completes a streamed or segmented upload, the same way as UploadOneStore().
+        // Note. Takes over the reference to tmp_shot. Returns null if queued to the write pipeline.
+
+        String tmp_result = "";
+        try {
+            if (tmp_job.ViaPipeline()) {
+                tmp_result = tmp_shot.putTraceStreamSubmit(tmp_job, NewUploadHandler(_shot_name, _err_prefix));
+            } else {
+                ShotWriteHelper tmp_helper = currWritingShot();
+                tmp_shot.ShotAddUser(); // Note. This one is for tmp_helper.
+                try {
+                    tmp_helper.setShot(tmp_shot);
+                } catch (Exception e) {
+                    tmp_shot.putTraceStreamAbort(tmp_job);
+                    throw e;
+                }
+                tmp_shot.putTraceStreamCommit(tmp_job, tmp_helper);
+            }
+        } catch (Exception e) {
+            tmp_result = "Exception " + Tum3Util.getStackTrace(e);
+        }
+        tmp_shot.ShotRelease();
+        if (tmp_result.isEmpty()) return tmp_job.ViaPipeline() ? null : "";
+        return _err_prefix + tmp_result;
+
+    }
+
+    private class SegUpload implements UploadTarget {
+        // One segmented upload (UPLOAD_SEG_BEGIN, UPLOAD_SEG_DATA..., UPLOAD_SEG_COMMIT) in progress in this session.
+        // Reminder: if the session ends first, the temporary file is kept, so that after reconnecting
+        //  UPLOAD_SEG_BEGIN reports how much is already there and the client only sends the rest.
+
+        final String shot_name;
+        final int signal_id, full_size;
+        final boolean DataIsVolatile;
+        final ByteBuffer orig_header; // Note. As received, header itself gets the host name inserted.
+        ByteBuffer header;
+        String err_prefix = "";
+        Tum3Shot shot = null;
+        Tum3Shot.PutTraceJob job = null;
+        long last_used = System.currentTimeMillis();
+
+        SegUpload(String _shot_name, int _signal_id, int _full_size, boolean _DataIsVolatile, ByteBuffer _header) {
+
+            shot_name = _shot_name;
+            signal_id = _signal_id;
+            full_size = _full_size;
+            DataIsVolatile = _DataIsVolatile;
+            header = _header;
+            byte[] tmp_copy = new byte[_header.remaining()];
+            _header.duplicate().get(tmp_copy);
+            orig_header = ByteBuffer.wrap(tmp_copy);
+
+        }
+
+        boolean SameRequest(long _full_size, boolean _DataIsVolatile, byte[] _req_body, int _h_ofs, int _hsize) {
+            // Tells if a repeated UPLOAD_SEG_BEGIN is for this very upload.
+
+            return (_full_size == full_size) && (_DataIsVolatile == DataIsVolatile)
+                && orig_header.equals(ByteBuffer.wrap(_req_body, _h_ofs, _hsize));
+
+        }
+
+        public String Start(Tum3Shot _shot, String _err_prefix) {
+            // Note. Takes over the reference to _shot.
+
+            err_prefix = _err_prefix;
+            try {
+                job = _shot.putTraceResumeBegin(signal_id, header, full_size, DataIsVolatile, "[" + DebugTitle() + "]");
+                shot = _shot;
+                return "";
+            } catch (Exception e) {
+                _shot.ShotRelease();
+                return err_prefix + "Exception " + Tum3Util.getStackTrace(e);
+            }
+
+        }
+
+        synchronized void Suspend() {
+
+            if (null != job) shot.putTraceStreamSuspend(job);
+            job = null;
+            if (null != shot) shot.ShotRelease();
+            shot = null;
+
+        }
+
+    }
+
+    private static String SegUploadKey(String _shot_name, int _signal_id) {
+
+        return _shot_name.toUpperCase() + "." + _signal_id;
+
+    }
+
+    private void SendSegUploadAck(byte thrd_ctx, String _shot_name, int _signal_id, long _full_size, long _offset, String _errstr) throws Exception {
+
+        OutgoingBuff tmpBuff = GetBuff(thrd_ctx, null);
+        String tmp_err_str255 = Str255(_errstr);
+        int tmp_size = 16 + 4 + 8 + 8 + tmp_err_str255.length() + 1;
+        tmpBuff.InitSrvReply(REQUEST_TYPE_UPLOAD_SEG_ACK, tmp_size, tmp_size);
+        tmpBuff.putString(Tum3Util.StringToPasString(_shot_name, 15));
+        tmpBuff.putInt(_signal_id);
+        tmpBuff.putLong(_full_size);
+        tmpBuff.putLong(_offset);
+        tmpBuff.putPasString(tmp_err_str255);
+        PutBuff(thrd_ctx, tmpBuff, null);
+
+    }
+
+    private void Process_UploadSegBegin(byte thrd_ctx, byte[] req_body, int req_trailing_len) throws Exception {
+
+        ByteBuffer tmpBB = ByteBuffer.wrap(req_body, 0, req_trailing_len);
+        tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+        if (tmpBB.remaining() < (32+4)) {
+            Tum3Logger.DoLog(db_name, true, "Invalid UPLOAD_SEG_BEGIN request; Session: " + DebugTitle());
+            return;
+        }
+        String tmp_shot_name = GetPasString(tmpBB, 15);
+        int tmp_signal_id = tmpBB.getInt();
+        boolean tmp_volatile = (tmpBB.getInt() & 1) != 0;
+        long tmp_full_size = tmpBB.getLong();
+        int tmp_h_ofs = tmpBB.position();
+        int tmp_hsize = tmpBB.getInt();
+        String tmp_errstr = "";
+        long tmp_offset = 0;
+        String tmp_key = SegUploadKey(tmp_shot_name, tmp_signal_id);
+        SegUpload tmp_upload = null;
+
+        if ((tmp_hsize < 12) || (tmp_hsize > (req_trailing_len - tmp_h_ofs)))
+            tmp_errstr = "HSize value is invalid";
+        else if ((tmp_full_size < 0) || (tmp_full_size > Integer.MAX_VALUE))
+            tmp_errstr = "Full size is invalid";
+        else synchronized(SegUploads) {
+            tmp_upload = SegUploads.get(tmp_key);
+            if (null == tmp_upload) if (SegUploads.size() >= CONST_MAX_SEG_UPLOADS) tmp_errstr = "Too many segmented uploads in progress";
+        }
+
+        if (tmp_errstr.isEmpty() && (null != tmp_upload) && !tmp_upload.SameRequest(tmp_full_size, tmp_volatile, req_body, tmp_h_ofs, tmp_hsize)) {
+            // Note. Another signal body under the same name, so the one in progress is dropped and this one
+            //  starts over. Its temporary file is then reused from 0, see Tum3Shot.putTraceResumeBegin().
+            synchronized(SegUploads) {
+                SegUploads.remove(tmp_key, tmp_upload);
+            }
+            tmp_upload.Suspend();
+            Tum3Logger.DoLog(db_name, false, "Segmented upload of " + tmp_shot_name + "." + tmp_signal_id + " restarted with different size or header from " + DebugTitle());
+            tmp_upload = null;
+        }
+
+        if (tmp_errstr.isEmpty() && (null != tmp_upload)) {
+            // Note. Repeated begin just tells the current offset again.
+            synchronized(tmp_upload) { // Note. The link could be cancelled meanwhile.
+                if (null == tmp_upload.job) tmp_errstr = "Upload suspended, please begin again";
+                else tmp_offset = tmp_upload.shot.StreamOffset(tmp_upload.job);
+            }
+        } else if (tmp_errstr.isEmpty()) {
+            tmpBB.position(tmp_h_ofs);
+            byte[] tmp_hdr_copy = new byte[tmp_hsize]; // Note. req_body is reused for the next request.
+            tmpBB.get(tmp_hdr_copy);
+            ByteBuffer tmp_header = ByteBuffer.wrap(tmp_hdr_copy);
+            tmp_header.order(ByteOrder.LITTLE_ENDIAN);
+            tmp_upload = new SegUpload(tmp_shot_name, tmp_signal_id, (int)tmp_full_size, tmp_volatile, tmp_header);
+            tmp_errstr = UploadOne(tmp_shot_name, tmp_signal_id, tmp_header, null, tmp_volatile, tmp_upload);
+            if (tmp_errstr.isEmpty()) {
+                tmp_offset = tmp_upload.shot.StreamOffset(tmp_upload.job);
+                synchronized(SegUploads) {
+                    if (isCancellingLink()) tmp_errstr = "Session is closing";
+                    else SegUploads.put(tmp_key, tmp_upload);
+                }
+                if (!tmp_errstr.isEmpty()) tmp_upload.Suspend();
+                else Tum3Logger.DoLog(db_name, false, "Segmented upload of " + tmp_shot_name + "." + tmp_signal_id + " started at " + tmp_offset + " of " + tmp_full_size + " from " + DebugTitle());
+            }
+        }
+        if (!tmp_errstr.isEmpty())
+            Tum3Logger.DoLog(db_name, false, "Failed storing " + tmp_shot_name + "." + tmp_signal_id + " from " + DebugTitle() + ": " + tmp_errstr);
+        SendSegUploadAck(thrd_ctx, tmp_shot_name, tmp_signal_id, tmp_full_size, tmp_offset, tmp_errstr);
+
+    }
+
+    private void Process_UploadSegData(byte thrd_ctx, byte[] req_body, int req_trailing_len) throws Exception {
+
+        ByteBuffer tmpBB = ByteBuffer.wrap(req_body, 0, req_trailing_len);
+        tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+        if (tmpBB.remaining() < 32) {
+            Tum3Logger.DoLog(db_name, true, "Invalid UPLOAD_SEG_DATA request; Session: " + DebugTitle());
+            return;
+        }
+        String tmp_shot_name = GetPasString(tmpBB, 15);
+        int tmp_signal_id = tmpBB.getInt();
+        tmpBB.getInt(); // reserved
+        long tmp_seg_ofs = tmpBB.getLong();
+        SegUpload tmp_upload;
+        synchronized(SegUploads) {
+            tmp_upload = SegUploads.get(SegUploadKey(tmp_shot_name, tmp_signal_id));
+        }
+        if (null == tmp_upload) {
+            SendSegUploadAck(thrd_ctx, tmp_shot_name, tmp_signal_id, 0, 0, "No segmented upload in progress, please begin again");
+            return;
+        }
+        tmp_upload.last_used = System.currentTimeMillis();
+        long tmp_offset = 0;
+        String tmp_errstr = "";
+        try {
+            synchronized(tmp_upload) { // Note. The link could be cancelled meanwhile.
+                if (null == tmp_upload.job) throw new Exception("Upload suspended");
+                tmp_offset = tmp_upload.shot.StreamOffset(tmp_upload.job);
+                if (tmp_seg_ofs != tmp_offset)
+                    tmp_errstr = "Segment offset " + tmp_seg_ofs + " does not match expected " + tmp_offset; // Note. The client should continue from the offset reported.
+                else {
+                    tmp_upload.shot.putTraceStreamAppend(tmp_upload.job, tmpBB);
+                    tmp_offset = tmp_upload.shot.StreamOffset(tmp_upload.job);
+                }
+            }
+        } catch (Exception e) {
+            tmp_errstr = tmp_upload.err_prefix + "Exception " + Tum3Util.getStackTrace(e);
+            synchronized(SegUploads) {
+                SegUploads.remove(SegUploadKey(tmp_shot_name, tmp_signal_id));
+            }
+            tmp_upload.Suspend();
+            Tum3Logger.DoLog(db_name, false, "Failed storing " + tmp_shot_name + "." + tmp_signal_id + " from " + DebugTitle() + ": " + tmp_errstr);
+        }
+        SendSegUploadAck(thrd_ctx, tmp_shot_name, tmp_signal_id, tmp_upload.full_size, tmp_offset, tmp_errstr);
+
+    }
+
+    private void Process_UploadSegCommit(byte thrd_ctx, byte[] req_body, int req_trailing_len) throws Exception {
+
+        ByteBuffer tmpBB = ByteBuffer.wrap(req_body, 0, req_trailing_len);
+        tmpBB.order(ByteOrder.LITTLE_ENDIAN);
+        if (tmpBB.remaining() < 24) {
+            Tum3Logger.DoLog(db_name, true, "Invalid UPLOAD_SEG_COMMIT request; Session: " + DebugTitle());
+            return;
+        }
+        String tmp_shot_name = GetPasString(tmpBB, 15);
+        int tmp_signal_id = tmpBB.getInt();
+        String tmp_key = SegUploadKey(tmp_shot_name, tmp_signal_id);
+        SegUpload tmp_upload;
+        synchronized(SegUploads) {
+            tmp_upload = SegUploads.get(tmp_key);
+        }
+        if (null == tmp_upload) {
+            SendSegUploadAck(thrd_ctx, tmp_shot_name, tmp_signal_id, 0, 0, "No segmented upload in progress, please begin again");
+            return;
+        }
+        Tum3Shot tmp_shot;
+        Tum3Shot.PutTraceJob tmp_job;
+        long tmp_offset = 0;
+        synchronized(tmp_upload) { // Note. The link could be cancelled meanwhile.
+            tmp_shot = tmp_upload.shot;
+            tmp_job = tmp_upload.job;
+            if (null != tmp_job) tmp_offset = tmp_shot.StreamOffset(tmp_job);
+            if ((null != tmp_job) && (tmp_offset == tmp_upload.full_size)) {
+                tmp_upload.shot = null; // Note. Taken over by UploadStreamDone() below.
+                tmp_upload.job = null;
+            }
+        }
+        if (null == tmp_job) {
+            SendSegUploadAck(thrd_ctx, tmp_shot_name, tmp_signal_id, 0, 0, "No segmented upload in progress, please begin again");
+            return;
+        }
+        if (tmp_offset != tmp_upload.full_size) {
+            SendSegUploadAck(thrd_ctx, tmp_shot_name, tmp_signal_id, tmp_upload.full_size, tmp_offset, "Upload is not complete yet");
+            return;
+        }
+        synchronized(SegUploads) {
+            SegUploads.remove(tmp_key, tmp_upload);
+        }
+
+        String tmp_errstr = UploadStreamDone(tmp_shot, tmp_job, tmp_shot_name, tmp_upload.err_prefix);
+        if (null == tmp_errstr) return; // Note. Will be reported by SendDoneUploads().
+        if (tmp_errstr.isEmpty())
+            Tum3Logger.DoLog(db_name, false, "Successfully stored " + tmp_shot_name + "." + tmp_signal_id + " from " + DebugTitle() + " (segmented)");
+        else
+            Tum3Logger.DoLog(db_name, false, "Failed storing " + tmp_shot_name + "." + tmp_signal_id + " from " + DebugTitle() + ": " + tmp_errstr);
+        SendUploadAck(thrd_ctx, tmp_shot_name, tmp_signal_id, tmp_errstr, null);
+
+    }
+
+    private void SuspendSegUploads(boolean _idle_only) {
+
+        ArrayList<SegUpload> tmp_list = new ArrayList<SegUpload>();
+        long tmp_now = System.currentTimeMillis();
+        synchronized(SegUploads) {
+            Iterator<SegUpload> tmp_it = SegUploads.values().iterator();
+            while (tmp_it.hasNext()) {
+                SegUpload tmp_upload = tmp_it.next();
+                if (_idle_only && ((tmp_now - tmp_upload.last_used) < 1000L * CONST_SEG_UPLOAD_IDLE_SEC)) continue;
+                tmp_it.remove();
+                tmp_list.add(tmp_upload);
+            }
+        }
+        for (SegUpload tmp_upload: tmp_list) synchronized(tmp_upload) {
+            if (null == tmp_upload.job) continue; // Note. Just committed.
+            Tum3Logger.DoLog(db_name, false, "Segmented upload of " + tmp_upload.shot_name + "." + tmp_upload.signal_id + " suspended at " + tmp_upload.shot.StreamOffset(tmp_upload.job) + " of " + tmp_upload.full_size + "; Session: " + DebugTitle());
+            tmp_upload.Suspend();
+        }
+
+    }
+
     private void Process_UploadOne(byte thrd_ctx, byte[] req_body, int req_trailing_len, RecycledBuffContext ctx, boolean DataIsVolatile) throws Exception {
 
         ByteBuffer tmpBB = ByteBuffer.wrap(req_body, 0, req_trailing_len);
@@ -1319,7 +2322,11 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
                     tmpBB.position(tmp_h_ofs + tmp_hsize);
                     ByteBuffer tmp_body = tmpBB.slice();
                     tmp_body.order(ByteOrder.LITTLE_ENDIAN);
-                    tmp_errstr = UploadOne(tmp_shot_name, tmp_signal_id, tmp_header, tmp_body, DataIsVolatile);
+                    tmp_errstr = UploadOne(tmp_shot_name, tmp_signal_id, tmp_header, tmp_body, DataIsVolatile, null);
+                    if (null == tmp_errstr) {
+                        if (!req_body_deferred) DetachReqBody(); // Note. The buffer now belongs to the write pipeline, the ack will follow in SendDoneUploads().
+                        return;
+                    }
                     if (tmp_errstr.isEmpty())
                         Tum3Logger.DoLog(db_name, false, "Successfully stored " + tmp_shot_name + "." + tmp_signal_id + " from " + DebugTitle());
                     else
@@ -1332,14 +2339,7 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
 
                 //QueueUploadResult(UploadHeader.ShotName, UploadHeader.SignalId, errstr);
 
-                OutgoingBuff tmpBuff = GetBuff(thrd_ctx, ctx); // YYY
-                String tmp_err_str255 = Str255(tmp_errstr);
-                tmpBuff.InitSrvReply(REQUEST_TYPE_TRACEUPLOADACK, 4 + tmp_shot_name.length() + 1 + tmp_err_str255.length() + 1,
-                        4 + tmp_shot_name.length() + 1 + tmp_err_str255.length() + 1);
-                tmpBuff.putPasString(tmp_shot_name);
-                tmpBuff.putInt(tmp_signal_id);
-                tmpBuff.putPasString(tmp_err_str255);
-                PutBuff(thrd_ctx, tmpBuff, ctx);
+                SendUploadAck(thrd_ctx, tmp_shot_name, tmp_signal_id, tmp_errstr, ctx);
                 tmp_reply_sent = true;
 
             } catch (Exception e) {
@@ -1358,6 +2358,72 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
 
     }
 
+    private void SendUploadAck(byte thrd_ctx, String _shot_name, int _signal_id, String _errstr, RecycledBuffContext ctx) throws Exception {
+
+        OutgoingBuff tmpBuff = GetBuff(thrd_ctx, ctx); // YYY
+        String tmp_err_str255 = Str255(_errstr);
+        tmpBuff.InitSrvReply(REQUEST_TYPE_TRACEUPLOADACK, 4 + _shot_name.length() + 1 + tmp_err_str255.length() + 1,
+                4 + _shot_name.length() + 1 + tmp_err_str255.length() + 1);
+        tmpBuff.putPasString(_shot_name);
+        tmpBuff.putInt(_signal_id);
+        tmpBuff.putPasString(tmp_err_str255);
+        PutBuff(thrd_ctx, tmpBuff, ctx);
+
+    }
+
+    private void PostDoneUpload(String _shot_name, int _signal_id, String _errstr) {
+        // REMINDER!!! This is running in a write pipeline thread.
+
+        synchronized(DoneUploadsQueue) {
+            DoneUploadsQueue.addLast(new String[] { _shot_name, Integer.toString(_signal_id), _errstr });
+        }
+        WakeupMain();
+
+    }
+
+    private void SendDoneUploads(byte thrd_ctx) throws Exception {
+
+        while (true) {
+            String[] tmp_done;
+            synchronized(DoneUploadsQueue) {
+                tmp_done = DoneUploadsQueue.pollFirst();
+            }
+            if (null == tmp_done) return;
+            if (tmp_done[2].isEmpty())
+                Tum3Logger.DoLog(db_name, false, "Successfully stored " + tmp_done[0] + "." + tmp_done[1] + " from " + DebugTitle());
+            else
+                Tum3Logger.DoLog(db_name, false, "Failed storing " + tmp_done[0] + "." + tmp_done[1] + " from " + DebugTitle() + ": " + tmp_done[2]);
+            SendUploadAck(thrd_ctx, tmp_done[0], Integer.parseInt(tmp_done[1]), tmp_done[2], null);
+        }
+
+    }
+
+    private void PostDoneDensity(String _shot_name, int _signal_id, String _errstr) {
+        // REMINDER!!! This is running in a density editor thread.
+
+        synchronized(DoneDensityQueue) {
+            DoneDensityQueue.addLast(new String[] { _shot_name, Integer.toString(_signal_id), _errstr });
+        }
+        WakeupMain();
+
+    }
+
+    private void SendDoneDensity(byte thrd_ctx) throws Exception {
+
+        while (true) {
+            String[] tmp_done;
+            synchronized(DoneDensityQueue) {
+                tmp_done = DoneDensityQueue.pollFirst();
+            }
+            if (null == tmp_done) return;
+            if (!tmp_done[2].isEmpty()) { // Note. Same as in Process_DensitySave().
+                Tum3Logger.DoLog(db_name, false, "Density update (in shot " + tmp_done[0] + " id " + tmp_done[1] + ") by " + DebugTitle() + " with result: " + tmp_done[2]);
+                _NewMessageBoxCompat(thrd_ctx, tmp_done[2], false);
+            }
+        }
+
+    }
+
     private void Process_DeleteOne(byte thrd_ctx, byte[] req_body, int req_trailing_len, RecycledBuffContext ctx) throws Exception {
 
         ByteBuffer tmpBB = ByteBuffer.wrap(req_body, 0, req_trailing_len);
@@ -1690,6 +2756,7 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
                 String tmpMsg = _ev.get_str();
                 if (tmpMsg.length() > 100) tmpMsg = tmpMsg.substring(0, 100);
                 tmpBuff.InitSrvReply(REQUEST_TYPE_TRACEINVALIDATEONE, 1 + 4*1 + tmpMsg.length(), 1 + 4*1 + tmpMsg.length());
+                tmpBuff.SetOutShot(tmpMsg);
                 tmpBuff.putByte((byte)tmpMsg.length());
                 tmpBuff.putString(tmpMsg);
                 tmpBuff.putInt(0);
@@ -1742,6 +2809,7 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
                 byte tmp_notify_code = REQUEST_TYPE_TRACEINVALIDATEONE;
                 if (_ev_type == _ev.DB_EV_TRACEDEL_ARR) tmp_notify_code = REQUEST_TYPE_TRACEREMOVED;
                 tmpBuff.InitSrvReply(tmp_notify_code, 1 + 4*(tmp_id_count-tmp_processed_count) + tmpMsg.length(), 1 + 4*(tmp_id_count-tmp_processed_count) + tmpMsg.length());
+                tmpBuff.SetOutShot(tmpMsg);
                 tmpBuff.putByte((byte)tmpMsg.length());
                 tmpBuff.putString(tmpMsg);
                 for (int tmp_i=0; tmp_i < tmp_id_count; tmp_i++)
@@ -1779,7 +2847,7 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
                     || (tmp_ev_type == ev.DB_EV_TRACEUPD_ARR)
                     || (tmp_ev_type == ev.DB_EV_TRACEDEL_ARR)
                     ) return;
-            if ((tmp_ev_type == ev.DB_EV_NEWSHOT) && ((FFeatureSelectWord & 1) == 0) || (ev.get_int() == ev.IS_MASTER_ONLY)) return; // YYY
+            if ((tmp_ev_type == ev.DB_EV_NEWSHOT) && ((FFeatureSelectWord & FEATURE_NEWSHOT_EVENTS) == 0) || (ev.get_int() == ev.IS_MASTER_ONLY)) return; // YYY
         }
         if (tmp_ev_type == ev.DB_EV_TALK) {
             boolean tmp_match = false;
@@ -1821,8 +2889,17 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
         keepalive_sent_inline = false;
     }
 
-    private void Process_DownloadResume(byte thrd_ctx) throws Exception {
+    private void Process_DownloadResume(byte thrd_ctx, byte[] req_body, int req_trailing_len) throws Exception {
         //System.out.println("[aq2j] DEBUG: Process_DownloadResume()");
+        if (CreditFlow()) {
+            CreditAck(req_body, req_trailing_len);
+            GetTracesContinue(thrd_ctx, null);
+            return;
+        }
+        if (FDlPausedAt > 0) {
+            FDlPausedMillis += System.currentTimeMillis() - FDlPausedAt;
+            FDlPausedAt = 0;
+        }
         { // synchronized (PendingTraceList)
             FReplyQueue_size = 0;
             FModerateRequestWasSent = false;
@@ -1855,7 +2932,97 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
 
     }
 
+    private static byte ReqClassOf(byte req_code) {
+        // Note. REQ_CLASS_FREE ones must not depend on what any slower request before them does.
+
+        switch (req_code) {
+            case REQUEST_TYPE_USERLOGINX:
+            case REQUEST_TYPE_CONFIGSSAVE:
+            case REQUEST_TYPE_PUBLISH_SHOTS:
+            case REQUEST_TYPE_REQUEST_FILES:
+            case REQUEST_TYPE_GET_MISC:
+                return REQ_CLASS_OFFLOAD;
+            case REQUEST_TYPE_KEEPCONNECTED:
+            case REQUEST_TYPE_ANYBODYTHERE:
+            case REQUEST_TYPE_DOWNLOAD_RESUME:
+            case REQUEST_TYPE_TRACECALL:
+            case REQUEST_TYPE_REFUSE:
+            case REQUEST_TYPE_DECIMATEDCALL:
+            case REQUEST_TYPE_TALKMSG:
+            case REQUEST_TYPE_TALKMSGX:
+            case REQUEST_TYPE_UPLOAD_ONE:
+            case REQUEST_TYPE_UPLOAD_ONE_VAR:
+            case REQUEST_TYPE_UPLOAD_SEG_BEGIN:
+            case REQUEST_TYPE_UPLOAD_SEG_DATA:
+            case REQUEST_TYPE_UPLOAD_SEG_COMMIT:
+            case REQUEST_TYPE_UPLOAD_END_HINT:
+                return REQ_CLASS_FREE;
+        }
+        return REQ_CLASS_ORDERED;
+
+    }
+
+    private boolean MustDefer(byte req_code) {
+
+        if (null == OffloadPending) return !DeferredReqs.isEmpty();
+        return OffloadPending.barrier || (REQ_CLASS_FREE != ReqClassOf(req_code));
+
+    }
+
+    private void Offload(byte thrd_ctx, OffloadedReq _req) throws Exception {
+
+        ThreadPoolExecutor tmp_executor = ReqOffloadLazyHolder.executor;
+        if (null != tmp_executor) try {
+            OffloadPending = _req;
+            tmp_executor.execute(_req);
+            return;
+        } catch (RejectedExecutionException e) {
+            OffloadPending = null; // Note. All offload threads are busy and the queue is full, so just do it here.
+        }
+        _req.Work();
+        _req.Finish(thrd_ctx);
+
+    }
+
+    private void FinishOffloaded(byte thrd_ctx) throws Exception {
+
+        while (true) {
+            OffloadedReq tmp_done;
+            synchronized(DoneOffloadQueue) {
+                tmp_done = DoneOffloadQueue.pollFirst();
+            }
+            if (null == tmp_done) break;
+            OffloadPending = null;
+            if (null != tmp_done.error) throw tmp_done.error;
+            tmp_done.Finish(thrd_ctx);
+        }
+        while ((null == OffloadPending) && !DeferredReqs.isEmpty()) {
+            DeferredReq tmp_req = DeferredReqs.pollFirst();
+            req_body_deferred = true;
+            try {
+                ExecuteReqNow(thrd_ctx, tmp_req.code, tmp_req.body, tmp_req.len);
+            } finally {
+                req_body_deferred = false;
+            }
+        }
+
+    }
+
     protected void ExecuteReq(byte thrd_ctx, byte req_code, byte[] req_body, int req_trailing_len) throws Exception {
+        // Note. While an offloaded request is in progress, the following ones wait in DeferredReqs,
+        //  except for REQ_CLASS_FREE ones which do not need to, see ReqClassOf().
+
+        if (MustDefer(req_code)) {
+            if (DeferredReqs.size() >= CONST_MAX_DEFERRED_REQS) throw new Exception("too many requests waiting for an offloaded one");
+            DetachReqBody(); // Note. The buffer now belongs to DeferredReqs.
+            DeferredReqs.addLast(new DeferredReq(req_code, req_body, req_trailing_len));
+            return;
+        }
+        ExecuteReqNow(thrd_ctx, req_code, req_body, req_trailing_len);
+
+    }
+
+    private void ExecuteReqNow(byte thrd_ctx, byte req_code, byte[] req_body, int req_trailing_len) throws Exception {
 
         if ((REQUEST_TYPE_REPORTAVAILVERSION == req_code) || (REQUEST_TYPE_REPORTAVAILVERSION_FULL == req_code) || (REQUEST_TYPE_REPORTAVAILVERSION_64 == req_code) || (REQUEST_TYPE_REPORTAVAILVERSION_FULL_64 == req_code)) 
             Process_ReportAvailVer(thrd_ctx, null, req_code);
@@ -1863,15 +3030,19 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
         else if (/* (REQUEST_TYPE_USERLOGIN == req_code) || */ (REQUEST_TYPE_USERLOGINX == req_code)) Process_UserLogin(thrd_ctx, req_body, req_trailing_len, (REQUEST_TYPE_USERLOGINX == req_code));
         else if ((REQUEST_TYPE_UPLOAD_ONE == req_code) || (REQUEST_TYPE_UPLOAD_ONE_VAR == req_code)) Process_UploadOne(thrd_ctx, req_body, req_trailing_len, null, REQUEST_TYPE_UPLOAD_ONE_VAR == req_code);
         else if (REQUEST_TYPE_DELETE_ONE_VAR == req_code) Process_DeleteOne(thrd_ctx, req_body, req_trailing_len, null);
+        else if (REQUEST_TYPE_UPLOAD_SEG_BEGIN == req_code) Process_UploadSegBegin(thrd_ctx, req_body, req_trailing_len);
+        else if (REQUEST_TYPE_UPLOAD_SEG_DATA == req_code) Process_UploadSegData(thrd_ctx, req_body, req_trailing_len);
+        else if (REQUEST_TYPE_UPLOAD_SEG_COMMIT == req_code) Process_UploadSegCommit(thrd_ctx, req_body, req_trailing_len);
         else if (REQUEST_TYPE_UPLOAD_END_HINT == req_code) Process_UploadEndHint();
         else if (REQUEST_TYPE_AGENT_INFO == req_code) Process_AgentInfo(thrd_ctx, req_body, req_trailing_len);
         else if (REQUEST_TYPE_FEATURESELECT == req_code) Process_FeatureSelect(req_body, req_trailing_len);
         else if (REQUEST_TYPE_DIRECTORYCALL == req_code) Process_GetDirList(thrd_ctx, req_body, req_trailing_len, null);
         else if (REQUEST_TYPE_ANYBODYTHERE == req_code) Process_PingHighlevel(thrd_ctx, null);
         else if (REQUEST_TYPE_KEEPCONNECTED == req_code) Process_PingReply();
-        else if (REQUEST_TYPE_DOWNLOAD_RESUME == req_code) Process_DownloadResume(thrd_ctx);
+        else if (REQUEST_TYPE_DOWNLOAD_RESUME == req_code) Process_DownloadResume(thrd_ctx, req_body, req_trailing_len);
         else if (REQUEST_TYPE_TRACECALL == req_code) Process_GetTrace(thrd_ctx, req_body, req_trailing_len, false);
         else if (REQUEST_TYPE_REFUSE    == req_code) Process_GetTrace(thrd_ctx, req_body, req_trailing_len, true);
+        else if (REQUEST_TYPE_DECIMATEDCALL == req_code) Process_GetDecimated(thrd_ctx, req_body, req_trailing_len);
         else if (REQUEST_TYPE_CONFIGSCALL == req_code) Process_GetConfigs(thrd_ctx, req_body, req_trailing_len);
         else if (REQUEST_TYPE_REQUEST_FILES == req_code) Process_ReqFiles(thrd_ctx, req_body, req_trailing_len); 
         else if (REQUEST_TYPE_PUBLISH_SHOTS == req_code) Process_PublishShots(thrd_ctx, req_body, req_trailing_len);
@@ -1906,6 +3077,7 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
     }
 
     public String UpdateDensityData(String _shot_name, int _signal_id, byte[] _upd_arr) {
+    // Returns null if the update was queued to the density editor, which will then report through PostDoneDensity().
 
         String tmp_name = "signal id <" + _signal_id + ">";
         String tmp_err_prefix = "Could not update " + tmp_name + " of " + _shot_name + ": ";
@@ -1950,6 +3122,17 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
 
         boolean tmp_ref_ok = false;
         String tmp_result = "Unknown error";
+        if (tmp_shot.GetDb().DensityEditorEnabled()) {
+            final String tmp_final_prefix = tmp_err_prefix;
+            tmp_result = tmp_shot.UpdateDensityDataAsync(_signal_id, _upd_arr, new PutTraceHandler() {
+                public void PutTraceDone(String _done_shot_name, int _done_signal_id, String _err_msg) {
+                    PostDoneDensity(_done_shot_name, _done_signal_id, _err_msg.isEmpty() ? "" : tmp_final_prefix + _err_msg);
+                }
+            });
+            tmp_shot.ShotRelease();
+            if (tmp_result.isEmpty()) return null;
+            return tmp_err_prefix + tmp_result;
+        }
         try {
             ShotWriteHelper tmp_helper = currWritingShot();
             tmp_helper.setShot(tmp_shot);
@@ -1968,8 +3151,10 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
 
     }
 
-    private String UploadOne(String _shot_name, int _signal_id, ByteBuffer _header, ByteBuffer _body, boolean DataIsVolatile) {
+    private String UploadOne(String _shot_name, int _signal_id, ByteBuffer _header, ByteBuffer _body, boolean DataIsVolatile, UploadTarget _stream) {
     // See also: Tum3Db.ExternalPutTrace_int()
+    // Returns null if the upload was queued to the write pipeline, which will then report through PostDoneUpload().
+    // With _stream, only the checks are done here, and the body is written as it arrives (see UploadStreamSink, SegUpload).
 
         String tmp_name = "signal id <" + _signal_id + ">";
         String tmp_err_prefix = "Could not store " + tmp_name + " of " + _shot_name + ": ";
@@ -2020,8 +3205,37 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
             return tmp_err_prefix + dbLink.CONST_MSG_INV_SHOT_NUMBER;
         }
 
+        if (null != _stream) return _stream.Start(tmp_shot, tmp_err_prefix);
+        return UploadOneStore(tmp_shot, tmp_err_prefix, _shot_name, _signal_id, _header, _body, DataIsVolatile);
+
+    }
+
+    private PutTraceHandler NewUploadHandler(final String _shot_name, final String _err_prefix) {
+
+        return new PutTraceHandler() {
+            public void PutTraceDone(String _done_shot_name, int _done_signal_id, String _err_msg) {
+                PostDoneUpload(_shot_name, _done_signal_id, _err_msg.isEmpty() ? "" : _err_prefix + _err_msg);
+            }
+        };
+
+    }
+
+    private String UploadOneStore(Tum3Shot tmp_shot, String tmp_err_prefix, String _shot_name, int _signal_id, ByteBuffer _header, ByteBuffer _body, boolean DataIsVolatile) {
+        // Note. Takes over the reference to tmp_shot.
+
         boolean tmp_ref_ok = false;
         String tmp_result = "Unknown error";
+        if (tmp_shot.GetDb().WritePipelineEnabled()) {
+            try {
+                Tum3Shot.insertHostName(_header, "[" + DebugTitle() + "]");
+                tmp_result = tmp_shot.putTraceAsync(_signal_id, _header, _body, DataIsVolatile, NewUploadHandler(_shot_name, tmp_err_prefix));
+            } catch (Exception e) {
+                tmp_result = "Exception " + Tum3Util.getStackTrace(e);
+            }
+            tmp_shot.ShotRelease();
+            if (tmp_result.isEmpty()) return null;
+            return tmp_err_prefix + tmp_result;
+        }
         try {
             ShotWriteHelper tmp_helper = currWritingShot();
             Tum3Shot.insertHostName(_header, "[" + DebugTitle() + "]");
@@ -2106,8 +3320,20 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
     }
 
     private boolean DoSendDownloadPaused(byte thrd_ctx, RecycledBuffContext ctx) throws Exception {
-        return DoSimpleReq(thrd_ctx, REQUEST_TYPE_DOWNLOAD_PAUSED, ctx);
-        //System.out.println("[aq2j] DEBUG: DoSendDownloadPaused.");
+        if (!CreditFlow()) {
+            if (!DoSimpleReq(thrd_ctx, REQUEST_TYPE_DOWNLOAD_PAUSED, ctx)) return false;
+            FDlPauses++;
+            FDlPausedAt = System.currentTimeMillis();
+            return true;
+        }
+        OutgoingBuff tmpBuff = GetBuff(thrd_ctx, ctx, false);
+        if (null == tmpBuff) return false;
+        tmpBuff.InitSrvReply(REQUEST_TYPE_DOWNLOAD_PAUSED, 8, 8);
+        tmpBuff.putLong(FCreditQueued);
+        PutBuff(thrd_ctx, tmpBuff, ctx);
+        FCreditMarks.addLast(new long[] { FCreditQueued, System.currentTimeMillis() });
+        FCreditNextMark = FCreditQueued + Math.max(1, FCreditWindow / CONST_CREDIT_MARKS_PER_WINDOW);
+        return true;
     }
 
     public void ClientReaderTick(byte thrd_ctx, ClientWriter outbound) throws Exception {
@@ -2124,6 +3350,10 @@ System.out.println("[DEBUG]: Process_GetConfigs2: <" + line.toString() + ">");
         //System.out.print("" + my_dbg_serial);
 
         if (null != currWritingShotHelper) currWritingShotHelper.tick();
+        SendDoneUploads(thrd_ctx);
+        SendDoneDensity(thrd_ctx);
+        FinishOffloaded(thrd_ctx);
+        SuspendSegUploads(true);
         ConsiderPushServerInfo(thrd_ctx); // YYY
 
         super.ClientReaderTick(thrd_ctx, outbound);
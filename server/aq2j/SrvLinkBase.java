@@ -15,7 +15,9 @@ package aq2j;
 
 import java.io.*;
 import java.nio.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.locks.*;
 
 import aq2db.*;
 import aq2net.*;
@@ -30,6 +32,9 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
     private final static int CONST_LOGIN_TIMEOUT_SEC = 15;
     private final static int CONST_OUT_BUFF_WAIT_WAKEUP_SEC = 1000;
     private final static int CONST_HTTP_HEADER_LIMIT = 1023; // YYY
+    private final static int CONST_REQ_BODY_KEEP = 64*1024; // Note. Larger request bodies are borrowed from OutBuffPool for one request only.
+    private final static String TUM3_CFG_out_priority = "out_priority";
+    private final static boolean CONST_OUT_PRIORITY = (0 != Tum3cfg.getGlbInstance().getIntValue(TUM3_CFG_out_priority, 1)); // Note. 0 means plain FIFO output as before.
 
     // Note very nice to have it in base class but still.
     protected final static String TUM3_CFG_max_out_queue_kbytes = "max_out_queue_kbytes";
@@ -51,6 +56,9 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
     private int curr_req_trailing_len = 0;
     private byte curr_req_code = 0;
     private byte[] req_body = null, req_header = new byte[4], req_size_holder = new byte[4];
+    private byte[] curr_body = null; // Note. Either req_body (kept for small requests) or req_body_pooled.
+    private byte[] req_body_pooled = null; // Note. Borrowed for the current request, given back after ExecuteReq() unless detached.
+    private volatile ReqBodySink curr_sink = null; // Note. If set, the body of the current request goes there instead of req_body.
     private volatile boolean SupportOOB;
 
     private SrvLinkOwner Owner = null;
@@ -62,7 +70,8 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
     private long ConnectionStartedAt;
 
     private OutgoingBuff out_buff_now_sending = null;
-    private Object OutBuffFullLock = new Object(), OutBuffEmptyLock = new Object();
+    private final ReentrantLock OutBuffFullLock = new ReentrantLock(), OutBuffEmptyLock = new ReentrantLock(); // Note. Not synchronized(), so that blocking session threads do not pin carriers.
+    private final Condition OutBuffEmptyCond = OutBuffEmptyLock.newCondition();
     private volatile int out_buffs_empty_fill, out_buffs_full_fill;
     private volatile OutgoingBuff[] out_buffs_empty, out_buffs_full;
     private int out_buffs_count = 0;
@@ -130,13 +139,19 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
         tuned_pars = _tuned_pars; // YYY
         Owner = thisOwner;
         SupportOOB = thisOwner.SupportOOB();
-        synchronized(OutBuffEmptyLock) {
+        OutBuffEmptyLock.lock();
+        try {
             out_buffs_empty = new OutgoingBuff[getOutBuffCountMax()+2];
             out_buffs_empty_fill = 0;
+        } finally {
+            OutBuffEmptyLock.unlock();
         }
-        synchronized(OutBuffFullLock) {
+        OutBuffFullLock.lock();
+        try {
             out_buffs_full = new OutgoingBuff[getOutBuffCountMax()+2];
             out_buffs_full_fill = 0;
+        } finally {
+            OutBuffFullLock.unlock();
         }
         ConnectionStartedAt = System.currentTimeMillis();
 
@@ -152,6 +167,24 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
  
     protected abstract void ExecuteReq(byte thrd_ctx, byte req_code, byte[] req_body, int req_trailing_len) throws Exception;
 
+    protected interface ReqBodySink {
+        // Takes the body of some large request piece by piece as it arrives, instead of collecting it in req_body.
+        // Reminder: Abort() might be called from another thread if the link is cancelled.
+
+        public void Consume(byte thrd_ctx, ByteBuffer _data) throws Exception; // Note. Must take all remaining bytes.
+
+        public void Finish(byte thrd_ctx) throws Exception; // Note. Called instead of ExecuteReq().
+
+        public void Abort();
+
+    }
+
+    protected ReqBodySink BeginReqBodySink(byte thrd_ctx, byte req_code, int req_trailing_len) throws Exception {
+
+        return null;
+
+    }
+
     protected abstract boolean getLoginFailedState();
 
     protected abstract long getLoginFailedAt();
@@ -296,10 +329,19 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
                         //System.out.println("[aq2j] DEBUG: trailing size = " + curr_req_trailing_len + " {" + req_size_holder[0] + "," + req_size_holder[1] + "," + req_size_holder[2] + "," + req_size_holder[3] + "}");
                         curr_stage = STAGE_TRAILING_BODY;
                         curr_remaining_bytes = curr_req_trailing_len;
-                        if (req_body != null) if (curr_req_trailing_len > req_body.length) {
-                            req_body = null;
+                        curr_sink = BeginReqBodySink(thrd_ctx, curr_req_code, curr_req_trailing_len);
+                        if (null == curr_sink) {
+                            if (curr_req_trailing_len > CONST_REQ_BODY_KEEP) {
+                                req_body_pooled = OutBuffPool.getInstance().Borrow(curr_req_trailing_len);
+                                curr_body = req_body_pooled;
+                            } else {
+                                if (req_body != null) if (curr_req_trailing_len > req_body.length) {
+                                    req_body = null;
+                                }
+                                if ((req_body == null) && (curr_req_trailing_len > 0)) req_body = new byte[curr_req_trailing_len];
+                                curr_body = req_body;
+                            }
                         }
-                        if ((req_body == null) && (curr_req_trailing_len > 0)) req_body = new byte[curr_req_trailing_len];
                     } else {
                         Tum3Logger.DoLog(getLogPrefixName(), true, "WARNING: got invalid req signature in SendToServer(): " + Integer.toHexString(req_header[0] & 0xFF) + " " +  Integer.toHexString(req_header[1] & 0xFF) + " " +  Integer.toHexString(req_header[2] & 0xFF) + " " +  Integer.toHexString(req_header[3] & 0xFF) + "; Session: " + DebugTitle());
                         throw new Exception("got invalid req signature in SendToServer()");
@@ -309,7 +351,7 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
                 UpdateLastClientActivityTime();
                 while (buf.hasRemaining()) {
                     http_req_header.append((char)buf.get());
-                    if (http_req_header.substring(http_req_header.length()-4).equals("\r\n\r\n")) {
+                    if (HttpHeaderComplete(http_req_header)) {
                         curr_stage = STAGE_SIGN_4BYTES;
                         curr_remaining_bytes = 4;
                         OnHttpPreHeader(thrd_ctx, http_req_header.toString());
@@ -318,17 +360,36 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
                     if (http_req_header.length() > CONST_HTTP_HEADER_LIMIT) throw new Exception("Http header exceeded length limit");
                 }
             } else if (curr_stage == STAGE_TRAILING_BODY) {
+                ReqBodySink tmp_sink = curr_sink;
                 if (tmp_rem_count > 0) {
-                    //System.arraycopy(buf, tmp_pos, req_body, (curr_req_trailing_len - curr_remaining_bytes), tmp_rem_count);
-                    //tmp_pos += tmp_rem_count;
-                    buf.get(req_body, (curr_req_trailing_len - curr_remaining_bytes), tmp_rem_count);
+                    if (null != tmp_sink) {
+                        int tmp_limit = buf.limit();
+                        buf.limit(buf.position() + tmp_rem_count);
+                        tmp_sink.Consume(thrd_ctx, buf);
+                        buf.limit(tmp_limit);
+                    } else {
+                        //System.arraycopy(buf, tmp_pos, req_body, (curr_req_trailing_len - curr_remaining_bytes), tmp_rem_count);
+                        //tmp_pos += tmp_rem_count;
+                        buf.get(curr_body, (curr_req_trailing_len - curr_remaining_bytes), tmp_rem_count);
+                    }
                     curr_remaining_bytes -= tmp_rem_count;
                 }
                 if (curr_remaining_bytes == 0) {
                     curr_stage = STAGE_SIGN_4BYTES;
                     curr_remaining_bytes = 4;
                     //System.out.println("[aq2j] DEBUG: going to execute req_code=" + Integer.toHexString(curr_req_code & 0xFF) + " with length=" + curr_req_trailing_len);
-                    ExecuteReq(thrd_ctx, curr_req_code, req_body, curr_req_trailing_len);
+                    if (null != tmp_sink) {
+                        curr_sink = null;
+                        tmp_sink.Finish(thrd_ctx);
+                    } else try {
+                        ExecuteReq(thrd_ctx, curr_req_code, curr_body, curr_req_trailing_len);
+                    } finally {
+                        curr_body = null;
+                        if (null != req_body_pooled) {
+                            OutBuffPool.getInstance().Release(req_body_pooled);
+                            req_body_pooled = null;
+                        }
+                    }
                 }
             } else {
                 Tum3Logger.DoLog(getLogPrefixName(), true, "Internal error: invalid curr_stage in SendToServer()" + "; Session: " + DebugTitle());
@@ -400,8 +461,11 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
 
     private boolean OutBuffsEmpty() {
 
-        synchronized(OutBuffFullLock) {
+        OutBuffFullLock.lock();
+        try {
             return (0 == out_buffs_full_fill);
+        } finally {
+            OutBuffFullLock.unlock();
         }
 
     }
@@ -422,13 +486,17 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
             tmp_need_req_keepalive = NeedToRequestKeepalive(System.currentTimeMillis(), false);
         }
 
-        if (/* !tmp_need_req_keepalive && */ (out_buff_now_sending == null)) // Removed the strange (or obsolete?) condition. What was that???
-            synchronized(OutBuffFullLock) {
+        if (/* !tmp_need_req_keepalive && */ (out_buff_now_sending == null)) { // Removed the strange (or obsolete?) condition. What was that???
+            OutBuffFullLock.lock();
+            try {
                 if (0 < out_buffs_full_fill) {
-                    out_buff_now_sending = out_buffs_full[0];
+                    out_buff_now_sending = out_buffs_full[PickNextOut()];
                     //System.out.println("[aq2j] ReadFromServerInternal(): new out_buff_now_sending");
                 }
+            } finally {
+                OutBuffFullLock.unlock();
             }
+        }
 
         if (tmp_need_req_keepalive && outbound.isOpen()) {
             //System.out.println("[aq2j] ReadFromServerInternal(): sending keepalive...");
@@ -450,7 +518,7 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
         }
 
         tmp_filled_count = outbound.AcceptFrom(out_buff_now_sending); // out_buff_now_sending.SendTo(outbound);
-        if (0 == tmp_filled_count) throw new Exception("Internal error: outbound.AcceptFrom() did nothing");
+        if (0 == tmp_filled_count) return false; // Note. Only the zero-copy path does that, when the socket is full (see OutBuffData.SendDirect()), the owner then waits for it.
 
         if (out_buff_now_sending.SentAll()) {
             //System.out.println("[aq2j] DEBUG: Sent completely buff size=" + out_buff_now_sending.SentCount());
@@ -478,24 +546,34 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
                 tmp_out_buff_was_recycled = GetTracesContinue(thrd_ctx, ctxRecycledReader);
                 //System.out.println("[aq2j] tmp_out_buff_was_recycled=" + tmp_out_buff_was_recycled);
             }
-            synchronized(OutBuffFullLock) { 
-                for (int tmp_i=1; tmp_i < out_buffs_full_fill; tmp_i++)
-                    out_buffs_full[tmp_i-1] = out_buffs_full[tmp_i];
-                out_buffs_full_fill--;
+            OutBuffFullLock.lock();
+            try {
+                int tmp_sent_idx = 0;
+                while ((tmp_sent_idx < out_buffs_full_fill) && (out_buffs_full[tmp_sent_idx] != out_buff_now_sending)) tmp_sent_idx++;
+                if (tmp_sent_idx < out_buffs_full_fill) {
+                    for (int tmp_i=tmp_sent_idx+1; tmp_i < out_buffs_full_fill; tmp_i++)
+                        out_buffs_full[tmp_i-1] = out_buffs_full[tmp_i];
+                    out_buffs_full_fill--;
+                }
                 if (tmp_out_buff_was_recycled) {
                     out_buffs_full[out_buffs_full_fill] = out_buff_now_sending;
                     out_buffs_full_fill++;
                 }
+            } finally {
+                OutBuffFullLock.unlock();
             }
             if (!tmp_out_buff_was_recycled) {
-                synchronized(OutBuffEmptyLock) {
+                OutBuffEmptyLock.lock();
+                try {
                     if (out_buffs_count <= getOutBuffCountMax()) {
                         out_buffs_empty[out_buffs_empty_fill] = out_buff_now_sending;
                         out_buffs_empty_fill++;
-                        OutBuffEmptyLock.notify();
+                        OutBuffEmptyCond.signal();
                     } else {
                         out_buffs_count--;
                     }
+                } finally {
+                    OutBuffEmptyLock.unlock();
                 }
             }
             out_buff_now_sending = null;
@@ -507,6 +585,45 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
         return ((out_buff_now_sending == null) && (out_buffs_full_fill <= 0));
     }
 
+    private int PickNextOut() {
+        // Returns the index in out_buffs_full of what to send next. Called with OutBuffFullLock held.
+        // Takes the first buffer of the most urgent class present, so bulk trace data only gives way
+        //  at buffer (that is, segment) boundaries, and each class is still sent in FIFO order.
+        // Reminder: only the first buffer of each class is a candidate, on purpose. If it may not
+        //  overtake (see MayOvertake), the rest of its class waits too, because a later buffer of
+        //  the same class going first would break the FIFO order within the class (e.g. replies
+        //  to consecutive requests). The class is then unblocked as soon as the bulk data ahead
+        //  of it is sent, which is at most the few buffers queued for that shot.
+
+        if (!CONST_OUT_PRIORITY) return 0;
+        int tmp_best = 0;
+        int tmp_seen = 1 << out_buffs_full[0].GetOutPrio();
+        for (int tmp_i = 1; tmp_i < out_buffs_full_fill; tmp_i++) {
+            OutgoingBuff tmp_buff = out_buffs_full[tmp_i];
+            byte tmp_prio = tmp_buff.GetOutPrio();
+            if (0 != (tmp_seen & (1 << tmp_prio))) continue; // Note. Not the first of its class, see above.
+            tmp_seen |= 1 << tmp_prio;
+            if ((tmp_prio < out_buffs_full[tmp_best].GetOutPrio()) && MayOvertake(tmp_buff, tmp_i)) tmp_best = tmp_i;
+        }
+        return tmp_best;
+
+    }
+
+    private boolean MayOvertake(OutgoingBuff _buff, int _index) {
+        // Note. A notice about some shot must not get ahead of trace data of the same shot
+        //  (or of unknown shot), otherwise the client could take stale data for fresh.
+
+        String tmp_shot = _buff.GetOutShot();
+        if (null == tmp_shot) return true;
+        for (int tmp_i = 0; tmp_i < _index; tmp_i++) {
+            OutgoingBuff tmp_other = out_buffs_full[tmp_i];
+            if (tmp_other.GetOutPrio() <= _buff.GetOutPrio()) continue;
+            if ((null == tmp_other.GetOutShot()) || tmp_shot.equals(tmp_other.GetOutShot())) return false;
+        }
+        return true;
+
+    }
+
     // Reminder: result 'false' also means that there is no job to continue.
     protected boolean GetTracesContinue(byte thrd_ctx, RecycledBuffContext ctx) throws Exception {
 
@@ -552,13 +669,17 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
 
         buff.CheckBuffFill();
 
-        if (null == ctx)
-            synchronized(OutBuffFullLock) {
+        if (null == ctx) {
+            OutBuffFullLock.lock();
+            try {
                 if (CancellingLink) throw new Exception("WARNING: PutBuff() while CancellingLink.");
                 out_buffs_full[out_buffs_full_fill] = buff; // ctx.out_buff_now_filling;
                 out_buffs_full_fill++;
                 //System.out.println("[aq2j] out_buffs_full_fill=" + out_buffs_full_fill);
+            } finally {
+                OutBuffFullLock.unlock();
             }
+        }
         if (thrd_ctx != THRD_INTERNAL) {
             //System.out.println("[DEBUG] PutBuff: WakeupMain");
             WakeupMain();
@@ -617,6 +738,34 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
 
     }
 
+    protected void DetachReqBody() {
+        // Note. For handlers keeping req_body after return, a new one will be allocated for the next request.
+
+        if (null != req_body_pooled) {
+            OutBuffPool.getInstance().Disown(req_body_pooled);
+            req_body_pooled = null;
+        } else
+            req_body = null;
+
+    }
+
+    private static boolean HttpHeaderComplete(StringBuilder _header) {
+
+        int tmp_len = _header.length();
+        return (tmp_len >= 4) && ('\n' == _header.charAt(tmp_len-1)) && ('\r' == _header.charAt(tmp_len-2))
+                              && ('\n' == _header.charAt(tmp_len-3)) && ('\r' == _header.charAt(tmp_len-4));
+
+    }
+
+    protected static String GetBodyString(ByteBuffer _bb, int _len) {
+        // Takes _len raw bytes from _bb as ISO-8859-1 chars (same as Tum3Util.BytesToStringRaw()).
+
+        byte[] tmp_bytes = new byte[_len];
+        _bb.get(tmp_bytes, 0, _len);
+        return new String(tmp_bytes, 0, _len, StandardCharsets.ISO_8859_1);
+
+    }
+
     protected void WakeupMain() {
 
         Owner.WakeupMain();
@@ -667,14 +816,17 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
             if (THRD_INTERNAL == thrd_ctx) {
                 boolean tmp_ready = false;
                 while ((tmp_buff == null) && !CancellingLink && ((System.currentTimeMillis() - tmp_wait_started_at) < getKeepaliveTimeoutVal() * 1000)) {
-                    synchronized(OutBuffEmptyLock) {
+                    OutBuffEmptyLock.lock();
+                    try {
                         if (out_buffs_empty_fill > 0) {
                             tmp_buff = out_buffs_empty[out_buffs_empty_fill - 1];
                             out_buffs_empty_fill--;
-                        } else if ((out_buffs_count < getOutBuffCountMax()) || (try_harder && ((out_buffs_count < (getOutBuffCountMax()+2))))) {
+                        } else if (((out_buffs_count < getOutBuffCountMax()) || (try_harder && ((out_buffs_count < (getOutBuffCountMax()+2))))) && !PoolBackPressure()) {
                             tmp_buff = newOutgoingBuff(); // XXX TODO!!! Not very good - allocating memory while holding a lock.
                             out_buffs_count++;
                         } 
+                    } finally {
+                        OutBuffEmptyLock.unlock();
                     }
                     if (tmp_buff == null) {
                         if (may_block) {
@@ -691,20 +843,24 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
                 }
             }
 
-            if ((thrd_ctx == THRD_UNKNOWN) || (thrd_ctx == THRD_EXTERNAL))
-                synchronized(OutBuffEmptyLock) {
+            if ((thrd_ctx == THRD_UNKNOWN) || (thrd_ctx == THRD_EXTERNAL)) {
+                OutBuffEmptyLock.lock();
+                try {
                     if (out_buffs_empty_fill > 0) {
                         tmp_buff = out_buffs_empty[out_buffs_empty_fill - 1];
                         out_buffs_empty_fill--;
                     } else {
-                        if ((out_buffs_count < getOutBuffCountMax()) || (try_harder && ((out_buffs_count < (getOutBuffCountMax()+2))))) {
+                        if (((out_buffs_count < getOutBuffCountMax()) || (try_harder && ((out_buffs_count < (getOutBuffCountMax()+2))))) && !PoolBackPressure()) {
                             tmp_buff = newOutgoingBuff(); // XXX TODO. Better avoid new in synchronized.
                             out_buffs_count++;
                         }
                     }
+                } finally {
+                    OutBuffEmptyLock.unlock();
                 }
+            }
 
-            if ((tmp_buff == null) && may_block) Tum3Logger.DoLog(getLogPrefixName(), true, "DEBUG: " + DebugTitle() + " GetBuff() timeout. Consider increasing conn alive check delay and/or max output buff count. Session: " + DebugTitle() + "; " + Tum3Util.getStackTraceAuto());
+            if ((tmp_buff == null) && may_block) Tum3Logger.DoLog(getLogPrefixName(), true, "DEBUG: " + DebugTitle() + " GetBuff() timeout. Consider increasing conn alive check delay and/or max output buff count. Session: " + DebugTitle() + "; pool: " + OutBuffPool.getInstance().StatusStr() + "; " + Tum3Util.getStackTraceAuto());
             //if (tmp_wait_started) System.out.print("[" + my_dbg_serial + ": GetBuff done " + (System.currentTimeMillis() - tmp_wait_started_at) + "]");
             //System.out.println("[aq2j] DEBUG: <" + Thread.currentThread().getId() + "> GetBuff(" + dbg_text + "): found out buff, is_null=" + (tmp_buff == null));
         }
@@ -722,14 +878,18 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
         if (null != ctx) {
             ctx.out_buff_for_send = theBuff;
         } else {
-            synchronized(OutBuffEmptyLock) {
+            OutBuffEmptyLock.lock();
+            try {
                 if (out_buffs_count <= getOutBuffCountMax()) {
                     out_buffs_empty[out_buffs_empty_fill] = theBuff;
                     out_buffs_empty_fill++;
                     //if (!is_single_thread) OutBuffEmptyLock.notify(); // Removed because there is no longer any OutBuffEmptyLock.wait().
                 } else {
                     out_buffs_count--;
+                    theBuff.ReleaseBuff();
                 }
+            } finally {
+                OutBuffEmptyLock.unlock();
             }
             if (thrd_ctx != THRD_INTERNAL) {
                 //System.out.println("[DEBUG] RefuseBuff: WakeupMain");
@@ -738,10 +898,19 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
         }
     }
 
+    private boolean PoolBackPressure() {
+        // Note. Only hold back a session which has its own output queued, so that
+        //  waiting for it to drain always makes progress and can not deadlock.
+
+        return (out_buffs_full_fill > 0) && OutBuffPool.getInstance().Exhausted();
+
+    }
+
     protected boolean CancelLinkIntrnl() {
 
         OutgoingBuff[] tmp_buffs = null;
-        synchronized(OutBuffFullLock) { 
+        OutBuffFullLock.lock();
+        try {
             if (CancellingLink) return true;
             //System.out.println("[aq2j] DEBUG: CancelLink().");
             CancellingLink = true;
@@ -751,6 +920,15 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
                     tmp_buffs[tmp_i] = out_buffs_full[tmp_i];
                 out_buffs_full_fill = 0;
             }
+        } finally {
+            OutBuffFullLock.unlock();
+        }
+        OutBuffEmptyLock.lock();
+        try {
+            for (int tmp_i=0; tmp_i < out_buffs_empty_fill; tmp_i++)
+                out_buffs_empty[tmp_i].ReleaseBuff();
+        } finally {
+            OutBuffEmptyLock.unlock();
         }
         if (null != tmp_buffs)
             for (int tmp_i=0; tmp_i < tmp_buffs.length; tmp_i++)
@@ -759,6 +937,9 @@ public abstract class SrvLinkBase implements TumProtoConsts, SrvLinkIntf {
                 } catch (Exception e) {
                     Tum3Logger.DoLog(getLogPrefixName(), true, "Unexpected exception in CancelData(): " + Tum3Util.getStackTrace(e)); // YYY
                 }
+        ReqBodySink tmp_sink = curr_sink;
+        curr_sink = null;
+        if (null != tmp_sink) tmp_sink.Abort();
 
         return false;
 
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2023 Nikolai Zhubr <zhubr@rambler.ru>
+ * Copyright 2011-2025 Nikolai Zhubr <zhubr@rambler.ru>
  *
  * This file is provided under the terms of the GNU General Public
  * License version 2. Please see LICENSE file at the uppermost 
@@ -53,6 +53,7 @@ public class TumServTCP extends Thread implements AppStopHook {
     private Selector listen_selector;
     private SelectionKey key;
     private SessionProducerTcp session_producer;
+    private LinkMgrTcpLoop[] event_loops = null;
 
 
     public TumServTCP(SessionProducerTcp _session_producer) {
@@ -94,7 +95,7 @@ public class TumServTCP extends Thread implements AppStopHook {
                     //System.out.println("Connection received from " + tmp_caller);
                     //sc.close();
                     try {
-                        new LinkMgrTcp(session_producer, sc).start();
+                        StartLink(sc);
                     } catch (Exception e) {
                         Tum3Logger.DoLog(session_producer.getLogPrefixName(), true, "Failed to create LinkMgrTcp: " + e);
                         sc.close();
@@ -118,6 +119,18 @@ public class TumServTCP extends Thread implements AppStopHook {
         ssc = null;
     }
 
+    private void StartLink(SocketChannel sc) throws Exception {
+
+        if (session_producer.UseBlockingSessions()) {
+            LinkMgrTcpBlocking.Start(session_producer, sc);
+        } else if (session_producer.EventLoopThreads() > 0) {
+            if (null == event_loops) event_loops = LinkMgrTcpLoop.StartPool(session_producer, session_producer.EventLoopThreads());
+            LinkMgrTcpLoop.PickLeastLoaded(event_loops).Attach(sc);
+        } else
+            new LinkMgrTcp(session_producer, sc).start();
+
+    }
+
     public void run() {
 
         AppStopHooker.AddHook(this);
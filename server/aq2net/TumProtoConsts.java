@@ -56,6 +56,10 @@ public interface TumProtoConsts
     public final static byte REQUEST_TYPE_UGC_REQ = (byte)0xAB;
     public final static byte REQUEST_TYPE_REQUEST_FILES = (byte)0xAA;
     public final static byte REQUEST_TYPE_PUBLISH_SHOTS = (byte)0xB2; // YYY
+    public final static byte REQUEST_TYPE_DECIMATEDCALL = (byte)0xB5;
+    public final static byte REQUEST_TYPE_UPLOAD_SEG_BEGIN = (byte)0xB8; // Segmented upload: ShotName, SignalId, int flags (bit0 = volatile), long full size, then signal header.
+    public final static byte REQUEST_TYPE_UPLOAD_SEG_DATA = (byte)0xB9; // ShotName, SignalId, int reserved, long offset, then data.
+    public final static byte REQUEST_TYPE_UPLOAD_SEG_COMMIT = (byte)0xBA; // ShotName, SignalId, int reserved. Replied with TRACEUPLOADACK.
 
     // Reply codes.
     public final static byte REQUEST_TYPE_AVAILVERSION = (byte)0x7C;
@@ -89,6 +93,14 @@ public interface TumProtoConsts
     public final static byte REQUEST_TYPE_FPART_CNFRM = (byte)0xB1; // YYY
 
     public final static byte REQUEST_TYPE_PUBLISH_RSLT = (byte)0xB3; // YYY
+    public final static byte REQUEST_TYPE_DECIMATEDCOME = (byte)0xB6;
+    public final static byte REQUEST_TYPE_COMPRESSEDCOME = (byte)0xB7; // Envelope: byte original code, int original size, zlib stream.
+    public final static byte REQUEST_TYPE_UPLOAD_SEG_ACK = (byte)0xBB; // ShotName, SignalId, long full size, long confirmed offset, error string.
+
+    // FeatureSelect bits.
+    public final static int FEATURE_NEWSHOT_EVENTS = 0x01;
+    public final static int FEATURE_WIRE_COMPRESS = 0x02;
+    public final static int FEATURE_DOWNLOAD_CREDIT = 0x04; // DOWNLOAD_PAUSED carries long checkpoint and does not stop the flow, DOWNLOAD_RESUME echoes it.
 
     // Special IDs
     public final static int CONST_ID_LIST_ALL = -1;
@@ -274,7 +274,7 @@ public class tomcat356 extends GenericServlet implements ServerApplicationConfig
         if (tmp_tcp != null) if (tmp_tcp.equals("1")) {
             Tum3Logger.DoLogGlb(false, "DEBUG: tomcat356.init() starting raw tcp...");
             for (int tmp_i = 0; tmp_i < glb_cfg.getDbCount(); tmp_i++) if (glb_cfg.getDbTcpEnabled(tmp_i))
-                new TumServTCP(new SessionProducerTcpStd(tmp_i));
+                new TumServTCP(SessionProducerTcpStd.Create(tmp_i));
         }
 
         //System.out.println("[DEBUG] tomcat356.init() end.");